@@ -0,0 +1,153 @@
+package net.rubyeye.memcached.benchmark.completion;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.XMemcachedClientBuilder;
+import net.rubyeye.xmemcached.utils.AddrUtil;
+
+/**
+ * Measure the real client path of blocking operations,which send a command
+ * and wait on it,against the same operations through their futures,which add
+ * an OperationFuture and a listener per operation.A memcached server is
+ * needed,all operations are issued one by one from the caller thread.
+ *
+ * Usage: ClientPathBenchmark [servers] [repeats] [bytes]
+ *
+ * Reports throughput,average/p50/p99 latency and allocated bytes per
+ * operation of the caller thread(requires a HotSpot JVM).
+ *
+ * @author dennis
+ *
+ */
+public class ClientPathBenchmark {
+
+	static final long OP_TIMEOUT = 5000;
+
+	interface Op {
+		void run(MemcachedClient client, String key) throws Exception;
+	}
+
+	static final Op SYNC_GET = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.get(key, OP_TIMEOUT);
+		}
+	};
+
+	static final Op FUTURE_GET = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.getAsync(key).get(OP_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	};
+
+	static final Op SYNC_INCR = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.incr(key + "_counter", 1, 0, OP_TIMEOUT);
+		}
+	};
+
+	static final Op FUTURE_INCR = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.incrAsync(key + "_counter", 1, 0).get(OP_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		}
+	};
+
+	static final Op SYNC_DELETE = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.delete(key + "_missing", OP_TIMEOUT);
+		}
+	};
+
+	static final Op FUTURE_DELETE = new Op() {
+		public void run(MemcachedClient client, String key) throws Exception {
+			client.deleteAsync(key + "_missing").get(OP_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		String servers = args.length >= 1 ? args[0] : "localhost:11211";
+		int repeats = args.length >= 2 ? Integer.parseInt(args[1]) : 100000;
+		int bytes = args.length >= 3 ? Integer.parseInt(args[2]) : 64;
+		MemcachedClient client = new XMemcachedClientBuilder(AddrUtil
+				.getAddresses(servers)).build();
+		try {
+			char[] chars = new char[bytes];
+			Arrays.fill(chars, 'v');
+			final String value = new String(chars);
+			final Op syncSet = new Op() {
+				public void run(MemcachedClient client, String key)
+						throws Exception {
+					client.set(key, 0, value, OP_TIMEOUT);
+				}
+			};
+			final Op futureSet = new Op() {
+				public void run(MemcachedClient client, String key)
+						throws Exception {
+					client.setAsync(key, 0, value).get(OP_TIMEOUT,
+							TimeUnit.MILLISECONDS);
+				}
+			};
+			List<String> keys = new ArrayList<String>(1000);
+			for (int i = 0; i < 1000; i++) {
+				keys.add("client_path_" + i);
+			}
+			// warm up
+			for (int i = 0; i < 2; i++) {
+				run("set", syncSet, client, keys, repeats / 10, false);
+				run("set", futureSet, client, keys, repeats / 10, false);
+				run("get", SYNC_GET, client, keys, repeats / 10, false);
+				run("get", FUTURE_GET, client, keys, repeats / 10, false);
+			}
+			run("sync set", syncSet, client, keys, repeats, true);
+			run("future set", futureSet, client, keys, repeats, true);
+			run("sync get", SYNC_GET, client, keys, repeats, true);
+			run("future get", FUTURE_GET, client, keys, repeats, true);
+			run("sync incr", SYNC_INCR, client, keys, repeats, true);
+			run("future incr", FUTURE_INCR, client, keys, repeats, true);
+			run("sync delete", SYNC_DELETE, client, keys, repeats, true);
+			run("future delete", FUTURE_DELETE, client, keys, repeats, true);
+		} finally {
+			client.shutdown();
+		}
+	}
+
+	static void run(String name, Op op, MemcachedClient client,
+			List<String> keys, int repeats, boolean print) throws Exception {
+		long[] latencies = new long[repeats];
+		long threadId = Thread.currentThread().getId();
+		long allocated = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < repeats; i++) {
+			long begin = System.nanoTime();
+			op.run(client, keys.get(i % keys.size()));
+			latencies[i] = System.nanoTime() - begin;
+		}
+		long duration = System.nanoTime() - start;
+		allocated = allocatedBytes(threadId) - allocated;
+		if (print) {
+			Arrays.sort(latencies);
+			System.out.println(name + ": repeats=" + repeats + ",tps="
+					+ (long) repeats * 1000000000L / duration + ",avg="
+					+ duration / repeats + "ns,p50="
+					+ latencies[repeats / 2] + "ns,p99="
+					+ latencies[(int) (repeats * 0.99)]
+					+ "ns,caller alloc/op=" + allocated / repeats + "B");
+		}
+	}
+
+	static long allocatedBytes(long threadId) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(threadId);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,131 @@
+package net.rubyeye.memcached.benchmark.completion;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.CommandType;
+import net.rubyeye.xmemcached.impl.MemcachedTCPSession;
+
+/**
+ * Compare command completion with a CountDownLatch per command(before) and
+ * the built-in spin-then-park completion of Command(after).No memcached
+ * server is needed,a "reactor" thread completes the commands which are
+ * handed off by the caller thread,just like the decoder does.It measures the
+ * hand-off only,see ClientPathBenchmark for operations of a real client.
+ * 
+ * Usage: CompletionBenchmark [latch|command|both] [repeats]
+ * 
+ * Reports throughput,average/p50/p99 latency and allocated bytes per
+ * operation of both threads(requires a HotSpot JVM).
+ * 
+ * @author dennis
+ * 
+ */
+public class CompletionBenchmark {
+
+	static final class NopCommand extends Command {
+		NopCommand(CountDownLatch latch) {
+			super(CommandType.GET_ONE, latch);
+		}
+
+		@Override
+		public void encode() {
+		}
+
+		@Override
+		public boolean decode(MemcachedTCPSession session, ByteBuffer buffer) {
+			return true;
+		}
+	}
+
+	static final class Reactor extends Thread {
+		final AtomicReference<Command> slot = new AtomicReference<Command>();
+		volatile boolean stopped;
+		volatile long allocatedBytes;
+
+		Reactor() {
+			super("benchmark-reactor");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long before = allocatedBytes(getId());
+			while (!stopped) {
+				Command cmd = slot.getAndSet(null);
+				if (cmd != null) {
+					cmd.countDownLatch();
+				}
+			}
+			allocatedBytes = allocatedBytes(getId()) - before;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length >= 1 ? args[0] : "both";
+		int repeats = args.length >= 2 ? Integer.parseInt(args[1]) : 1000000;
+		// warm up
+		run("latch", repeats / 10, false);
+		run("command", repeats / 10, false);
+		if (mode.equals("latch") || mode.equals("both")) {
+			run("latch", repeats, true);
+		}
+		if (mode.equals("command") || mode.equals("both")) {
+			run("command", repeats, true);
+		}
+	}
+
+	static void run(String mode, int repeats, boolean print)
+			throws Exception {
+		final boolean useLatch = mode.equals("latch");
+		Reactor reactor = new Reactor();
+		reactor.start();
+		long[] latencies = new long[repeats];
+		long threadId = Thread.currentThread().getId();
+		long allocated = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < repeats; i++) {
+			long begin = System.nanoTime();
+			Command cmd = new NopCommand(useLatch ? new CountDownLatch(1)
+					: null);
+			reactor.slot.set(cmd);
+			boolean done = useLatch ? cmd.getLatch().await(1000,
+					TimeUnit.MILLISECONDS) : cmd.await(1000,
+					TimeUnit.MILLISECONDS);
+			if (!done) {
+				throw new IllegalStateException("Command timeout");
+			}
+			latencies[i] = System.nanoTime() - begin;
+		}
+		long duration = System.nanoTime() - start;
+		allocated = allocatedBytes(threadId) - allocated;
+		reactor.stopped = true;
+		reactor.join();
+		if (print) {
+			Arrays.sort(latencies);
+			System.out.println(mode + ": repeats=" + repeats + ",tps="
+					+ (long) repeats * 1000000000L / duration + ",avg="
+					+ duration / repeats + "ns,p50="
+					+ latencies[repeats / 2] + "ns,p99="
+					+ latencies[(int) (repeats * 0.99)]
+					+ "ns,caller alloc/op=" + allocated / repeats
+					+ "B,reactor alloc/op=" + reactor.allocatedBytes
+					/ repeats + "B");
+		}
+	}
+
+	static long allocatedBytes(long threadId) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(threadId);
+		}
+		return 0;
+	}
+}
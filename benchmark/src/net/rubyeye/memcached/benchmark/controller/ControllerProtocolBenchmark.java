@@ -0,0 +1,112 @@
+package net.rubyeye.memcached.benchmark.controller;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.impl.ArrayMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.ArrayMemcachedSessionLocator.ControllerProtocol;
+
+/**
+ * Compare POLL,DELTA and PUSH controller protocols against a
+ * StandInController.No memcached server is needed.Every round changes some
+ * keys on controller and waits until the locator sees the last one.
+ * 
+ * Usage: ControllerProtocolBenchmark [keys] [changesPerRound] [rounds]
+ * 
+ * Reports time of the initial load,propagation latency of a round and bytes
+ * allocated by the fetcher thread per round(requires a HotSpot JVM).
+ * 
+ * @author dennis
+ * 
+ */
+public class ControllerProtocolBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int keys = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+		int changes = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+		int rounds = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+
+		StandInController controller = new StandInController(0);
+		Map<String, String> initial = new HashMap<String, String>();
+		for (int i = 0; i < keys; i++) {
+			initial.put("key_" + i, hosts(i));
+		}
+		controller.update(initial);
+		System.out.println("keys=" + keys + ",changesPerRound=" + changes
+				+ ",rounds=" + rounds);
+
+		int generation = 1;
+		for (ControllerProtocol protocol : ControllerProtocol.values()) {
+			long start = System.nanoTime();
+			ArrayMemcachedSessionLocator locator = new ArrayMemcachedSessionLocator(
+					HashAlgorithm.NATIVE_HASH, "localhost", controller
+							.getPort(), true, ArrayMemcachedSessionLocator.ROUND_ROBIN, 1,
+					protocol);
+			while (locator.getRoutingTable().size() < keys) {
+				Thread.sleep(1);
+			}
+			long loadMillis = (System.nanoTime() - start) / 1000000;
+			long fetcherId = fetcherThreadId();
+			long allocated = 0;
+			long latency = 0;
+			for (int r = 0; r < rounds; r++) {
+				generation++;
+				Map<String, String> update = new HashMap<String, String>();
+				String last = null;
+				for (int i = 0; i < changes; i++) {
+					last = "key_" + ((r * changes + i) % keys);
+					update.put(last, hosts(generation));
+				}
+				String expected = hosts(generation).substring(0,
+						hosts(generation).indexOf(':'));
+				long before = allocatedBytes(fetcherId);
+				start = System.nanoTime();
+				controller.update(update);
+				while (true) {
+					List<String> current = locator.getRoutingTable().getHosts(
+							last);
+					if (current != null && current.get(0).equals(expected)) {
+						break;
+					}
+					Thread.sleep(0, 100000);
+				}
+				latency += System.nanoTime() - start;
+				allocated += allocatedBytes(fetcherId) - before;
+			}
+			locator.stop();
+			System.out.println(protocol + ": initial load " + loadMillis
+					+ " ms,avg propagation " + latency / rounds / 1000000
+					+ " ms,fetcher allocated " + allocated / rounds
+					+ " bytes/round");
+		}
+		controller.stop();
+	}
+
+	static String hosts(int i) {
+		return "10.0.0." + (i % 250 + 1) + ":11211,10.0.1." + (i % 250 + 1)
+				+ ":11211";
+	}
+
+	static long fetcherThreadId() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("xmemcached-controller-fetcher")
+					&& thread.isAlive()) {
+				return thread.getId();
+			}
+		}
+		return -1;
+	}
+
+	static long allocatedBytes(long threadId) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (threadId >= 0 && bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(threadId);
+		}
+		return 0;
+	}
+}
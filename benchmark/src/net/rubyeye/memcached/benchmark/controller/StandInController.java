@@ -0,0 +1,175 @@
+package net.rubyeye.memcached.benchmark.controller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A local controller which serves key to hosts mapping to
+ * ArrayMemcachedSessionLocator.It speaks all of the protocols:
+ * 
+ * <pre>
+ * 2:\r\n           whole mapping,"key\tip:port,ip:port" lines and an empty line
+ * 3:version\r\n    one block of changes since version
+ * 4:version\r\n    one block of changes since version,then a block per change
+ * </pre>
+ * 
+ * A block starts with "VERSION version FULL|DELTA" and ends with an empty
+ * line,removed keys have no hosts.Every key remembers the version it was last
+ * changed in,and removed keys are kept as tombstones,so a delta is a scan of
+ * the mapping.A FULL block is only sent to clients of version 0.
+ * 
+ * @author dennis
+ * 
+ */
+public class StandInController {
+
+	static final class Entry {
+		final String hosts;
+		final long version;
+
+		Entry(String hosts, long version) {
+			this.hosts = hosts;
+			this.version = version;
+		}
+	}
+
+	private final Map<String, Entry> mapping = new HashMap<String, Entry>();
+	private long version;
+	private final ServerSocket serverSocket;
+	private volatile boolean stopped;
+
+	public StandInController(int port) throws IOException {
+		this.serverSocket = new ServerSocket(port);
+		Thread acceptor = new Thread("stand-in-controller") {
+			@Override
+			public void run() {
+				while (!stopped) {
+					try {
+						final Socket socket = serverSocket.accept();
+						Thread handler = new Thread("stand-in-controller-"
+								+ socket.getPort()) {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						};
+						handler.setDaemon(true);
+						handler.start();
+					} catch (IOException e) {
+						if (!stopped) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	public synchronized long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Set hosts of keys in one version
+	 * 
+	 * @param changes
+	 *            key to "ip:port,ip:port",empty hosts remove the key
+	 */
+	public synchronized void update(Map<String, String> changes) {
+		this.version++;
+		for (Map.Entry<String, String> change : changes.entrySet()) {
+			this.mapping.put(change.getKey(), new Entry(change.getValue(),
+					this.version));
+		}
+		this.notifyAll();
+	}
+
+	public void stop() throws IOException {
+		this.stopped = true;
+		this.serverSocket.close();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			OutputStream out = socket.getOutputStream();
+			String line;
+			while (!stopped && (line = reader.readLine()) != null) {
+				if (line.startsWith("2:")) {
+					out.write(this.full().getBytes());
+				} else if (line.startsWith("3:")) {
+					out.write(this.delta(Long.parseLong(line.substring(2)
+							.trim())).getBytes());
+				} else if (line.startsWith("4:")) {
+					long since = Long.parseLong(line.substring(2).trim());
+					while (!stopped) {
+						String block = this.delta(since);
+						since = this.parseVersion(block);
+						out.write(block.getBytes());
+						out.flush();
+						this.awaitChange(since);
+					}
+				}
+				out.flush();
+			}
+		} catch (Exception e) {
+			// client is gone
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private long parseVersion(String block) {
+		int end = block.indexOf(' ', "VERSION ".length());
+		return Long.parseLong(block.substring("VERSION ".length(), end));
+	}
+
+	private synchronized void awaitChange(long since)
+			throws InterruptedException {
+		while (!stopped && this.version <= since) {
+			this.wait(1000);
+		}
+	}
+
+	private synchronized String full() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : this.mapping.entrySet()) {
+			if (entry.getValue().hosts.length() > 0) {
+				sb.append(entry.getKey()).append('\t').append(
+						entry.getValue().hosts).append('\n');
+			}
+		}
+		return sb.append('\n').toString();
+	}
+
+	private synchronized String delta(long since) {
+		boolean full = since <= 0;
+		StringBuilder sb = new StringBuilder();
+		sb.append("VERSION ").append(this.version).append(
+				full ? " FULL\n" : " DELTA\n");
+		for (Map.Entry<String, Entry> entry : this.mapping.entrySet()) {
+			Entry value = entry.getValue();
+			if (full ? value.hosts.length() > 0 : value.version > since) {
+				sb.append(entry.getKey()).append('\t').append(value.hosts)
+						.append('\n');
+			}
+		}
+		return sb.append('\n').toString();
+	}
+}
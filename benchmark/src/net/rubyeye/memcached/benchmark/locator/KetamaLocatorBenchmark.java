@@ -0,0 +1,239 @@
+package net.rubyeye.memcached.benchmark.locator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.impl.KetamaMemcachedSessionLocator;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Compare ketama lookup on the TreeMap ring(before) and the array ring of
+ * KetamaMemcachedSessionLocator(after).No memcached server is needed,sessions
+ * are stubs which only have a remote address.Both rings are checked to map
+ * every key to the same session for every hash algorithm,with and without
+ * cwNginxUpstreamConsistent,before timing.
+ *
+ * Usage: KetamaLocatorBenchmark [servers] [keys] [rounds]
+ *
+ * Reports average lookup time and allocated bytes per lookup(requires a
+ * HotSpot JVM).
+ *
+ * @author dennis
+ *
+ */
+public class KetamaLocatorBenchmark {
+
+	/**
+	 * The ring before,copied from the TreeMap based locator
+	 */
+	static final class TreeMapRing {
+		final TreeMap<Long, List<Session>> ketamaSessions = new TreeMap<Long, List<Session>>();
+		final Random random = new Random();
+
+		TreeMapRing(List<Session> list, HashAlgorithm alg,
+				boolean cwNginxUpstreamConsistent) {
+			for (Session session : list) {
+				String sockStr;
+				if (cwNginxUpstreamConsistent) {
+					sockStr = String.format("%s:%d", session
+							.getRemoteSocketAddress().getAddress()
+							.getHostAddress(), session.getRemoteSocketAddress()
+							.getPort());
+				} else {
+					sockStr = String.valueOf(session.getRemoteSocketAddress());
+				}
+				if (alg == HashAlgorithm.KETAMA_HASH) {
+					for (int i = 0; i < 160 / 4; i++) {
+						byte[] digest = HashAlgorithm.computeMd5(sockStr + "-"
+								+ i);
+						for (int h = 0; h < 4; h++) {
+							long k = (long) (digest[3 + h * 4] & 0xFF) << 24
+									| (long) (digest[2 + h * 4] & 0xFF) << 16
+									| (long) (digest[1 + h * 4] & 0xFF) << 8
+									| digest[h * 4] & 0xFF;
+							this.getSessionList(k).add(session);
+						}
+					}
+				} else {
+					for (int i = 0; i < 160; i++) {
+						this.getSessionList(alg.hash(sockStr + "-" + i)).add(
+								session);
+					}
+				}
+			}
+		}
+
+		private List<Session> getSessionList(long k) {
+			List<Session> sessionList = this.ketamaSessions.get(k);
+			if (sessionList == null) {
+				sessionList = new ArrayList<Session>();
+				this.ketamaSessions.put(k, sessionList);
+			}
+			return sessionList;
+		}
+
+		List<Session> getSessionsByHash(final long hash) {
+			SortedMap<Long, List<Session>> tailMap = this.ketamaSessions
+					.tailMap(hash);
+			if (tailMap.isEmpty()) {
+				return this.ketamaSessions.get(this.ketamaSessions.firstKey());
+			}
+			return tailMap.get(tailMap.firstKey());
+		}
+
+		Session getSessionByHash(final long hash) {
+			TreeMap<Long, List<Session>> sessionMap = this.ketamaSessions;
+			if (sessionMap.size() == 0) {
+				return null;
+			}
+			Long resultHash = hash;
+			if (!sessionMap.containsKey(hash)) {
+				SortedMap<Long, List<Session>> tailMap = sessionMap
+						.tailMap(hash);
+				if (tailMap.isEmpty()) {
+					resultHash = sessionMap.firstKey();
+				} else {
+					resultHash = tailMap.firstKey();
+				}
+			}
+			List<Session> sessionList = sessionMap.get(resultHash);
+			if (sessionList == null || sessionList.size() == 0) {
+				return null;
+			}
+			int size = sessionList.size();
+			return sessionList.get(this.random.nextInt(size));
+		}
+	}
+
+	static Session stubSession(final InetSocketAddress address) {
+		return (Session) Proxy.newProxyInstance(Session.class
+				.getClassLoader(), new Class<?>[] { Session.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getRemoteSocketAddress")) {
+							return address;
+						} else if (name.equals("isClosed")) {
+							return Boolean.FALSE;
+						} else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (name.equals("equals")) {
+							return proxy == args[0];
+						} else if (name.equals("toString")) {
+							return "Session[" + address + "]";
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	public static void main(String[] args) throws Exception {
+		int servers = args.length >= 1 ? Integer.parseInt(args[0]) : 32;
+		int keys = args.length >= 2 ? Integer.parseInt(args[1]) : 100000;
+		int rounds = args.length >= 3 ? Integer.parseInt(args[2]) : 100;
+
+		List<Session> sessions = new ArrayList<Session>();
+		for (int i = 0; i < servers; i++) {
+			sessions.add(stubSession(new InetSocketAddress("10.0."
+					+ (i / 250) + "." + (i % 250 + 1), 11211)));
+		}
+		for (HashAlgorithm alg : HashAlgorithm.values()) {
+			for (boolean nginx : new boolean[] { false, true }) {
+				TreeMapRing before = new TreeMapRing(sessions, alg, nginx);
+				KetamaMemcachedSessionLocator after = new KetamaMemcachedSessionLocator(
+						alg, nginx);
+				after.updateSessions(sessions);
+				for (int i = 0; i < keys; i++) {
+					long hash = alg.hash("key_" + i);
+					if (!before.getSessionsByHash(hash).contains(
+							after.getSessionByHash(hash))) {
+						throw new IllegalStateException("Key key_" + i
+								+ " is mapped to different sessions,alg="
+								+ alg + ",nginx=" + nginx);
+					}
+				}
+				System.out.println("Same distribution for " + keys
+						+ " keys,alg=" + alg + ",cwNginxUpstreamConsistent="
+						+ nginx);
+			}
+		}
+
+		long[] hashes = new long[keys];
+		for (int i = 0; i < keys; i++) {
+			hashes[i] = HashAlgorithm.KETAMA_HASH.hash("key_" + i);
+		}
+		TreeMapRing before = new TreeMapRing(sessions,
+				HashAlgorithm.KETAMA_HASH, false);
+		KetamaMemcachedSessionLocator after = new KetamaMemcachedSessionLocator(
+				HashAlgorithm.KETAMA_HASH);
+		after.updateSessions(sessions);
+		// warm up
+		runTreeMap(before, hashes, rounds / 10 + 1, false);
+		runArray(after, hashes, rounds / 10 + 1, false);
+		runTreeMap(before, hashes, rounds, true);
+		runArray(after, hashes, rounds, true);
+	}
+
+	static void runTreeMap(TreeMapRing ring, long[] hashes, int rounds,
+			boolean print) {
+		long threadId = Thread.currentThread().getId();
+		long allocated = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		int sum = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (long hash : hashes) {
+				sum += System.identityHashCode(ring.getSessionByHash(hash));
+			}
+		}
+		report("treemap", hashes.length, rounds, start, threadId, allocated,
+				sum, print);
+	}
+
+	static void runArray(KetamaMemcachedSessionLocator locator, long[] hashes,
+			int rounds, boolean print) {
+		long threadId = Thread.currentThread().getId();
+		long allocated = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		int sum = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (long hash : hashes) {
+				sum += System.identityHashCode(locator.getSessionByHash(hash));
+			}
+		}
+		report("array", hashes.length, rounds, start, threadId, allocated,
+				sum, print);
+	}
+
+	static void report(String mode, int keys, int rounds, long start,
+			long threadId, long allocated, int sum, boolean print) {
+		long duration = System.nanoTime() - start;
+		allocated = allocatedBytes(threadId) - allocated;
+		long ops = (long) keys * rounds;
+		if (print) {
+			System.out.println(mode + ": lookups=" + ops + ",avg="
+					+ (double) duration / ops + "ns,alloc/op="
+					+ (double) allocated / ops + "B,checksum=" + sum);
+		}
+	}
+
+	static long allocatedBytes(long threadId) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(threadId);
+		}
+		return 0;
+	}
+}
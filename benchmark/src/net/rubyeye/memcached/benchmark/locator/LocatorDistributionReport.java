@@ -0,0 +1,151 @@
+package net.rubyeye.memcached.benchmark.locator;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.rubyeye.xmemcached.MemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.JumpHashMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.KetamaMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.MaglevMemcachedSessionLocator;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Report key distribution of session locators,and how many keys are moved
+ * when a server is appended,or a server in the middle is removed.No
+ * memcached server is needed,sessions are stubs which only have a remote
+ * address.
+ *
+ * Usage: LocatorDistributionReport [servers] [keys] [poolSize]
+ *
+ * @author dennis
+ *
+ */
+public class LocatorDistributionReport {
+
+	interface LocatorFactory {
+		String getName();
+
+		MemcachedSessionLocator newLocator();
+	}
+
+	public static void main(String[] args) {
+		int servers = args.length >= 1 ? Integer.parseInt(args[0]) : 10;
+		int keys = args.length >= 2 ? Integer.parseInt(args[1]) : 100000;
+		int poolSize = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+
+		LocatorFactory[] factories = new LocatorFactory[] {
+				new LocatorFactory() {
+					public String getName() {
+						return "ketama";
+					}
+
+					public MemcachedSessionLocator newLocator() {
+						return new KetamaMemcachedSessionLocator();
+					}
+				}, new LocatorFactory() {
+					public String getName() {
+						return "jump";
+					}
+
+					public MemcachedSessionLocator newLocator() {
+						return new JumpHashMemcachedSessionLocator();
+					}
+				}, new LocatorFactory() {
+					public String getName() {
+						return "maglev";
+					}
+
+					public MemcachedSessionLocator newLocator() {
+						return new MaglevMemcachedSessionLocator();
+					}
+				} };
+
+		List<Session> sessions = createSessions(0, servers, poolSize);
+		List<Session> appended = new ArrayList<Session>(sessions);
+		appended.addAll(createSessions(servers, 1, poolSize));
+		List<Session> removed = new ArrayList<Session>(sessions);
+		for (Session session : sessions) {
+			if (session.getRemoteSocketAddress().equals(
+					sessions.get(sessions.size() / 2).getRemoteSocketAddress())) {
+				removed.remove(session);
+			}
+		}
+		System.out.println("servers=" + servers + ",keys=" + keys
+				+ ",poolSize=" + poolSize + ",ideal remap on append="
+				+ format(1.0 / (servers + 1)) + ",ideal remap on remove="
+				+ format(1.0 / servers));
+		for (LocatorFactory factory : factories) {
+			MemcachedSessionLocator locator = factory.newLocator();
+			locator.updateSessions(sessions);
+			SocketAddress[] before = locate(locator, keys);
+			Map<SocketAddress, Integer> counts = new HashMap<SocketAddress, Integer>();
+			for (SocketAddress address : before) {
+				Integer count = counts.get(address);
+				counts.put(address, count == null ? 1 : count + 1);
+			}
+			double mean = (double) keys / servers;
+			double variance = 0;
+			int min = Integer.MAX_VALUE, max = 0;
+			for (int count : counts.values()) {
+				min = Math.min(min, count);
+				max = Math.max(max, count);
+				variance += (count - mean) * (count - mean);
+			}
+			if (counts.size() < servers) {
+				min = 0;
+			}
+			double stddev = Math.sqrt(variance / servers);
+
+			locator.updateSessions(appended);
+			double appendRemap = remapRate(before, locate(locator, keys));
+			locator.updateSessions(removed);
+			double removeRemap = remapRate(before, locate(locator, keys));
+
+			System.out.println(factory.getName() + ": min/mean="
+					+ format(min / mean) + ",max/mean=" + format(max / mean)
+					+ ",stddev/mean=" + format(stddev / mean)
+					+ ",remap on append=" + format(appendRemap)
+					+ ",remap on remove=" + format(removeRemap));
+		}
+	}
+
+	static List<Session> createSessions(int from, int count, int poolSize) {
+		List<Session> sessions = new ArrayList<Session>();
+		for (int i = from; i < from + count; i++) {
+			InetSocketAddress address = new InetSocketAddress("10.0."
+					+ (i / 250) + "." + (i % 250 + 1), 11211);
+			for (int j = 0; j < poolSize; j++) {
+				sessions.add(KetamaLocatorBenchmark.stubSession(address));
+			}
+		}
+		return sessions;
+	}
+
+	static SocketAddress[] locate(MemcachedSessionLocator locator, int keys) {
+		SocketAddress[] result = new SocketAddress[keys];
+		for (int i = 0; i < keys; i++) {
+			result[i] = locator.getSessionByKey("key_" + i, false)
+					.getRemoteSocketAddress();
+		}
+		return result;
+	}
+
+	static double remapRate(SocketAddress[] before, SocketAddress[] after) {
+		int moved = 0;
+		for (int i = 0; i < before.length; i++) {
+			if (!before[i].equals(after[i])) {
+				moved++;
+			}
+		}
+		return (double) moved / before.length;
+	}
+
+	static String format(double value) {
+		return String.format("%.4f", value);
+	}
+}
@@ -0,0 +1,128 @@
+package net.rubyeye.memcached.benchmark.locator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import net.rubyeye.xmemcached.impl.ReplicaMap;
+
+/**
+ * Compare memory and lookup cost of the legacy key map,a
+ * HashMap&lt;String,Vector&lt;String&gt;&gt;,with ReplicaMap on heap,in a
+ * direct buffer and with key verification.Every key has three replicas out of
+ * hosts.Retained heap is measured by Runtime after GC,so run it with a heap
+ * large enough for the legacy map.
+ * 
+ * Usage: ReplicaMapBenchmark [keys] [hosts]
+ * 
+ * @author dennis
+ * 
+ */
+public class ReplicaMapBenchmark {
+
+	public static void main(String[] args) {
+		int keys = args.length >= 1 ? Integer.parseInt(args[0]) : 1000000;
+		int hosts = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+		String[] hostNames = new String[hosts];
+		for (int i = 0; i < hosts; i++) {
+			hostNames[i] = "10.0." + (i / 250) + "." + (i % 250 + 1);
+		}
+		System.out.println("keys=" + keys + ",hosts=" + hosts);
+
+		long before = usedHeap();
+		Map<String, Vector<String>> legacy = new HashMap<String, Vector<String>>();
+		for (int i = 0; i < keys; i++) {
+			Vector<String> replicas = new Vector<String>();
+			for (int r = 0; r < 3; r++) {
+				replicas.add(hostNames[(i + r) % hosts]);
+			}
+			legacy.put("key_" + i, replicas);
+		}
+		long legacyBytes = usedHeap() - before;
+		long legacyNanos = lookup(legacy, keys);
+		System.out.println("legacy: " + legacyBytes / keys + " bytes/key,"
+				+ legacyNanos + " ns/lookup");
+		legacy = null;
+
+		report("heap", false, false, keys, hosts);
+		report("heap+verify", false, true, keys, hosts);
+		report("direct", true, false, keys, hosts);
+		report("direct+verify", true, true, keys, hosts);
+	}
+
+	static void report(String name, boolean direct, boolean verify,
+			int keys, int hosts) {
+		long before = usedHeap();
+		ReplicaMap map = new ReplicaMap(keys, direct, verify);
+		for (int i = 0; i < keys; i++) {
+			map.put("key_" + i, new int[] { i % hosts, (i + 1) % hosts,
+					(i + 2) % hosts });
+		}
+		long heapBytes = usedHeap() - before;
+		for (int i = 0; i < keys; i++) {
+			long replicas = map.get("key_" + i);
+			if (ReplicaMap.count(replicas) != 3
+					|| ReplicaMap.replica(replicas, 2) != (i + 2) % hosts) {
+				throw new IllegalStateException("Wrong replicas of key_" + i);
+			}
+		}
+		for (int i = 0; i < keys; i += 2) {
+			map.remove("key_" + i);
+		}
+		for (int i = 0; i < keys; i++) {
+			boolean present = map.get("key_" + i) != ReplicaMap.NONE;
+			if (present != (i % 2 == 1)) {
+				throw new IllegalStateException("Wrong removal of key_" + i);
+			}
+		}
+		for (int i = 0; i < keys; i += 2) {
+			map.put("key_" + i, new int[] { i % hosts });
+		}
+		long nanos = lookup(map, keys);
+		System.out.println(name + ": " + map.memoryUsage() / keys
+				+ " bytes/key in slots," + Math.max(heapBytes, 0) / keys
+				+ " bytes/key on heap," + nanos + " ns/lookup");
+	}
+
+	static long lookup(Map<String, Vector<String>> map, int keys) {
+		String[] names = names(keys);
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < 3; round++) {
+			for (String name : names) {
+				sum += map.get(name).size();
+			}
+		}
+		long nanos = (System.nanoTime() - start) / (3L * keys);
+		return sum > 0 ? nanos : -1;
+	}
+
+	static long lookup(ReplicaMap map, int keys) {
+		String[] names = names(keys);
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < 3; round++) {
+			for (String name : names) {
+				sum += ReplicaMap.count(map.get(name));
+			}
+		}
+		long nanos = (System.nanoTime() - start) / (3L * keys);
+		return sum > 0 ? nanos : -1;
+	}
+
+	static String[] names(int keys) {
+		String[] names = new String[Math.min(keys, 100000)];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "key_" + (i * 7 % keys);
+		}
+		return names;
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
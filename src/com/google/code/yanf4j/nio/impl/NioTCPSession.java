@@ -14,12 +14,18 @@ package com.google.code.yanf4j.nio.impl;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import com.google.code.yanf4j.buffer.IoBuffer;
@@ -41,6 +47,25 @@ import com.google.code.yanf4j.util.SelectorFactory;
 public class NioTCPSession extends AbstractNioSession {
 	private InetSocketAddress remoteAddress;
 
+	/**
+	 * Default max number of messages sent by one gathering write
+	 */
+	public static final int DEFAULT_MAX_GATHERING_MESSAGES = 64;
+
+	private volatile boolean gatheringWrite;
+
+	private volatile int maxGatheringMessages = DEFAULT_MAX_GATHERING_MESSAGES;
+
+	/**
+	 * Messages polled from write queue by gathering write but not written
+	 * completely yet,in queue order.Guarded by writeLock.
+	 */
+	private final LinkedList<WriteMessage> gatheringMessages = new LinkedList<WriteMessage>();
+
+	private ByteBuffer[] gatheringBuffers = new ByteBuffer[DEFAULT_MAX_GATHERING_MESSAGES];
+
+	private volatile int gatheringPending;
+
 	@Override
 	public final boolean isExpired() {
 		if (log.isDebugEnabled()) {
@@ -101,6 +126,197 @@ public class NioTCPSession extends AbstractNioSession {
 
 	}
 
+	public boolean isGatheringWrite() {
+		return this.gatheringWrite;
+	}
+
+	/**
+	 * Enable/Disable gathering write.When enabled,many queued messages are
+	 * sent by one GatheringByteChannel.write(ByteBuffer[]) call instead of
+	 * being written one by one.
+	 * 
+	 * @param gatheringWrite
+	 */
+	public void setGatheringWrite(boolean gatheringWrite) {
+		this.gatheringWrite = gatheringWrite;
+	}
+
+	public int getMaxGatheringMessages() {
+		return this.maxGatheringMessages;
+	}
+
+	public void setMaxGatheringMessages(int maxGatheringMessages) {
+		if (maxGatheringMessages <= 0) {
+			throw new IllegalArgumentException(
+					"maxGatheringMessages must be greater than zero");
+		}
+		this.writeLock.lock();
+		try {
+			if (this.gatheringBuffers.length < maxGatheringMessages) {
+				this.gatheringBuffers = new ByteBuffer[maxGatheringMessages];
+			}
+			this.maxGatheringMessages = maxGatheringMessages;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	@Override
+	protected void onWrite(SelectionKey key) {
+		// Messages polled by gathering write must be written by it,even if
+		// it was just disabled
+		if (!this.gatheringWrite && this.gatheringPending == 0) {
+			super.onWrite(key);
+		} else {
+			this.onGatheringWrite();
+		}
+	}
+
+	/**
+	 * Poll messages from write queue and write them by one gathering write.A
+	 * message is completed only when all of its bytes were written,and
+	 * messages are completed in queue order,so onMessageSent is called in the
+	 * same order as single message writing.
+	 */
+	protected final void onGatheringWrite() {
+		if (!this.writeLock.tryLock()) {
+			return;
+		}
+		boolean interestWrite = false;
+		IOException writeException = null;
+		try {
+			this.updateTimeStamp();
+			// message left by single message writing
+			WriteMessage current = this.currentMessage.getAndSet(null);
+			if (current != null) {
+				this.gatheringMessages.addLast(this
+						.preprocessWriteMessage(current));
+			}
+			// make read/write fail, write/read=3/2
+			final long maxWritten = this.readBuffer.capacity()
+					+ (this.readBuffer.capacity() >>> 1);
+			long written = 0;
+			while (true) {
+				this.fillGatheringMessages(maxWritten);
+				if (this.gatheringMessages.isEmpty()) {
+					break;
+				}
+				int count = 0;
+				for (WriteMessage message : this.gatheringMessages) {
+					IoBuffer writeBuffer = message.getWriteBuffer();
+					if (writeBuffer == null || !writeBuffer.hasRemaining()
+							|| this.isCancelledBeforeWriting(message)) {
+						continue;
+					}
+					message.writing();
+					this.gatheringBuffers[count++] = writeBuffer.buf();
+				}
+				if (count > 0) {
+					long n = ((GatheringByteChannel) this.selectableChannel)
+							.write(this.gatheringBuffers, 0, count);
+					Arrays.fill(this.gatheringBuffers, 0, count, null);
+					if (n > 0) {
+						this.statistics.statisticsWrite(n);
+						this.scheduleWritenBytes.addAndGet(0 - n);
+						written += n;
+					}
+				}
+				this.completeGatheringMessages();
+				if (!this.gatheringMessages.isEmpty()) {
+					// have more data, but the buffer is full,
+					// wait next time to write
+					interestWrite = true;
+					break;
+				}
+				if (written >= maxWritten) {
+					interestWrite = !this.writeQueue.isEmpty();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			writeException = e;
+			for (WriteMessage message : this.gatheringMessages) {
+				if (message.getWriteFuture() != null) {
+					message.getWriteFuture().failure(e);
+				}
+			}
+		} finally {
+			this.gatheringPending = this.gatheringMessages.size();
+			this.writeLock.unlock();
+		}
+		if (writeException != null) {
+			this.handler.onExceptionCaught(this, writeException);
+			this.close();
+		} else if (interestWrite) {
+			this.selectorManager.registerSession(this, EventType.ENABLE_WRITE);
+		}
+	}
+
+	private void fillGatheringMessages(long maxBytes) {
+		long bytes = 0;
+		for (WriteMessage message : this.gatheringMessages) {
+			if (message.getWriteBuffer() != null) {
+				bytes += message.getWriteBuffer().remaining();
+			}
+		}
+		final int max = Math.min(this.maxGatheringMessages,
+				this.gatheringBuffers.length);
+		while (this.gatheringMessages.size() < max && bytes < maxBytes) {
+			WriteMessage message = this.writeQueue.poll();
+			if (message == null) {
+				break;
+			}
+			message = this.preprocessWriteMessage(message);
+			this.gatheringMessages.addLast(message);
+			if (message.getWriteBuffer() != null) {
+				bytes += message.getWriteBuffer().remaining();
+			}
+		}
+		this.gatheringPending = this.gatheringMessages.size();
+	}
+
+	private void completeGatheringMessages() {
+		WriteMessage message;
+		while ((message = this.gatheringMessages.peek()) != null) {
+			IoBuffer writeBuffer = message.getWriteBuffer();
+			if (!this.isCancelledBeforeWriting(message)) {
+				if (writeBuffer != null && writeBuffer.hasRemaining()) {
+					// partial written,the following messages must wait
+					return;
+				}
+				if (message.getWriteFuture() != null) {
+					message.getWriteFuture().setResult(Boolean.TRUE);
+				}
+			}
+			this.gatheringMessages.poll();
+			this.handler.onMessageSent(this, message.getMessage());
+		}
+	}
+
+	private boolean isCancelledBeforeWriting(WriteMessage message) {
+		return message.getWriteFuture() != null && !message.isWriting()
+				&& message.getWriteFuture().isCancelled();
+	}
+
+	/**
+	 * Remove messages that were polled by gathering write but not written
+	 * completely,used to release them when session is closed.
+	 * 
+	 * @return
+	 */
+	protected final List<WriteMessage> drainGatheringMessages() {
+		this.writeLock.lock();
+		try {
+			List<WriteMessage> result = new ArrayList<WriteMessage>(
+					this.gatheringMessages);
+			this.gatheringMessages.clear();
+			this.gatheringPending = 0;
+			return result;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
 	public InetSocketAddress getRemoteSocketAddress() {
 		if (this.remoteAddress == null) {
 			this.remoteAddress = (InetSocketAddress) ((SocketChannel) this.selectableChannel)
@@ -0,0 +1,32 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+/**
+ * Loader of read-through get,it is called when a key is missed in memcached
+ * 
+ * @see MemcachedClient#get(String, int, CacheLoader)
+ * @author dennis
+ * 
+ */
+public interface CacheLoader<T> {
+	/**
+	 * Load value of a missed key,the value is stored to memcached if it is not
+	 * null
+	 * 
+	 * @param key
+	 *            key passed to get
+	 * @return value of key,or null if there is no value
+	 * @throws Exception
+	 */
+	public T load(String key) throws Exception;
+}
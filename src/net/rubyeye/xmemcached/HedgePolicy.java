@@ -0,0 +1,272 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Policy of hedged reads.If a get of a replicated key is not responded in a
+ * delay,which is a percentile of recent get latencies(95th by default),the
+ * same get is sent to another replica and whichever answers first wins,the
+ * other one is cancelled.Hedges are limited by a budget:every read earns a
+ * fraction of a hedge(5% by default),so hedges could not amplify an outage.
+ * 
+ * <p>
+ * Single gets and sub-batches of multi-gets have their own latency
+ * percentiles.No hedge is sent until enough latencies are recorded.Only
+ * locators implementing {@link ReplicaMemcachedSessionLocator} have replicas
+ * to hedge to.
+ * </p>
+ * 
+ * @see MemcachedClient#setHedgePolicy(HedgePolicy)
+ * @author dennis
+ * 
+ */
+public final class HedgePolicy {
+
+	public static final double DEFAULT_PERCENTILE = 0.95;
+
+	public static final double DEFAULT_BUDGET = 0.05;
+
+	public static final long DEFAULT_MIN_DELAY = TimeUnit.MICROSECONDS
+			.toNanos(200);
+
+	/**
+	 * Max hedges could be sent in a burst
+	 */
+	static final int MAX_BURST = 10;
+
+	/**
+	 * Fixed point scale of budget tokens
+	 */
+	private static final long TOKEN = 1000000L;
+
+	private final double percentile;
+	private final double budget;
+	private final long minDelay;
+	private final long earned;
+	private final AtomicLong tokens = new AtomicLong();
+	private final LatencyHistogram singleLatency;
+	private final LatencyHistogram batchLatency;
+	private final AtomicLong hedged = new AtomicLong();
+	private final AtomicLong won = new AtomicLong();
+
+	public HedgePolicy() {
+		this(DEFAULT_PERCENTILE, DEFAULT_BUDGET, DEFAULT_MIN_DELAY,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 
+	 * @param percentile
+	 *            latency percentile to wait before hedging,between 0 and 1
+	 * @param budget
+	 *            max hedges per read,between 0 and 1
+	 * @param minDelay
+	 *            min delay before hedging
+	 * @param unit
+	 */
+	public HedgePolicy(double percentile, double budget, long minDelay,
+			TimeUnit unit) {
+		if (percentile <= 0 || percentile >= 1) {
+			throw new IllegalArgumentException(
+					"Percentile must be between 0 and 1");
+		}
+		if (budget < 0 || budget > 1) {
+			throw new IllegalArgumentException(
+					"Budget must be between 0 and 1");
+		}
+		if (minDelay < 0) {
+			throw new IllegalArgumentException("Negative min delay");
+		}
+		this.percentile = percentile;
+		this.budget = budget;
+		this.minDelay = unit.toNanos(minDelay);
+		this.earned = (long) (budget * TOKEN);
+		this.singleLatency = new LatencyHistogram(percentile);
+		this.batchLatency = new LatencyHistogram(percentile);
+	}
+
+	public double getPercentile() {
+		return this.percentile;
+	}
+
+	public double getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * Returns min delay in nanoseconds
+	 * 
+	 * @return
+	 */
+	public long getMinDelay() {
+		return this.minDelay;
+	}
+
+	/**
+	 * Returns number of hedges sent
+	 * 
+	 * @return
+	 */
+	public long getHedgedCount() {
+		return this.hedged.get();
+	}
+
+	/**
+	 * Returns number of hedges which answered first
+	 * 
+	 * @return
+	 */
+	public long getWonCount() {
+		return this.won.get();
+	}
+
+	/**
+	 * Returns delay in nanoseconds before hedging,-1 if not enough latencies
+	 * are recorded
+	 * 
+	 * @param batch
+	 *            whether it is a sub-batch of multi-get
+	 * @return
+	 */
+	public long getDelay(boolean batch) {
+		long delay = (batch ? this.batchLatency : this.singleLatency)
+				.getPercentile();
+		return delay < 0 ? -1 : Math.max(delay, this.minDelay);
+	}
+
+	/**
+	 * Record latency of a read which is not hedged yet
+	 */
+	void record(boolean batch, long nanos) {
+		(batch ? this.batchLatency : this.singleLatency).record(nanos);
+	}
+
+	/**
+	 * A read is sent,earn budget
+	 */
+	void requested() {
+		long max = MAX_BURST * TOKEN;
+		if (this.tokens.get() < max) {
+			if (this.tokens.addAndGet(this.earned) > max) {
+				this.tokens.set(max);
+			}
+		}
+	}
+
+	/**
+	 * Try to spend budget of hedges
+	 * 
+	 * @param count
+	 * @return false if budget is not enough
+	 */
+	boolean tryAcquire(int count) {
+		long cost = count * TOKEN;
+		while (true) {
+			long current = this.tokens.get();
+			if (current < cost) {
+				return false;
+			}
+			if (this.tokens.compareAndSet(current, current - cost)) {
+				this.hedged.addAndGet(count);
+				return true;
+			}
+		}
+	}
+
+	void won() {
+		this.won.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "HedgePolicy[percentile=" + this.percentile + ",budget="
+				+ this.budget + ",minDelay=" + this.minDelay + "ns,hedged="
+				+ this.hedged.get() + ",won=" + this.won.get() + "]";
+	}
+
+	/**
+	 * Lock free log-linear histogram,four buckets per power of two,so a
+	 * percentile is at most 25% larger than the exact one.Percentile is
+	 * computed and counts are halved every RECOMPUTE samples,so old
+	 * latencies fade out.
+	 * 
+	 * @author dennis
+	 * 
+	 */
+	static final class LatencyHistogram {
+		static final int RECOMPUTE = 256;
+		private static final int BUCKETS = 256;
+
+		private final double percentile;
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong samples = new AtomicLong();
+		private volatile long value = -1;
+
+		LatencyHistogram(double percentile) {
+			this.percentile = percentile;
+		}
+
+		long getPercentile() {
+			return this.value;
+		}
+
+		void record(long nanos) {
+			this.counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+			if (this.samples.incrementAndGet() % RECOMPUTE == 0) {
+				this.recompute();
+			}
+		}
+
+		private void recompute() {
+			long total = 0;
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = this.counts.get(i);
+				total += snapshot[i];
+			}
+			long threshold = (long) Math.ceil(total * this.percentile);
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				sum += snapshot[i];
+				if (sum >= threshold) {
+					this.value = upperBound(i);
+					break;
+				}
+			}
+			for (int i = 0; i < BUCKETS; i++) {
+				if (snapshot[i] > 0) {
+					this.counts.addAndGet(i, -(snapshot[i] >> 1));
+				}
+			}
+		}
+
+		static int bucket(long nanos) {
+			if (nanos < 4) {
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			return exponent << 2 | (int) (nanos >>> exponent - 2) & 3;
+		}
+
+		static long upperBound(int bucket) {
+			if (bucket < 4) {
+				return bucket + 1;
+			}
+			int exponent = bucket >> 2;
+			return (long) (4 + (bucket & 3) + 1) << exponent - 2;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.CommandListener;
+import net.rubyeye.xmemcached.transcoders.CachedData;
+
+/**
+ * A get or a sub-batch of multi-get which could be hedged to other replicas.
+ * The primary command wins if it succeeds first.Hedge commands win only if
+ * all of them succeed and they found every key,or the primary failed,so a
+ * replica which missed a write could not turn a hit into a miss.Commands
+ * which lose are cancelled,and their buffers and values are released.
+ * 
+ * @author dennis
+ * 
+ */
+final class HedgedRead implements CommandListener {
+
+	interface Callback {
+		/**
+		 * Winners are chosen
+		 */
+		void onComplete(HedgedRead read);
+	}
+
+	private final Command primary;
+	private final int keyCount;
+	private final long startTime;
+	private final HedgePolicy policy;
+	private final boolean batch;
+	private final Collection<Command> commands;
+	private final Callback callback;
+	private final List<Command> completed = new ArrayList<Command>(2);
+	private List<Command> hedges = Collections.emptyList();
+	private int pendingHedges;
+	private int hedgeHits;
+	private boolean hedgeFailed;
+	private boolean primaryFailed;
+	private List<Command> winners;
+
+	/**
+	 * 
+	 * @param primary
+	 *            command sent to primary replica
+	 * @param keyCount
+	 *            number of keys
+	 * @param policy
+	 * @param batch
+	 *            whether it is a sub-batch of multi-get
+	 * @param commands
+	 *            thread safe collection which all commands are added to,so
+	 *            they could be cancelled
+	 * @param callback
+	 */
+	HedgedRead(Command primary, int keyCount, HedgePolicy policy,
+			boolean batch, Collection<Command> commands, Callback callback) {
+		this.primary = primary;
+		this.keyCount = keyCount;
+		this.policy = policy;
+		this.batch = batch;
+		this.commands = commands;
+		this.callback = callback;
+		this.startTime = System.nanoTime();
+		primary.setListener(this);
+		commands.add(primary);
+		policy.requested();
+	}
+
+	Command getPrimary() {
+		return this.primary;
+	}
+
+	/**
+	 * Returns commands whose results are the result of this read,null if it
+	 * is not done
+	 * 
+	 * @return
+	 */
+	synchronized List<Command> getWinners() {
+		return this.winners;
+	}
+
+	synchronized boolean isDone() {
+		return this.winners != null;
+	}
+
+	/**
+	 * Hedge to other replicas,commands must be sent after this method returns
+	 * true
+	 * 
+	 * @param hedgeCommands
+	 * @return false if this read is done or hedged already
+	 */
+	boolean hedge(List<Command> hedgeCommands) {
+		synchronized (this) {
+			if (this.winners != null || this.primaryFailed
+					|| !this.hedges.isEmpty()) {
+				return false;
+			}
+			this.hedges = hedgeCommands;
+			this.pendingHedges = hedgeCommands.size();
+			for (Command command : hedgeCommands) {
+				command.setListener(this);
+			}
+		}
+		this.commands.addAll(hedgeCommands);
+		return true;
+	}
+
+	public void onCommandComplete(Command cmd) {
+		boolean isPrimary = cmd == this.primary;
+		if (isPrimary && cmd.getException() == null && !cmd.isCancel()) {
+			this.policy.record(this.batch, System.nanoTime() - this.startTime);
+		}
+		List<Command> losers;
+		boolean done = false;
+		synchronized (this) {
+			if (this.winners != null) {
+				losers = Collections.singletonList(cmd);
+			} else {
+				this.completed.add(cmd);
+				if (isPrimary) {
+					if (cmd.getException() == null) {
+						this.winners = Collections.singletonList(cmd);
+					} else {
+						this.primaryFailed = true;
+						if (this.pendingHedges == 0) {
+							this.winners = this.hedges.isEmpty()
+									|| this.hedgeFailed ? Collections
+									.singletonList(cmd) : this.hedges;
+						}
+					}
+				} else {
+					this.pendingHedges--;
+					if (cmd.getException() != null) {
+						this.hedgeFailed = true;
+					} else {
+						this.hedgeHits += hits(cmd);
+					}
+					if (this.pendingHedges == 0) {
+						if (!this.hedgeFailed
+								&& (this.primaryFailed || this.hedgeHits >= this.keyCount)) {
+							this.winners = this.hedges;
+							this.policy.won();
+						} else if (this.primaryFailed) {
+							this.winners = Collections
+									.singletonList(this.primary);
+						}
+					}
+				}
+				if (this.winners == null) {
+					return;
+				}
+				done = true;
+				losers = new ArrayList<Command>(this.completed);
+				losers.removeAll(this.winners);
+				if (this.winners.get(0) == this.primary) {
+					for (Command hedge : this.hedges) {
+						if (!this.completed.contains(hedge)) {
+							hedge.cancel();
+						}
+					}
+				} else if (!this.completed.contains(this.primary)) {
+					this.primary.cancel();
+				}
+			}
+		}
+		for (Command loser : losers) {
+			release(loser);
+		}
+		if (done) {
+			this.callback.onComplete(this);
+		}
+	}
+
+	private static int hits(Command cmd) {
+		Object result = cmd.getResult();
+		if (result instanceof Map) {
+			return ((Map<?, ?>) result).size();
+		}
+		return result == null ? 0 : 1;
+	}
+
+	/**
+	 * Release buffer and values of a command which lost
+	 */
+	@SuppressWarnings("unchecked")
+	private static void release(Command cmd) {
+		if (cmd.getIoBuffer() != null) {
+			cmd.getIoBuffer().free();
+		}
+		Object result = cmd.getResult();
+		if (result instanceof CachedData) {
+			((CachedData) result).release();
+		} else if (result instanceof Map) {
+			for (CachedData data : ((Map<String, CachedData>) result).values()) {
+				data.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.Collection;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Session locator which could be updated by session changes,instead of
+ * rebuilding with all sessions.
+ * 
+ * @author dennis
+ * 
+ */
+public interface IncrementalMemcachedSessionLocator extends
+		MemcachedSessionLocator {
+	/**
+	 * Update sessions by changes,other sessions are not touched.A session in
+	 * both collections is removed at first,then it is added again,for
+	 * example when it's weight was changed.
+	 * 
+	 * @param added
+	 *            The new sessions
+	 * @param removed
+	 *            The removed sessions
+	 */
+	public void updateSessions(final Collection<Session> added,
+			final Collection<Session> removed);
+}
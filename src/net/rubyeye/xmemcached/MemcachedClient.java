@@ -10,8 +10,11 @@ import java.util.concurrent.TimeoutException;
 
 import net.rubyeye.xmemcached.auth.AuthInfo;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.impl.ReconnectRequest;
+import net.rubyeye.xmemcached.monitor.HotKeyCache;
+import net.rubyeye.xmemcached.monitor.HotKeySampler;
 import net.rubyeye.xmemcached.networking.Connector;
 import net.rubyeye.xmemcached.transcoders.Transcoder;
 import net.rubyeye.xmemcached.utils.Protocol;
@@ -133,6 +136,29 @@ public interface MemcachedClient {
     public void setOptimizeMergeBuffer(final boolean optimizeMergeBuffer);
 
 
+    /**
+     * Enable/Disable gathering write.When enabled,queued commands are sent by
+     * one GatheringByteChannel.write(ByteBuffer[]) call without copying their
+     * buffers,and the merge buffer optimization is skipped.Default is false.
+     * 
+     * @param gatheringWrite
+     */
+    public void setGatheringWrite(final boolean gatheringWrite);
+
+
+    /**
+     * Set pool for large values read from memcached.When a pool is set,values
+     * are read into pooled buffers and decoded by
+     * ByteBufferTranscoder.decode(int,ByteBuffer) without copying to a byte
+     * array,values of other transcoders are copied.The buffers are returned to
+     * pool after decoding.Default is null,values are
+     * read into new byte arrays.
+     * 
+     * @param valueBufferPool
+     */
+    public void setValueBufferPool(final ValueBufferPool valueBufferPool);
+
+
     /**
      * @return
      */
@@ -231,6 +257,54 @@ public interface MemcachedClient {
     public <T> T get(final String key) throws TimeoutException, InterruptedException, MemcachedException;
 
 
+    /**
+     * Read-through get.If key is missed,the loader is called and the loaded
+     * value is stored with exp.Concurrent calls of a missed key are
+     * coalesced,only one of them calls the loader and the others wait for
+     * its value,so a cold key is loaded once however many threads get it.
+     * 
+     * <p>
+     * The caller which loads the key uses timeout for its get and set,but
+     * loader itself is not limited by it,so the others wait for its result
+     * up to {@link #setLoaderTimeout(long)} instead.If that wait times
+     * out,they get a TimeoutException while the load goes on and its value
+     * is still stored,so a later get may hit it.
+     * </p>
+     * 
+     * <p>
+     * If transcoder is an
+     * {@link net.rubyeye.xmemcached.transcoders.ExpiringTranscoder},the
+     * compute time and expiry are stored with the value,and a hit may
+     * recompute it shortly before it expires by probability,see XFetch.Only
+     * one caller in this JVM recomputes a key at a time,others get the cached
+     * value meanwhile,and the cached value is returned if loader fails.
+     * </p>
+     * 
+     * @param <T>
+     * @param key
+     *            Key
+     * @param exp
+     *            Expiration of the loaded value
+     * @param timeout
+     *            Operation timeout of get and set
+     * @param transcoder
+     *            The value's transcoder
+     * @param loader
+     *            Loader of missed key
+     * @return value of key,null if it is missed and loader returns null
+     * @throws TimeoutException
+     * @throws InterruptedException
+     * @throws MemcachedException
+     *             if loader throws a checked exception,it is the cause
+     */
+    public <T> T get(final String key, final int exp, final long timeout, final Transcoder<T> transcoder,
+            final CacheLoader<T> loader) throws TimeoutException, InterruptedException, MemcachedException;
+
+
+    public <T> T get(final String key, final int exp, final CacheLoader<T> loader) throws TimeoutException,
+            InterruptedException, MemcachedException;
+
+
     /**
      * Just like get,But it return a GetsResponse,include cas value for cas
      * update.
@@ -1651,6 +1725,94 @@ public interface MemcachedClient {
     public boolean isSanitizeKeys();
 
 
+    /**
+     * Set policy of hedged reads,gets of a replicated key which are not
+     * responded in time are sent to another replica too.Only get and
+     * multi-get are hedged,gets is not because cas differs between replicas.
+     * Default is null,reads are not hedged.
+     * 
+     * @see HedgePolicy
+     * @param hedgePolicy
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy);
+
+
+    public HedgePolicy getHedgePolicy();
+
+
+    /**
+     * Set sampler of hot keys,keys of get and multi-get are sampled.If the
+     * session locator is an ArrayMemcachedSessionLocator connected to
+     * controller,hot keys are reported to controller every window of the
+     * sampler,so it could add replicas for them.Default is null,keys are not
+     * sampled.
+     * 
+     * @see HotKeySampler
+     * @param hotKeySampler
+     */
+    public void setHotKeySampler(HotKeySampler hotKeySampler);
+
+
+    public HotKeySampler getHotKeySampler();
+
+
+    /**
+     * Set in-process near cache in front of get and multi-get,multi-get only
+     * fetches keys missed by it.Writes of this client invalidate their keys
+     * in it.Default is null,values are not cached.
+     * 
+     * @see NearCache
+     * @param nearCache
+     */
+    public void setNearCache(NearCache nearCache);
+
+
+    public NearCache getNearCache();
+
+
+    /**
+     * Set cache of hot keys,gets responded by servers are counted and a key
+     * whose QPS reaches the threshold of the cache is promoted,gets of it
+     * are served by a sub-second local copy until it is demoted.Default is
+     * null,hot keys are not detected.
+     * 
+     * @see HotKeyCache
+     * @param hotKeyCache
+     */
+    public void setHotKeyCache(HotKeyCache hotKeyCache);
+
+
+    public HotKeyCache getHotKeyCache();
+
+
+    /**
+     * Set whether concurrent gets of a key are coalesced.If true,a get of a
+     * key which is being fetched by another get waits for its result instead
+     * of sending a new command,so it may not see a value stored after that
+     * get was sent.Default is false.
+     * 
+     * @param singleFlight
+     */
+    public void setSingleFlight(boolean singleFlight);
+
+
+    public boolean isSingleFlight();
+
+
+    /**
+     * Set max time in milliseconds to wait for a load of another caller in
+     * read-through get,opTimeout is used if it is not positive,so a hung
+     * loader never blocks other callers forever.Default is 0.
+     * 
+     * @see #get(String, int, long, Transcoder, CacheLoader)
+     * @param loaderTimeout
+     */
+    public void setLoaderTimeout(long loaderTimeout);
+
+
+    public long getLoaderTimeout();
+
+
     /**
      * Get counter for key,and if the key's value is not set,then set it with 0.
      * 
@@ -1811,4 +1973,389 @@ public interface MemcachedClient {
      */
     public boolean isFailureMode();
 
+
+    /**
+     * Get value by key asynchronously.The returned future is completed by
+     * reactor thread when the response arrives,so no thread is blocked per
+     * request.The future doesn't time out by itself,please use
+     * future.get(timeout,unit) or cancel it.
+     * 
+     * @param <T>
+     * @param key
+     *            Key
+     * @param transcoder
+     *            Value decoder
+     * @return a future with the value,or null if the key is not found
+     * @throws MemcachedException
+     *             if the command could not be sent
+     */
+    public <T> OperationFuture<T> getAsync(final String key, final Transcoder<T> transcoder)
+            throws MemcachedException;
+
+
+    /**
+     * Get value by key asynchronously,using default transcoder
+     * 
+     * @see #getAsync(String, Transcoder)
+     * @param <T>
+     * @param key
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<T> getAsync(final String key) throws MemcachedException;
+
+
+    /**
+     * Just like gets,but it is asynchronous
+     * 
+     * @see #getAsync(String, Transcoder)
+     * @param <T>
+     * @param key
+     * @param transcoder
+     * @return a future with GetsResponse,or null if the key is not found
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<GetsResponse<T>> getsAsync(final String key, final Transcoder<T> transcoder)
+            throws MemcachedException;
+
+
+    /**
+     * Just like gets,but it is asynchronous,using default transcoder
+     * 
+     * @see #getAsync(String, Transcoder)
+     * @param <T>
+     * @param key
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<GetsResponse<T>> getsAsync(final String key) throws MemcachedException;
+
+
+    /**
+     * Bulk get items asynchronously.Keys are grouped by server,the future is
+     * completed when all servers have responsed or failed when any server
+     * fails.
+     * 
+     * @param <T>
+     * @param keyCollections
+     * @param transcoder
+     * @return a future with a map of key to value
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Map<String, T>> getMultiAsync(final Collection<String> keyCollections,
+            final Transcoder<T> transcoder) throws MemcachedException;
+
+
+    /**
+     * Bulk get items asynchronously,using default transcoder
+     * 
+     * @see #getMultiAsync(Collection, Transcoder)
+     * @param <T>
+     * @param keyCollections
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Map<String, T>> getMultiAsync(final Collection<String> keyCollections)
+            throws MemcachedException;
+
+
+    /**
+     * Bulk gets items asynchronously
+     * 
+     * @see #getMultiAsync(Collection, Transcoder)
+     * @param <T>
+     * @param keyCollections
+     * @param transcoder
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Map<String, GetsResponse<T>>> getsMultiAsync(final Collection<String> keyCollections,
+            final Transcoder<T> transcoder) throws MemcachedException;
+
+
+    /**
+     * Bulk gets items asynchronously,using default transcoder
+     * 
+     * @see #getMultiAsync(Collection, Transcoder)
+     * @param <T>
+     * @param keyCollections
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Map<String, GetsResponse<T>>> getsMultiAsync(final Collection<String> keyCollections)
+            throws MemcachedException;
+
+
+    /**
+     * Store key-value item to memcached asynchronously
+     * 
+     * @param <T>
+     * @param key
+     * @param exp
+     *            An expiration time, in seconds. Can be up to 30 days. After
+     *            30 days, is treated as a unix timestamp of an exact date.
+     * @param value
+     * @param transcoder
+     * @return a future with the storage result
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Boolean> setAsync(final String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException;
+
+
+    /**
+     * Store key-value item to memcached asynchronously,using default
+     * transcoder
+     * 
+     * @see #setAsync(String, int, Object, Transcoder)
+     */
+    public OperationFuture<Boolean> setAsync(final String key, final int exp, final Object value)
+            throws MemcachedException;
+
+
+    /**
+     * Add key-value item to memcached asynchronously,success only when the
+     * key is not exists in memcached.
+     * 
+     * @see #setAsync(String, int, Object, Transcoder)
+     */
+    public <T> OperationFuture<Boolean> addAsync(final String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException;
+
+
+    /**
+     * Add key-value item to memcached asynchronously,using default transcoder
+     * 
+     * @see #addAsync(String, int, Object, Transcoder)
+     */
+    public OperationFuture<Boolean> addAsync(final String key, final int exp, final Object value)
+            throws MemcachedException;
+
+
+    /**
+     * Replace the key's data item in memcached asynchronously,success only
+     * when the key's data item is exists in memcached.
+     * 
+     * @see #setAsync(String, int, Object, Transcoder)
+     */
+    public <T> OperationFuture<Boolean> replaceAsync(final String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException;
+
+
+    /**
+     * Replace the key's data item in memcached asynchronously,using default
+     * transcoder
+     * 
+     * @see #replaceAsync(String, int, Object, Transcoder)
+     */
+    public OperationFuture<Boolean> replaceAsync(final String key, final int exp, final Object value)
+            throws MemcachedException;
+
+
+    /**
+     * Append value to key's data item asynchronously
+     * 
+     * @param key
+     * @param value
+     * @return
+     * @throws MemcachedException
+     */
+    public OperationFuture<Boolean> appendAsync(final String key, final Object value) throws MemcachedException;
+
+
+    /**
+     * Prepend value to key's data item asynchronously
+     * 
+     * @param key
+     * @param value
+     * @return
+     * @throws MemcachedException
+     */
+    public OperationFuture<Boolean> prependAsync(final String key, final Object value) throws MemcachedException;
+
+
+    /**
+     * Cas asynchronously,the future's result is false if the cas value is
+     * stale.
+     * 
+     * @param <T>
+     * @param key
+     * @param exp
+     * @param value
+     * @param transcoder
+     * @param cas
+     *            cas value returned by gets
+     * @return
+     * @throws MemcachedException
+     */
+    public <T> OperationFuture<Boolean> casAsync(final String key, final int exp, final T value,
+            final Transcoder<T> transcoder, final long cas) throws MemcachedException;
+
+
+    /**
+     * Cas asynchronously,using default transcoder
+     * 
+     * @see #casAsync(String, int, Object, Transcoder, long)
+     */
+    public OperationFuture<Boolean> casAsync(final String key, final int exp, final Object value, final long cas)
+            throws MemcachedException;
+
+
+    /**
+     * Delete key's data item from memcached asynchronously
+     * 
+     * @param key
+     * @return
+     * @throws MemcachedException
+     */
+    public OperationFuture<Boolean> deleteAsync(final String key) throws MemcachedException;
+
+
+    /**
+     * Set a new expiration time for an existing item asynchronously
+     * 
+     * @param key
+     * @param exp
+     * @return
+     * @throws MemcachedException
+     */
+    public OperationFuture<Boolean> touchAsync(final String key, final int exp) throws MemcachedException;
+
+
+    /**
+     * Incr asynchronously,if the key is not exists,it will be added with
+     * initValue.
+     * 
+     * @param key
+     * @param delta
+     * @param initValue
+     * @return a future with the value after increment
+     * @throws MemcachedException
+     */
+    public OperationFuture<Long> incrAsync(final String key, final long delta, final long initValue)
+            throws MemcachedException;
+
+
+    /**
+     * Incr asynchronously with expiration time of the initial item
+     * 
+     * @see #incrAsync(String, long, long)
+     */
+    public OperationFuture<Long> incrAsync(final String key, final long delta, final long initValue, final int exp)
+            throws MemcachedException;
+
+
+    /**
+     * Decr asynchronously,if the key is not exists,it will be added with
+     * initValue.
+     * 
+     * @param key
+     * @param delta
+     * @param initValue
+     * @return a future with the value after decrement
+     * @throws MemcachedException
+     */
+    public OperationFuture<Long> decrAsync(final String key, final long delta, final long initValue)
+            throws MemcachedException;
+
+
+    /**
+     * Decr asynchronously with expiration time of the initial item
+     * 
+     * @see #decrAsync(String, long, long)
+     */
+    public OperationFuture<Long> decrAsync(final String key, final long delta, final long initValue, final int exp)
+            throws MemcachedException;
+
+
+    /**
+     * Store key-value item to all replicas of the key asynchronously.Replicas
+     * are given by the session locator,if it is not a
+     * ReplicaMemcachedSessionLocator,there is only one replica.The value is
+     * encoded once and sent to all replicas concurrently,the future is
+     * completed as soon as writeQuorum replicas stored it or the quorum could
+     * not be reached,replicas which have not responded are still written.
+     * 
+     * @param <T>
+     * @param key
+     * @param exp
+     * @param value
+     * @param transcoder
+     * @param writeQuorum
+     *            number of replicas which must store the value,it is limited
+     *            to number of replicas
+     * @return a future with responses and failures of replicas
+     * @throws MemcachedException
+     *             if there is no replica
+     */
+    public <T> OperationFuture<ReplicatedWriteResult> setReplicatedAsync(final String key, final int exp,
+            final T value, final Transcoder<T> transcoder, final int writeQuorum) throws MemcachedException;
+
+
+    /**
+     * Store key-value item to all replicas asynchronously,using default
+     * transcoder
+     * 
+     * @see #setReplicatedAsync(String, int, Object, Transcoder, int)
+     */
+    public OperationFuture<ReplicatedWriteResult> setReplicatedAsync(final String key, final int exp,
+            final Object value, final int writeQuorum) throws MemcachedException;
+
+
+    /**
+     * Store key-value item to all replicas of the key,waiting until
+     * writeQuorum replicas stored it,the quorum could not be reached or
+     * timeout.Replicas which have not responded in time are reported as
+     * failures with TimeoutException.
+     * 
+     * @see #setReplicatedAsync(String, int, Object, Transcoder, int)
+     * @param timeout
+     *            operation timeout,in milliseconds
+     * @return responses and failures of replicas
+     */
+    public <T> ReplicatedWriteResult setReplicated(final String key, final int exp, final T value,
+            final Transcoder<T> transcoder, final int writeQuorum, final long timeout) throws InterruptedException,
+            MemcachedException;
+
+
+    /**
+     * Store key-value item to all replicas of the key,using default transcoder
+     * and operation timeout
+     * 
+     * @see #setReplicated(String, int, Object, Transcoder, int, long)
+     */
+    public ReplicatedWriteResult setReplicated(final String key, final int exp, final Object value,
+            final int writeQuorum) throws InterruptedException, MemcachedException;
+
+
+    /**
+     * Get value of a key from all of it's replicas,and return the value of the
+     * latest version.Values should be written by a
+     * {@link net.rubyeye.xmemcached.transcoders.VersionedTranscoder},so stale
+     * replicas which missed a write are detected and discarded,a replica
+     * which missed the key is taken as stale too.Replicas which have not
+     * responded in time are ignored,TimeoutException is thrown only if no
+     * replica responded.
+     * 
+     * @param <T>
+     * @param key
+     * @param timeout
+     *            operation timeout,in milliseconds
+     * @param transcoder
+     *            transcoder which decodes the value,it must be a
+     *            VersionedTranscoder if values are versioned
+     * @return null if all replicas missed the key
+     */
+    public <T> T getReplicated(final String key, final long timeout, final Transcoder<T> transcoder)
+            throws TimeoutException, InterruptedException, MemcachedException;
+
+
+    /**
+     * Get value of a key from all of it's replicas,using default transcoder
+     * and operation timeout
+     * 
+     * @see #getReplicated(String, long, Transcoder)
+     */
+    public <T> T getReplicated(final String key) throws TimeoutException, InterruptedException, MemcachedException;
+
 }
\ No newline at end of file
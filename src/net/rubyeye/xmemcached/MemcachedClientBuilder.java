@@ -7,6 +7,9 @@ import java.util.Map;
 
 import net.rubyeye.xmemcached.auth.AuthInfo;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
+import net.rubyeye.xmemcached.monitor.HotKeyCache;
+import net.rubyeye.xmemcached.monitor.HotKeySampler;
 import net.rubyeye.xmemcached.transcoders.Transcoder;
 
 import com.google.code.yanf4j.config.Configuration;
@@ -237,4 +240,103 @@ public interface MemcachedClientBuilder {
 	 */
 	public void setSanitizeKeys(boolean sanitizeKeys);
 
+	/**
+	 * Set max commands waiting in a session's write queue,default is zero
+	 * which means no limit.When the queue is full,the overflow policy is
+	 * applied.
+	 * 
+	 * @see #setWriteQueueOverflowPolicy(WriteQueueOverflowPolicy)
+	 * @param maxQueuedCommandsPerSession
+	 */
+	public void setMaxQueuedCommandsPerSession(int maxQueuedCommandsPerSession);
+
+	/**
+	 * Set max bytes waiting in a session's write queue,default is zero which
+	 * means no limit.
+	 * 
+	 * @param maxQueuedBytesPerSession
+	 */
+	public void setMaxQueuedBytesPerSession(long maxQueuedBytesPerSession);
+
+	/**
+	 * Set max bytes waiting in all sessions' write queues of the client,
+	 * default is zero which means no limit.
+	 * 
+	 * @param maxInFlightBytes
+	 */
+	public void setMaxInFlightBytes(long maxInFlightBytes);
+
+	/**
+	 * Set what to do when a write queue is full,default is BLOCK.
+	 * 
+	 * @param writeQueueOverflowPolicy
+	 */
+	public void setWriteQueueOverflowPolicy(
+			WriteQueueOverflowPolicy writeQueueOverflowPolicy);
+
+	/**
+	 * Set max time in milliseconds to wait for room of write queue when policy
+	 * is BLOCK,default is MemcachedClient.DEFAULT_OP_TIMEOUT
+	 * 
+	 * @param writeQueueBlockTimeout
+	 */
+	public void setWriteQueueBlockTimeout(long writeQueueBlockTimeout);
+
+	/**
+	 * Set pool for large values read from memcached,default is null.
+	 * 
+	 * @see MemcachedClient#setValueBufferPool(ValueBufferPool)
+	 * @param valueBufferPool
+	 */
+	public void setValueBufferPool(ValueBufferPool valueBufferPool);
+
+	/**
+	 * Set policy of hedged reads,default is null.
+	 * 
+	 * @see MemcachedClient#setHedgePolicy(HedgePolicy)
+	 * @param hedgePolicy
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy);
+
+	/**
+	 * Set sampler of hot keys,default is null.
+	 * 
+	 * @see MemcachedClient#setHotKeySampler(HotKeySampler)
+	 * @param hotKeySampler
+	 */
+	public void setHotKeySampler(HotKeySampler hotKeySampler);
+
+	/**
+	 * Set near cache,default is null.
+	 * 
+	 * @see MemcachedClient#setNearCache(NearCache)
+	 * @param nearCache
+	 */
+	public void setNearCache(NearCache nearCache);
+
+	/**
+	 * Set cache of hot keys,default is null.
+	 * 
+	 * @see MemcachedClient#setHotKeyCache(HotKeyCache)
+	 * @param hotKeyCache
+	 */
+	public void setHotKeyCache(HotKeyCache hotKeyCache);
+
+	/**
+	 * Set whether concurrent gets of a key are coalesced,default is false.
+	 * 
+	 * @see MemcachedClient#setSingleFlight(boolean)
+	 * @param singleFlight
+	 */
+	public void setSingleFlight(boolean singleFlight);
+
+	/**
+	 * Set max time to wait for a load of another caller in read-through
+	 * get,default is 0 which means waiting up to opTimeout.
+	 * 
+	 * @see MemcachedClient#setLoaderTimeout(long)
+	 * @param loaderTimeout
+	 */
+	public void setLoaderTimeout(long loaderTimeout);
+
 }
\ No newline at end of file
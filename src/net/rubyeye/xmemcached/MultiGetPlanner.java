@@ -0,0 +1,173 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.rubyeye.xmemcached.impl.MemcachedTCPSession;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Plans a multi-get on replicas.Every key could be read from any of it's
+ * replicas,so keys are assigned to as few servers as possible by greedy set
+ * cover:the server which has most unassigned keys is chosen repeatedly,the
+ * less loaded one if servers have as many keys.Fewer servers means fewer and
+ * larger get packets.
+ * 
+ * @author dennis
+ * 
+ */
+final class MultiGetPlanner {
+
+	/**
+	 * Candidate server of keys
+	 */
+	private static final class Server {
+		Session session;
+		long load;
+		final List<Integer> keys = new ArrayList<Integer>();
+		int uncovered;
+
+		Server(Session session) {
+			this.session = session;
+			this.load = load(session);
+		}
+
+		/**
+		 * Keys of a server are sent by it's less loaded session
+		 */
+		void offer(Session candidate) {
+			if (candidate != this.session) {
+				long candidateLoad = load(candidate);
+				if (candidateLoad < this.load) {
+					this.session = candidate;
+					this.load = candidateLoad;
+				}
+			}
+		}
+	}
+
+	private MultiGetPlanner() {
+	}
+
+	/**
+	 * Returns keys of every session,keys without any session are mapped to
+	 * null
+	 * 
+	 * @param keys
+	 * @param locator
+	 * @return
+	 */
+	static Map<Session, List<String>> plan(Collection<String> keys,
+			ReplicaMemcachedSessionLocator locator) {
+		int n = keys.size();
+		String[] keyArray = keys.toArray(new String[n]);
+		Server[][] candidates = new Server[n][];
+		Map<InetSocketAddress, Server> servers = new HashMap<InetSocketAddress, Server>();
+		Map<Session, List<String>> result = new HashMap<Session, List<String>>();
+		int remaining = 0;
+		for (int i = 0; i < n; i++) {
+			List<Session> replicas = locator.getReplicaSessions(keyArray[i],
+					false);
+			List<Session> open = new ArrayList<Session>(replicas.size());
+			for (Session session : replicas) {
+				if (!session.isClosed()) {
+					open.add(session);
+				}
+			}
+			if (open.isEmpty()) {
+				// let sending report the closed or missing session
+				Session session = replicas.isEmpty() ? null : replicas.get(0);
+				add(result, session, keyArray[i]);
+				continue;
+			}
+			Server[] keyServers = new Server[open.size()];
+			for (int j = 0; j < keyServers.length; j++) {
+				Session session = open.get(j);
+				InetSocketAddress address = session.getRemoteSocketAddress();
+				Server server = servers.get(address);
+				if (server == null) {
+					server = new Server(session);
+					servers.put(address, server);
+				} else {
+					server.offer(session);
+				}
+				if (!server.keys.isEmpty()
+						&& server.keys.get(server.keys.size() - 1) == i) {
+					// duplicated replica
+					keyServers[j] = null;
+					continue;
+				}
+				server.keys.add(i);
+				server.uncovered++;
+				keyServers[j] = server;
+			}
+			candidates[i] = keyServers;
+			remaining++;
+		}
+		boolean[] assigned = new boolean[n];
+		while (remaining > 0) {
+			Server best = null;
+			for (Server server : servers.values()) {
+				if (server.uncovered > 0
+						&& (best == null || server.uncovered > best.uncovered || server.uncovered == best.uncovered
+								&& server.load < best.load)) {
+					best = server;
+				}
+			}
+			List<String> batch = new ArrayList<String>(best.uncovered);
+			for (int i : best.keys) {
+				if (assigned[i]) {
+					continue;
+				}
+				assigned[i] = true;
+				remaining--;
+				batch.add(keyArray[i]);
+				for (Server server : candidates[i]) {
+					if (server != null) {
+						server.uncovered--;
+					}
+				}
+			}
+			List<String> existing = result.get(best.session);
+			if (existing == null) {
+				result.put(best.session, batch);
+			} else {
+				existing.addAll(batch);
+			}
+		}
+		return result;
+	}
+
+	private static void add(Map<Session, List<String>> result,
+			Session session, String key) {
+		List<String> list = result.get(session);
+		if (list == null) {
+			list = new ArrayList<String>();
+			result.put(session, list);
+		}
+		list.add(key);
+	}
+
+	static long load(Session session) {
+		if (session instanceof MemcachedTCPSession) {
+			return ((MemcachedTCPSession) session).getLoad();
+		}
+		return 0;
+	}
+}
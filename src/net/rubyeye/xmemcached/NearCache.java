@@ -0,0 +1,674 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+
+/**
+ * In-process cache in front of get and multi-get.Values are cached encoded
+ * with their flag and are decoded on every hit,so callers never share value
+ * objects.
+ * 
+ * <p>
+ * Keys are looked up without locking,and are hashed to lock-striped
+ * segments,each of which is bounded by it's share of max entries and max
+ * bytes and evicts by W-TinyLFU:a new entry enters a small LRU window,the
+ * window victim is only admitted to the main segmented LRU(probation and
+ * protected) if it is accessed more often than the main victim,as estimated
+ * by a count-min sketch whose counters are halved periodically.Accesses are
+ * recorded only if the segment lock is free,so hot keys never contend on
+ * it.
+ * </p>
+ * 
+ * <p>
+ * An entry expires after ttl,or earlier at the expiration given to set of
+ * the key.Writes of this client invalidate the key locally,a get which was
+ * sent before the invalidation does not fill the cache.Writes of other
+ * clients are only seen after entries expire,so ttl bounds staleness.
+ * </p>
+ * 
+ * @see MemcachedClient#setNearCache(NearCache)
+ * @author dennis
+ * 
+ */
+public final class NearCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	public static final long DEFAULT_TTL = TimeUnit.SECONDS.toMillis(5);
+
+	static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * Min entries of a segment,fewer segments are used for a small cache
+	 */
+	static final int MIN_SEGMENT_ENTRIES = 64;
+
+	/**
+	 * Estimated bytes of an entry besides key and value
+	 */
+	static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Max relative expiration of memcached,a larger one is an unix time
+	 */
+	static final int MAX_RELATIVE_EXP = 60 * 60 * 24 * 30;
+
+	static final int WINDOW = 0;
+	static final int PROBATION = 1;
+	static final int PROTECTED = 2;
+	static final int REMOVED = 3;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttl;
+	private final ConcurrentHashMap<String, Entry> map;
+	private final Segment[] segments;
+
+	public NearCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 
+	 * @param maxEntries
+	 *            max number of entries
+	 * @param maxBytes
+	 *            max bytes of keys and values
+	 * @param ttl
+	 *            time to live of an entry
+	 * @param unit
+	 */
+	public NearCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("Max entries must be positive");
+		}
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Max bytes must be positive");
+		}
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("Ttl must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttl = unit.toMillis(ttl);
+		int count = MAX_SEGMENTS;
+		while (count > 1 && maxEntries / count < MIN_SEGMENT_ENTRIES) {
+			count >>= 1;
+		}
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment((maxEntries + count - 1) / count,
+					maxBytes / count);
+		}
+		this.map = new ConcurrentHashMap<String, Entry>(Math.min(maxEntries,
+				1 << 16), 0.75f, count);
+	}
+
+	public int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * Returns time to live in milliseconds
+	 * 
+	 * @return
+	 */
+	public long getTtl() {
+		return this.ttl;
+	}
+
+	/**
+	 * Returns cached data of key,null if it is missed.The data is not pooled
+	 * and need not be released.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public CachedData get(String key) {
+		int hash = hash(key);
+		Segment segment = this.segmentFor(hash);
+		Entry entry = this.map.get(key);
+		if (entry == null || entry.data == null) {
+			segment.recordMiss(hash);
+			return null;
+		}
+		if (System.currentTimeMillis() >= entry.expiresAt) {
+			segment.expire(entry);
+			segment.recordMiss(hash);
+			return null;
+		}
+		segment.recordHit(entry);
+		return new CachedData(entry.flag, entry.data);
+	}
+
+	/**
+	 * Returns invalidation stamps of segments,which must be taken before a
+	 * get is sent and passed to {@link #put(String, CachedData, long[])} with
+	 * it's result.
+	 * 
+	 * @return
+	 */
+	public long[] stamps() {
+		long[] stamps = new long[this.segments.length];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = this.segments[i].invalidations;
+		}
+		return stamps;
+	}
+
+	/**
+	 * Cache data of key fetched from server.It is ignored if key's segment
+	 * is invalidated since stamps were taken,because the data may be older
+	 * than a write of this client.
+	 * 
+	 * @param key
+	 * @param data
+	 * @param stamps
+	 *            stamps taken before get is sent
+	 */
+	public void put(String key, CachedData data, long[] stamps) {
+		if (stamps.length != this.segments.length) {
+			return;
+		}
+		byte[] bytes = data.getData();
+		if (bytes == null) {
+			return;
+		}
+		if (bytes.length != data.getSize()) {
+			byte[] copy = new byte[data.getSize()];
+			System.arraycopy(bytes, 0, copy, 0, copy.length);
+			bytes = copy;
+		}
+		int hash = hash(key);
+		int index = this.segmentIndex(hash);
+		Segment segment = this.segments[index];
+		int weight = weigh(key, bytes.length);
+		if (weight > segment.maxBytes) {
+			return;
+		}
+		segment.lock();
+		try {
+			if (segment.invalidations != stamps[index]) {
+				return;
+			}
+			long expiresAt = System.currentTimeMillis() + this.ttl;
+			Entry old = this.map.get(key);
+			if (old != null) {
+				if (old.data == null) {
+					// tombstone keeps expiration of the last write
+					expiresAt = Math.min(expiresAt, old.expiresAt);
+				}
+				segment.remove(old);
+			}
+			Entry entry = new Entry(key, hash, data.getFlag(), bytes,
+					expiresAt, weight);
+			this.map.put(key, entry);
+			segment.add(entry);
+		} finally {
+			segment.unlock();
+		}
+	}
+
+	/**
+	 * Invalidate key
+	 * 
+	 * @param key
+	 */
+	public void invalidate(String key) {
+		this.invalidate(key, 0);
+	}
+
+	/**
+	 * Invalidate key written with an expiration,entries of the key filled
+	 * later expire no later than it.
+	 * 
+	 * @param key
+	 * @param exp
+	 *            expiration of memcached,seconds or an unix time
+	 */
+	public void invalidate(String key, int exp) {
+		int hash = hash(key);
+		Segment segment = this.segmentFor(hash);
+		long now = System.currentTimeMillis();
+		long deadline = deadline(exp, now);
+		segment.lock();
+		try {
+			segment.invalidations++;
+			Entry old = this.map.remove(key);
+			if (old != null) {
+				segment.remove(old);
+			}
+			if (deadline > now && deadline - now < this.ttl) {
+				Entry tombstone = new Entry(key, hash, 0, null, deadline,
+						weigh(key, 0));
+				this.map.put(key, tombstone);
+				segment.add(tombstone);
+			}
+		} finally {
+			segment.unlock();
+		}
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear() {
+		for (Segment segment : this.segments) {
+			segment.lock();
+			try {
+				segment.invalidations++;
+				segment.clear();
+			} finally {
+				segment.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns number of entries
+	 * 
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			segment.lock();
+			try {
+				size += segment.count;
+			} finally {
+				segment.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns estimated bytes of entries
+	 * 
+	 * @return
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Segment segment : this.segments) {
+			segment.lock();
+			try {
+				bytes += segment.bytes;
+			} finally {
+				segment.unlock();
+			}
+		}
+		return bytes;
+	}
+
+	public long getHitCount() {
+		long hits = 0;
+		for (Segment segment : this.segments) {
+			hits += segment.hits.get();
+		}
+		return hits;
+	}
+
+	public long getMissCount() {
+		long misses = 0;
+		for (Segment segment : this.segments) {
+			misses += segment.misses.get();
+		}
+		return misses;
+	}
+
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (Segment segment : this.segments) {
+			evictions += segment.evictions.get();
+		}
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "NearCache[maxEntries=" + this.maxEntries + ",maxBytes="
+				+ this.maxBytes + ",ttl=" + this.ttl + "ms,size="
+				+ this.size() + ",hits=" + this.getHitCount() + ",misses="
+				+ this.getMissCount() + ",evictions="
+				+ this.getEvictionCount() + "]";
+	}
+
+	private Segment segmentFor(int hash) {
+		return this.segments[this.segmentIndex(hash)];
+	}
+
+	private int segmentIndex(int hash) {
+		return (hash >>> 24) & (this.segments.length - 1);
+	}
+
+	static int hash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ h >>> 16;
+	}
+
+	static int weigh(String key, int length) {
+		return ENTRY_OVERHEAD + key.length() * 2 + length;
+	}
+
+	/**
+	 * Returns deadline in milliseconds of a memcached expiration,0 if it
+	 * never expires
+	 */
+	static long deadline(int exp, long now) {
+		if (exp <= 0) {
+			return 0;
+		}
+		if (exp <= MAX_RELATIVE_EXP) {
+			return now + exp * 1000L;
+		}
+		return exp * 1000L;
+	}
+
+	/**
+	 * Cached value,or a tombstone of a write if data is null.Links are
+	 * guarded by lock of segment.
+	 */
+	static final class Entry {
+		final String key;
+		final int hash;
+		final int flag;
+		final byte[] data;
+		final long expiresAt;
+		final int weight;
+		int queue;
+		Entry prev;
+		Entry next;
+
+		Entry(String key, int hash, int flag, byte[] data, long expiresAt,
+				int weight) {
+			this.key = key;
+			this.hash = hash;
+			this.flag = flag;
+			this.data = data;
+			this.expiresAt = expiresAt;
+			this.weight = weight;
+		}
+
+		/**
+		 * A sentinel of queue
+		 */
+		Entry() {
+			this(null, 0, 0, null, 0, 0);
+			this.prev = this;
+			this.next = this;
+		}
+	}
+
+	/**
+	 * Eviction queues and frequency sketch of a stripe of keys,the most
+	 * recently used entry of a queue is next to it's sentinel.
+	 */
+	@SuppressWarnings("serial")
+	final class Segment extends ReentrantLock {
+		final int maxEntries;
+		final long maxBytes;
+		final int maxWindow;
+		final int maxProtected;
+		final Entry window = new Entry();
+		final Entry probation = new Entry();
+		final Entry protect = new Entry();
+		final FrequencySketch sketch;
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong evictions = new AtomicLong();
+		/**
+		 * Increased by every invalidation
+		 */
+		volatile long invalidations;
+		int count;
+		int windowCount;
+		int protectedCount;
+		long bytes;
+
+		Segment(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+			this.maxWindow = Math.max(1, maxEntries / 100);
+			this.maxProtected = (maxEntries - this.maxWindow) * 4 / 5;
+			this.sketch = new FrequencySketch(maxEntries);
+		}
+
+		void recordHit(Entry entry) {
+			this.hits.incrementAndGet();
+			if (this.tryLock()) {
+				try {
+					if (entry.queue != REMOVED) {
+						this.onAccess(entry);
+					}
+					this.sketch.increment(entry.hash);
+				} finally {
+					this.unlock();
+				}
+			}
+		}
+
+		void recordMiss(int hash) {
+			this.misses.incrementAndGet();
+			if (this.tryLock()) {
+				try {
+					this.sketch.increment(hash);
+				} finally {
+					this.unlock();
+				}
+			}
+		}
+
+		void expire(Entry entry) {
+			this.lock();
+			try {
+				if (NearCache.this.map.remove(entry.key, entry)) {
+					this.remove(entry);
+				}
+			} finally {
+				this.unlock();
+			}
+		}
+
+		/**
+		 * Add a new entry to window and evict if the segment is full
+		 */
+		void add(Entry entry) {
+			linkFirst(this.window, entry);
+			entry.queue = WINDOW;
+			this.windowCount++;
+			this.count++;
+			this.bytes += entry.weight;
+			this.sketch.increment(entry.hash);
+			this.evict();
+		}
+
+		void remove(Entry entry) {
+			unlink(entry);
+			if (entry.queue == WINDOW) {
+				this.windowCount--;
+			} else if (entry.queue == PROTECTED) {
+				this.protectedCount--;
+			}
+			entry.queue = REMOVED;
+			this.count--;
+			this.bytes -= entry.weight;
+		}
+
+		void clear() {
+			for (Entry queue : new Entry[] { this.window, this.probation,
+					this.protect }) {
+				for (Entry e = queue.next; e != queue; e = e.next) {
+					NearCache.this.map.remove(e.key, e);
+					e.queue = REMOVED;
+				}
+				queue.prev = queue;
+				queue.next = queue;
+			}
+			this.count = 0;
+			this.windowCount = 0;
+			this.protectedCount = 0;
+			this.bytes = 0;
+		}
+
+		private void onAccess(Entry entry) {
+			switch (entry.queue) {
+			case WINDOW:
+				unlink(entry);
+				linkFirst(this.window, entry);
+				break;
+			case PROBATION:
+				unlink(entry);
+				linkFirst(this.protect, entry);
+				entry.queue = PROTECTED;
+				this.protectedCount++;
+				while (this.protectedCount > this.maxProtected) {
+					Entry demoted = this.protect.prev;
+					unlink(demoted);
+					linkFirst(this.probation, demoted);
+					demoted.queue = PROBATION;
+					this.protectedCount--;
+				}
+				break;
+			case PROTECTED:
+				unlink(entry);
+				linkFirst(this.protect, entry);
+				break;
+			}
+		}
+
+		/**
+		 * Move window victims to probation,and evict until the segment fits
+		 * in bounds.A window victim is evicted instead of the probation
+		 * victim if it is not accessed more often.
+		 */
+		private void evict() {
+			Entry candidate = null;
+			while (this.windowCount > this.maxWindow) {
+				Entry entry = this.window.prev;
+				unlink(entry);
+				linkFirst(this.probation, entry);
+				entry.queue = PROBATION;
+				this.windowCount--;
+				candidate = entry;
+			}
+			while (this.count > this.maxEntries || this.bytes > this.maxBytes) {
+				Entry victim = this.probation.prev;
+				if (victim == this.probation) {
+					victim = this.protect.prev;
+				}
+				if (victim == this.protect) {
+					victim = this.window.prev;
+				}
+				if (candidate != null) {
+					if (candidate != victim
+							&& candidate.queue == PROBATION
+							&& this.sketch.frequency(candidate.hash) <= this.sketch
+									.frequency(victim.hash)) {
+						victim = candidate;
+					}
+					candidate = null;
+				}
+				NearCache.this.map.remove(victim.key, victim);
+				this.remove(victim);
+				this.evictions.incrementAndGet();
+			}
+		}
+	}
+
+	static void linkFirst(Entry queue, Entry entry) {
+		entry.prev = queue;
+		entry.next = queue.next;
+		queue.next.prev = entry;
+		queue.next = entry;
+	}
+
+	static void unlink(Entry entry) {
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters in bytes,counters are halved when
+	 * increments reach ten times of max entries,so old accesses fade out.Not
+	 * thread safe,it is guarded by lock of segment.
+	 */
+	static final class FrequencySketch {
+		static final int[] SEEDS = { 0x97cb3127, 0xab4e4ac5, 0xa2c8d9b7,
+				0xdd3b4a3d };
+		static final int MAX_COUNT = 15;
+
+		private final byte[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maxEntries) {
+			int size = 64;
+			while (size < maxEntries * 4L && size < 1 << 24) {
+				size <<= 1;
+			}
+			this.table = new byte[size];
+			this.mask = size - 1;
+			this.sampleSize = 10 * Math.max(maxEntries, 16);
+		}
+
+		int frequency(int hash) {
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, this.table[this.index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = this.index(hash, i);
+				if (this.table[index] < MAX_COUNT) {
+					this.table[index]++;
+					added = true;
+				}
+			}
+			if (added && ++this.additions >= this.sampleSize) {
+				for (int i = 0; i < this.table.length; i++) {
+					this.table[i] >>= 1;
+				}
+				this.additions >>>= 1;
+			}
+		}
+
+		private int index(int hash, int i) {
+			int h = hash * SEEDS[i];
+			h += h >>> 17;
+			return h & this.mask;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.command.Command;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous memcached operation.The future is completed by
+ * reactor thread when the response was decoded,so callers never block a
+ * thread per request.Listeners could be added to be notified on
+ * completion.The future doesn't time out by itself,use
+ * {@link #get(long, TimeUnit)} or cancel it if you don't want to wait any
+ * more.
+ * 
+ * @author dennis
+ * 
+ * @param <T>
+ */
+public class OperationFuture<T> implements Future<T> {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OperationFuture.class);
+
+	private boolean done;
+	private boolean cancelled;
+	private T result;
+	private Throwable failure;
+	private List<OperationListener<T>> listeners;
+	private volatile Collection<Command> commands;
+
+	public OperationFuture() {
+		super();
+	}
+
+	/**
+	 * Commands which produce this future's result,they will be cancelled with
+	 * the future.
+	 * 
+	 * @param commands
+	 */
+	final void setCommands(Collection<Command> commands) {
+		this.commands = commands;
+	}
+
+	final void setCommand(Command command) {
+		List<Command> list = new ArrayList<Command>(1);
+		list.add(command);
+		this.commands = list;
+	}
+
+	/**
+	 * Complete the future with a result
+	 * 
+	 * @param result
+	 * @return false if the future is done already
+	 */
+	public boolean setResult(T result) {
+		synchronized (this) {
+			if (this.done) {
+				return false;
+			}
+			this.result = result;
+			this.done = true;
+			this.notifyAll();
+		}
+		this.notifyListeners();
+		return true;
+	}
+
+	/**
+	 * Complete the future with an exception
+	 * 
+	 * @param t
+	 * @return false if the future is done already
+	 */
+	public boolean failure(Throwable t) {
+		synchronized (this) {
+			if (this.done) {
+				return false;
+			}
+			this.failure = t;
+			this.done = true;
+			this.notifyAll();
+		}
+		this.notifyListeners();
+		return true;
+	}
+
+	/**
+	 * Add a listener,if the future is done already,the listener will be
+	 * notified in current thread immediately.
+	 * 
+	 * @param listener
+	 * @return this future
+	 */
+	public OperationFuture<T> addListener(OperationListener<T> listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Null listener");
+		}
+		synchronized (this) {
+			if (!this.done) {
+				if (this.listeners == null) {
+					this.listeners = new ArrayList<OperationListener<T>>(2);
+				}
+				this.listeners.add(listener);
+				return this;
+			}
+		}
+		this.notifyListener(listener);
+		return this;
+	}
+
+	private void notifyListeners() {
+		List<OperationListener<T>> list;
+		synchronized (this) {
+			list = this.listeners;
+			this.listeners = null;
+		}
+		if (list != null) {
+			for (OperationListener<T> listener : list) {
+				this.notifyListener(listener);
+			}
+		}
+	}
+
+	private void notifyListener(OperationListener<T> listener) {
+		try {
+			listener.onComplete(this);
+		} catch (Throwable t) {
+			log.error("Notify operation listener error", t);
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (this.done) {
+				return false;
+			}
+			this.cancelled = true;
+			this.done = true;
+			this.notifyAll();
+		}
+		Collection<Command> cmds = this.commands;
+		if (cmds != null) {
+			for (Command cmd : cmds) {
+				cmd.cancel();
+			}
+		}
+		this.notifyListeners();
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * Returns the exception if the operation failed,otherwise returns null.
+	 * 
+	 * @return
+	 */
+	public synchronized Throwable getFailure() {
+		return this.failure;
+	}
+
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (!this.done) {
+			this.wait();
+		}
+		return this.getResult();
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!this.done) {
+			long remaining = unit.toNanos(timeout);
+			final long deadline = System.nanoTime() + remaining;
+			while (!this.done && remaining > 0) {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+			if (!this.done) {
+				throw new TimeoutException("Timed out(" + unit.toMillis(timeout)
+						+ ") waiting for operation");
+			}
+		}
+		return this.getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (this.cancelled) {
+			throw new CancellationException("Operation was cancelled");
+		}
+		if (this.failure != null) {
+			throw new ExecutionException(this.failure);
+		}
+		return this.result;
+	}
+
+}
@@ -0,0 +1,30 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+/**
+ * Listener of an asynchronous operation.It is notified once when the
+ * {@link OperationFuture} is done,succeeded,failed or cancelled.It is usually
+ * called in reactor thread,please don't do any operations which may block
+ * here.
+ * 
+ * @author dennis
+ * 
+ */
+public interface OperationListener<T> {
+	/**
+	 * Operation is done,future.get() will not block here.
+	 * 
+	 * @param future
+	 */
+	public void onComplete(OperationFuture<T> future);
+}
@@ -0,0 +1,40 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.List;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Session locator which places a key on several replicas.Delete,touch and
+ * replace of a replicated key are sent to all replicas,so are successful
+ * cas,gets and cas go to the first open replica.
+ * 
+ * @author dennis
+ * 
+ */
+public interface ReplicaMemcachedSessionLocator extends MemcachedSessionLocator {
+	/**
+	 * Returns one session of every replica of the key,in replica order.Closed
+	 * sessions are included if the replica has no open session,so caller
+	 * could report them.
+	 * 
+	 * @param key
+	 * @param isSet
+	 *            true if replicas are written,locators which place replicas
+	 *            on demand may add new replicas,false if they are read,only
+	 *            replicas which may have the key are returned
+	 * @return empty list if there is no session
+	 */
+	public List<Session> getReplicaSessions(final String key, boolean isSet);
+}
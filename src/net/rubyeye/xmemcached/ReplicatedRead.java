@@ -0,0 +1,201 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.util.Arrays;
+
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.CommandListener;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import net.rubyeye.xmemcached.transcoders.CachedData;
+import net.rubyeye.xmemcached.transcoders.VersionedTranscoder;
+
+/**
+ * A get sent to all replicas of a key.The value of the latest version is
+ * kept,see {@link VersionedTranscoder},values of stale replicas are released
+ * as soon as they arrive.A miss is taken as stale,so the key is missed only
+ * if all replicas which responded missed it.The future is completed when all
+ * replicas responded,it fails only if all of them failed.
+ * 
+ * @author dennis
+ * 
+ */
+final class ReplicatedRead implements CommandListener {
+	private final OperationFuture<CachedData> future = new OperationFuture<CachedData>();
+	private final Command[] commands;
+	private final boolean[] done;
+	private int pending;
+	private int responded;
+	private int stale;
+	private Throwable failure;
+	private CachedData latest;
+	private long latestVersion = -1;
+	private boolean completed;
+
+	ReplicatedRead(Command[] commands) {
+		this.commands = commands;
+		this.pending = commands.length;
+		this.done = new boolean[commands.length];
+		this.future.setCommands(Arrays.asList(commands));
+		for (Command command : commands) {
+			command.setListener(this);
+		}
+	}
+
+	OperationFuture<CachedData> getFuture() {
+		return this.future;
+	}
+
+	/**
+	 * Returns number of replicas whose value was discarded because it was
+	 * missing or older than the latest one
+	 * 
+	 * @return
+	 */
+	synchronized int getStaleCount() {
+		return this.stale;
+	}
+
+	public void onCommandComplete(Command cmd) {
+		if (cmd.getIoBuffer() != null) {
+			cmd.getIoBuffer().free();
+		}
+		if (cmd.getException() != null) {
+			this.complete(cmd, null, cmd.getException());
+		} else {
+			this.complete(cmd, (CachedData) cmd.getResult(), null);
+		}
+	}
+
+	/**
+	 * A replica command failed,or it could not be sent
+	 */
+	void onFailure(Command cmd, Throwable t) {
+		this.complete(cmd, null, t);
+	}
+
+	private void complete(Command cmd, CachedData data, Throwable t) {
+		CachedData released = null;
+		boolean finished = false;
+		synchronized (this) {
+			int index = this.indexOf(cmd);
+			if (index < 0 || this.done[index]) {
+				return;
+			}
+			this.done[index] = true;
+			this.pending--;
+			if (this.completed) {
+				released = data;
+			} else {
+				if (t != null) {
+					this.failure = t;
+				} else {
+					this.responded++;
+					released = this.accept(data);
+				}
+				if (this.pending == 0) {
+					this.completed = true;
+					finished = true;
+				}
+			}
+		}
+		if (released != null) {
+			released.release();
+		}
+		if (finished) {
+			this.finish();
+		}
+	}
+
+	/**
+	 * Keep data if it is the latest one
+	 * 
+	 * @return data to be released
+	 */
+	private CachedData accept(CachedData data) {
+		if (data == null) {
+			if (this.latest != null) {
+				this.stale++;
+			}
+			return null;
+		}
+		long version = VersionedTranscoder.getVersion(data);
+		if (this.latest == null) {
+			// replicas responded before missed the key
+			this.stale += this.responded - 1;
+			this.latest = data;
+			this.latestVersion = version;
+			return null;
+		}
+		if (version != this.latestVersion) {
+			this.stale++;
+		}
+		if (version > this.latestVersion) {
+			CachedData old = this.latest;
+			this.latest = data;
+			this.latestVersion = version;
+			return old;
+		}
+		return data;
+	}
+
+	/**
+	 * Complete the future with replicas which have responded,others are
+	 * cancelled.
+	 * 
+	 * @return false if no replica responded,the future is not completed
+	 */
+	boolean timeout() {
+		CachedData result;
+		synchronized (this) {
+			if (this.completed) {
+				return true;
+			}
+			this.completed = true;
+			for (int i = 0; i < this.commands.length; i++) {
+				if (!this.done[i]) {
+					this.commands[i].cancel();
+				}
+			}
+			if (this.responded == 0) {
+				return false;
+			}
+			result = this.latest;
+		}
+		this.future.setResult(result);
+		return true;
+	}
+
+	private void finish() {
+		CachedData result;
+		Throwable t;
+		synchronized (this) {
+			result = this.latest;
+			t = this.responded == 0 ? this.failure : null;
+		}
+		if (t != null) {
+			this.future.failure(t instanceof MemcachedException ? t
+					: new MemcachedException(t));
+		} else {
+			this.future.setResult(result);
+		}
+	}
+
+	private int indexOf(Command cmd) {
+		for (int i = 0; i < this.commands.length; i++) {
+			if (this.commands[i] == cmd) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.CommandListener;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import com.google.code.yanf4j.buffer.IoBuffer;
+
+/**
+ * A write sent to all replicas of a key.The value is encoded once,every
+ * replica command writes a duplicate of the encoded buffer,and the buffer is
+ * released when all replica commands are done.The future is completed as soon
+ * as writeQuorum replicas stored the value,or the quorum could not be reached
+ * any more.
+ * 
+ * @author dennis
+ * 
+ */
+final class ReplicatedWrite implements CommandListener {
+	private final OperationFuture<ReplicatedWriteResult> future = new OperationFuture<ReplicatedWriteResult>();
+	private final Command[] commands;
+	private final InetSocketAddress[] addresses;
+	private final int writeQuorum;
+	private final Map<InetSocketAddress, Boolean> responses = new LinkedHashMap<InetSocketAddress, Boolean>();
+	private final Map<InetSocketAddress, Throwable> failures = new LinkedHashMap<InetSocketAddress, Throwable>();
+	private final boolean[] done;
+	private IoBuffer buffer;
+	private int pending;
+	private int acknowledged;
+
+	ReplicatedWrite(Command[] commands, InetSocketAddress[] addresses,
+			int writeQuorum, IoBuffer buffer) {
+		this.commands = commands;
+		this.addresses = addresses;
+		this.writeQuorum = writeQuorum;
+		this.buffer = buffer;
+		this.pending = commands.length;
+		this.done = new boolean[commands.length];
+		this.future.setCommands(Arrays.asList(commands));
+		for (Command command : commands) {
+			command.setListener(this);
+		}
+	}
+
+	OperationFuture<ReplicatedWriteResult> getFuture() {
+		return this.future;
+	}
+
+	public void onCommandComplete(Command cmd) {
+		if (cmd.getException() != null) {
+			this.onFailure(cmd, cmd.getException());
+		} else if (cmd.getResult() == null) {
+			this.onFailure(cmd, new MemcachedException(
+					"Operation fail,may be caused by networking or timeout"));
+		} else {
+			this.complete(cmd, (Boolean) cmd.getResult(), null);
+		}
+	}
+
+	/**
+	 * A replica command failed,or it could not be sent
+	 */
+	void onFailure(Command cmd, Throwable t) {
+		this.complete(cmd, null, t);
+	}
+
+	private void complete(Command cmd, Boolean stored, Throwable failure) {
+		ReplicatedWriteResult result = null;
+		IoBuffer released = null;
+		synchronized (this) {
+			int index = this.indexOf(cmd);
+			if (index < 0 || this.done[index]) {
+				return;
+			}
+			this.done[index] = true;
+			if (failure != null) {
+				this.failures.put(this.addresses[index], failure);
+			} else {
+				this.responses.put(this.addresses[index], stored);
+				if (stored) {
+					this.acknowledged++;
+				}
+			}
+			this.pending--;
+			if (!this.future.isDone()
+					&& (this.acknowledged >= this.writeQuorum || this.acknowledged
+							+ this.pending < this.writeQuorum)) {
+				result = this.newResult();
+			}
+			if (this.pending == 0) {
+				released = this.buffer;
+				this.buffer = null;
+			}
+		}
+		if (result != null) {
+			this.future.setResult(result);
+		}
+		if (released != null) {
+			PooledBufferAllocator.writeComplete(released);
+			released.free();
+		}
+	}
+
+	/**
+	 * Complete the future with replicas which have not responded as timed
+	 * out,they are still written.
+	 * 
+	 * @return result of the write
+	 */
+	ReplicatedWriteResult timeout(long timeout) {
+		ReplicatedWriteResult result;
+		synchronized (this) {
+			Map<InetSocketAddress, Throwable> failures = new LinkedHashMap<InetSocketAddress, Throwable>(
+					this.failures);
+			for (int i = 0; i < this.addresses.length; i++) {
+				if (!this.done[i]) {
+					failures.put(this.addresses[i], new TimeoutException(
+							"Timed out(" + timeout + ") waiting for replica"));
+				}
+			}
+			result = new ReplicatedWriteResult(this.addresses.length,
+					this.writeQuorum, this.responses, failures);
+		}
+		if (this.future.setResult(result)) {
+			return result;
+		}
+		try {
+			return this.future.get();
+		} catch (Exception e) {
+			return result;
+		}
+	}
+
+	private int indexOf(Command cmd) {
+		for (int i = 0; i < this.commands.length; i++) {
+			if (this.commands[i] == cmd) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private ReplicatedWriteResult newResult() {
+		return new ReplicatedWriteResult(this.addresses.length,
+				this.writeQuorum, this.responses, this.failures);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of a write sent to all replicas of a key.The write succeeds when
+ * writeQuorum replicas stored it.Result is reported as soon as the outcome is
+ * known,so replicas which have not responded yet are in none of the maps.
+ * 
+ * @author dennis
+ * 
+ */
+public final class ReplicatedWriteResult {
+	private final int replicas;
+	private final int writeQuorum;
+	private final Map<InetSocketAddress, Boolean> responses;
+	private final Map<InetSocketAddress, Throwable> failures;
+
+	public ReplicatedWriteResult(int replicas, int writeQuorum,
+			Map<InetSocketAddress, Boolean> responses,
+			Map<InetSocketAddress, Throwable> failures) {
+		this.replicas = replicas;
+		this.writeQuorum = writeQuorum;
+		this.responses = Collections
+				.unmodifiableMap(new LinkedHashMap<InetSocketAddress, Boolean>(
+						responses));
+		this.failures = Collections
+				.unmodifiableMap(new LinkedHashMap<InetSocketAddress, Throwable>(
+						failures));
+	}
+
+	/**
+	 * Returns number of replicas the write was sent to
+	 */
+	public int getReplicas() {
+		return this.replicas;
+	}
+
+	public int getWriteQuorum() {
+		return this.writeQuorum;
+	}
+
+	/**
+	 * Returns number of replicas which stored the value
+	 */
+	public int getAcknowledged() {
+		int count = 0;
+		for (Boolean stored : this.responses.values()) {
+			if (stored) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true if writeQuorum replicas stored the value
+	 */
+	public boolean isSuccess() {
+		return this.getAcknowledged() >= this.writeQuorum;
+	}
+
+	/**
+	 * Returns responses of replicas,false if a replica did not store the
+	 * value,for example the key exists for add
+	 */
+	public Map<InetSocketAddress, Boolean> getResponses() {
+		return this.responses;
+	}
+
+	/**
+	 * Returns replicas which failed,by networking errors,server errors or
+	 * closed connections
+	 */
+	public Map<InetSocketAddress, Throwable> getFailures() {
+		return this.failures;
+	}
+
+	@Override
+	public String toString() {
+		return "ReplicatedWriteResult[replicas=" + this.replicas
+				+ ",writeQuorum=" + this.writeQuorum + ",responses="
+				+ this.responses + ",failures=" + this.failures + "]";
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached;
+
+/**
+ * What to do when a session's write queue or the client-wide in-flight bytes
+ * budget is full.
+ * 
+ * @author dennis
+ * 
+ */
+public enum WriteQueueOverflowPolicy {
+	/**
+	 * Block the caller until there is room or the block timeout elapses,then
+	 * throw MemcachedException.Reactor threads never block,they fail fast.
+	 */
+	BLOCK,
+	/**
+	 * Throw MemcachedException immediately.
+	 */
+	FAIL_FAST,
+	/**
+	 * Drop the oldest noreply command which is still waiting in the queue to
+	 * make room,fail fast if there is no such command.
+	 */
+	DROP_OLDEST_NOREPLY
+}
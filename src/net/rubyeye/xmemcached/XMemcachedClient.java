@@ -27,6 +27,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -37,13 +39,18 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import net.rubyeye.xmemcached.auth.AuthInfo;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
 import net.rubyeye.xmemcached.buffer.SimpleBufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.codec.MemcachedCodecFactory;
 import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.CommandListener;
 import net.rubyeye.xmemcached.command.CommandType;
 import net.rubyeye.xmemcached.command.ServerAddressAware;
 import net.rubyeye.xmemcached.command.TextCommandFactory;
+import net.rubyeye.xmemcached.command.binary.BaseBinaryCommand;
 import net.rubyeye.xmemcached.command.binary.BinaryGetMultiCommand;
+import net.rubyeye.xmemcached.command.text.TextStoreCommand;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.impl.ArrayMemcachedSessionLocator;
 import net.rubyeye.xmemcached.impl.ClosedMemcachedTCPSession;
@@ -54,12 +61,18 @@ import net.rubyeye.xmemcached.impl.MemcachedHandler;
 import net.rubyeye.xmemcached.impl.MemcachedTCPSession;
 import net.rubyeye.xmemcached.impl.ReconnectRequest;
 import net.rubyeye.xmemcached.impl.ThreeRandomMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.WriteQueueController;
 import net.rubyeye.xmemcached.monitor.Constants;
+import net.rubyeye.xmemcached.monitor.HotKeyCache;
+import net.rubyeye.xmemcached.monitor.HotKeySampler;
 import net.rubyeye.xmemcached.monitor.MemcachedClientNameHolder;
 import net.rubyeye.xmemcached.monitor.XMemcachedMbeanServer;
 import net.rubyeye.xmemcached.networking.Connector;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
+import net.rubyeye.xmemcached.transcoders.ByteBufferTranscoder;
 import net.rubyeye.xmemcached.transcoders.CachedData;
+import net.rubyeye.xmemcached.transcoders.CompressionMode;
+import net.rubyeye.xmemcached.transcoders.ExpiringTranscoder;
 import net.rubyeye.xmemcached.transcoders.SerializingTranscoder;
 import net.rubyeye.xmemcached.transcoders.Transcoder;
 import net.rubyeye.xmemcached.utils.AddrUtil;
@@ -86,6 +99,8 @@ import com.google.code.yanf4j.util.SystemUtils;
 public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient {
 
     private static final Logger log = LoggerFactory.getLogger(XMemcachedClient.class);
+
+    private static final EncodedTranscoder ENCODED_TRANSCODER = new EncodedTranscoder();
     protected MemcachedSessionLocator sessionLocator;
     private volatile boolean shutdown;
     protected MemcachedConnector connector;
@@ -108,6 +123,26 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
 
     private volatile boolean failureMode;
 
+    private volatile HedgePolicy hedgePolicy;
+
+    private volatile HotKeySampler hotKeySampler;
+
+    private volatile NearCache nearCache;
+
+    private volatile HotKeyCache hotKeyCache;
+
+    private volatile boolean singleFlight;
+
+    private volatile long loaderTimeout;
+
+    /**
+     * In-flight gets and loads by key,later callers of a key wait for them
+     */
+    private final ConcurrentHashMap<String, OperationFuture<Object>> fetchFlights =
+            new ConcurrentHashMap<String, OperationFuture<Object>>();
+    private final ConcurrentHashMap<String, OperationFuture<Object>> loadFlights =
+            new ConcurrentHashMap<String, OperationFuture<Object>>();
+
     private final CopyOnWriteArrayList<MemcachedClientStateListenerAdapter> stateListenerAdapters =
             new CopyOnWriteArrayList<MemcachedClientStateListenerAdapter>();
     private Thread shutdownHookThread;
@@ -238,6 +273,17 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
+    /**
+     * Returns the write queue limits of this client,they could be changed at
+     * runtime.
+     * 
+     * @return
+     */
+    public final WriteQueueController getWriteQueueController() {
+        return this.connector.getWriteQueueController();
+    }
+
+
     /*
      * (non-Javadoc)
      * 
@@ -249,6 +295,33 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setGatheringWrite(boolean)
+     */
+    public final void setGatheringWrite(final boolean gatheringWrite) {
+        this.connector.setGatheringWrite(gatheringWrite);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * net.rubyeye.xmemcached.MemcachedClient#setValueBufferPool(net.rubyeye
+     * .xmemcached.buffer.ValueBufferPool)
+     */
+    public final void setValueBufferPool(final ValueBufferPool valueBufferPool) {
+        this.connector.setValueBufferPool(valueBufferPool);
+    }
+
+
+    public final ValueBufferPool getValueBufferPool() {
+        return this.connector.getValueBufferPool();
+    }
+
+
     /*
      * (non-Javadoc)
      * 
@@ -272,10 +345,20 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (this.shutdown) {
             throw new MemcachedException("Xmemcached is stopped");
         }
+        this.invalidateCaches(cmd);
         this.connector.send(cmd, isSet);
     }
 
 
+    private final void sendCommand(final Command cmd, final Session session) throws MemcachedException {
+        if (this.shutdown) {
+            throw new MemcachedException("Xmemcached is stopped");
+        }
+        this.invalidateCaches(cmd);
+        this.connector.send(cmd, session);
+    }
+
+
     /**
      * XMemcached constructor,default weight is 1
      * 
@@ -574,33 +657,224 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
-    @SuppressWarnings("unchecked")
     private final <T> Object fetch0(final String key, final byte[] keyBytes, final CommandType cmdType,
             final long timeout, Transcoder<T> transcoder) throws InterruptedException, TimeoutException,
             MemcachedException, MemcachedException {
-        final Command command = this.commandFactory.createGetCommand(key, keyBytes, cmdType, this.transcoder);
-        this.sendCommand(command, false);
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        if (hotKeys != null && cmdType == CommandType.GET_ONE) {
+            CachedData data = hotKeys.get(key);
+            if (data != null) {
+                return (transcoder == null ? this.transcoder : transcoder).decode(data);
+            }
+        }
+        final long hotStamp = hotKeys == null ? HotKeyCache.NO_STAMP : hotKeys.stamp();
+        long[] stamps = null;
+        final NearCache cache = this.nearCache;
+        if (cache != null && cmdType == CommandType.GET_ONE) {
+            stamps = cache.stamps();
+            CachedData data = cache.get(key);
+            if (data != null) {
+                return (transcoder == null ? this.transcoder : transcoder).decode(data);
+            }
+        }
+        if (this.singleFlight && cmdType == CommandType.GET_ONE) {
+            CachedData data = this.flightFetch0(key, keyBytes, timeout, stamps, hotStamp);
+            return data == null ? null : (transcoder == null ? this.transcoder : transcoder).decode(data);
+        }
+        return this.remoteFetch0(key, keyBytes, cmdType, timeout, transcoder, stamps, hotStamp);
+    }
+
+
+    private final <T> Object remoteFetch0(final String key, final byte[] keyBytes, final CommandType cmdType,
+            final long timeout, final Transcoder<T> transcoder, final long[] stamps, final long hotStamp)
+            throws InterruptedException, TimeoutException, MemcachedException {
+        final HedgePolicy policy = this.hedgePolicy;
+        if (policy != null && cmdType == CommandType.GET_ONE
+                && this.sessionLocator instanceof ReplicaMemcachedSessionLocator) {
+            return this.hedgedFetch0(key, keyBytes, timeout, transcoder, policy, stamps, hotStamp);
+        }
+        final Command command = this.sendFetchCommand(key, keyBytes, cmdType);
         this.latchWait(command, timeout);
-        command.getIoBuffer().free(); // free buffer
+        command.getIoBuffer().free();
         this.checkException(command);
-        CachedData data = (CachedData) command.getResult();
-        if (data == null) {
-            return null;
+        return this.decodeFetched(command, cmdType, transcoder, stamps, hotStamp);
+    }
+
+
+    /**
+     * Get a key by single flight,the first caller sends a get and others wait
+     * for its result.The result is a raw value which is not pooled,so every
+     * caller decodes it by itself.
+     */
+    private final CachedData flightFetch0(final String key, final byte[] keyBytes, final long timeout,
+            final long[] stamps, final long hotStamp) throws InterruptedException, TimeoutException,
+            MemcachedException {
+        final OperationFuture<Object> flight = new OperationFuture<Object>();
+        final OperationFuture<Object> current = this.fetchFlights.putIfAbsent(key, flight);
+        if (current != null) {
+            // it is not responded by server,so count it here
+            final HotKeyCache hotKeys = this.hotKeyCache;
+            if (hotKeys != null) {
+                hotKeys.record(key);
+            }
+            return (CachedData) this.joinFlight(current, timeout);
         }
-        if (transcoder == null) {
-            transcoder = this.transcoder;
+        try {
+            final Object data =
+                    this.remoteFetch0(key, keyBytes, CommandType.GET_ONE, timeout, ENCODED_TRANSCODER, stamps,
+                        hotStamp);
+            this.completeFlight(this.fetchFlights, key, flight, data, null);
+            return (CachedData) data;
         }
-        if (cmdType == CommandType.GETS_ONE) {
-            return new GetsResponse<T>(data.getCas(), transcoder.decode(data));
+        catch (Throwable e) {
+            this.completeFlight(this.fetchFlights, key, flight, null, e);
+            throw propagate(e);
+        }
+    }
+
+
+    /**
+     * Remove a flight and complete it,so callers after it start a new one
+     */
+    private void completeFlight(final ConcurrentHashMap<String, OperationFuture<Object>> flights, final String key,
+            final OperationFuture<Object> flight, final Object result, final Throwable failure) {
+        flights.remove(key, flight);
+        if (failure != null) {
+            flight.failure(failure);
         }
         else {
-            return transcoder.decode(data);
+            flight.setResult(result);
+        }
+    }
+
+
+    /**
+     * Wait for a flight of another caller,it is not cancelled on timeout
+     * because other callers may be waiting for it too.Wait until it is
+     * completed if timeout is not positive.
+     */
+    private Object joinFlight(final OperationFuture<Object> flight, final long timeout) throws InterruptedException,
+            TimeoutException, MemcachedException {
+        try {
+            if (timeout <= 0) {
+                return flight.get();
+            }
+            return flight.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+
+    /**
+     * Throw a failure as it is if it could be thrown by get,else return it
+     * wrapped in MemcachedException
+     */
+    private static MemcachedException propagate(final Throwable t) throws InterruptedException, TimeoutException {
+        if (t instanceof MemcachedException) {
+            return (MemcachedException) t;
+        }
+        if (t instanceof TimeoutException) {
+            throw (TimeoutException) t;
+        }
+        if (t instanceof InterruptedException) {
+            throw (InterruptedException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new MemcachedException(t);
+    }
+
+
+    /**
+     * Get a key from it's primary replica,and hedge to another replica if it
+     * is not responded in the delay of hedge policy.
+     */
+    private final <T> Object hedgedFetch0(final String key, final byte[] keyBytes, final long timeout,
+            final Transcoder<T> transcoder, final HedgePolicy policy, final long[] stamps, final long hotStamp)
+            throws InterruptedException, TimeoutException, MemcachedException {
+        this.sampleKey(key);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final Session session = this.connector.findSessionByKey(key, false);
+        final OperationFuture<Object> future = new OperationFuture<Object>();
+        final List<Command> commands = new CopyOnWriteArrayList<Command>();
+        future.setCommands(commands);
+        final Command command = this.commandFactory.createGetCommand(key, keyBytes, CommandType.GET_ONE, this.transcoder);
+        final HedgedRead read = new HedgedRead(command, 1, policy, false, commands, new HedgedRead.Callback() {
+            public void onComplete(HedgedRead read) {
+                XMemcachedClient.this.completeFetch(future, read.getWinners().get(0), CommandType.GET_ONE,
+                    transcoder, stamps, hotStamp);
+            }
+        });
+        this.sendCommand(command, session);
+        if (this.awaitHedgeDelay(future, policy.getDelay(false))) {
+            Session replica = this.connector.findAlternateSessionByKey(key, session);
+            if (replica != null && policy.tryAcquire(1)) {
+                Command hedge =
+                        this.commandFactory.createGetCommand(key, keyBytes, CommandType.GET_ONE, this.transcoder);
+                if (read.hedge(Collections.singletonList(hedge))) {
+                    this.sendHedge(hedge, replica);
+                }
+            }
+        }
+        return this.waitFor(future, this.remainingMillis(deadline));
+    }
+
+
+    /**
+     * Wait for the delay before hedging
+     * 
+     * @param future
+     * @param delay
+     *            delay in nanoseconds,negative means no hedging
+     * @return true if the future is not done after delay
+     */
+    private boolean awaitHedgeDelay(final OperationFuture<?> future, final long delay) throws InterruptedException {
+        if (delay < 0) {
+            return false;
+        }
+        try {
+            future.get(delay, TimeUnit.NANOSECONDS);
+            return false;
+        }
+        catch (TimeoutException e) {
+            return true;
+        }
+        catch (ExecutionException e) {
+            return false;
+        }
+        catch (CancellationException e) {
+            return false;
         }
     }
 
 
+    private void sendHedge(final Command hedge, final Session replica) {
+        try {
+            this.sendCommand(hedge, replica);
+        }
+        catch (MemcachedException e) {
+            hedge.setException(e);
+            hedge.countDownLatch();
+        }
+    }
+
+
+    private long remainingMillis(final long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+
     private final void start0() throws IOException {
         this.registerMBean();
+        this.registerMBean(this.hotKeySampler);
+        this.registerMBean(this.hotKeyCache);
+        this.registerMBean(pooledAllocator(this.connector.getBufferAllocator()));
         this.startConnector();
         MemcachedClientNameHolder.clear();
     }
@@ -693,6 +967,30 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
+    /**
+     * Register a MBean owned by this client,it is unregistered when it is
+     * replaced or client is shutdown
+     */
+    private void registerMBean(final Object mbean) {
+        if (mbean != null) {
+            XMemcachedMbeanServer.getInstance().registMBean(mbean, getMBeanName(mbean));
+        }
+    }
+
+
+    private void unregisterMBean(final Object mbean) {
+        if (mbean != null) {
+            XMemcachedMbeanServer.getInstance().unregisterMBean(getMBeanName(mbean));
+        }
+    }
+
+
+    private static String getMBeanName(final Object mbean) {
+        return mbean.getClass().getPackage().getName() + ":type=" + mbean.getClass().getSimpleName() + "-"
+                + System.identityHashCode(mbean);
+    }
+
+
     public void setOptimizeGet(boolean optimizeGet) {
         this.connector.setOptimizeGet(optimizeGet);
     }
@@ -705,11 +1003,28 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
      * net.rubyeye.xmemcached.MemcachedClient#setBufferAllocator(net.rubyeye
      * .xmemcached.buffer.BufferAllocator)
      */
-    public final void setBufferAllocator(final BufferAllocator bufferAllocator) {
+    @SuppressWarnings("deprecation")
+    public final synchronized void setBufferAllocator(final BufferAllocator bufferAllocator) {
+        BufferAllocator old = this.connector.getBufferAllocator();
+        if (old != bufferAllocator) {
+            this.unregisterMBean(pooledAllocator(old));
+            if (!this.shutdown) {
+                this.registerMBean(pooledAllocator(bufferAllocator));
+            }
+        }
         this.connector.setBufferAllocator(bufferAllocator);
     }
 
 
+    /**
+     * Returns the allocator if it is a PooledBufferAllocator,which is a MBean
+     */
+    @SuppressWarnings("deprecation")
+    private static PooledBufferAllocator pooledAllocator(final BufferAllocator bufferAllocator) {
+        return bufferAllocator instanceof PooledBufferAllocator ? (PooledBufferAllocator) bufferAllocator : null;
+    }
+
+
     /**
      * XMemcached Constructor.
      * 
@@ -976,6 +1291,147 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#get(java.lang.String, int,
+     * long, net.rubyeye.xmemcached.transcoders.Transcoder,
+     * net.rubyeye.xmemcached.CacheLoader)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> T get(final String key, final int exp, final long timeout, final Transcoder<T> transcoder,
+            final CacheLoader<T> loader) throws TimeoutException, InterruptedException, MemcachedException {
+        if (loader == null) {
+            throw new IllegalArgumentException("Null loader");
+        }
+        final String sanitizedKey = this.sanitizeKey(key);
+        final byte[] keyBytes = ByteUtils.getBytes(sanitizedKey);
+        ByteUtils.checkKey(keyBytes);
+        if (transcoder instanceof ExpiringTranscoder) {
+            final ExpiringTranscoder<T> expiring = (ExpiringTranscoder<T>) transcoder;
+            CachedData data =
+                    (CachedData) this.fetch0(sanitizedKey, keyBytes, CommandType.GET_ONE, timeout, ENCODED_TRANSCODER);
+            T value = data == null ? null : expiring.decode(data);
+            if (value != null) {
+                if (expiring.isExpiringEarly(data)) {
+                    return this.refresh(key, sanitizedKey, exp, timeout, expiring, loader, value);
+                }
+                return value;
+            }
+        }
+        else {
+            T value = (T) this.fetch0(sanitizedKey, keyBytes, CommandType.GET_ONE, timeout, transcoder);
+            if (value != null) {
+                return value;
+            }
+        }
+        final OperationFuture<Object> flight = new OperationFuture<Object>();
+        final OperationFuture<Object> current = this.loadFlights.putIfAbsent(sanitizedKey, flight);
+        if (current != null) {
+            long loaderTimeout = this.loaderTimeout;
+            return (T) this.joinFlight(current, loaderTimeout > 0 ? loaderTimeout : this.opTimeout);
+        }
+        try {
+            // the previous flight may have stored it just now
+            T value = (T) this.fetch0(sanitizedKey, keyBytes, CommandType.GET_ONE, timeout, transcoder);
+            if (value == null) {
+                value = this.load(key, exp, timeout, transcoder, loader);
+            }
+            this.completeFlight(this.loadFlights, sanitizedKey, flight, value, null);
+            return value;
+        }
+        catch (Throwable e) {
+            this.completeFlight(this.loadFlights, sanitizedKey, flight, null, e);
+            throw propagate(e);
+        }
+    }
+
+
+    /**
+     * Recompute a value before it expires.Only one caller in this JVM
+     * recomputes it,others return the cached value meanwhile,and the cached
+     * value is returned if it fails.
+     */
+    private <T> T refresh(final String key, final String sanitizedKey, final int exp, final long timeout,
+            final ExpiringTranscoder<T> transcoder, final CacheLoader<T> loader, final T cached)
+            throws InterruptedException {
+        final OperationFuture<Object> flight = new OperationFuture<Object>();
+        if (this.loadFlights.putIfAbsent(sanitizedKey, flight) != null) {
+            return cached;
+        }
+        try {
+            final T value = this.load(key, exp, timeout, transcoder, loader);
+            this.completeFlight(this.loadFlights, sanitizedKey, flight, value, null);
+            return value;
+        }
+        catch (Throwable e) {
+            this.completeFlight(this.loadFlights, sanitizedKey, flight, null, e);
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            log.warn("Recompute key " + key + " before it expires failed", e);
+            return cached;
+        }
+    }
+
+
+    /**
+     * Call loader and store the loaded value,the compute time is stored with
+     * it if transcoder is an ExpiringTranscoder.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T load(final String key, final int exp, final long timeout, final Transcoder<T> transcoder,
+            final CacheLoader<T> loader) throws Exception {
+        final long start = System.nanoTime();
+        final T value = loader.load(key);
+        if (value != null) {
+            if (transcoder instanceof ExpiringTranscoder) {
+                final long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                this.storeLoaded(key, exp, ((ExpiringTranscoder<T>) transcoder).encode(value, exp, delta),
+                    ENCODED_TRANSCODER, timeout);
+            }
+            else {
+                this.storeLoaded(key, exp, value, transcoder, timeout);
+            }
+        }
+        return value;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#get(java.lang.String, int,
+     * net.rubyeye.xmemcached.CacheLoader)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> T get(final String key, final int exp, final CacheLoader<T> loader) throws TimeoutException,
+            InterruptedException, MemcachedException {
+        return this.get(key, exp, this.opTimeout, (Transcoder<T>) this.transcoder, loader);
+    }
+
+
+    /**
+     * Store a loaded value,the value is returned even if it is not stored
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void storeLoaded(final String key, final int exp, final T value, final Transcoder<T> transcoder,
+            final long timeout) throws InterruptedException {
+        try {
+            this.set(key, exp, value, transcoder == null ? (Transcoder<T>) this.transcoder : transcoder, timeout);
+        }
+        catch (TimeoutException e) {
+            log.warn("Store loaded value of key " + key + " timeout", e);
+        }
+        catch (MemcachedException e) {
+            log.warn("Store loaded value of key " + key + " failed", e);
+        }
+    }
+
+
     /*
      * (non-Javadoc)
      * 
@@ -1129,6 +1585,60 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (keys == null || keys.size() == 0) {
             return null;
         }
+        long[] stamps = null;
+        Map<String, T> hits = null;
+        Collection<String> missed = keys;
+        final NearCache cache = this.nearCache;
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        final long hotStamp = hotKeys == null ? HotKeyCache.NO_STAMP : hotKeys.stamp();
+        if ((cache != null || hotKeys != null) && cmdType == CommandType.GET_MANY) {
+            stamps = cache == null ? null : cache.stamps();
+            hits = new HashMap<String, T>();
+            missed = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                String sanitizedKey = this.sanitizeKey(key);
+                CachedData data = hotKeys == null ? null : hotKeys.get(sanitizedKey);
+                if (data == null && cache != null) {
+                    data = cache.get(sanitizedKey);
+                }
+                if (data == null) {
+                    missed.add(key);
+                }
+                else {
+                    hits.put(key, transcoder.decode(data));
+                }
+            }
+            if (missed.isEmpty()) {
+                return hits;
+            }
+        }
+        final Map<String, T> result;
+        final HedgePolicy policy = this.hedgePolicy;
+        if (policy != null && cmdType == CommandType.GET_MANY
+                && this.sessionLocator instanceof ReplicaMemcachedSessionLocator) {
+            result = this.hedgedGetMulti0(missed, timeout, transcoder, policy, stamps, hotStamp);
+        }
+        else {
+            final List<Command> commands = this.sendGetMultiCommands(missed, cmdType, transcoder);
+            this.latchWait(commands, timeout);
+            result = this.reduceResult(cmdType, transcoder, commands, stamps, hotStamp);
+        }
+        if (hits != null && result != null) {
+            result.putAll(hits);
+        }
+        return result;
+    }
+
+
+    /**
+     * Get keys by sub-batches of their primary replicas,a sub-batch which is
+     * not responded in the delay of hedge policy is hedged to other replicas
+     * of it's keys.
+     */
+    private final <T> Map<String, T> hedgedGetMulti0(final Collection<String> keys, final long timeout,
+            final Transcoder<T> transcoder, final HedgePolicy policy, final long[] stamps, final long hotStamp)
+            throws TimeoutException, InterruptedException, MemcachedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
         Collection<String> keyCollections = keys;
         if (this.sanitizeKeys) {
             keyCollections = new ArrayList<String>(keys.size());
@@ -1136,40 +1646,98 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                 keyCollections.add(this.sanitizeKey(key));
             }
         }
-        final CountDownLatch latch;
-        final List<Command> commands;
-        if (this.connector.getSessionSet().size() <= 1) {
-            commands = new ArrayList<Command>(1);
-            latch = new CountDownLatch(1);
-            commands.add(this.sendGetMultiCommand(keyCollections, latch, cmdType, transcoder));
-
-        }
-        else {
-            Collection<List<String>> catalogKeys = this.catalogKeys(keyCollections);
-            commands = new ArrayList<Command>(catalogKeys.size());
-            latch = new CountDownLatch(catalogKeys.size());
-            for (List<String> catalogKeyCollection : catalogKeys) {
-                commands.add(this.sendGetMultiCommand(catalogKeyCollection, latch, cmdType, transcoder));
+        this.sampleKeys(keyCollections);
+        final Map<Session, List<String>> catalogMap = this.catalogSessions(keyCollections);
+        final OperationFuture<Map<String, T>> future = new OperationFuture<Map<String, T>>();
+        final List<Command> commands = new CopyOnWriteArrayList<Command>();
+        future.setCommands(commands);
+        final List<HedgedRead> reads = new ArrayList<HedgedRead>(catalogMap.size());
+        final AtomicInteger remaining = new AtomicInteger(catalogMap.size());
+        final HedgedRead.Callback callback = new HedgedRead.Callback() {
+            public void onComplete(HedgedRead read) {
+                if (remaining.decrementAndGet() == 0) {
+                    List<Command> winners = new ArrayList<Command>(reads.size());
+                    for (HedgedRead hedgedRead : reads) {
+                        winners.addAll(hedgedRead.getWinners());
+                    }
+                    try {
+                        future.setResult(XMemcachedClient.this.reduceResult(CommandType.GET_MANY, transcoder,
+                            winners, stamps, hotStamp));
+                    }
+                    catch (MemcachedException e) {
+                        future.failure(e);
+                    }
+                    catch (RuntimeException e) {
+                        future.failure(e);
+                    }
+                }
             }
+        };
+        final List<Session> sessions = new ArrayList<Session>(catalogMap.keySet());
+        for (Session session : sessions) {
+            List<String> keyList = catalogMap.get(session);
+            Command command = this.commandFactory.createGetMultiCommand(keyList, null, CommandType.GET_MANY, transcoder);
+            reads.add(new HedgedRead(command, keyList.size(), policy, true, commands, callback));
         }
-        if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
-            for (Command getCmd : commands) {
-                getCmd.cancel();
+        try {
+            for (int i = 0; i < sessions.size(); i++) {
+                this.sendCommand(reads.get(i).getPrimary(), sessions.get(i));
             }
-            throw new TimeoutException("Timed out waiting for operation");
         }
-        return this.reduceResult(cmdType, transcoder, commands);
-    }
-
-
-    public int findServerNumByKey(final String key) {
-    	return this.sessionLocator.findSessionNumByKey(key);
-    }
+        catch (MemcachedException e) {
+            future.cancel(true);
+            throw e;
+        }
+        if (this.awaitHedgeDelay(future, policy.getDelay(true))) {
+            for (int i = 0; i < sessions.size(); i++) {
+                HedgedRead read = reads.get(i);
+                if (read.isDone()) {
+                    continue;
+                }
+                Map<Session, List<String>> hedgeMap = new HashMap<Session, List<String>>();
+                for (String key : catalogMap.get(sessions.get(i))) {
+                    Session replica = this.connector.findAlternateSessionByKey(key, sessions.get(i));
+                    if (replica == null) {
+                        hedgeMap = null;
+                        break;
+                    }
+                    List<String> hedgeKeys = hedgeMap.get(replica);
+                    if (hedgeKeys == null) {
+                        hedgeKeys = new ArrayList<String>();
+                        hedgeMap.put(replica, hedgeKeys);
+                    }
+                    hedgeKeys.add(key);
+                }
+                if (hedgeMap == null || !policy.tryAcquire(hedgeMap.size())) {
+                    continue;
+                }
+                List<Command> hedges = new ArrayList<Command>(hedgeMap.size());
+                for (List<String> hedgeKeys : hedgeMap.values()) {
+                    hedges.add(this.commandFactory.createGetMultiCommand(hedgeKeys, null, CommandType.GET_MANY,
+                        transcoder));
+                }
+                if (read.hedge(hedges)) {
+                    int j = 0;
+                    for (Session replica : hedgeMap.keySet()) {
+                        this.sendHedge(hedges.get(j++), replica);
+                    }
+                }
+            }
+        }
+        return this.waitFor(future, this.remainingMillis(deadline));
+    }
+
+
+    public int findServerNumByKey(final String key) {
+    	return this.sessionLocator.findSessionNumByKey(key);
+    }
     
     @SuppressWarnings("unchecked")
     private <T> Map<String, T> reduceResult(final CommandType cmdType, final Transcoder<T> transcoder,
-            final List<Command> commands) throws MemcachedException {
+            final List<Command> commands, final long[] stamps, final long hotStamp) throws MemcachedException {
         final Map<String, T> result = new HashMap<String, T>(commands.size());
+        final NearCache cache = stamps == null ? null : this.nearCache;
+        final HotKeyCache hotKeys = this.hotKeyCache;
         for (Command getCmd : commands) {
             getCmd.getIoBuffer().free();
             this.checkException(getCmd);
@@ -1178,11 +1746,22 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                 Iterator<Map.Entry<String, CachedData>> it = map.entrySet().iterator();
                 while (it.hasNext()) {
                     Map.Entry<String, CachedData> entry = it.next();
-                    if (this.sanitizeKeys) {
-                        result.put(this.decodeKey(entry.getKey()), transcoder.decode(entry.getValue()));
+                    try {
+                        if (cache != null) {
+                            cache.put(entry.getKey(), entry.getValue(), stamps);
+                        }
+                        if (hotKeys != null) {
+                            hotKeys.put(entry.getKey(), entry.getValue(), hotStamp);
+                        }
+                        if (this.sanitizeKeys) {
+                            result.put(this.decodeKey(entry.getKey()), decode(transcoder, entry.getValue()));
+                        }
+                        else {
+                            result.put(entry.getKey(), decode(transcoder, entry.getValue()));
+                        }
                     }
-                    else {
-                        result.put(entry.getKey(), transcoder.decode(entry.getValue()));
+                    finally {
+                        entry.getValue().release();
                     }
                 }
 
@@ -1191,9 +1770,14 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                 Iterator<Map.Entry<String, CachedData>> it = map.entrySet().iterator();
                 while (it.hasNext()) {
                     Map.Entry<String, CachedData> entry = it.next();
-                    GetsResponse getsResponse =
-                            new GetsResponse(entry.getValue().getCas(), transcoder.decode(entry.getValue()));
-                    result.put(entry.getKey(), (T) getsResponse);
+                    try {
+                        GetsResponse getsResponse =
+                                new GetsResponse(entry.getValue().getCas(), decode(transcoder, entry.getValue()));
+                        result.put(entry.getKey(), (T) getsResponse);
+                    }
+                    finally {
+                        entry.getValue().release();
+                    }
                 }
 
             }
@@ -1210,6 +1794,21 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
      * @return
      */
     private final Collection<List<String>> catalogKeys(final Collection<String> keyCollections) {
+        return this.catalogSessions(keyCollections).values();
+    }
+
+
+    /**
+     * Hash key to sessions,keys of replicated locators are planned to touch
+     * as few servers as possible
+     * 
+     * @param keyCollections
+     * @return
+     */
+    private final Map<Session, List<String>> catalogSessions(final Collection<String> keyCollections) {
+        if (this.sessionLocator instanceof ReplicaMemcachedSessionLocator) {
+            return MultiGetPlanner.plan(keyCollections, (ReplicaMemcachedSessionLocator) this.sessionLocator);
+        }
         final Map<Session, List<String>> catalogMap = new HashMap<Session, List<String>>();
 
         for (String key : keyCollections) {
@@ -1223,9 +1822,7 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                 catalogMap.get(index).add(key);
             }
         }
-
-        Collection<List<String>> catalogKeys = catalogMap.values();
-        return catalogKeys;
+        return catalogMap;
     }
 
 
@@ -1254,15 +1851,6 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
-    private final <T> Command sendGetMultiCommand(final Collection<String> keys, final CountDownLatch latch,
-            final CommandType cmdType, final Transcoder<T> transcoder) throws InterruptedException, TimeoutException,
-            MemcachedException {
-        final Command command = this.commandFactory.createGetMultiCommand(keys, latch, cmdType, transcoder);
-        this.sendCommand(command, false);
-        return command;
-    }
-
-
     /*
      * (non-Javadoc)
      * 
@@ -1433,6 +2021,11 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
             throws InterruptedException, MemcachedException {
         key = this.sanitizeKey(key);
         byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            this.replaceReplicas(replicas, key, keyBytes, exp, value, true, transcoder);
+            return;
+        }
         try {
             this.sendStoreCommand(
                 this.commandFactory.createReplaceCommand(key, keyBytes, exp, value, true, transcoder), this.opTimeout);
@@ -1454,6 +2047,11 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
             final long timeout) throws TimeoutException, InterruptedException, MemcachedException {
         key = this.sanitizeKey(key);
         byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.waitForReplicas(
+                this.replaceReplicas(replicas, key, keyBytes, exp, value, false, transcoder), timeout);
+        }
         return this.sendStoreCommand(
             this.commandFactory.createReplaceCommand(key, keyBytes, exp, value, false, transcoder), timeout);
     }
@@ -1599,6 +2197,11 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
             final long timeout, final long cas) throws TimeoutException, InterruptedException, MemcachedException {
         key = this.sanitizeKey(key);
         byte[] keyBytes = this.checkStoreArguments(key, 0, value);
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.waitForReplicas(
+                this.casReplicas(replicas, key, keyBytes, exp, value, cas, false, transcoder), timeout);
+        }
         return this.sendStoreCommand(
             this.commandFactory.createCASCommand(key, keyBytes, exp, value, cas, false, transcoder), timeout);
     }
@@ -1629,6 +2232,19 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
     }
 
 
+    private final <T> boolean sendCASCommand(final String key, final byte[] keyBytes, final int exp, final T value,
+            final long cas, final boolean noreply, final Transcoder<T> transcoder) throws TimeoutException,
+            InterruptedException, MemcachedException {
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.waitForReplicas(
+                this.casReplicas(replicas, key, keyBytes, exp, value, cas, noreply, transcoder), this.opTimeout);
+        }
+        return this.sendStoreCommand(
+            this.commandFactory.createCASCommand(key, keyBytes, exp, value, cas, noreply, transcoder), this.opTimeout);
+    }
+
+
     private final <T> boolean cas0(final String key, final int exp, GetsResponse<T> getsResponse,
             final CASOperation<T> operation, final Transcoder<T> transcoder, byte[] keyBytes, boolean noreply)
             throws TimeoutException, InterruptedException, MemcachedException {
@@ -1643,11 +2259,9 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (result == null) {
             throw new MemcachedException("Null GetsResponse");
         }
-        while (tryCount <= operation.getMaxTries()
-                && result != null
-                && !this.sendStoreCommand(this.commandFactory.createCASCommand(key, keyBytes, exp,
-                    operation.getNewValue(result.getCas(), result.getValue()), result.getCas(), noreply, transcoder),
-                    this.opTimeout) && !noreply) {
+        while (tryCount <= operation.getMaxTries() && result != null
+                && !this.sendCASCommand(key, keyBytes, exp, operation.getNewValue(result.getCas(), result.getValue()),
+                    result.getCas(), noreply, transcoder) && !noreply) {
             tryCount++;
             result = this.gets0(key, keyBytes, transcoder);
             if (result == null) {
@@ -1827,28 +2441,34 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         final byte[] keyBytes = ByteUtils.getBytes(key);
         ByteUtils.checkKey(keyBytes);
         final Command command = this.commandFactory.createDeleteCommand(key, keyBytes, time, noreply);
+        final List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.waitForReplicas(
+                this.sendToReplicas(command, replicas, this.newDeleteCopy(key, keyBytes, time), false), opTimeout);
+        }
         this.sendCommand(command, false);
         if (!command.isNoreply()) {
-            this.latchWait(command, opTimeout);
-            command.getIoBuffer().free();
-            this.checkException(command);
-            if (command.getResult() == null) {
-                throw new MemcachedException("Operation fail,may be caused by networking or timeout");
-            }
+            return this.waitForBoolean(command, opTimeout);
         }
         else {
             return false;
         }
-        return (Boolean) command.getResult();
     }
 
 
     void checkException(final Command command) throws MemcachedException {
         if (command.getException() != null) {
-            if (command.getException() instanceof MemcachedException)
-                throw (MemcachedException) command.getException();
-            else
-                throw new MemcachedException(command.getException());
+            throw this.toMemcachedException(command.getException());
+        }
+    }
+
+
+    private MemcachedException toMemcachedException(final Throwable e) {
+        if (e instanceof MemcachedException) {
+            return (MemcachedException) e;
+        }
+        else {
+            return new MemcachedException(e);
         }
     }
 
@@ -1858,16 +2478,14 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         key = this.sanitizeKey(key);
         final byte[] keyBytes = ByteUtils.getBytes(key);
         ByteUtils.checkKey(keyBytes);
-        CountDownLatch latch = new CountDownLatch(1);
-        final Command command = this.commandFactory.createTouchCommand(key, keyBytes, latch, exp, false);
-        this.sendCommand(command, false);
-        this.latchWait(command, opTimeout);
-        command.getIoBuffer().free();
-        this.checkException(command);
-        if (command.getResult() == null) {
-            throw new MemcachedException("Operation fail,may be caused by networking or timeout");
+        final Command command = this.commandFactory.createTouchCommand(key, keyBytes, null, exp, false);
+        final List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.waitForReplicas(
+                this.sendToReplicas(command, replicas, this.newTouchCopy(key, keyBytes, exp), false), opTimeout);
         }
-        return (Boolean) command.getResult();
+        this.sendCommand(command, false);
+        return this.waitForBoolean(command, opTimeout);
     }
 
 
@@ -1899,6 +2517,16 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                 innerKeyExpMap.put(this.sanitizeKey(entry.getKey()), entry.getValue());
             }
         }
+        final NearCache cache = this.nearCache;
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        for (Map.Entry<String, Integer> entry : innerKeyExpMap.entrySet()) {
+            if (cache != null) {
+                cache.invalidate(entry.getKey(), entry.getValue());
+            }
+            if (hotKeys != null) {
+                hotKeys.invalidate(entry.getKey());
+            }
+        }
         final CountDownLatch latch;
         final List<Command> commands;
         if (this.connector.getSessionSet().size() <= 1) {
@@ -1921,7 +2549,7 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
             }
             throw new TimeoutException("Timed out waiting for operation");
         }
-        return this.reduceResult(CommandType.GET_MANY, transcoder, commands);
+        return this.reduceResult(CommandType.GET_MANY, transcoder, commands, null, HotKeyCache.NO_STAMP);
 
     }
 
@@ -1978,8 +2606,7 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         key = this.sanitizeKey(key);
         final byte[] keyBytes = ByteUtils.getBytes(key);
         ByteUtils.checkKey(keyBytes);
-        CountDownLatch latch = new CountDownLatch(1);
-        final Command command = this.commandFactory.createGetAndTouchCommand(key, keyBytes, latch, newExp, false);
+        final Command command = this.commandFactory.createGetAndTouchCommand(key, keyBytes, null, newExp, false);
         this.sendCommand(command, false);
         this.latchWait(command, opTimeout);
         command.getIoBuffer().free();
@@ -1988,7 +2615,12 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (data == null) {
             return null;
         }
-        return (T) transcoder.decode(data);
+        try {
+            return (T) decode(transcoder, data);
+        }
+        finally {
+            data.release();
+        }
     }
 
 
@@ -2155,6 +2787,7 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
 
     private void flushAllMemcachedServers(long timeout, boolean noreply, int exptime) throws MemcachedException,
             InterruptedException, TimeoutException {
+        this.clearCaches();
         final Collection<Session> sessions = this.connector.getSessionSet();
         CountDownLatch latch = new CountDownLatch(sessions.size());
         List<Command> commands = new ArrayList<Command>(sessions.size());
@@ -2191,7 +2824,6 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (address == null) {
             throw new IllegalArgumentException("Null adderss");
         }
-        CountDownLatch latch = new CountDownLatch(1);
 
         Queue<Session> sessionQueue = this.connector.getSessionByAddress(address);
         if (sessionQueue == null || sessionQueue.peek() == null) {
@@ -2199,7 +2831,7 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
                     + address.getPort() + ",maybe it have not been connected");
         }
 
-        Command command = this.commandFactory.createVerbosityCommand(latch, level, noreply);
+        Command command = this.commandFactory.createVerbosityCommand(null, level, noreply);
         sessionQueue.peek().write(command);
         if (!noreply) {
             this.latchWait(command, this.opTimeout);
@@ -2256,14 +2888,14 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (address == null) {
             throw new IllegalArgumentException("Null adderss");
         }
-        CountDownLatch latch = new CountDownLatch(1);
 
         Queue<Session> sessionQueue = this.connector.getSessionByAddress(address);
         if (sessionQueue == null || sessionQueue.peek() == null) {
             throw new MemcachedException("could not find session for " + SystemUtils.getRawAddress(address) + ":"
                     + address.getPort() + ",maybe it have not been connected");
         }
-        Command command = this.commandFactory.createFlushAllCommand(latch, exptime, noreply);
+        this.clearCaches();
+        Command command = this.commandFactory.createFlushAllCommand(null, exptime, noreply);
         sessionQueue.peek().write(command);
         if (!noreply) {
             this.latchWait(command, timeout);
@@ -2306,14 +2938,13 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         if (address == null) {
             throw new IllegalArgumentException("Null inetSocketAddress");
         }
-        CountDownLatch latch = new CountDownLatch(1);
 
         Queue<Session> sessionQueue = this.connector.getSessionByAddress(address);
         if (sessionQueue == null || sessionQueue.peek() == null) {
             throw new MemcachedException("could not find session for " + SystemUtils.getRawAddress(address) + ":"
                     + address.getPort() + ",maybe it have not been connected");
         }
-        Command command = this.commandFactory.createStatsCommand(address, latch, null);
+        Command command = this.commandFactory.createStatsCommand(address, null, null);
         sessionQueue.peek().write(command);
         this.latchWait(command, timeout);
         return (Map<String, String>) command.getResult();
@@ -2420,6 +3051,9 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         this.connector.stop();
         this.memcachedHandler.stop();
         this.sessionLocator.stop();
+        this.unregisterMBean(this.hotKeySampler);
+        this.unregisterMBean(this.hotKeyCache);
+        this.unregisterMBean(pooledAllocator(this.connector.getBufferAllocator()));
         XMemcachedMbeanServer.getInstance().shutdown();
         if (!isHutdownHookCalled) {
             Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
@@ -2516,149 +3150,1396 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
 
     private final <T> boolean sendStoreCommand(Command command, long timeout) throws InterruptedException,
             TimeoutException, MemcachedException {
-
         this.sendCommand(command, true);
         if (!command.isNoreply()) {
-            this.latchWait(command, timeout);
-            command.getIoBuffer().free();
-            this.checkException(command);
-            if (command.getResult() == null) {
-                throw new MemcachedException("Operation fail,may be caused by networking or timeout");
-            }
+            return this.waitForBoolean(command, timeout);
         }
         else {
             return false;
         }
-        return (Boolean) command.getResult();
     }
 
 
-    private void latchWait(final Command cmd, final long timeout) throws InterruptedException, TimeoutException {
-        if (!cmd.getLatch().await(timeout, TimeUnit.MILLISECONDS)) {
-            cmd.cancel();
-            throw new TimeoutException("Timed out(" + timeout + ") waiting for operation");
-        }
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getAsync(java.lang.String,
+     * net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<T> getAsync(String key, final Transcoder<T> transcoder) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        return this.fetchAsync0(key, keyBytes, CommandType.GET_ONE, transcoder, null, this.hotKeyStamp());
     }
 
 
-    /**
-     * Use getAvailableServers() instead
+    /*
+     * (non-Javadoc)
      * 
-     * @deprecated
-     * @see MemcachedClient#getAvailableServers()
+     * @see net.rubyeye.xmemcached.MemcachedClient#getAsync(java.lang.String)
      */
-    public final Collection<InetSocketAddress> getAvaliableServers() {
-        return this.getAvailableServers();
+    @SuppressWarnings("unchecked")
+    public final <T> OperationFuture<T> getAsync(final String key) throws MemcachedException {
+        return this.getAsync(key, (Transcoder<T>) this.transcoder);
     }
 
 
-    public Collection<InetSocketAddress> getAvailableServers() {
-        Set<Session> sessionSet = this.connector.getSessionSet();
-        Set<InetSocketAddress> result = new HashSet<InetSocketAddress>();
-        for (Session session : sessionSet) {
-            result.add(session.getRemoteSocketAddress());
-        }
-        return Collections.unmodifiableSet(result);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getsAsync(java.lang.String,
+     * net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<GetsResponse<T>> getsAsync(String key, final Transcoder<T> transcoder)
+            throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        return this.fetchAsync0(key, keyBytes, CommandType.GETS_ONE, transcoder, null, HotKeyCache.NO_STAMP);
     }
 
 
-    public final int getConnectionSizeBySocketAddress(InetSocketAddress address) {
-        Queue<Session> sessionList = this.connector.getSessionByAddress(address);
-        return sessionList == null ? 0 : sessionList.size();
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getsAsync(java.lang.String)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> OperationFuture<GetsResponse<T>> getsAsync(final String key) throws MemcachedException {
+        return this.getsAsync(key, (Transcoder<T>) this.transcoder);
     }
 
 
-    public void addStateListener(MemcachedClientStateListener listener) {
-        MemcachedClientStateListenerAdapter adapter = new MemcachedClientStateListenerAdapter(listener, this);
-        this.stateListenerAdapters.add(adapter);
-        this.connector.addStateListener(adapter);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getMultiAsync(java.util.Collection,
+     * net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<Map<String, T>> getMultiAsync(final Collection<String> keyCollections,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        return this.getMultiAsync0(keyCollections, CommandType.GET_MANY, transcoder, null, this.hotKeyStamp());
     }
 
 
-    public Collection<MemcachedClientStateListener> getStateListeners() {
-        final List<MemcachedClientStateListener> result =
-                new ArrayList<MemcachedClientStateListener>(this.stateListenerAdapters.size());
-        for (MemcachedClientStateListenerAdapter adapter : this.stateListenerAdapters) {
-            result.add(adapter.getMemcachedClientStateListener());
-        }
-        return result;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getMultiAsync(java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> OperationFuture<Map<String, T>> getMultiAsync(final Collection<String> keyCollections)
+            throws MemcachedException {
+        return this.getMultiAsync(keyCollections, (Transcoder<T>) this.transcoder);
     }
 
 
-    public void setPrimitiveAsString(boolean primitiveAsString) {
-        this.transcoder.setPrimitiveAsString(primitiveAsString);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getsMultiAsync(java.util.Collection,
+     * net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> OperationFuture<Map<String, GetsResponse<T>>> getsMultiAsync(
+            final Collection<String> keyCollections, final Transcoder<T> transcoder) throws MemcachedException {
+        return (OperationFuture) this.getMultiAsync0(keyCollections, CommandType.GETS_MANY, transcoder, null,
+            HotKeyCache.NO_STAMP);
     }
 
 
-    public void removeStateListener(MemcachedClientStateListener listener) {
-        for (MemcachedClientStateListenerAdapter adapter : this.stateListenerAdapters) {
-            if (adapter.getMemcachedClientStateListener().equals(listener)) {
-                this.stateListenerAdapters.remove(adapter);
-                this.connector.removeStateListener(adapter);
-            }
-        }
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getsMultiAsync(java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> OperationFuture<Map<String, GetsResponse<T>>> getsMultiAsync(
+            final Collection<String> keyCollections) throws MemcachedException {
+        return this.getsMultiAsync(keyCollections, (Transcoder<T>) this.transcoder);
     }
 
 
-    public Protocol getProtocol() {
-        return this.commandFactory.getProtocol();
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setAsync(java.lang.String, int,
+     * T, net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<Boolean> setAsync(String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        return this.sendAsync0(this.commandFactory.createSetCommand(key, keyBytes, exp, value, false, transcoder), true);
     }
 
 
-    public boolean isSanitizeKeys() {
-        return this.sanitizeKeys;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setAsync(java.lang.String, int,
+     * java.lang.Object)
+     */
+    @SuppressWarnings("unchecked")
+    public final OperationFuture<Boolean> setAsync(final String key, final int exp, final Object value)
+            throws MemcachedException {
+        return this.setAsync(key, exp, value, this.transcoder);
     }
 
 
-    public void setSanitizeKeys(boolean sanitizeKeys) {
-        this.sanitizeKeys = sanitizeKeys;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setReplicatedAsync(java.lang.String,
+     * int, T, net.rubyeye.xmemcached.transcoders.Transcoder, int)
+     */
+    public final <T> OperationFuture<ReplicatedWriteResult> setReplicatedAsync(String key, final int exp,
+            final T value, final Transcoder<T> transcoder, final int writeQuorum) throws MemcachedException {
+        return this.setReplicated0(key, exp, value, transcoder, writeQuorum).getFuture();
     }
 
 
-    private String decodeKey(String key) throws MemcachedException {
-        try {
-            return this.sanitizeKeys ? URLDecoder.decode(key, "UTF-8") : key;
-        }
-        catch (UnsupportedEncodingException e) {
-            throw new MemcachedException("Unsupport encoding utf-8 when decodeKey", e);
-        }
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setReplicatedAsync(java.lang.String,
+     * int, java.lang.Object, int)
+     */
+    @SuppressWarnings("unchecked")
+    public final OperationFuture<ReplicatedWriteResult> setReplicatedAsync(final String key, final int exp,
+            final Object value, final int writeQuorum) throws MemcachedException {
+        return this.setReplicatedAsync(key, exp, value, this.transcoder, writeQuorum);
     }
 
 
-    private String sanitizeKey(String key) throws MemcachedException {
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setReplicated(java.lang.String,
+     * int, T, net.rubyeye.xmemcached.transcoders.Transcoder, int, long)
+     */
+    public final <T> ReplicatedWriteResult setReplicated(String key, final int exp, final T value,
+            final Transcoder<T> transcoder, final int writeQuorum, final long timeout) throws InterruptedException,
+            MemcachedException {
+        ReplicatedWrite write = this.setReplicated0(key, exp, value, transcoder, writeQuorum);
         try {
-            return this.sanitizeKeys ? URLEncoder.encode(key, "UTF-8") : key;
+            return write.getFuture().get(timeout, TimeUnit.MILLISECONDS);
         }
-        catch (UnsupportedEncodingException e) {
-            throw new MemcachedException("Unsupport encoding utf-8 when sanitizeKey", e);
+        catch (TimeoutException e) {
+            return write.timeout(timeout);
+        }
+        catch (ExecutionException e) {
+            throw new MemcachedException(e.getCause());
         }
     }
 
 
-    public Counter getCounter(String key, long initialValue) {
-        return new Counter(this, key, initialValue);
-    }
-
-
-    public Counter getCounter(String key) {
-        return new Counter(this, key, 0);
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#setReplicated(java.lang.String,
+     * int, java.lang.Object, int)
+     */
+    @SuppressWarnings("unchecked")
+    public final ReplicatedWriteResult setReplicated(final String key, final int exp, final Object value,
+            final int writeQuorum) throws InterruptedException, MemcachedException {
+        return this.setReplicated(key, exp, value, this.transcoder, writeQuorum, this.opTimeout);
     }
 
 
-    /**
-     * @deprecated memcached 1.6.x will remove cachedump stats command,so this
-     *             method will be removed in the future
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getReplicated(java.lang.String,
+     * long, net.rubyeye.xmemcached.transcoders.Transcoder)
      */
     @SuppressWarnings("unchecked")
-    public KeyIterator getKeyIterator(InetSocketAddress address) throws MemcachedException, TimeoutException,
-            InterruptedException {
-        if (address == null) {
-            throw new IllegalArgumentException("null address");
-        }
-        Queue<Session> sessions = this.connector.getSessionByAddress(address);
-        if (sessions == null || sessions.size() == 0) {
-            throw new MemcachedException("The special memcached server has not been connected," + address);
-        }
+    public final <T> T getReplicated(String key, final long timeout, final Transcoder<T> transcoder)
+            throws TimeoutException, InterruptedException, MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        if (this.shutdown) {
+            throw new MemcachedException("Xmemcached is stopped");
+        }
+        List<Session> sessions = this.connector.findReplicaSessionsByKey(key, false);
+        if (sessions.isEmpty()) {
+            throw new MemcachedException("There is no available connection at this moment");
+        }
+        int n = sessions.size();
+        Command[] commands = new Command[n];
+        for (int i = 0; i < n; i++) {
+            commands[i] = this.commandFactory.createGetCommand(key, keyBytes, CommandType.GET_ONE, this.transcoder);
+        }
+        ReplicatedRead read = new ReplicatedRead(commands);
+        for (int i = 0; i < n; i++) {
+            try {
+                this.connector.send(commands[i], sessions.get(i));
+            }
+            catch (MemcachedException e) {
+                read.onFailure(commands[i], e);
+            }
+        }
+        CachedData data;
+        try {
+            try {
+                data = read.getFuture().get(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                if (!read.timeout()) {
+                    throw new TimeoutException("Timed out(" + timeout + ") waiting for replicas");
+                }
+                data = read.getFuture().get();
+            }
+        }
+        catch (ExecutionException e) {
+            throw this.toMemcachedException(e.getCause());
+        }
+        if (read.getStaleCount() > 0 && log.isDebugEnabled()) {
+            log.debug(read.getStaleCount() + " stale replicas of key " + key + " were discarded");
+        }
+        if (data == null) {
+            return null;
+        }
+        try {
+            return decode(transcoder == null ? (Transcoder<T>) this.transcoder : transcoder, data);
+        }
+        finally {
+            data.release();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#getReplicated(java.lang.String)
+     */
+    @SuppressWarnings("unchecked")
+    public final <T> T getReplicated(final String key) throws TimeoutException, InterruptedException,
+            MemcachedException {
+        return this.getReplicated(key, this.opTimeout, (Transcoder<T>) this.transcoder);
+    }
+
+
+    /**
+     * Encode a set command once and send it to all replicas of the key,every
+     * replica command writes a duplicate of the encoded buffer.
+     */
+    private final <T> ReplicatedWrite setReplicated0(String key, final int exp, final T value,
+            final Transcoder<T> transcoder, final int writeQuorum) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        if (writeQuorum <= 0) {
+            throw new IllegalArgumentException("Write quorum must be greater than 0");
+        }
+        if (this.shutdown) {
+            throw new MemcachedException("Xmemcached is stopped");
+        }
+        List<Session> sessions = this.connector.findReplicaSessionsByKey(key, true);
+        if (sessions.isEmpty()) {
+            throw new MemcachedException("There is no available connection at this moment");
+        }
+        int n = sessions.size();
+        Command[] commands = new Command[n];
+        InetSocketAddress[] addresses = new InetSocketAddress[n];
+        for (int i = 0; i < n; i++) {
+            commands[i] = this.commandFactory.createSetCommand(key, keyBytes, exp, value, false, transcoder);
+            addresses[i] = sessions.get(i).getRemoteSocketAddress();
+        }
+        commands[0].setBufferAllocator(this.connector.getBufferAllocator());
+        commands[0].encode();
+        IoBuffer buffer = commands[0].getIoBuffer();
+        for (Command command : commands) {
+            command.setIoBuffer(buffer.duplicate());
+        }
+        ReplicatedWrite write = new ReplicatedWrite(commands, addresses, Math.min(writeQuorum, n), buffer);
+        this.invalidateCaches(commands[0]);
+        for (int i = 0; i < n; i++) {
+            try {
+                this.connector.send(commands[i], sessions.get(i));
+            }
+            catch (MemcachedException e) {
+                write.onFailure(commands[i], e);
+            }
+        }
+        return write;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#addAsync(java.lang.String, int,
+     * T, net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<Boolean> addAsync(String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        return this.sendAsync0(this.commandFactory.createAddCommand(key, keyBytes, exp, value, false, transcoder), true);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#addAsync(java.lang.String, int,
+     * java.lang.Object)
+     */
+    @SuppressWarnings("unchecked")
+    public final OperationFuture<Boolean> addAsync(final String key, final int exp, final Object value)
+            throws MemcachedException {
+        return this.addAsync(key, exp, value, this.transcoder);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#replaceAsync(java.lang.String,
+     * int, T, net.rubyeye.xmemcached.transcoders.Transcoder)
+     */
+    public final <T> OperationFuture<Boolean> replaceAsync(String key, final int exp, final T value,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, exp, value);
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.replaceReplicas(replicas, key, keyBytes, exp, value, false, transcoder);
+        }
+        return this.sendAsync0(this.commandFactory.createReplaceCommand(key, keyBytes, exp, value, false, transcoder),
+            true);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#replaceAsync(java.lang.String,
+     * int, java.lang.Object)
+     */
+    @SuppressWarnings("unchecked")
+    public final OperationFuture<Boolean> replaceAsync(final String key, final int exp, final Object value)
+            throws MemcachedException {
+        return this.replaceAsync(key, exp, value, this.transcoder);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#appendAsync(java.lang.String,
+     * java.lang.Object)
+     */
+    public final OperationFuture<Boolean> appendAsync(String key, final Object value) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, 0, value);
+        return this.sendAsync0(this.commandFactory.createAppendCommand(key, keyBytes, value, false, this.transcoder),
+            true);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#prependAsync(java.lang.String,
+     * java.lang.Object)
+     */
+    public final OperationFuture<Boolean> prependAsync(String key, final Object value) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, 0, value);
+        return this.sendAsync0(this.commandFactory.createPrependCommand(key, keyBytes, value, false, this.transcoder),
+            true);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#casAsync(java.lang.String, int,
+     * T, net.rubyeye.xmemcached.transcoders.Transcoder, long)
+     */
+    public final <T> OperationFuture<Boolean> casAsync(String key, final int exp, final T value,
+            final Transcoder<T> transcoder, final long cas) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        byte[] keyBytes = this.checkStoreArguments(key, 0, value);
+        List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.casReplicas(replicas, key, keyBytes, exp, value, cas, false, transcoder);
+        }
+        return this.sendAsync0(
+            this.commandFactory.createCASCommand(key, keyBytes, exp, value, cas, false, transcoder), true);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#casAsync(java.lang.String, int,
+     * java.lang.Object, long)
+     */
+    @SuppressWarnings("unchecked")
+    public final OperationFuture<Boolean> casAsync(final String key, final int exp, final Object value,
+            final long cas) throws MemcachedException {
+        return this.casAsync(key, exp, value, this.transcoder, cas);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#deleteAsync(java.lang.String)
+     */
+    public final OperationFuture<Boolean> deleteAsync(String key) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        final byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        final Command command = this.commandFactory.createDeleteCommand(key, keyBytes, 0, false);
+        final List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.sendToReplicas(command, replicas, this.newDeleteCopy(key, keyBytes, 0), false);
+        }
+        return this.sendAsync0(command, false);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#touchAsync(java.lang.String,
+     * int)
+     */
+    public final OperationFuture<Boolean> touchAsync(String key, final int exp) throws MemcachedException {
+        key = this.sanitizeKey(key);
+        final byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        final Command command = this.commandFactory.createTouchCommand(key, keyBytes, null, exp, false);
+        final List<Session> replicas = this.findReplicaSessions(key);
+        if (replicas != null) {
+            return this.sendToReplicas(command, replicas, this.newTouchCopy(key, keyBytes, exp), false);
+        }
+        return this.sendAsync0(command, false);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#incrAsync(java.lang.String,
+     * long, long)
+     */
+    public final OperationFuture<Long> incrAsync(final String key, final long delta, final long initValue)
+            throws MemcachedException {
+        return this.incrAsync(key, delta, initValue, 0);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#incrAsync(java.lang.String,
+     * long, long, int)
+     */
+    public final OperationFuture<Long> incrAsync(String key, final long delta, final long initValue, final int exp)
+            throws MemcachedException {
+        key = this.sanitizeKey(key);
+        return this.incrOrDecrAsync0(key, delta, initValue, CommandType.INCR, exp);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#decrAsync(java.lang.String,
+     * long, long)
+     */
+    public final OperationFuture<Long> decrAsync(final String key, final long delta, final long initValue)
+            throws MemcachedException {
+        return this.decrAsync(key, delta, initValue, 0);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see net.rubyeye.xmemcached.MemcachedClient#decrAsync(java.lang.String,
+     * long, long, int)
+     */
+    public final OperationFuture<Long> decrAsync(String key, final long delta, final long initValue, final int exp)
+            throws MemcachedException {
+        key = this.sanitizeKey(key);
+        return this.incrOrDecrAsync0(key, delta, initValue, CommandType.DECR, exp);
+    }
+
+
+    /**
+     * Send a get/gets command,the future is completed with the decoded value
+     * in reactor thread.
+     */
+    private final <T, R> OperationFuture<R> fetchAsync0(final String key, final byte[] keyBytes,
+            final CommandType cmdType, final Transcoder<T> transcoder, final long[] stamps, final long hotStamp)
+            throws MemcachedException {
+        final OperationFuture<R> future = new OperationFuture<R>();
+        final CommandListener listener = new CommandListener() {
+            public void onCommandComplete(Command cmd) {
+                XMemcachedClient.this.completeFetch(future, cmd, cmdType, transcoder, stamps, hotStamp);
+            }
+        };
+        future.setCommand(this.sendFetchCommand(key, keyBytes, cmdType, listener));
+        return future;
+    }
+
+
+    private final Command sendFetchCommand(final String key, final byte[] keyBytes, final CommandType cmdType)
+            throws MemcachedException {
+        return this.sendFetchCommand(key, keyBytes, cmdType, null);
+    }
+
+
+    /**
+     * Send a get/gets command,gets of a replicated key is sent to its primary
+     * replica.
+     * 
+     * @param listener
+     *            set before sending,could be null
+     */
+    private final Command sendFetchCommand(final String key, final byte[] keyBytes, final CommandType cmdType,
+            final CommandListener listener) throws MemcachedException {
+        this.sampleKey(key);
+        final Command command = this.commandFactory.createGetCommand(key, keyBytes, cmdType, this.transcoder);
+        command.setListener(listener);
+        if (cmdType == CommandType.GETS_ONE) {
+            List<Session> replicas = this.findReplicaSessions(key);
+            if (replicas != null) {
+                this.sendCommand(command, selectPrimary(replicas));
+                return command;
+            }
+        }
+        this.sendCommand(command, false);
+        return command;
+    }
+
+
+    /**
+     * Complete future of a get/gets command with the decoded value,and cache
+     * the value in near cache and hot key cache if stamps are taken
+     */
+    @SuppressWarnings("unchecked")
+    private final <T, R> void completeFetch(final OperationFuture<R> future, final Command cmd,
+            final CommandType cmdType, final Transcoder<T> transcoder, final long[] stamps, final long hotStamp) {
+        if (cmd.getIoBuffer() != null) {
+            cmd.getIoBuffer().free(); // free buffer
+        }
+        if (cmd.getException() != null) {
+            future.failure(this.toMemcachedException(cmd.getException()));
+            return;
+        }
+        try {
+            future.setResult((R) this.decodeFetched(cmd, cmdType, transcoder, stamps, hotStamp));
+        }
+        catch (RuntimeException e) {
+            future.failure(e);
+        }
+    }
+
+
+    /**
+     * Decode result of a get/gets command,and cache the value in near cache
+     * and hot key cache if stamps are taken
+     */
+    @SuppressWarnings("unchecked")
+    private final <T> Object decodeFetched(final Command cmd, final CommandType cmdType,
+            final Transcoder<T> transcoder, final long[] stamps, final long hotStamp) {
+        CachedData data = (CachedData) cmd.getResult();
+        if (data == null) {
+            return null;
+        }
+        Transcoder<T> tc = transcoder == null ? (Transcoder<T>) this.transcoder : transcoder;
+        try {
+            final NearCache cache = this.nearCache;
+            if (stamps != null && cache != null) {
+                cache.put(cmd.getKey(), data, stamps);
+            }
+            final HotKeyCache hotKeys = this.hotKeyCache;
+            if (hotKeys != null && cmdType == CommandType.GET_ONE) {
+                hotKeys.put(cmd.getKey(), data, hotStamp);
+            }
+            if (cmdType == CommandType.GETS_ONE) {
+                return new GetsResponse<T>(data.getCas(), decode(tc, data));
+            }
+            else {
+                return decode(tc, data);
+            }
+        }
+        finally {
+            data.release();
+        }
+    }
+
+
+    private final <T> OperationFuture<Map<String, T>> getMultiAsync0(final Collection<String> keys,
+            final CommandType cmdType, final Transcoder<T> transcoder, final long[] stamps, final long hotStamp)
+            throws MemcachedException {
+        final OperationFuture<Map<String, T>> future = new OperationFuture<Map<String, T>>();
+        if (keys == null || keys.size() == 0) {
+            future.setResult(null);
+            return future;
+        }
+        final Collection<List<String>> catalogKeys = this.catalogGetKeys(keys);
+        final List<Command> commands = new ArrayList<Command>(catalogKeys.size());
+        final AtomicInteger remaining = new AtomicInteger(catalogKeys.size());
+        final CommandListener listener = new CommandListener() {
+            public void onCommandComplete(Command cmd) {
+                if (remaining.decrementAndGet() == 0) {
+                    try {
+                        future.setResult(XMemcachedClient.this.reduceResult(cmdType, transcoder, commands, stamps,
+                            hotStamp));
+                    }
+                    catch (MemcachedException e) {
+                        future.failure(e);
+                    }
+                    catch (RuntimeException e) {
+                        future.failure(e);
+                    }
+                }
+            }
+        };
+        future.setCommands(commands);
+        try {
+            for (List<String> catalogKeyCollection : catalogKeys) {
+                final Command command =
+                        this.commandFactory.createGetMultiCommand(catalogKeyCollection, null, cmdType, transcoder);
+                command.setListener(listener);
+                commands.add(command);
+                this.sendCommand(command, false);
+            }
+        }
+        catch (MemcachedException e) {
+            future.cancel(true);
+            throw e;
+        }
+        return future;
+    }
+
+
+    /**
+     * Send get/gets commands of keys grouped by their servers,commands which
+     * were sent are cancelled if one of them could not be sent.
+     */
+    private final <T> List<Command> sendGetMultiCommands(final Collection<String> keys, final CommandType cmdType,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        final Collection<List<String>> catalogKeys = this.catalogGetKeys(keys);
+        if (catalogKeys.size() == 1) {
+            return Collections.singletonList(this.sendGetMultiCommand(catalogKeys.iterator().next(), cmdType,
+                transcoder));
+        }
+        final List<Command> commands = new ArrayList<Command>(catalogKeys.size());
+        try {
+            for (List<String> catalogKeyCollection : catalogKeys) {
+                commands.add(this.sendGetMultiCommand(catalogKeyCollection, cmdType, transcoder));
+            }
+        }
+        catch (MemcachedException e) {
+            for (Command command : commands) {
+                command.cancel();
+            }
+            throw e;
+        }
+        return commands;
+    }
+
+
+    private final <T> Command sendGetMultiCommand(final List<String> keys, final CommandType cmdType,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        final Command command = this.commandFactory.createGetMultiCommand(keys, null, cmdType, transcoder);
+        this.sendCommand(command, false);
+        return command;
+    }
+
+
+    /**
+     * Sanitize and sample keys of a multi get,and group them by their servers
+     */
+    private final Collection<List<String>> catalogGetKeys(final Collection<String> keys) throws MemcachedException {
+        Collection<String> keyCollections = keys;
+        if (this.sanitizeKeys) {
+            keyCollections = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                keyCollections.add(this.sanitizeKey(key));
+            }
+        }
+        this.sampleKeys(keyCollections);
+        if (this.connector.getSessionSet().size() <= 1) {
+            List<String> allKeys =
+                    keyCollections instanceof List ? (List<String>) keyCollections : new ArrayList<String>(
+                        keyCollections);
+            return Collections.singletonList(allKeys);
+        }
+        return this.catalogKeys(keyCollections);
+    }
+
+
+    /**
+     * Send a command whose result is a boolean,such as storage,delete and
+     * touch commands.
+     */
+    private final OperationFuture<Boolean> sendAsync0(final Command command, final boolean isSet)
+            throws MemcachedException {
+        final OperationFuture<Boolean> future = this.newBooleanFuture(command, null);
+        this.sendCommand(command, isSet);
+        return future;
+    }
+
+
+    /**
+     * Create the future of a command whose result is a boolean
+     * 
+     * @param command
+     * @param onStored
+     *            run in reactor thread if the result is true,could be null
+     */
+    private final OperationFuture<Boolean> newBooleanFuture(final Command command, final Runnable onStored) {
+        final OperationFuture<Boolean> future = new OperationFuture<Boolean>();
+        future.setCommand(command);
+        command.setListener(new CommandListener() {
+            public void onCommandComplete(Command cmd) {
+                if (cmd.getIoBuffer() != null) {
+                    cmd.getIoBuffer().free();
+                }
+                if (cmd.getException() != null) {
+                    future.failure(XMemcachedClient.this.toMemcachedException(cmd.getException()));
+                }
+                else if (cmd.getResult() == null) {
+                    future.failure(new MemcachedException("Operation fail,may be caused by networking or timeout"));
+                }
+                else {
+                    future.setResult((Boolean) cmd.getResult());
+                    if (onStored != null && (Boolean) cmd.getResult()) {
+                        onStored.run();
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * Creates noreply copies of a command for other replicas
+     */
+    private interface ReplicaCopy {
+        Command newCopy();
+    }
+
+
+    /**
+     * Returns sessions of all replicas of the key if the session locator is a
+     * ReplicaMemcachedSessionLocator and the key has more than one
+     * replica,else null.
+     */
+    private final List<Session> findReplicaSessions(final String key) {
+        if (!(this.sessionLocator instanceof ReplicaMemcachedSessionLocator)) {
+            return null;
+        }
+        List<Session> sessions = this.connector.findReplicaSessionsByKey(key, false);
+        return sessions.size() > 1 ? sessions : null;
+    }
+
+
+    /**
+     * Returns the first open replica,gets and cas of a replicated key are sent
+     * to it,so cas unique is always from the replica which checks it.
+     */
+    private static Session selectPrimary(final List<Session> replicas) {
+        for (Session session : replicas) {
+            if (!session.isClosed()) {
+                return session;
+            }
+        }
+        return replicas.get(0);
+    }
+
+
+    /**
+     * Send a command to the primary replica,and it's noreply copies to other
+     * replicas concurrently.Copies are pipelined without waiting for
+     * replies,binary protocol uses quiet opcodes for them.
+     * 
+     * @param command
+     * @param replicas
+     * @param copy
+     * @param afterStored
+     *            send copies only if the command stored the value,as cas
+     * @return future of the command,null if it is noreply
+     */
+    private final OperationFuture<Boolean> sendToReplicas(final Command command, final List<Session> replicas,
+            final ReplicaCopy copy, final boolean afterStored) throws MemcachedException {
+        final Session primary = selectPrimary(replicas);
+        OperationFuture<Boolean> future = null;
+        if (afterStored) {
+            if (!command.isNoreply()) {
+                future = this.newBooleanFuture(command, new Runnable() {
+                    public void run() {
+                        XMemcachedClient.this.sendCopies(replicas, primary, copy);
+                    }
+                });
+            }
+            this.sendCommand(command, primary);
+        }
+        else {
+            if (!command.isNoreply()) {
+                future = this.newBooleanFuture(command, null);
+            }
+            this.sendCommand(command, primary);
+            this.sendCopies(replicas, primary, copy);
+        }
+        return future;
+    }
+
+
+    private void sendCopies(final List<Session> replicas, final Session primary, final ReplicaCopy copy) {
+        for (Session session : replicas) {
+            if (session == primary) {
+                continue;
+            }
+            Command command = copy.newCopy();
+            try {
+                this.connector.send(command, session);
+            }
+            catch (MemcachedException e) {
+                log.warn("Send " + command.getCommandType() + " to replica " + session.getRemoteSocketAddress()
+                        + " failed,key=" + command.getKey(), e);
+            }
+        }
+    }
+
+
+    /**
+     * Wait for the future of sendToReplicas
+     */
+    private final boolean waitForReplicas(final OperationFuture<Boolean> future, final long timeout)
+            throws InterruptedException, TimeoutException, MemcachedException {
+        return future == null ? false : this.waitFor(future, timeout);
+    }
+
+
+    private final ReplicaCopy newReplaceCopy(final String key, final byte[] keyBytes, final int exp,
+            final CachedData data) {
+        return new ReplicaCopy() {
+            public Command newCopy() {
+                return XMemcachedClient.this.commandFactory.createReplaceCommand(key, keyBytes, exp, data, true,
+                    ENCODED_TRANSCODER);
+            }
+        };
+    }
+
+
+    private final ReplicaCopy newDeleteCopy(final String key, final byte[] keyBytes, final int time) {
+        return new ReplicaCopy() {
+            public Command newCopy() {
+                return XMemcachedClient.this.commandFactory.createDeleteCommand(key, keyBytes, time, true);
+            }
+        };
+    }
+
+
+    private final ReplicaCopy newTouchCopy(final String key, final byte[] keyBytes, final int exp) {
+        return new ReplicaCopy() {
+            public Command newCopy() {
+                return XMemcachedClient.this.commandFactory.createTouchCommand(key, keyBytes, null, exp, true);
+            }
+        };
+    }
+
+
+    /**
+     * Replace the value on all replicas,it is encoded once for all of them.
+     */
+    @SuppressWarnings("unchecked")
+    private final <T> OperationFuture<Boolean> replaceReplicas(final List<Session> replicas, final String key,
+            final byte[] keyBytes, final int exp, final T value, final boolean noreply, final Transcoder<T> transcoder)
+            throws MemcachedException {
+        final CachedData data = (transcoder == null ? this.transcoder : transcoder).encode(value);
+        return this.sendToReplicas(
+            this.commandFactory.createReplaceCommand(key, keyBytes, exp, data, noreply, ENCODED_TRANSCODER), replicas,
+            this.newReplaceCopy(key, keyBytes, exp, data), false);
+    }
+
+
+    /**
+     * Send cas to the primary replica,the new value is replaced on other
+     * replicas if it is stored.
+     */
+    @SuppressWarnings("unchecked")
+    private final <T> OperationFuture<Boolean> casReplicas(final List<Session> replicas, final String key,
+            final byte[] keyBytes, final int exp, final T value, final long cas, final boolean noreply,
+            final Transcoder<T> transcoder) throws MemcachedException {
+        final CachedData data = (transcoder == null ? this.transcoder : transcoder).encode(value);
+        return this.sendToReplicas(
+            this.commandFactory.createCASCommand(key, keyBytes, exp, data, cas, noreply, ENCODED_TRANSCODER),
+            replicas, this.newReplaceCopy(key, keyBytes, exp, data), true);
+    }
+
+
+    private final OperationFuture<Long> incrOrDecrAsync0(final String key, final long delta, final long initValue,
+            final CommandType cmdType, final int exp) throws MemcachedException {
+        final byte[] keyBytes = ByteUtils.getBytes(key);
+        ByteUtils.checkKey(keyBytes);
+        final OperationFuture<Long> future = new OperationFuture<Long>();
+        this.sendIncrOrDecrAsync0(future, key, keyBytes, delta, initValue, cmdType, exp);
+        return future;
+    }
+
+
+    /**
+     * Send incr/decr command,if the key is not found,add it with initValue and
+     * retry incr/decr when add fails,all without blocking reactor thread.
+     */
+    private final void sendIncrOrDecrAsync0(final OperationFuture<Long> future, final String key,
+            final byte[] keyBytes, final long delta, final long initValue, final CommandType cmdType, final int exp)
+            throws MemcachedException {
+        final Command command =
+                this.commandFactory.createIncrDecrCommand(key, keyBytes, delta, initValue, exp, cmdType, false);
+        future.setCommand(command);
+        command.setListener(new CommandListener() {
+            public void onCommandComplete(Command cmd) {
+                if (cmd.getIoBuffer() != null) {
+                    cmd.getIoBuffer().free();
+                }
+                if (cmd.getException() != null) {
+                    future.failure(XMemcachedClient.this.toMemcachedException(cmd.getException()));
+                    return;
+                }
+                final Object result = cmd.getResult();
+                if (result == null) {
+                    future.failure(new MemcachedException("Operation fail,may be caused by networking or timeout"));
+                }
+                else if (result instanceof String) {
+                    if (((String) result).equals("NOT_FOUND")) {
+                        try {
+                            XMemcachedClient.this.addAfterNotFound(future, key, keyBytes, delta, initValue, cmdType,
+                                exp);
+                        }
+                        catch (MemcachedException e) {
+                            future.failure(e);
+                        }
+                    }
+                    else {
+                        future.failure(new MemcachedException("Unknown result type for incr/decr:"
+                                + result.getClass() + ",result=" + result));
+                    }
+                }
+                else {
+                    future.setResult((Long) result);
+                }
+            }
+        });
+        if (!future.isDone()) {
+            this.sendCommand(command, false);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private final void addAfterNotFound(final OperationFuture<Long> future, final String key, final byte[] keyBytes,
+            final long delta, final long initValue, final CommandType cmdType, final int exp)
+            throws MemcachedException {
+        final Command command =
+                this.commandFactory.createAddCommand(key, keyBytes, exp, String.valueOf(initValue), false,
+                    this.transcoder);
+        future.setCommand(command);
+        command.setListener(new CommandListener() {
+            public void onCommandComplete(Command cmd) {
+                if (cmd.getIoBuffer() != null) {
+                    cmd.getIoBuffer().free();
+                }
+                if (cmd.getException() != null) {
+                    future.failure(XMemcachedClient.this.toMemcachedException(cmd.getException()));
+                }
+                else if (cmd.getResult() == null) {
+                    future.failure(new MemcachedException("Operation fail,may be caused by networking or timeout"));
+                }
+                else if ((Boolean) cmd.getResult()) {
+                    future.setResult(initValue);
+                }
+                else {
+                    try {
+                        XMemcachedClient.this.sendIncrOrDecrAsync0(future, key, keyBytes, delta, initValue, cmdType,
+                            exp);
+                    }
+                    catch (MemcachedException e) {
+                        future.failure(e);
+                    }
+                }
+            }
+        });
+        if (!future.isDone()) {
+            this.sendCommand(command, true);
+        }
+    }
+
+
+    /**
+     * Wait for an asynchronous operation,it will be cancelled if timeout.
+     */
+    private <T> T waitFor(final OperationFuture<T> future, final long timeout) throws InterruptedException,
+            TimeoutException, MemcachedException {
+        try {
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                if (future.cancel(true)) {
+                    throw e;
+                }
+                // completed just now
+                return future.get();
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MemcachedException) {
+                throw (MemcachedException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else {
+                throw new MemcachedException(cause);
+            }
+        }
+        catch (CancellationException e) {
+            throw new MemcachedException("Operation was cancelled");
+        }
+    }
+
+
+    private void latchWait(final Command cmd, final long timeout) throws InterruptedException, TimeoutException {
+        if (!cmd.await(timeout, TimeUnit.MILLISECONDS)) {
+            cmd.cancel();
+            throw new TimeoutException("Timed out(" + timeout + ") waiting for operation");
+        }
+    }
+
+
+    /**
+     * Wait for a group of commands in timeout,all of them are cancelled if
+     * timeout.
+     */
+    private void latchWait(final List<Command> commands, final long timeout) throws InterruptedException,
+            TimeoutException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Command cmd : commands) {
+            if (!cmd.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                for (Command getCmd : commands) {
+                    getCmd.cancel();
+                }
+                throw new TimeoutException("Timed out(" + timeout + ") waiting for operation");
+            }
+        }
+    }
+
+
+    /**
+     * Wait for a command whose result is a boolean,such as storage,delete and
+     * touch commands.
+     */
+    private boolean waitForBoolean(final Command command, final long timeout) throws InterruptedException,
+            TimeoutException, MemcachedException {
+        this.latchWait(command, timeout);
+        command.getIoBuffer().free();
+        this.checkException(command);
+        if (command.getResult() == null) {
+            throw new MemcachedException("Operation fail,may be caused by networking or timeout");
+        }
+        return (Boolean) command.getResult();
+    }
+
+
+    /**
+     * Use getAvailableServers() instead
+     * 
+     * @deprecated
+     * @see MemcachedClient#getAvailableServers()
+     */
+    public final Collection<InetSocketAddress> getAvaliableServers() {
+        return this.getAvailableServers();
+    }
+
+
+    public Collection<InetSocketAddress> getAvailableServers() {
+        Set<Session> sessionSet = this.connector.getSessionSet();
+        Set<InetSocketAddress> result = new HashSet<InetSocketAddress>();
+        for (Session session : sessionSet) {
+            result.add(session.getRemoteSocketAddress());
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+
+    public final int getConnectionSizeBySocketAddress(InetSocketAddress address) {
+        Queue<Session> sessionList = this.connector.getSessionByAddress(address);
+        return sessionList == null ? 0 : sessionList.size();
+    }
+
+
+    public void addStateListener(MemcachedClientStateListener listener) {
+        MemcachedClientStateListenerAdapter adapter = new MemcachedClientStateListenerAdapter(listener, this);
+        this.stateListenerAdapters.add(adapter);
+        this.connector.addStateListener(adapter);
+    }
+
+
+    public Collection<MemcachedClientStateListener> getStateListeners() {
+        final List<MemcachedClientStateListener> result =
+                new ArrayList<MemcachedClientStateListener>(this.stateListenerAdapters.size());
+        for (MemcachedClientStateListenerAdapter adapter : this.stateListenerAdapters) {
+            result.add(adapter.getMemcachedClientStateListener());
+        }
+        return result;
+    }
+
+
+    public void setPrimitiveAsString(boolean primitiveAsString) {
+        this.transcoder.setPrimitiveAsString(primitiveAsString);
+    }
+
+
+    public void removeStateListener(MemcachedClientStateListener listener) {
+        for (MemcachedClientStateListenerAdapter adapter : this.stateListenerAdapters) {
+            if (adapter.getMemcachedClientStateListener().equals(listener)) {
+                this.stateListenerAdapters.remove(adapter);
+                this.connector.removeStateListener(adapter);
+            }
+        }
+    }
+
+
+    public Protocol getProtocol() {
+        return this.commandFactory.getProtocol();
+    }
+
+
+    public boolean isSanitizeKeys() {
+        return this.sanitizeKeys;
+    }
+
+
+    public void setSanitizeKeys(boolean sanitizeKeys) {
+        this.sanitizeKeys = sanitizeKeys;
+    }
+
+
+    public HedgePolicy getHedgePolicy() {
+        return this.hedgePolicy;
+    }
+
+
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+
+    public HotKeySampler getHotKeySampler() {
+        return this.hotKeySampler;
+    }
+
+
+    public synchronized void setHotKeySampler(HotKeySampler hotKeySampler) {
+        if (this.hotKeySampler != hotKeySampler) {
+            this.unregisterMBean(this.hotKeySampler);
+            if (!this.shutdown) {
+                this.registerMBean(hotKeySampler);
+            }
+        }
+        this.hotKeySampler = hotKeySampler;
+        if (this.sessionLocator instanceof ArrayMemcachedSessionLocator) {
+            ((ArrayMemcachedSessionLocator) this.sessionLocator).setHotKeySampler(hotKeySampler);
+        }
+    }
+
+
+    public NearCache getNearCache() {
+        return this.nearCache;
+    }
+
+
+    public void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+
+    public HotKeyCache getHotKeyCache() {
+        return this.hotKeyCache;
+    }
+
+
+    public synchronized void setHotKeyCache(HotKeyCache hotKeyCache) {
+        if (this.hotKeyCache != hotKeyCache) {
+            this.unregisterMBean(this.hotKeyCache);
+            if (!this.shutdown) {
+                this.registerMBean(hotKeyCache);
+            }
+        }
+        this.hotKeyCache = hotKeyCache;
+    }
+
+
+    public boolean isSingleFlight() {
+        return this.singleFlight;
+    }
+
+
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+
+    public long getLoaderTimeout() {
+        return this.loaderTimeout;
+    }
+
+
+    public void setLoaderTimeout(long loaderTimeout) {
+        this.loaderTimeout = loaderTimeout;
+    }
+
+
+    /**
+     * Invalidate key of a write command in near cache and hot key cache
+     * before it is sent
+     */
+    private final void invalidateCaches(final Command cmd) {
+        final NearCache cache = this.nearCache;
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        if (cache == null && hotKeys == null || cmd.getKey() == null) {
+            return;
+        }
+        switch (cmd.getCommandType()) {
+            case SET:
+            case ADD:
+            case REPLACE:
+            case CAS:
+            case TOUCH:
+            case GAT:
+            case GATQ:
+                int exp = 0;
+                if (cmd instanceof TextStoreCommand) {
+                    exp = ((TextStoreCommand) cmd).getExpTime();
+                }
+                else if (cmd instanceof BaseBinaryCommand) {
+                    exp = ((BaseBinaryCommand) cmd).getExpTime();
+                }
+                if (cache != null) {
+                    cache.invalidate(cmd.getKey(), exp);
+                }
+                if (hotKeys != null) {
+                    hotKeys.invalidate(cmd.getKey());
+                }
+                break;
+            case DELETE:
+            case APPEND:
+            case PREPEND:
+            case INCR:
+            case DECR:
+                if (cache != null) {
+                    cache.invalidate(cmd.getKey());
+                }
+                if (hotKeys != null) {
+                    hotKeys.invalidate(cmd.getKey());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Returns stamp of hot key cache,which must be taken before a get is sent
+     */
+    private final long hotKeyStamp() {
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        return hotKeys == null ? HotKeyCache.NO_STAMP : hotKeys.stamp();
+    }
+
+
+    private final void clearCaches() {
+        final NearCache cache = this.nearCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        final HotKeyCache hotKeys = this.hotKeyCache;
+        if (hotKeys != null) {
+            hotKeys.clear();
+        }
+    }
+
+
+    private final void sampleKey(final String key) {
+        final HotKeySampler sampler = this.hotKeySampler;
+        if (sampler != null) {
+            sampler.sample(key);
+        }
+    }
+
+
+    private final void sampleKeys(final Collection<String> keys) {
+        final HotKeySampler sampler = this.hotKeySampler;
+        if (sampler != null) {
+            for (String key : keys) {
+                sampler.sample(key);
+            }
+        }
+    }
+
+
+    private String decodeKey(String key) throws MemcachedException {
+        try {
+            return this.sanitizeKeys ? URLDecoder.decode(key, "UTF-8") : key;
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new MemcachedException("Unsupport encoding utf-8 when decodeKey", e);
+        }
+    }
+
+
+    private String sanitizeKey(String key) throws MemcachedException {
+        try {
+            return this.sanitizeKeys ? URLEncoder.encode(key, "UTF-8") : key;
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new MemcachedException("Unsupport encoding utf-8 when sanitizeKey", e);
+        }
+    }
+
+
+    public Counter getCounter(String key, long initialValue) {
+        return new Counter(this, key, initialValue);
+    }
+
+
+    public Counter getCounter(String key) {
+        return new Counter(this, key, 0);
+    }
+
+
+    /**
+     * @deprecated memcached 1.6.x will remove cachedump stats command,so this
+     *             method will be removed in the future
+     */
+    @SuppressWarnings("unchecked")
+    public KeyIterator getKeyIterator(InetSocketAddress address) throws MemcachedException, TimeoutException,
+            InterruptedException {
+        if (address == null) {
+            throw new IllegalArgumentException("null address");
+        }
+        Queue<Session> sessions = this.connector.getSessionByAddress(address);
+        if (sessions == null || sessions.size() == 0) {
+            throw new MemcachedException("The special memcached server has not been connected," + address);
+        }
         Session session = sessions.peek();
         CountDownLatch latch = new CountDownLatch(1);
         Command command = this.commandFactory.createStatsCommand(session.getRemoteSocketAddress(), latch, "items");
@@ -2708,4 +4589,60 @@ public class XMemcachedClient implements XMemcachedClientMBean, MemcachedClient
         return this.connector != null ? this.connector.getReconnectRequestQueue() : null;
     }
 
+
+    /**
+     * Decode a value read from memcached,a pooled value is decoded from its
+     * buffer if transcoder supports it,else from a copied byte array.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T decode(final Transcoder<T> transcoder, final CachedData data) {
+        if (data.isPooled() && transcoder instanceof ByteBufferTranscoder) {
+            return ((ByteBufferTranscoder<T>) transcoder).decode(data.getFlag(), data.getByteBuffer());
+        }
+        return transcoder.decode(data);
+    }
+
+
+    /**
+     * Transcoder for values which are encoded already,so a value written to
+     * several replicas is encoded once.Decoding returns the raw value,a
+     * pooled one is copied because it is released after decoding.
+     */
+    private static final class EncodedTranscoder implements Transcoder<CachedData> {
+        public CachedData encode(CachedData o) {
+            return o;
+        }
+
+
+        public CachedData decode(CachedData d) {
+            return d.isPooled() ? new CachedData(d.getFlag(), d.getData()) : d;
+        }
+
+
+        public void setPrimitiveAsString(boolean primitiveAsString) {
+        }
+
+
+        public void setPackZeros(boolean packZeros) {
+        }
+
+
+        public void setCompressionThreshold(int to) {
+        }
+
+
+        public boolean isPrimitiveAsString() {
+            return false;
+        }
+
+
+        public boolean isPackZeros() {
+            return false;
+        }
+
+
+        public void setCompressionMode(CompressionMode compressMode) {
+        }
+    }
+
 }
@@ -11,8 +11,12 @@ import java.util.Map;
 import net.rubyeye.xmemcached.auth.AuthInfo;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
 import net.rubyeye.xmemcached.buffer.SimpleBufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.command.TextCommandFactory;
 import net.rubyeye.xmemcached.impl.ArrayMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.WriteQueueController;
+import net.rubyeye.xmemcached.monitor.HotKeyCache;
+import net.rubyeye.xmemcached.monitor.HotKeySampler;
 import net.rubyeye.xmemcached.transcoders.SerializingTranscoder;
 import net.rubyeye.xmemcached.transcoders.Transcoder;
 import net.rubyeye.xmemcached.utils.Protocol;
@@ -55,6 +59,30 @@ public class XMemcachedClientBuilder implements MemcachedClientBuilder {
     
     private boolean sanitizeKeys;
 
+    private int maxQueuedCommandsPerSession;
+
+    private long maxQueuedBytesPerSession;
+
+    private long maxInFlightBytes;
+
+    private WriteQueueOverflowPolicy writeQueueOverflowPolicy = WriteQueueOverflowPolicy.BLOCK;
+
+    private long writeQueueBlockTimeout = MemcachedClient.DEFAULT_OP_TIMEOUT;
+
+    private ValueBufferPool valueBufferPool;
+
+    private HedgePolicy hedgePolicy;
+
+    private HotKeySampler hotKeySampler;
+
+    private NearCache nearCache;
+
+    private HotKeyCache hotKeyCache;
+
+    private boolean singleFlight;
+
+    private long loaderTimeout;
+
 
     public void setSanitizeKeys(boolean sanitizeKeys) {
 		this.sanitizeKeys = sanitizeKeys;
@@ -305,10 +333,148 @@ public class XMemcachedClientBuilder implements MemcachedClientBuilder {
             memcachedClient.setOptimizeGet(false);
         }
         memcachedClient.setSanitizeKeys(sanitizeKeys);
+        WriteQueueController writeQueueController = memcachedClient.getWriteQueueController();
+        writeQueueController.setMaxQueuedCommands(this.maxQueuedCommandsPerSession);
+        writeQueueController.setMaxQueuedBytes(this.maxQueuedBytesPerSession);
+        writeQueueController.setMaxInFlightBytes(this.maxInFlightBytes);
+        writeQueueController.setPolicy(this.writeQueueOverflowPolicy);
+        writeQueueController.setBlockTimeout(this.writeQueueBlockTimeout);
+        if (this.valueBufferPool != null) {
+            memcachedClient.setValueBufferPool(this.valueBufferPool);
+        }
+        memcachedClient.setHedgePolicy(this.hedgePolicy);
+        memcachedClient.setHotKeySampler(this.hotKeySampler);
+        memcachedClient.setNearCache(this.nearCache);
+        memcachedClient.setHotKeyCache(this.hotKeyCache);
+        memcachedClient.setSingleFlight(this.singleFlight);
+        memcachedClient.setLoaderTimeout(this.loaderTimeout);
         return memcachedClient;
     }
 
 
+    public int getMaxQueuedCommandsPerSession() {
+        return this.maxQueuedCommandsPerSession;
+    }
+
+
+    public void setMaxQueuedCommandsPerSession(int maxQueuedCommandsPerSession) {
+        this.maxQueuedCommandsPerSession = maxQueuedCommandsPerSession;
+    }
+
+
+    public long getMaxQueuedBytesPerSession() {
+        return this.maxQueuedBytesPerSession;
+    }
+
+
+    public void setMaxQueuedBytesPerSession(long maxQueuedBytesPerSession) {
+        this.maxQueuedBytesPerSession = maxQueuedBytesPerSession;
+    }
+
+
+    public long getMaxInFlightBytes() {
+        return this.maxInFlightBytes;
+    }
+
+
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+
+    public WriteQueueOverflowPolicy getWriteQueueOverflowPolicy() {
+        return this.writeQueueOverflowPolicy;
+    }
+
+
+    public void setWriteQueueOverflowPolicy(WriteQueueOverflowPolicy writeQueueOverflowPolicy) {
+        if (writeQueueOverflowPolicy == null) {
+            throw new IllegalArgumentException("Null writeQueueOverflowPolicy");
+        }
+        this.writeQueueOverflowPolicy = writeQueueOverflowPolicy;
+    }
+
+
+    public long getWriteQueueBlockTimeout() {
+        return this.writeQueueBlockTimeout;
+    }
+
+
+    public void setWriteQueueBlockTimeout(long writeQueueBlockTimeout) {
+        this.writeQueueBlockTimeout = writeQueueBlockTimeout;
+    }
+
+
+    public ValueBufferPool getValueBufferPool() {
+        return this.valueBufferPool;
+    }
+
+
+    public void setValueBufferPool(ValueBufferPool valueBufferPool) {
+        this.valueBufferPool = valueBufferPool;
+    }
+
+
+    public HedgePolicy getHedgePolicy() {
+        return this.hedgePolicy;
+    }
+
+
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+
+    public HotKeySampler getHotKeySampler() {
+        return this.hotKeySampler;
+    }
+
+
+    public void setHotKeySampler(HotKeySampler hotKeySampler) {
+        this.hotKeySampler = hotKeySampler;
+    }
+
+
+    public NearCache getNearCache() {
+        return this.nearCache;
+    }
+
+
+    public void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+
+    public HotKeyCache getHotKeyCache() {
+        return this.hotKeyCache;
+    }
+
+
+    public void setHotKeyCache(HotKeyCache hotKeyCache) {
+        this.hotKeyCache = hotKeyCache;
+    }
+
+
+    public boolean isSingleFlight() {
+        return this.singleFlight;
+    }
+
+
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+
+    public long getLoaderTimeout() {
+        return this.loaderTimeout;
+    }
+
+
+    public void setLoaderTimeout(long loaderTimeout) {
+        this.loaderTimeout = loaderTimeout;
+    }
+
+
     @SuppressWarnings("unchecked")
     public Transcoder getTranscoder() {
         return this.transcoder;
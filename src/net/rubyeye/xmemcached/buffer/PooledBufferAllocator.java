@@ -0,0 +1,427 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.code.yanf4j.buffer.AbstractIoBuffer;
+
+/**
+ * Size classed direct buffer allocator for command buffers.
+ *
+ * <p>
+ * Buffers are grouped in power of two size classes from 64 bytes to
+ * maxPooledSize.A freed buffer goes to a small cache of the freeing thread
+ * first,then to a shared lock-free pool,so buffers encoded by application
+ * threads and written by reactor threads are still reused.Larger buffers are
+ * allocated from heap and never pooled.
+ * </p>
+ *
+ * <p>
+ * A command buffer is shared by the command's owner and the writer,so it is
+ * returned to pool only after it was freed by IoBuffer.free() and written to
+ * socket,see {@link #writeComplete(com.google.code.yanf4j.buffer.IoBuffer)}
+ * .Buffers never freed are simply collected by GC.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+@SuppressWarnings("deprecation")
+public class PooledBufferAllocator implements BufferAllocator,
+		PooledBufferAllocatorMBean {
+
+	public static final int MIN_SIZE_SHIFT = 6;
+
+	public static final int DEFAULT_MAX_POOLED_SIZE = 1024 * 1024;
+
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024L;
+
+	public static final int DEFAULT_THREAD_CACHE_BYTES = 256 * 1024;
+
+	static final int MAX_THREAD_CACHED_BUFFERS = 32;
+
+	private final int maxPooledSize;
+	private final long maxPooledBytes;
+	private final int threadCacheBytes;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] pools;
+	private final int[] threadCacheCapacities;
+
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache(PooledBufferAllocator.this.threadCacheCapacities);
+		}
+	};
+
+	private final AtomicLong allocateCount = new AtomicLong();
+	private final AtomicLong threadCacheHitCount = new AtomicLong();
+	private final AtomicLong poolHitCount = new AtomicLong();
+	private final AtomicLong unpooledCount = new AtomicLong();
+	private final AtomicLong recycleCount = new AtomicLong();
+	private final AtomicLong discardCount = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	public PooledBufferAllocator() {
+		this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAX_POOLED_BYTES,
+				DEFAULT_THREAD_CACHE_BYTES);
+	}
+
+	@SuppressWarnings("unchecked")
+	public PooledBufferAllocator(int maxPooledSize, long maxPooledBytes,
+			int threadCacheBytes) {
+		if (maxPooledSize < (1 << MIN_SIZE_SHIFT)) {
+			throw new IllegalArgumentException("maxPooledSize is too small:"
+					+ maxPooledSize);
+		}
+		if (maxPooledBytes < 0 || threadCacheBytes < 0) {
+			throw new IllegalArgumentException(
+					"maxPooledBytes and threadCacheBytes must not be negative");
+		}
+		int maxShift = 31 - Integer.numberOfLeadingZeros(maxPooledSize);
+		this.maxPooledSize = 1 << maxShift;
+		this.maxPooledBytes = maxPooledBytes;
+		this.threadCacheBytes = threadCacheBytes;
+		int count = maxShift - MIN_SIZE_SHIFT + 1;
+		this.pools = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[count];
+		this.threadCacheCapacities = new int[count];
+		for (int i = 0; i < count; i++) {
+			this.pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.threadCacheCapacities[i] = Math.min(MAX_THREAD_CACHED_BUFFERS,
+					threadCacheBytes >> (i + MIN_SIZE_SHIFT));
+		}
+	}
+
+	/**
+	 * Allocate a command buffer with exact capacity,position is 0 and limit
+	 * is capacity.
+	 *
+	 * @param capacity
+	 * @return
+	 */
+	public final com.google.code.yanf4j.buffer.IoBuffer allocateIoBuffer(
+			int capacity) {
+		this.allocateCount.incrementAndGet();
+		if (capacity > this.maxPooledSize) {
+			this.unpooledCount.incrementAndGet();
+			return new PooledIoBuffer(this, ByteBuffer.allocate(capacity),
+					null);
+		}
+		int index = indexOf(capacity);
+		ByteBuffer chunk = this.threadCache.get().poll(index);
+		if (chunk != null) {
+			this.threadCacheHitCount.incrementAndGet();
+		} else {
+			chunk = this.pools[index].poll();
+			if (chunk != null) {
+				this.poolHitCount.incrementAndGet();
+				this.pooledBytes.addAndGet(-chunk.capacity());
+			} else {
+				chunk = ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+				this.allocatedBytes.addAndGet(chunk.capacity());
+			}
+		}
+		this.usedBytes.addAndGet(chunk.capacity());
+		chunk.clear();
+		chunk.limit(capacity);
+		return new PooledIoBuffer(this, chunk.slice(), chunk);
+	}
+
+	/**
+	 * Tell allocator that the buffer was written to socket,or copied to
+	 * another buffer,and will never be read by writer.It is returned to pool
+	 * if it was freed too.
+	 *
+	 * @param buffer
+	 */
+	public static final void writeComplete(
+			com.google.code.yanf4j.buffer.IoBuffer buffer) {
+		if (buffer instanceof PooledIoBuffer) {
+			((PooledIoBuffer) buffer).release(PooledIoBuffer.WRITTEN);
+		}
+	}
+
+	private static int indexOf(int capacity) {
+		if (capacity <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1)
+				- MIN_SIZE_SHIFT;
+	}
+
+	final void recycle(ByteBuffer chunk) {
+		int capacity = chunk.capacity();
+		this.usedBytes.addAndGet(-capacity);
+		int index = indexOf(capacity);
+		ThreadCache cache = this.threadCache.get();
+		if (cache.allocating && cache.offer(index, chunk)) {
+			this.recycleCount.incrementAndGet();
+			return;
+		}
+		if (this.pooledBytes.addAndGet(capacity) > this.maxPooledBytes) {
+			this.pooledBytes.addAndGet(-capacity);
+			this.allocatedBytes.addAndGet(-capacity);
+			this.discardCount.incrementAndGet();
+			return;
+		}
+		this.pools[index].offer(chunk);
+		this.recycleCount.incrementAndGet();
+	}
+
+	/**
+	 * Legacy IoBuffer is not pooled,a new direct buffer is allocated each
+	 * time.
+	 */
+	public final IoBuffer allocate(int capacity) {
+		if (capacity == 0) {
+			return SimpleBufferAllocator.EMPTY_IOBUFFER;
+		}
+		return wrap(ByteBuffer.allocateDirect(capacity));
+	}
+
+	public final IoBuffer wrap(ByteBuffer byteBuffer) {
+		return new SimpleIoBuffer(byteBuffer);
+	}
+
+	public void dispose() {
+		for (ConcurrentLinkedQueue<ByteBuffer> pool : this.pools) {
+			ByteBuffer chunk;
+			while ((chunk = pool.poll()) != null) {
+				this.pooledBytes.addAndGet(-chunk.capacity());
+				this.allocatedBytes.addAndGet(-chunk.capacity());
+			}
+		}
+	}
+
+	public long getAllocateCount() {
+		return this.allocateCount.get();
+	}
+
+	public long getThreadCacheHitCount() {
+		return this.threadCacheHitCount.get();
+	}
+
+	public long getPoolHitCount() {
+		return this.poolHitCount.get();
+	}
+
+	public long getUnpooledCount() {
+		return this.unpooledCount.get();
+	}
+
+	public long getRecycleCount() {
+		return this.recycleCount.get();
+	}
+
+	public long getDiscardCount() {
+		return this.discardCount.get();
+	}
+
+	public long getAllocatedBytes() {
+		return this.allocatedBytes.get();
+	}
+
+	public long getUsedBytes() {
+		return this.usedBytes.get();
+	}
+
+	public long getPooledBytes() {
+		return this.pooledBytes.get();
+	}
+
+	public long getMaxPooledBytes() {
+		return this.maxPooledBytes;
+	}
+
+	public int getMaxPooledSize() {
+		return this.maxPooledSize;
+	}
+
+	public int getThreadCacheBytes() {
+		return this.threadCacheBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "PooledBufferAllocator[allocate=" + this.allocateCount.get()
+				+ ",threadCacheHit=" + this.threadCacheHitCount.get()
+				+ ",poolHit=" + this.poolHitCount.get() + ",unpooled="
+				+ this.unpooledCount.get() + ",recycle="
+				+ this.recycleCount.get() + ",discard="
+				+ this.discardCount.get() + ",allocatedBytes="
+				+ this.allocatedBytes.get() + ",usedBytes="
+				+ this.usedBytes.get() + ",pooledBytes="
+				+ this.pooledBytes.get() + "]";
+	}
+
+	/**
+	 * Buffers cached by a thread,only accessed by the owner thread.
+	 */
+	static final class ThreadCache {
+		private final ByteBuffer[][] stacks;
+		private final int[] sizes;
+		/**
+		 * Only threads which allocate buffers keep returned buffers,reactor
+		 * threads return them to shared pool.
+		 */
+		boolean allocating;
+
+		ThreadCache(int[] capacities) {
+			this.stacks = new ByteBuffer[capacities.length][];
+			this.sizes = new int[capacities.length];
+			for (int i = 0; i < capacities.length; i++) {
+				this.stacks[i] = new ByteBuffer[capacities[i]];
+			}
+		}
+
+		ByteBuffer poll(int index) {
+			this.allocating = true;
+			int size = this.sizes[index];
+			if (size == 0) {
+				return null;
+			}
+			ByteBuffer[] stack = this.stacks[index];
+			ByteBuffer result = stack[--size];
+			stack[size] = null;
+			this.sizes[index] = size;
+			return result;
+		}
+
+		boolean offer(int index, ByteBuffer chunk) {
+			ByteBuffer[] stack = this.stacks[index];
+			int size = this.sizes[index];
+			if (size >= stack.length) {
+				return false;
+			}
+			stack[size] = chunk;
+			this.sizes[index] = size + 1;
+			return true;
+		}
+	}
+
+	/**
+	 * IoBuffer backed by a pooled chunk
+	 */
+	static final class PooledIoBuffer extends AbstractIoBuffer {
+		static final int FREED = 1;
+		static final int WRITTEN = 2;
+		private static final int RECYCLABLE = FREED | WRITTEN;
+
+		private static final AtomicIntegerFieldUpdater<PooledIoBuffer> STATE_UPDATER = AtomicIntegerFieldUpdater
+				.newUpdater(PooledIoBuffer.class, "state");
+
+		private final PooledBufferAllocator pool;
+		private ByteBuffer buf;
+		private ByteBuffer chunk;
+		private volatile int state;
+
+		PooledIoBuffer(PooledBufferAllocator pool, ByteBuffer buf,
+				ByteBuffer chunk) {
+			// AbstractIoBuffer sets the global allocator,keep it unchanged
+			super(com.google.code.yanf4j.buffer.IoBuffer.getAllocator(), buf
+					.capacity());
+			this.pool = pool;
+			this.buf = buf;
+			this.chunk = chunk;
+			buf.order(ByteOrder.BIG_ENDIAN);
+		}
+
+		PooledIoBuffer(PooledIoBuffer parent, ByteBuffer buf) {
+			super(parent);
+			this.pool = parent.pool;
+			this.buf = buf;
+		}
+
+		final void release(int flag) {
+			if (isDerived()) {
+				return;
+			}
+			for (;;) {
+				int current = this.state;
+				if ((current & flag) != 0) {
+					return;
+				}
+				if (STATE_UPDATER.compareAndSet(this, current, current | flag)) {
+					if ((current | flag) == RECYCLABLE) {
+						ByteBuffer pooled = this.chunk;
+						this.chunk = null;
+						this.buf = null;
+						if (pooled != null) {
+							this.pool.recycle(pooled);
+						}
+					}
+					return;
+				}
+			}
+		}
+
+		@Override
+		public ByteBuffer buf() {
+			if (this.buf == null) {
+				throw new IllegalStateException("Buffer has been freed already.");
+			}
+			return this.buf;
+		}
+
+		@Override
+		protected void buf(ByteBuffer buf) {
+			// expanded to an unpooled buffer,return the old one at once
+			ByteBuffer pooled = this.chunk;
+			this.chunk = null;
+			this.buf = buf;
+			if (pooled != null) {
+				this.pool.recycle(pooled);
+			}
+		}
+
+		@Override
+		protected com.google.code.yanf4j.buffer.IoBuffer duplicate0() {
+			return new PooledIoBuffer(this, buf().duplicate());
+		}
+
+		@Override
+		protected com.google.code.yanf4j.buffer.IoBuffer slice0() {
+			return new PooledIoBuffer(this, buf().slice());
+		}
+
+		@Override
+		protected com.google.code.yanf4j.buffer.IoBuffer asReadOnlyBuffer0() {
+			return new PooledIoBuffer(this, buf().asReadOnlyBuffer());
+		}
+
+		@Override
+		public byte[] array() {
+			return buf().array();
+		}
+
+		@Override
+		public int arrayOffset() {
+			return buf().arrayOffset();
+		}
+
+		@Override
+		public boolean hasArray() {
+			return buf().hasArray();
+		}
+
+		@Override
+		public void free() {
+			release(FREED);
+		}
+	}
+}
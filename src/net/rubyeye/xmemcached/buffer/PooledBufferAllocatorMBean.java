@@ -0,0 +1,90 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.buffer;
+
+/**
+ * PooledBufferAllocatorMBean,used for monitoring pooled buffers
+ *
+ * @author dennis
+ *
+ */
+public interface PooledBufferAllocatorMBean {
+	/**
+	 * Returns number of buffers allocated by commands
+	 *
+	 * @return
+	 */
+	public long getAllocateCount();
+
+	/**
+	 * Returns number of allocations served by thread cache
+	 *
+	 * @return
+	 */
+	public long getThreadCacheHitCount();
+
+	/**
+	 * Returns number of allocations served by shared pool
+	 *
+	 * @return
+	 */
+	public long getPoolHitCount();
+
+	/**
+	 * Returns number of allocations which were too large to be pooled
+	 *
+	 * @return
+	 */
+	public long getUnpooledCount();
+
+	/**
+	 * Returns number of buffers returned to thread cache or shared pool
+	 *
+	 * @return
+	 */
+	public long getRecycleCount();
+
+	/**
+	 * Returns number of returned buffers dropped because pool was full
+	 *
+	 * @return
+	 */
+	public long getDiscardCount();
+
+	/**
+	 * Returns bytes of direct memory allocated by this allocator
+	 *
+	 * @return
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * Returns bytes of buffers in use,buffers which are never freed are
+	 * counted too
+	 *
+	 * @return
+	 */
+	public long getUsedBytes();
+
+	/**
+	 * Returns bytes of buffers waiting in shared pool
+	 *
+	 * @return
+	 */
+	public long getPooledBytes();
+
+	public long getMaxPooledBytes();
+
+	public int getMaxPooledSize();
+
+	public int getThreadCacheBytes();
+}
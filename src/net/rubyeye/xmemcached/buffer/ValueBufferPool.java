@@ -0,0 +1,189 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of heap buffers used to store large values read from memcached.When a
+ * pool is set to client,get commands copy a value from session's read buffer
+ * into a pooled buffer instead of a new byte array,and the buffer is handed
+ * to ByteBufferTranscoder.decode(int,ByteBuffer) directly.The buffer is
+ * returned to pool when CachedData is released.
+ *
+ * <p>
+ * Buffers are grouped in power of two size classes.Values smaller than
+ * minPooledSize or larger than maxPooledSize are not pooled.A buffer that is
+ * never released is simply collected by GC.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public class ValueBufferPool {
+
+	public static final int DEFAULT_MIN_POOLED_SIZE = 16 * 1024;
+
+	public static final int DEFAULT_MAX_POOLED_SIZE = 1024 * 1024;
+
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 32 * 1024 * 1024L;
+
+	private final int minPooledSize;
+	private final int maxPooledSize;
+	private final long maxRetainedBytes;
+	private final int minShift;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong releaseCount = new AtomicLong();
+	private final AtomicLong discardCount = new AtomicLong();
+
+	public ValueBufferPool() {
+		this(DEFAULT_MIN_POOLED_SIZE, DEFAULT_MAX_POOLED_SIZE,
+				DEFAULT_MAX_RETAINED_BYTES);
+	}
+
+	@SuppressWarnings("unchecked")
+	public ValueBufferPool(int minPooledSize, int maxPooledSize,
+			long maxRetainedBytes) {
+		if (minPooledSize <= 0 || maxPooledSize < minPooledSize) {
+			throw new IllegalArgumentException(
+					"Invalid pooled size range:" + minPooledSize + "-"
+							+ maxPooledSize);
+		}
+		if (maxRetainedBytes < 0) {
+			throw new IllegalArgumentException(
+					"maxRetainedBytes must not be negative");
+		}
+		this.minShift = 32 - Integer.numberOfLeadingZeros(minPooledSize - 1);
+		this.minPooledSize = 1 << this.minShift;
+		this.maxPooledSize = maxPooledSize;
+		this.maxRetainedBytes = maxRetainedBytes;
+		int maxShift = 32 - Integer.numberOfLeadingZeros(maxPooledSize - 1);
+		this.classes = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[maxShift
+				- this.minShift + 1];
+		for (int i = 0; i < this.classes.length; i++) {
+			this.classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * Returns if a value with the given size is stored in pooled buffer
+	 *
+	 * @param size
+	 * @return
+	 */
+	public final boolean isPooled(int size) {
+		return size >= this.minPooledSize && size <= this.maxPooledSize;
+	}
+
+	/**
+	 * Acquire a buffer with position 0 and limit size,returns null if the size
+	 * is not pooled.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public final ByteBuffer acquire(int size) {
+		if (!this.isPooled(size)) {
+			return null;
+		}
+		this.acquireCount.incrementAndGet();
+		int index = this.indexOf(size);
+		ByteBuffer buffer = this.classes[index].poll();
+		if (buffer != null) {
+			this.hitCount.incrementAndGet();
+			this.retainedBytes.addAndGet(-buffer.capacity());
+		} else {
+			buffer = ByteBuffer.allocate(1 << (index + this.minShift));
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer acquired from this pool.The buffer must not be used
+	 * after release.
+	 *
+	 * @param buffer
+	 */
+	public final void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		this.releaseCount.incrementAndGet();
+		int capacity = buffer.capacity();
+		if (Integer.bitCount(capacity) != 1 || capacity < this.minPooledSize
+				|| this.indexOf(capacity) >= this.classes.length) {
+			// not a buffer from this pool
+			this.discardCount.incrementAndGet();
+			return;
+		}
+		if (this.retainedBytes.addAndGet(capacity) > this.maxRetainedBytes) {
+			this.retainedBytes.addAndGet(-capacity);
+			this.discardCount.incrementAndGet();
+			return;
+		}
+		this.classes[this.indexOf(capacity)].offer(buffer);
+	}
+
+	private int indexOf(int size) {
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - this.minShift;
+	}
+
+	public final int getMinPooledSize() {
+		return this.minPooledSize;
+	}
+
+	public final int getMaxPooledSize() {
+		return this.maxPooledSize;
+	}
+
+	public final long getMaxRetainedBytes() {
+		return this.maxRetainedBytes;
+	}
+
+	public final long getRetainedBytes() {
+		return this.retainedBytes.get();
+	}
+
+	public final long getAcquireCount() {
+		return this.acquireCount.get();
+	}
+
+	public final long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	public final long getReleaseCount() {
+		return this.releaseCount.get();
+	}
+
+	public final long getDiscardCount() {
+		return this.discardCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ValueBufferPool[retained=" + this.retainedBytes.get()
+				+ ",acquire=" + this.acquireCount.get() + ",hit="
+				+ this.hitCount.get() + ",release="
+				+ this.releaseCount.get() + ",discard="
+				+ this.discardCount.get() + "]";
+	}
+
+}
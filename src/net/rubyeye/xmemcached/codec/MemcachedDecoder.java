@@ -61,6 +61,7 @@ public class MemcachedDecoder implements Decoder {
 		if (session.getCurrentCommand().decode(session, buffer.buf())) {
 			final Command command = session.getCurrentCommand();
 			session.setCurrentCommand(null);
+			session.commandCompleted(command);
 			return command;
 		}
 		return null;
@@ -58,20 +58,20 @@ public class BinaryCommandFactory implements CommandFactory {
 	public Command createAppendCommand(String key, byte[] keyBytes,
 			Object value, boolean noreply, Transcoder transcoder) {
 		return new BinaryAppendPrependCommand(key, keyBytes,
-				CommandType.APPEND, new CountDownLatch(1), 0, 0, value,
+				CommandType.APPEND, null, 0, 0, value,
 				noreply, transcoder);
 	}
 
 	public Command createCASCommand(String key, byte[] keyBytes, int exp,
 			Object value, long cas, boolean noreply, Transcoder transcoder) {
 		return new BinaryCASCommand(key, keyBytes, CommandType.CAS,
-				new CountDownLatch(1), exp, cas, value, noreply, transcoder);
+				null, exp, cas, value, noreply, transcoder);
 	}
 
 	public Command createDeleteCommand(String key, byte[] keyBytes, int time,
 			boolean noreply) {
 		return new BinaryDeleteCommand(key, keyBytes, CommandType.DELETE,
-				new CountDownLatch(1), noreply);
+				null, noreply);
 	}
 
 	public Command createFlushAllCommand(CountDownLatch latch, int delay,
@@ -81,8 +81,8 @@ public class BinaryCommandFactory implements CommandFactory {
 
 	public Command createGetCommand(String key, byte[] keyBytes,
 			CommandType cmdType, Transcoder transcoder) {
-		return new BinaryGetCommand(key, keyBytes, cmdType, new CountDownLatch(
-				1), OpCode.GET, false);
+		return new BinaryGetCommand(key, keyBytes, cmdType, null,
+				OpCode.GET, false);
 	}
 
 	public <T> Command createGetMultiCommand(Collection<String> keys,
@@ -105,7 +105,7 @@ public class BinaryCommandFactory implements CommandFactory {
 		}
 		// last key,create a get command
 		Command lastCommand = new BinaryGetCommand(key,
-				ByteUtils.getBytes(key), cmdType, new CountDownLatch(1),
+				ByteUtils.getBytes(key), cmdType, null,
 				OpCode.GET_KEY, false);
 		lastCommand.encode();
 		bufferList.add(lastCommand.getIoBuffer());
@@ -131,7 +131,7 @@ public class BinaryCommandFactory implements CommandFactory {
 	public Command createPrependCommand(String key, byte[] keyBytes,
 			Object value, boolean noreply, Transcoder transcoder) {
 		return new BinaryAppendPrependCommand(key, keyBytes,
-				CommandType.PREPEND, new CountDownLatch(1), 0, 0, value,
+				CommandType.PREPEND, null, 0, 0, value,
 				noreply, transcoder);
 	}
 
@@ -145,7 +145,7 @@ public class BinaryCommandFactory implements CommandFactory {
 			Object value, CommandType cmdType, boolean noreply,
 			Transcoder transcoder) {
 		return new BinaryStoreCommand(key, keyBytes, cmdType,
-				new CountDownLatch(1), exp, -1, value, noreply, transcoder);
+				null, exp, -1, value, noreply, transcoder);
 	}
 
 	public Command createSetCommand(String key, byte[] keyBytes, int exp,
@@ -14,7 +14,12 @@ package net.rubyeye.xmemcached.command;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
 import net.rubyeye.xmemcached.exception.MemcachedClientException;
 import net.rubyeye.xmemcached.exception.MemcachedDecodeException;
 import net.rubyeye.xmemcached.exception.MemcachedServerException;
@@ -66,6 +71,34 @@ public abstract class Command implements WriteMessage {
 	protected Transcoder transcoder;
 	protected boolean noreply;
 	protected FutureImpl<Boolean> writeFuture;
+	protected volatile CommandListener listener;
+	@SuppressWarnings("deprecation")
+	protected net.rubyeye.xmemcached.buffer.BufferAllocator bufferAllocator;
+	/**
+	 * Completion state,1 means done.Commands don't need a CountDownLatch to
+	 * wait for response,the latch is only used when it is shared by a group of
+	 * commands.
+	 */
+	private volatile int completed;
+	private volatile Thread waiter;
+	private int queuedBytes;
+	private long sentTime;
+
+	private static final AtomicIntegerFieldUpdater<Command> COMPLETED_UPDATER = AtomicIntegerFieldUpdater
+			.newUpdater(Command.class, "completed");
+	private static final AtomicReferenceFieldUpdater<Command, Thread> WAITER_UPDATER = AtomicReferenceFieldUpdater
+			.newUpdater(Command.class, Thread.class, "waiter");
+
+	/**
+	 * Spin times before parking,spinning is useless on single cpu
+	 */
+	private static final int SPIN_TIMES = Runtime.getRuntime()
+			.availableProcessors() > 1 ? 128 : 0;
+	/**
+	 * Max park time for a waiter which is not the owner of waiter slot
+	 */
+	private static final long MAX_SHARED_PARK_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(200);
 
 	public final byte[] getKeyBytes() {
 		return keyBytes;
@@ -180,11 +213,47 @@ public abstract class Command implements WriteMessage {
 		return ioBuffer;
 	}
 
+	@SuppressWarnings("deprecation")
+	public final net.rubyeye.xmemcached.buffer.BufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+
+	/**
+	 * Set allocator used to allocate buffer in encode
+	 *
+	 * @param bufferAllocator
+	 */
+	@SuppressWarnings("deprecation")
+	public final void setBufferAllocator(
+			net.rubyeye.xmemcached.buffer.BufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+	}
+
+	/**
+	 * Allocate a buffer for encoding,it is allocated from pool if a
+	 * PooledBufferAllocator is set.
+	 *
+	 * @param capacity
+	 * @return
+	 */
+	protected final IoBuffer allocateIoBuffer(int capacity) {
+		if (bufferAllocator instanceof PooledBufferAllocator) {
+			return ((PooledBufferAllocator) bufferAllocator)
+					.allocateIoBuffer(capacity);
+		}
+		return IoBuffer.allocate(capacity);
+	}
+
 	@Override
 	public String toString() {
 		try {
-			return new String(ioBuffer.buf().array(), "utf-8");
+			IoBuffer buffer = ioBuffer;
+			if (buffer != null && buffer.hasArray()) {
+				return new String(buffer.array(), "utf-8");
+			}
 		} catch (UnsupportedEncodingException e) {
+		} catch (IllegalStateException e) {
+			// buffer was freed
 		}
 		return "[error]";
 	}
@@ -204,15 +273,88 @@ public abstract class Command implements WriteMessage {
 		return latch;
 	}
 
+	/**
+	 * Mark this command as done,wake up the waiting thread and notify the
+	 * listener.If a latch is set,it will be counted down too.
+	 */
 	public final void countDownLatch() {
 		if (latch != null) {
 			latch.countDown();
-			if (latch.getCount() == 0) {
-				status = OperationStatus.DONE;
+		}
+		if (COMPLETED_UPDATER.compareAndSet(this, 0, 1)) {
+			status = OperationStatus.DONE;
+			final Thread waiter = this.waiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+			final CommandListener listener = this.listener;
+			if (listener != null) {
+				listener.onCommandComplete(this);
 			}
 		}
 	}
 
+	public final boolean isDone() {
+		return completed == 1;
+	}
+
+	/**
+	 * Wait for this command to be done,spin a while at first and then park
+	 * current thread.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return true if the command is done,false if timeout
+	 * @throws InterruptedException
+	 */
+	public final boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (completed == 1) {
+			return true;
+		}
+		for (int i = 0; i < SPIN_TIMES; i++) {
+			if (completed == 1) {
+				return true;
+			}
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		final Thread current = Thread.currentThread();
+		// Usually only one thread waits for a command,others just park
+		// shortly and check again.
+		final boolean owner = WAITER_UPDATER.compareAndSet(this, null, current);
+		try {
+			while (completed == 0) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(this, owner ? nanos : Math.min(nanos,
+						MAX_SHARED_PARK_NANOS));
+			}
+			return true;
+		} finally {
+			if (owner) {
+				waiter = null;
+			}
+		}
+	}
+
+	public final CommandListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Set the completion listener,it must be set before the command was sent.
+	 * 
+	 * @param listener
+	 */
+	public final void setListener(CommandListener listener) {
+		this.listener = listener;
+	}
+
 	public final CommandType getCommandType() {
 		return commandType;
 	}
@@ -278,6 +420,33 @@ public abstract class Command implements WriteMessage {
 		return errorMsg;
 	}
 
+	/**
+	 * Bytes accounted when the command was put into write queue
+	 * 
+	 * @return
+	 */
+	public final int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	public final void setQueuedBytes(int queuedBytes) {
+		this.queuedBytes = queuedBytes;
+	}
+
+	/**
+	 * System.nanoTime() when the command was written to socket,0 if it is not
+	 * sent yet
+	 * 
+	 * @return
+	 */
+	public final long getSentTime() {
+		return sentTime;
+	}
+
+	public final void setSentTime(long sentTime) {
+		this.sentTime = sentTime;
+	}
+
 	public final boolean isNoreply() {
 		return noreply;
 	}
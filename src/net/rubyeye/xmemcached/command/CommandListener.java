@@ -0,0 +1,29 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.command;
+
+/**
+ * Command completion callback.It is notified exactly once when the command is
+ * done,either by a decoded response or by a session failure.It is called in
+ * reactor thread,so please don't do any operations which may block here.
+ * 
+ * @author dennis
+ * 
+ */
+public interface CommandListener {
+	/**
+	 * Command is done,check command's exception and result.
+	 * 
+	 * @param command
+	 */
+	public void onCommandComplete(Command command);
+}
@@ -49,7 +49,7 @@ public class KestrelCommandFactory implements CommandFactory {
 	public Command createDeleteCommand(String key, byte[] keyBytes, int time,
 			boolean noreply) {
 		return new KestrelDeleteCommand(key, keyBytes, -1,
-				new CountDownLatch(1), noreply);
+				null, noreply);
 	}
 
 	public Command createFlushAllCommand(CountDownLatch latch, int delay,
@@ -60,7 +60,7 @@ public class KestrelCommandFactory implements CommandFactory {
 	public Command createGetCommand(String key, byte[] keyBytes,
 			CommandType cmdType, Transcoder transcoder) {
 		return new KestrelGetCommand(key, keyBytes, cmdType,
-				new CountDownLatch(1), transcoder);
+				null, transcoder);
 	}
 
 	public <T> Command createGetMultiCommand(Collection<String> keys,
@@ -91,7 +91,7 @@ public class KestrelCommandFactory implements CommandFactory {
 	public Command createSetCommand(String key, byte[] keyBytes, int exp,
 			Object value, boolean noreply, Transcoder transcoder) {
 		return new KestrelSetCommand(key, keyBytes, CommandType.SET,
-				new CountDownLatch(1), exp, -1, value, noreply, transcoder);
+				null, exp, -1, value, noreply, transcoder);
 	}
 
 	public Command createStatsCommand(InetSocketAddress server,
@@ -43,7 +43,7 @@ public final class TextCommandFactory implements CommandFactory {
 	public final Command createDeleteCommand(final String key,
 			final byte[] keyBytes, final int time, boolean noreply) {
 		return new TextDeleteCommand(key, keyBytes, time,
-				new CountDownLatch(1), noreply);
+				null, noreply);
 	}
 
 	/*
@@ -106,7 +106,7 @@ public final class TextCommandFactory implements CommandFactory {
 			final byte[] keyBytes, final int exp, final Object value, long cas,
 			boolean noreply, Transcoder transcoder) {
 		return new TextCASCommand(key, keyBytes, CommandType.CAS,
-				new CountDownLatch(1), exp, cas, value, noreply, transcoder);
+				null, exp, cas, value, noreply, transcoder);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -153,8 +153,8 @@ public final class TextCommandFactory implements CommandFactory {
 	final Command createStoreCommand(String key, byte[] keyBytes, int exp,
 			Object value, CommandType cmdType, boolean noreply,
 			Transcoder transcoder) {
-		return new TextStoreCommand(key, keyBytes, cmdType, new CountDownLatch(
-				1), exp, -1, value, noreply, transcoder);
+		return new TextStoreCommand(key, keyBytes, cmdType, null, exp, -1,
+				value, noreply, transcoder);
 	}
 
 	/*
@@ -169,7 +169,7 @@ public final class TextCommandFactory implements CommandFactory {
 			final byte[] keyBytes, final CommandType cmdType,
 			Transcoder transcoder) {
 		return new TextGetOneCommand(key, keyBytes, cmdType,
-				new CountDownLatch(1));
+				null);
 	}
 
 	/*
@@ -206,7 +206,7 @@ public final class TextCommandFactory implements CommandFactory {
 			final byte[] keyBytes, final long amount, long initial,
 			int exptime, CommandType cmdType, boolean noreply) {
 		return new TextIncrDecrCommand(key, keyBytes, cmdType,
-				new CountDownLatch(1), amount, initial, noreply);
+				null, amount, initial, noreply);
 	}
 
 	public Command createAuthListMechanismsCommand(CountDownLatch latch) {
@@ -25,6 +25,7 @@ package net.rubyeye.xmemcached.command.binary;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
 
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.command.CommandType;
 import net.rubyeye.xmemcached.exception.MemcachedDecodeException;
@@ -57,6 +58,10 @@ public abstract class BaseBinaryCommand extends Command {
 	protected ResponseStatus responseStatus;
 	protected int opaque;
 	protected short vbucketId = DEFAULT_VBUCKET_ID;
+	/**
+	 * Pool for values read by this command,null if not pooled
+	 */
+	protected ValueBufferPool valueBufferPool;
 
 	@SuppressWarnings("unchecked")
 	public BaseBinaryCommand(String key, byte[] keyBytes, CommandType cmdType,
@@ -108,6 +113,7 @@ public abstract class BaseBinaryCommand extends Command {
 
 	@Override
 	public boolean decode(MemcachedTCPSession session, ByteBuffer buffer) {
+		this.valueBufferPool = session.getValueBufferPool();
 		while (true) {
 			LABEL: switch (this.decodeStatus) {
 			case NONE:
@@ -335,7 +341,7 @@ public abstract class BaseBinaryCommand extends Command {
 		int length = 24 + getKeyLength() + getValueLength(data)
 				+ getExtrasLength();
 
-		this.ioBuffer = IoBuffer.allocate(length);
+		this.ioBuffer = allocateIoBuffer(length);
 		fillHeader(data);
 		fillExtras(data);
 		fillKey();
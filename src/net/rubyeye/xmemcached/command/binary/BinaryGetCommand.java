@@ -106,8 +106,7 @@ public class BinaryGetCommand extends BaseBinaryCommand implements
 		if (this.responseStatus == ResponseStatus.NO_ERROR) {
 			int valueLength = bodyLength - keyLength - extrasLength;
 			if (valueLength >= 0 && this.responseValue.getCapacity() < 0) {
-				this.responseValue.setCapacity(valueLength);
-				this.responseValue.setData(new byte[valueLength]);
+				this.responseValue.allocate(valueLength, this.valueBufferPool);
 			}
 			int remainingCapacity = this.responseValue.remainingCapacity();
 			int remaining = buffer.remaining();
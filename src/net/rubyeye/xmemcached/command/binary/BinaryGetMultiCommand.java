@@ -102,6 +102,8 @@ public class BinaryGetMultiCommand extends BaseBinaryCommand implements
 				this.mergeCount--;
 				if (command.getAssocCommands() != null) {
 					for (Command assocCommand : command.getAssocCommands()) {
+						// every command releases the value
+						cachedData.retain();
 						assocCommand.setResult(cachedData);
 						assocCommand.countDownLatch();
 						this.mergeCount--;
@@ -158,8 +160,7 @@ public class BinaryGetMultiCommand extends BaseBinaryCommand implements
 			CachedData responseValue = ((Map<String, CachedData>) this.result)
 					.get(this.responseKey);
 			if (valueLength >= 0 && responseValue.getCapacity() < 0) {
-				responseValue.setCapacity(valueLength);
-				responseValue.setData(new byte[valueLength]);
+				responseValue.allocate(valueLength, this.valueBufferPool);
 			}
 			int remainingCapacity = responseValue.remainingCapacity();
 			int remaining = buffer.remaining();
@@ -23,7 +23,6 @@
 package net.rubyeye.xmemcached.command.binary;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.CountDownLatch;
 
 import net.rubyeye.xmemcached.command.CommandType;
 import net.rubyeye.xmemcached.transcoders.CachedData;
@@ -54,7 +53,7 @@ public class BinaryIncrDecrCommand extends BaseBinaryCommand {
 
 	public BinaryIncrDecrCommand(String key, byte[] keyBytes, long amount,
 			long initial, int expTime, CommandType cmdType, boolean noreply) {
-		super(key, keyBytes, cmdType, new CountDownLatch(1), 0, 0, null,
+		super(key, keyBytes, cmdType, null, 0, 0, null,
 				noreply, null);
 		this.amount = amount;
 		this.initial = initial;
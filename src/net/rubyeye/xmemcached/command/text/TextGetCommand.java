@@ -165,9 +165,9 @@ public abstract class TextGetCommand extends Command implements
 				} else {
 					final CachedData cachedData = this.returnValues
 							.get(this.currentReturnKey);
-					cachedData.setCapacity(Integer.parseInt(item));
+					cachedData.allocate(Integer.parseInt(item), session
+							.getValueBufferPool());
 					assert (cachedData.getCapacity() >= 0);
-					cachedData.setData(new byte[cachedData.getCapacity()]);
 					this.parseStatus = ParseStatus.DATA_LEN_DONE;
 					continue;
 				}
@@ -239,6 +239,8 @@ public abstract class TextGetCommand extends Command implements
 						if (command.getAssocCommands() != null) {
 							for (Command assocCommand : command
 									.getAssocCommands()) {
+								// every command releases the value
+								value.retain();
 								assocCommand.setResult(value);
 								assocCommand.countDownLatch();
 								this.mergeCount--;
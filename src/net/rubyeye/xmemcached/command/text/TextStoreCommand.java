@@ -25,6 +25,7 @@ package net.rubyeye.xmemcached.command.text;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
 
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.command.CommandType;
 import net.rubyeye.xmemcached.impl.MemcachedTCPSession;
@@ -161,35 +162,48 @@ public class TextStoreCommand extends Command {
 		if (this.commandType == CommandType.CAS) {
 			size += 1 + ByteUtils.stringSize(this.cas);
 		}
-		byte[] buf;
 		if (isNoreply()) {
-			buf = new byte[size + 8];
-		} else {
-			buf = new byte[size];
+			size += 8;
+		}
+		if (this.bufferAllocator instanceof PooledBufferAllocator) {
+			// encode header into a small array,and copy value into pooled
+			// buffer directly
+			byte[] header = new byte[size - encodedData.length - 2];
+			int length = encodeHeader(header, cmdStr, flag, encodedData.length);
+			IoBuffer buffer = allocateIoBuffer(length + encodedData.length + 2);
+			buffer.put(header, 0, length);
+			buffer.put(encodedData);
+			buffer.put(Constants.CRLF);
+			buffer.flip();
+			this.ioBuffer = buffer;
+			return;
 		}
-		int offset = 0;
+		byte[] buf = new byte[size];
+		int offset = encodeHeader(buf, cmdStr, flag, encodedData.length);
+		ByteUtils.setArguments(buf, offset, encodedData);
+		this.ioBuffer = IoBuffer.wrap(buf);
+	}
+
+	private int encodeHeader(byte[] buf, String cmdStr, int flag,
+			int dataLength) {
 		if (this.commandType == CommandType.CAS) {
 			if (isNoreply()) {
-				offset = ByteUtils.setArguments(buf, offset, cmdStr,
-						this.keyBytes, flag, this.expTime, encodedData.length,
-						this.cas, Constants.NO_REPLY);
+				return ByteUtils.setArguments(buf, 0, cmdStr, this.keyBytes,
+						flag, this.expTime, dataLength, this.cas,
+						Constants.NO_REPLY);
 			} else {
-				offset = ByteUtils.setArguments(buf, offset, cmdStr,
-						this.keyBytes, flag, this.expTime, encodedData.length,
-						this.cas);
+				return ByteUtils.setArguments(buf, 0, cmdStr, this.keyBytes,
+						flag, this.expTime, dataLength, this.cas);
 			}
 		} else {
 			if (isNoreply()) {
-				offset = ByteUtils.setArguments(buf, offset, cmdStr,
-						this.keyBytes, flag, this.expTime, encodedData.length,
-						Constants.NO_REPLY);
+				return ByteUtils.setArguments(buf, 0, cmdStr, this.keyBytes,
+						flag, this.expTime, dataLength, Constants.NO_REPLY);
 			} else {
-				offset = ByteUtils.setArguments(buf, offset, cmdStr,
-						this.keyBytes, flag, this.expTime, encodedData.length);
+				return ByteUtils.setArguments(buf, 0, cmdStr, this.keyBytes,
+						flag, this.expTime, dataLength);
 			}
 		}
-		ByteUtils.setArguments(buf, offset, encodedData);
-		this.ioBuffer = IoBuffer.wrap(buf);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -0,0 +1,158 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.IncrementalMemcachedSessionLocator;
+import net.rubyeye.xmemcached.networking.MemcachedSession;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Base class of consistent hash locators.The ring is an immutable snapshot
+ * which is patched by session changes,and point hashes of servers on the ring
+ * are cached,so sessions of the same server and reconnected sessions are put
+ * to ring without hashing again.Points of a server are dropped only when it
+ * is removed by MemcachedClient#removeServer.
+ *
+ * @author dennis
+ *
+ */
+public abstract class AbstractConsistentHashSessionLocator extends
+		AbstractMemcachedSessionLocator implements
+		IncrementalMemcachedSessionLocator {
+
+	private transient volatile ConsistentHashRing ring = ConsistentHashRing.EMPTY;
+	private final Map<String, long[]> pointsCache = new HashMap<String, long[]>();
+	private final Random random = new Random();
+
+	/**
+	 * Returns hash algorithm of keys
+	 *
+	 * @return
+	 */
+	protected abstract HashAlgorithm getHashAlgorithm();
+
+	/**
+	 * Returns key of session's points in cache,sessions with the same key
+	 * must have the same points.
+	 *
+	 * @param session
+	 * @return
+	 */
+	protected abstract String getPointsKey(Session session);
+
+	/**
+	 * Compute point hashes of session
+	 *
+	 * @param session
+	 * @return
+	 */
+	protected abstract long[] computePoints(Session session);
+
+	public final Session getSessionByKey(final String key, boolean isSet) {
+		ConsistentHashRing ring = this.ring;
+		if (ring.size() == 0) {
+			return null;
+		}
+		long hash = this.getHashAlgorithm().hash(key);
+		Session rv = ring.getSession(hash, this.random);
+		int tries = 0;
+		int maxTries = ring.getSessionCount();
+		while (!this.failureMode && (rv == null || rv.isClosed())
+				&& tries++ < maxTries) {
+			hash = this.nextHash(hash, key, tries);
+			rv = ring.getSession(hash, this.random);
+		}
+		return rv;
+	}
+
+	public final Session getSessionByHash(final long hash) {
+		return this.ring.getSession(hash, this.random);
+	}
+
+	public final long nextHash(long hashVal, String key, int tries) {
+		long tmpKey = this.getHashAlgorithm().hash(tries + key);
+		hashVal += (int) (tmpKey ^ tmpKey >>> 32);
+		hashVal &= 0xffffffffL; /* truncate to 32-bits */
+		return hashVal;
+	}
+
+	public synchronized final void updateSessions(final Collection<Session> list) {
+		Set<Session> previous = this.ring.getSessions();
+		List<Session> added = new ArrayList<Session>(list);
+		this.ring = ConsistentHashRing.EMPTY.update(added, this
+				.getPoints(added), null);
+		this.evictPoints(previous);
+	}
+
+	public synchronized final void updateSessions(
+			final Collection<Session> added, final Collection<Session> removed) {
+		List<Session> addedList = new ArrayList<Session>(added);
+		this.ring = this.ring.update(addedList, this.getPoints(addedList),
+				new HashSet<Session>(removed));
+		this.evictPoints(removed);
+	}
+
+	/**
+	 * Remove points of servers which are removed by
+	 * MemcachedClient#removeServer,that is their sessions left ring and are
+	 * not allowed to reconnect.Points of a disconnected server are kept,so
+	 * it's reconnected sessions are put back to ring without hashing.
+	 *
+	 * @param left
+	 *            sessions which may have left ring
+	 */
+	private void evictPoints(Collection<Session> left) {
+		Set<String> evicted = null;
+		for (Session session : left) {
+			if (session instanceof MemcachedSession
+					&& !((MemcachedSession) session).isAllowReconnect()) {
+				if (evicted == null) {
+					evicted = new HashSet<String>();
+				}
+				evicted.add(this.getPointsKey(session));
+			}
+		}
+		if (evicted == null) {
+			return;
+		}
+		// other sessions of the same server are still on ring
+		for (Session session : this.ring.getSessions()) {
+			evicted.remove(this.getPointsKey(session));
+		}
+		this.pointsCache.keySet().removeAll(evicted);
+	}
+
+	private List<long[]> getPoints(List<Session> sessions) {
+		List<long[]> result = new ArrayList<long[]>(sessions.size());
+		for (Session session : sessions) {
+			String pointsKey = this.getPointsKey(session);
+			long[] points = this.pointsCache.get(pointsKey);
+			if (points == null) {
+				points = this.computePoints(session);
+				this.pointsCache.put(pointsKey, points);
+			}
+			result.add(points);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.networking.MemcachedSession;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Base class of locators which hash keys to servers instead of sessions.All
+ * sessions of a server are grouped to one node,and the less loaded of two
+ * random sessions of the node is used.If the session is closed and client is not in failure
+ * mode,the key is hashed again just like KetamaMemcachedSessionLocator.
+ *
+ * <p>
+ * Nodes are kept in order of servers.A server whose sessions are all removed
+ * keeps it's node with no session until it is reconnected,so keys of other
+ * servers don't move and it's keys are hashed again.Only a server removed by
+ * MemcachedClient#removeServer,which is not allowed to reconnect,loses it's
+ * node.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public abstract class AbstractServerHashSessionLocator extends
+		AbstractMemcachedSessionLocator {
+
+	protected final HashAlgorithm hashAlg;
+	private final Random random = new Random();
+	private volatile int maxTries;
+	private volatile ServerNode[] nodes = new ServerNode[0];
+
+	protected AbstractServerHashSessionLocator(HashAlgorithm hashAlg) {
+		if (hashAlg == null) {
+			throw new IllegalArgumentException("Null hash algorithm");
+		}
+		this.hashAlg = hashAlg;
+	}
+
+	/**
+	 * Rebuild lookup structure with new server nodes
+	 *
+	 * @param nodes
+	 *            server nodes in sessions order
+	 */
+	protected abstract void buildNodes(ServerNode[] nodes);
+
+	/**
+	 * Returns a session by key hash
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public abstract Session getSessionByHash(final long hash);
+
+	public final Session getSessionByKey(final String key, boolean isSet) {
+		long hash = this.hashAlg.hash(key);
+		Session rv = this.getSessionByHash(hash);
+		int tries = 0;
+		while (!this.failureMode && (rv == null || rv.isClosed())
+				&& tries++ < this.maxTries) {
+			hash = this.nextHash(hash, key, tries);
+			rv = this.getSessionByHash(hash);
+		}
+		if (rv == null) {
+			// every try hit a disconnected server
+			rv = this.getSessionOfNextNode(hash);
+		}
+		return rv;
+	}
+
+	private Session getSessionOfNextNode(long hash) {
+		ServerNode[] nodes = this.nodes;
+		if (nodes.length == 0) {
+			return null;
+		}
+		int start = (int) ((hash & Long.MAX_VALUE) % nodes.length);
+		for (int i = 0; i < nodes.length; i++) {
+			Session session = this.selectSession(nodes[(start + i)
+					% nodes.length]);
+			if (session != null) {
+				return session;
+			}
+		}
+		return null;
+	}
+
+	public final long nextHash(long hashVal, String key, int tries) {
+		long tmpKey = this.hashAlg.hash(tries + key);
+		hashVal += (int) (tmpKey ^ tmpKey >>> 32);
+		hashVal &= 0xffffffffL; /* truncate to 32-bits */
+		return hashVal;
+	}
+
+	public synchronized final void updateSessions(final Collection<Session> list) {
+		Map<InetSocketAddress, List<Session>> servers = new LinkedHashMap<InetSocketAddress, List<Session>>();
+		for (Session session : list) {
+			List<Session> sessions = servers.get(session
+					.getRemoteSocketAddress());
+			if (sessions == null) {
+				sessions = new ArrayList<Session>();
+				servers.put(session.getRemoteSocketAddress(), sessions);
+			}
+			sessions.add(session);
+		}
+		List<ServerNode> nodes = new ArrayList<ServerNode>(Math.max(
+				this.nodes.length, servers.size()));
+		for (ServerNode node : this.nodes) {
+			List<Session> sessions = servers.remove(node.address);
+			if (sessions != null) {
+				nodes.add(new ServerNode(node.address, sessions));
+			} else if (node.isReconnectable()) {
+				nodes.add(node.closed());
+			}
+		}
+		for (Map.Entry<InetSocketAddress, List<Session>> entry : servers
+				.entrySet()) {
+			nodes.add(new ServerNode(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(nodes, NODE_ORDER);
+		this.nodes = nodes.toArray(new ServerNode[nodes.size()]);
+		this.buildNodes(this.nodes);
+		this.maxTries = Math.max(list.size(), this.nodes.length);
+	}
+
+	/**
+	 * Returns a session of the node by load
+	 *
+	 * @param node
+	 * @return
+	 */
+	protected final Session selectSession(ServerNode node) {
+		Session[] sessions = node.sessions;
+		if (sessions.length == 0) {
+			return null;
+		}
+		if (sessions.length == 1) {
+			return sessions[0];
+		}
+		return SessionSelector.select(sessions, 0, sessions.length,
+				this.random);
+	}
+
+	public int findSessionNumByKey(final String key) {
+		return 0;
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public int lastIndex() {
+		return 0;
+	}
+
+	private static final Comparator<ServerNode> NODE_ORDER = new Comparator<ServerNode>() {
+		public int compare(ServerNode o1, ServerNode o2) {
+			return o1.order < o2.order ? -1 : o1.order == o2.order ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Sessions of a memcached server
+	 *
+	 * @author dennis
+	 *
+	 */
+	protected static final class ServerNode {
+		final InetSocketAddress address;
+		final String name;
+		final Session[] sessions;
+		final int weight;
+		final int order;
+
+		@SuppressWarnings("deprecation")
+		ServerNode(InetSocketAddress address, List<Session> sessions) {
+			this.address = address;
+			this.name = String.valueOf(address);
+			this.sessions = sessions.toArray(new Session[sessions.size()]);
+			int weight = 1;
+			int order = 0;
+			for (Session session : sessions) {
+				if (session instanceof MemcachedSession) {
+					MemcachedSession memcachedSession = (MemcachedSession) session;
+					weight = memcachedSession.getWeight();
+					order = memcachedSession.getInetSocketAddressWrapper()
+							.getOrder();
+				}
+			}
+			this.weight = weight;
+			this.order = order;
+		}
+
+		private ServerNode(ServerNode node) {
+			this.address = node.address;
+			this.name = node.name;
+			this.sessions = new Session[0];
+			this.weight = node.weight;
+			this.order = node.order;
+		}
+
+		/**
+		 * Returns false if sessions of the server are not allowed to
+		 * reconnect,which means the server is removed
+		 */
+		boolean isReconnectable() {
+			if (this.sessions.length == 0) {
+				return true;
+			}
+			for (Session session : this.sessions) {
+				if (!(session instanceof MemcachedSession)
+						|| ((MemcachedSession) session).isAllowReconnect()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns a node of the same server without sessions
+		 */
+		ServerNode closed() {
+			return new ServerNode(this);
+		}
+
+		/**
+		 * Returns server address,such as "localhost/127.0.0.1:11211"
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * Returns server weight,the weight of it's sessions
+		 */
+		public int getWeight() {
+			return this.weight;
+		}
+	}
+}
@@ -13,6 +13,7 @@ package net.rubyeye.xmemcached.impl;
 
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
@@ -22,44 +23,79 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 
 import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.ReplicaMemcachedSessionLocator;
+import net.rubyeye.xmemcached.monitor.HotKeySampler;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.code.yanf4j.core.Session;
 
 /**
  * Session locator base on hash(key) mod sessions.size().Standard hash strategy
  * 
+ * <p>
+ * If controller is connected,keys in routing table fetched from controller
+ * are located to their replicas.Routing table and sessions are resolved to an
+ * immutable snapshot,which is replaced as a whole when either of them
+ * changes,so lookups never lock.
+ * </p>
+ * 
+ * <p>
+ * If a snapshot file is given,or system property
+ * "xmemcached.routing_table.snapshot" is set,the last routing table is saved
+ * to it and loaded at startup,so keys are routed to their replicas before
+ * controller is reached.Controller only refreshes the table in background.
+ * </p>
+ * 
  * @author dennis
  * 
  */
 public class ArrayMemcachedSessionLocator extends
-		AbstractMemcachedSessionLocator {
+		AbstractMemcachedSessionLocator implements
+		ReplicaMemcachedSessionLocator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ArrayMemcachedSessionLocator.class);
 
 	public static final String ROUND_ROBIN = "round";
 	public static final String RANDOM = "random";
-	
-	private HashAlgorithm hashAlgorighm;
-	private transient volatile List<List<Session>> sessions;
-	
-	/**
-	 * Store key to multiple server mapping
-	 */
-	private volatile ConcurrentHashMap<String, Vector<String>> keyServerMap;
-	
+	public static final String SNAPSHOT_FILE_PROPERTY = "xmemcached.routing_table.snapshot";
+
 	/**
-	 * Store host to session mapping
+	 * Protocol to fetch key to hosts mapping from controller
+	 * 
+	 * @author dennis
+	 * 
 	 */
-	private volatile HashMap<String, List<Session>> hostSessionMap;
+	public enum ControllerProtocol {
+		/**
+		 * Fetch the whole mapping every interval seconds
+		 */
+		POLL,
+		/**
+		 * Fetch changes since local version every interval seconds
+		 */
+		DELTA,
+		/**
+		 * Subscribe changes,controller pushes them to client
+		 */
+		PUSH
+	}
 	
+	private HashAlgorithm hashAlgorighm;
+
 	/**
-	 * Store key to last accessed server mapping
+	 * Routing table and sessions
 	 */
-	private HashMap<String, Integer> keyAccessMap;
+	private transient volatile Snapshot snapshot = new Snapshot(
+			RoutingTable.EMPTY, Collections.<List<Session>> emptyList(),
+			Collections.<String, List<Session>> emptyMap());
 	
 	/**
 	 * Thread to fetch mapping from controller
@@ -69,7 +105,7 @@ public class ArrayMemcachedSessionLocator extends
 	/**
 	 * Last session accessed. aka. Last server accessed!
 	 */
-	private int lastSessionIndex;
+	private volatile int lastSessionIndex;
 	
 	/**
 	 * If start controller
@@ -77,34 +113,62 @@ public class ArrayMemcachedSessionLocator extends
 	private boolean connectController = true;
 	
 	/**
-	 * Policy: random or round robin
+	 * Policy: random or round robin.Random reads the less loaded of two
+	 * random replicas.
 	 */
 	private String policy;
+
+	private boolean roundRobin;
+
+	private boolean random;
+
+	/**
+	 * File to save routing table,null if it is not saved
+	 */
+	private File snapshotFile;
+
+	/**
+	 * Routing table saved last
+	 */
+	private RoutingTable savedTable;
+
+	/**
+	 * Serialize saving routing table,file is written without holding locator
+	 */
+	private final Object saveLock = new Object();
 	
 	public ArrayMemcachedSessionLocator(String controllerHostname, int controllerPort, boolean connectController, String policy, int interval) {
-		this.hashAlgorighm = HashAlgorithm.NATIVE_HASH;
-		this.connectController = connectController;
-		
-		if (connectController) {
-			keyServerMap = new ConcurrentHashMap<String, Vector<String>>();
-			keyAccessMap = new HashMap<String, Integer>();
-			this.policy = policy;
-			
-			mft = new MapFetchThread(keyServerMap, controllerHostname, controllerPort, interval);
-			mft.start();
-		}
+		this(HashAlgorithm.NATIVE_HASH, controllerHostname, controllerPort, connectController, policy, interval);
 	}
 
 	public ArrayMemcachedSessionLocator(HashAlgorithm hashAlgorighm, String controllerHostname, int controllerPort, boolean connectController, String policy, int interval) {
+		this(hashAlgorighm, controllerHostname, controllerPort, connectController, policy, interval, ControllerProtocol.POLL);
+	}
+
+	public ArrayMemcachedSessionLocator(HashAlgorithm hashAlgorighm, String controllerHostname, int controllerPort, boolean connectController, String policy, int interval, ControllerProtocol protocol) {
+		this(hashAlgorighm, controllerHostname, controllerPort, connectController, policy, interval, protocol, System.getProperty(SNAPSHOT_FILE_PROPERTY));
+	}
+
+	/**
+	 * @param snapshotFile
+	 *            file to save routing table and load it at startup,null to
+	 *            disable snapshot
+	 */
+	public ArrayMemcachedSessionLocator(HashAlgorithm hashAlgorighm, String controllerHostname, int controllerPort, boolean connectController, String policy, int interval, ControllerProtocol protocol, String snapshotFile) {
 		this.hashAlgorighm = hashAlgorighm;
 		this.connectController = connectController;
 		
 		if (connectController) {
-			keyServerMap = new ConcurrentHashMap<String, Vector<String>>();
-			keyAccessMap = new HashMap<String, Integer>();
 			this.policy = policy;
+			this.roundRobin = ArrayMemcachedSessionLocator.ROUND_ROBIN.equals(policy);
+			this.random = ArrayMemcachedSessionLocator.RANDOM.equals(policy);
+			
+			if (snapshotFile != null && snapshotFile.length() > 0) {
+				this.snapshotFile = new File(snapshotFile);
+				this.loadRoutingTable();
+			}
 			
-			mft = new MapFetchThread(keyServerMap, controllerHostname, controllerPort, interval);
+			mft = new MapFetchThread(this, controllerHostname, controllerPort, interval, protocol);
 			mft.start();
 		}
 	}
@@ -126,72 +190,31 @@ public class ArrayMemcachedSessionLocator extends
 	 * Else pick session by hashing
 	 */
 	public final Session getSessionByKey(final String key, boolean isSet) {
-		if (this.sessions == null || this.sessions.size() == 0) {
-			return null;
-		}
-		// Copy on read
-		List<List<Session>> sessionList = this.sessions;
+		Snapshot snapshot = this.snapshot;
+		List<List<Session>> sessionList = snapshot.sessions;
 		int size = sessionList.size();
 		if (size == 0) {
 			return null;
 		}
 		
-		if (this.connectController) {
-			Vector<String> hosts = keyServerMap.get(key);
+		if (this.connectController && this.roundRobin) {
+			int replica = snapshot.table.selectReplica(key, true, rand);
 			
 			/**
 			 * Map contains key, get host from map
 			 */
-			if (hosts != null) {
-				//System.out.println("Found key in keyServerMap!");
-				
-				if (this.policy.equals(ArrayMemcachedSessionLocator.RANDOM)) {
-					String hostname = hosts.get(rand.nextInt(hosts.size()));
-					List<Session> sessions = hostSessionMap.get(hostname);
-					lastSessionIndex = sessionList.indexOf(sessions);
-		
-					Session session = getRandomSession(sessions);
-					if (session != null) {
-						return session;
-					}
-				}
-				
-				if (this.policy.equals(ArrayMemcachedSessionLocator.ROUND_ROBIN)) {
-					Integer lastAccessedServer = keyAccessMap.get(key);
-					String hostname = null;
-					
-					if (lastAccessedServer == null) {
-						lastAccessedServer = 0;
-						hostname = hosts.get(0);
-					} else {
-						int nextIndex = (lastAccessedServer + 1) % hosts.size();
-						hostname = hosts.get(nextIndex);
-						lastAccessedServer = nextIndex;
-					}
-					
-					//System.out.println("Selected host is " + hostname);
-					
-					try {
-						Thread.sleep(2);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					
-					List<Session> sessions = hostSessionMap.get(hostname);
-					
-					if (sessions == null) {
-						System.out.println("This shouldn't be null!");
-					}
-					
-					lastSessionIndex = sessionList.indexOf(sessions);
-					
-					Session session = getRandomSession(sessions);
-					if (session != null) {
-						keyAccessMap.put(key, lastAccessedServer);
-						return session;
-					}
+			if (replica >= 0) {
+				lastSessionIndex = snapshot.replicaIndexes[replica];
+				Session session = getRandomSession(snapshot.replicaSessions[replica]);
+				if (session != null) {
+					return session;
 				}
 			}
+		} else if (this.connectController && this.random) {
+			Session session = this.getLeastLoadedReplicaSession(snapshot, key);
+			if (session != null) {
+				return session;
+			}
 		}
 		
 		long start = this.getHash(size, key);
@@ -212,17 +235,87 @@ public class ArrayMemcachedSessionLocator extends
 		return session;
 	}
 
+
+	/**
+	 * Returns the less loaded session of two random replicas in routing
+	 * table,null if key is not in table or no replica has session
+	 */
+	private Session getLeastLoadedReplicaSession(Snapshot snapshot, String key) {
+		long replicas = snapshot.table.lookup(key);
+		int count = ReplicaMap.count(replicas);
+		if (count == 0) {
+			return null;
+		}
+		int start = count == 1 ? 0 : rand.nextInt(count);
+		Session result = null;
+		int resultReplica = -1;
+		for (int i = 0, candidates = 0; i < count && candidates < 2; i++) {
+			int replica = ReplicaMap.replica(replicas, (start + i) % count);
+			if (replica >= snapshot.replicaSessions.length) {
+				continue;
+			}
+			Session session = getRandomSession(snapshot.replicaSessions[replica]);
+			if (session != null) {
+				candidates++;
+				if (SessionSelector.better(result, session) == session) {
+					result = session;
+					resultReplica = replica;
+				}
+			}
+		}
+		if (resultReplica >= 0) {
+			lastSessionIndex = snapshot.replicaIndexes[resultReplica];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a session of every replica in routing table,or the session by
+	 * hashing if key is not in routing table
+	 */
+	public final List<Session> getReplicaSessions(final String key, boolean isSet) {
+		Snapshot snapshot = this.snapshot;
+		List<Session> result = new ArrayList<Session>(3);
+		if (this.connectController) {
+			int[] replicas = snapshot.table.getReplicas(key);
+			if (replicas != null) {
+				for (int replica : replicas) {
+					List<Session> sessions = snapshot.replicaSessions[replica];
+					Session session = getRandomSession(sessions);
+					if (session != null && session.isClosed()) {
+						for (Session candidate : sessions) {
+							if (!candidate.isClosed()) {
+								session = candidate;
+								break;
+							}
+						}
+					}
+					if (session != null) {
+						result.add(session);
+					}
+				}
+			}
+		}
+		if (result.isEmpty()) {
+			Session session = this.getSessionByKey(key, isSet);
+			if (session != null) {
+				result.add(session);
+			}
+		}
+		return result;
+	}
 	
 	public int findSessionNumByKey(final String key) {
-		List<List<Session>> sessionList = this.sessions;
+		List<List<Session>> sessionList = this.snapshot.sessions;
 		int size = sessionList.size();
 		return (int)(this.getHash(size, key));
 	}
 	
+	/**
+	 * Returns a session of the server by load
+	 */
 	private Session getRandomSession(List<Session> sessions) {
-		if (sessions == null || sessions.isEmpty())
-			return null;
-		return sessions.get(rand.nextInt(sessions.size()));
+		return SessionSelector.select(sessions, rand);
 	}
 
 	public final long getNext(int size, long start) {
@@ -233,9 +326,11 @@ public class ArrayMemcachedSessionLocator extends
 		}
 	}
 
-	public final void updateSessions(final Collection<Session> list) {
+	public final synchronized void updateSessions(final Collection<Session> list) {
 		if (list == null || list.isEmpty()) {
-			this.sessions = Collections.emptyList();
+			this.snapshot = new Snapshot(this.snapshot.table,
+					Collections.<List<Session>> emptyList(),
+					Collections.<String, List<Session>> emptyMap());
 			return;
 		}
 		Collection<Session> copySessions = list;
@@ -268,9 +363,7 @@ public class ArrayMemcachedSessionLocator extends
 		List<List<Session>> newSessions = new ArrayList<List<Session>>(
 				tmpList.size() * 2);
 		
-		if (this.connectController) {
-			hostSessionMap = new HashMap<String, List<Session>>();
-		}
+		Map<String, List<Session>> hostSessionMap = new HashMap<String, List<Session>>();
 		
 		for (List<Session> sessions : tmpList) {
 			if (sessions != null && !sessions.isEmpty()) {
@@ -291,15 +384,129 @@ public class ArrayMemcachedSessionLocator extends
 			}
 
 		}
-		this.sessions = newSessions;
+		this.snapshot = new Snapshot(this.snapshot.table, newSessions,
+				hostSessionMap);
+	}
+
+	/**
+	 * Merge key to hosts mapping into routing table
+	 * 
+	 * @param mapping
+	 */
+	public final synchronized void updateRoutingTable(
+			Map<String, List<String>> mapping) {
+		Snapshot current = this.snapshot;
+		RoutingTable table = current.table.merge(mapping);
+		if (table != current.table) {
+			this.snapshot = new Snapshot(table, current.sessions,
+					current.hostSessionMap);
+		}
+	}
+
+	/**
+	 * Apply a versioned block from controller to routing table,stale blocks
+	 * are ignored.
+	 * 
+	 * @param version
+	 *            controller's version of mapping
+	 * @param full
+	 *            whether changed is the whole mapping
+	 * @param changed
+	 *            changed key to hosts mapping
+	 * @param removed
+	 *            removed keys
+	 */
+	public final synchronized void updateRoutingTable(long version,
+			boolean full, Map<String, List<String>> changed,
+			Collection<String> removed) {
+		Snapshot current = this.snapshot;
+		if (!full && version <= current.table.getVersion()) {
+			return;
+		}
+		RoutingTable table = current.table.apply(version, full, changed,
+				removed);
+		if (table == current.table) {
+			return;
+		}
+		this.snapshot = new Snapshot(table, current.sessions,
+				current.hostSessionMap);
+	}
+
+	/**
+	 * Load routing table from snapshot file if it exists,a missing or corrupt
+	 * file leaves the table empty
+	 */
+	private void loadRoutingTable() {
+		if (!this.snapshotFile.isFile()) {
+			return;
+		}
+		try {
+			RoutingTable table = RoutingTable.load(this.snapshotFile);
+			this.savedTable = table;
+			this.snapshot = new Snapshot(table, this.snapshot.sessions,
+					this.snapshot.hostSessionMap);
+			log.info("Loaded routing table of version " + table.getVersion()
+					+ " with " + table.size() + " keys from "
+					+ this.snapshotFile);
+		} catch (IOException e) {
+			log.warn("Error loading routing table from " + this.snapshotFile,
+					e);
+		}
+	}
+
+	/**
+	 * Save routing table to snapshot file if it is changed since saved last.A
+	 * copy of table is taken under lock,and written to file outside of it.
+	 */
+	final void saveRoutingTable() {
+		synchronized (this.saveLock) {
+			RoutingTable table;
+			RoutingTable copy;
+			synchronized (this) {
+				table = this.snapshot.table;
+				if (this.snapshotFile == null || table == this.savedTable) {
+					return;
+				}
+				copy = table.copy();
+			}
+			try {
+				copy.save(this.snapshotFile);
+				this.savedTable = table;
+			} catch (IOException e) {
+				log.error("Error saving routing table to " + this.snapshotFile,
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Returns current routing table
+	 * 
+	 * @return
+	 */
+	public final RoutingTable getRoutingTable() {
+		return this.snapshot.table;
 	}
 
 	/**
-	 * Stop map fetch thread if started
+	 * Set sampler whose hot keys are reported to controller every window of
+	 * it,null to stop reporting
+	 * 
+	 * @param hotKeySampler
+	 */
+	public void setHotKeySampler(HotKeySampler hotKeySampler) {
+		if (this.mft != null) {
+			this.mft.setHotKeySampler(hotKeySampler);
+		}
+	}
+
+	/**
+	 * Stop map fetch thread if started,and save the latest routing table
 	 */
 	public void stop() {
 		if (this.connectController) {
 			mft.halt();
+			this.saveRoutingTable();
 		}
 	}
 
@@ -309,19 +516,92 @@ public class ArrayMemcachedSessionLocator extends
 	public int lastIndex() {
 		return lastSessionIndex;
 	}
+
+	/**
+	 * Routing table with sessions of every replica
+	 * 
+	 * @author dennis
+	 * 
+	 */
+	static final class Snapshot {
+		final RoutingTable table;
+		final List<List<Session>> sessions;
+		final Map<String, List<Session>> hostSessionMap;
+		/**
+		 * Sessions of replica id,null if there is no session of the host
+		 */
+		final List<Session>[] replicaSessions;
+		/**
+		 * Index of replica's sessions in session list,-1 if there is none
+		 */
+		final int[] replicaIndexes;
+
+		@SuppressWarnings("unchecked")
+		Snapshot(RoutingTable table, List<List<Session>> sessions,
+				Map<String, List<Session>> hostSessionMap) {
+			this.table = table;
+			this.sessions = sessions;
+			this.hostSessionMap = hostSessionMap;
+			int hostCount = table.getHostCount();
+			this.replicaSessions = (List<Session>[]) new List<?>[hostCount];
+			this.replicaIndexes = new int[hostCount];
+			for (int i = 0; i < hostCount; i++) {
+				List<Session> replica = hostSessionMap.get(table.getHost(i));
+				this.replicaSessions[i] = replica;
+				this.replicaIndexes[i] = replica == null ? -1 : sessions
+						.indexOf(replica);
+			}
+		}
+	}
 }
 
 /**
- * Thread to pull the map very 5 seconds
+ * Thread to fetch the map from controller.
+ * 
+ * <p>
+ * In POLL mode,"2:\r\n" is sent every interval seconds and the whole
+ * mapping is read back as "key\tip:port,ip:port" lines ended by an empty
+ * line.In DELTA mode,"3:&lt;version&gt;\r\n" is sent every interval seconds
+ * with version of local table,in PUSH mode "4:&lt;version&gt;\r\n" is sent
+ * once and the controller pushes a block whenever mapping changes.Blocks of
+ * DELTA and PUSH mode are:
+ * 
+ * <pre>
+ * VERSION &lt;version&gt; &lt;FULL|DELTA&gt;
+ * key\tip:port,ip:port   (key is set)
+ * key\t                  (key is removed)
+ * (empty line)
+ * </pre>
+ * 
+ * A FULL block replaces the whole table,it is sent when controller can not
+ * tell the changes since client's version.
+ * </p>
+ * 
+ * <p>
+ * If a hot key sampler is set,hot keys are reported every window of it over
+ * the same connection,controller does not reply to it:
+ * 
+ * <pre>
+ * 5:&lt;count&gt;
+ * key\tqps
+ * (empty line)
+ * </pre>
+ * 
+ * </p>
+ * 
  * @author lihao
  *
  */
 class MapFetchThread extends Thread {
+	private static final Logger log = LoggerFactory
+			.getLogger(MapFetchThread.class);
+	static final String VERSION = "VERSION ";
+	static final String FULL = "FULL";
+
 	/**
-	 * Ker server map
-	 * Key --> Server ip list
+	 * Locator which the fetched mapping is merged into
 	 */
-	private ConcurrentHashMap<String, Vector<String>> keyServerMap;
+	private ArrayMemcachedSessionLocator locator;
 	/**
 	 * Controller host name
 	 */
@@ -333,23 +613,53 @@ class MapFetchThread extends Thread {
 	/**
 	 * Should the thread be stopped
 	 */
-	private boolean stop = false;
+	private volatile boolean stop = false;
 	/**
 	 * Interval to pull map
 	 */
 	private int interval = 5;
+	/**
+	 * Protocol to fetch map
+	 */
+	private final ArrayMemcachedSessionLocator.ControllerProtocol protocol;
+	/**
+	 * Connection to controller
+	 */
+	private volatile Socket socket;
+	/**
+	 * Output to controller,requests and reports are written with writeLock
+	 */
+	private volatile DataOutputStream out;
+	private final Object writeLock = new Object();
+	/**
+	 * Sampler whose hot keys are reported
+	 */
+	private volatile HotKeySampler hotKeySampler;
+	private Thread reporter;
+	/**
+	 * Time of last saving routing table
+	 */
+	private long lastSaved;
 	
 	/**
 	 * Constructor
-	 * @param keyServerMap Key server map from DB
+	 * @param locator Locator which the mapping is merged into
 	 * @param controllerHost Controller host name
 	 * @param controllerPort Controller port number
 	 */
-	public MapFetchThread(ConcurrentHashMap<String, Vector<String>> keyServerMap, String controllerHost, int controllerPort, int interval) {
-		this.keyServerMap = keyServerMap;
+	public MapFetchThread(ArrayMemcachedSessionLocator locator, String controllerHost, int controllerPort, int interval) {
+		this(locator, controllerHost, controllerPort, interval, ArrayMemcachedSessionLocator.ControllerProtocol.POLL);
+	}
+
+	public MapFetchThread(ArrayMemcachedSessionLocator locator, String controllerHost, int controllerPort, int interval,
+			ArrayMemcachedSessionLocator.ControllerProtocol protocol) {
+		super("xmemcached-controller-fetcher");
+		this.setDaemon(true);
+		this.locator = locator;
 		this.controllerHost = controllerHost;
 		this.controllerPort = controllerPort;
 		this.interval = interval;
+		this.protocol = protocol;
 	}
 	
 	public void run() {
@@ -357,22 +667,7 @@ class MapFetchThread extends Thread {
 		DataOutputStream dos = null;
 		BufferedReader br = null;
 		
-		try {
-			s = new Socket(controllerHost, controllerPort);
-			br = new BufferedReader(new InputStreamReader(s.getInputStream()));
-			dos = new DataOutputStream(s.getOutputStream());
-		} catch (UnknownHostException e) {
-			System.err.println("Unknowned controller host!");
-			e.printStackTrace();
-			System.exit(1);
-		} catch (IOException e) {
-			System.err.println("IO error connecting to controller!");
-			e.printStackTrace();
-			System.exit(1);
-		}
-		
-		System.out.println("Connected to controler!");
-		
+		// Routing falls back to snapshot or hashing until controller is reached
 		while (!stop) {
 			try {
 				//Try to reconnect to controller!
@@ -380,75 +675,259 @@ class MapFetchThread extends Thread {
 					s = new Socket(controllerHost, controllerPort);
 					br = new BufferedReader(new InputStreamReader(s.getInputStream()));
 					dos = new DataOutputStream(s.getOutputStream());
-					System.out.println("Connected to controller!");
-				}
-				
-				//Send request
-				dos.write("2:\r\n".getBytes());
-				//System.out.println("Request sent to controller!");
-				
-				//Read mapping
-				String line = null;
-				while ((line = br.readLine()) != null) {
-					if (line.equals("")) {
-						break;
-					}
-					String[] tokens = line.split("\t");
-					String[] ips = tokens[1].split(",");
-					
-					Vector<String> IPVector = new Vector<String>();
-					for (String ip : ips) {
-						String[] iphost = ip.split(":");
-						IPVector.add(iphost[0].trim());
-					}
-					
-					keyServerMap.put(tokens[0].trim(), IPVector);
+					this.socket = s;
+					this.out = dos;
+					log.info("Connected to controller " + controllerHost + ":"
+							+ controllerPort);
 				}
-				//System.out.println("Mapping received!");
-				/*System.out.println("This mapping is:");
-				for (String key : keyServerMap.keySet()) {
-					System.out.print(key + ": ");
-					for (String ip : keyServerMap.get(key)) {
-						System.out.print(ip + ",");
-					}
-					System.out.println();
-				}*/
 				
-			} catch (IOException e) {
-				System.err.println("Error in writing to controller!");
-				System.err.println("Try to reconnect to controller in "+ interval + " seconds!");
-				try {
-					s.close();
-				} catch (Exception e1) {
+				switch (this.protocol) {
+				case POLL:
+					this.poll(br, dos);
+					break;
+				case DELTA:
+					this.fetchDelta(br, dos);
+					break;
+				case PUSH:
+					this.subscribe(br, dos);
+					break;
 				}
-				s = null;
 			} catch (Exception e) {
-				System.err.println("Error in writing to controller!");
-				System.err.println("Try to reconnect to controller in " + interval + " seconds!");
-				try {
-					s.close();
-				} catch (IOException e1) {
+				if (stop) {
+					break;
+				}
+				if (e instanceof UnknownHostException) {
+					log.error("Unknown controller host " + controllerHost, e);
+				} else {
+					log.error("Error in communicating with controller,try to reconnect in "
+							+ interval + " seconds", e);
+				}
+				this.out = null;
+				if (s != null) {
+					try {
+						s.close();
+					} catch (Exception e1) {
+					}
 				}
 				s = null;
 			}
 			
 			/**
-			 * Wait for 5 seconds before next fetching request
+			 * Wait for interval seconds before next fetching request
 			 */
 			try {
 				Thread.sleep(interval * 1000);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				break;
 			}
 			
 		}
-		
+		this.closeSocket();
+	}
+
+	/**
+	 * Fetch the whole mapping and merge it,keys are never removed
+	 */
+	private void poll(BufferedReader br, DataOutputStream dos) throws IOException {
+		this.write(dos, "2:\r\n");
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		String line = null;
+		while ((line = br.readLine()) != null) {
+			if (line.length() == 0) {
+				break;
+			}
+			int tab = line.indexOf('\t');
+			List<String> hosts = parseHosts(line, tab + 1);
+			if (!hosts.isEmpty()) {
+				mapping.put(line.substring(0, tab).trim(), hosts);
+			}
+		}
+		if (line == null) {
+			throw new IOException("Connection closed by controller");
+		}
+		locator.updateRoutingTable(mapping);
+		this.saveRoutingTable();
+	}
+
+	/**
+	 * Fetch changes since version of local table
+	 */
+	private void fetchDelta(BufferedReader br, DataOutputStream dos) throws IOException {
+		this.write(dos, "3:" + locator.getRoutingTable().getVersion() + "\r\n");
+		if (!this.readBlock(br)) {
+			throw new IOException("Connection closed by controller");
+		}
+	}
+
+	/**
+	 * Subscribe changes since version of local table,and apply blocks pushed
+	 * by controller until connection is closed
+	 */
+	private void subscribe(BufferedReader br, DataOutputStream dos) throws IOException {
+		this.write(dos, "4:" + locator.getRoutingTable().getVersion() + "\r\n");
+		while (!stop && this.readBlock(br)) {
+		}
+		if (!stop) {
+			throw new IOException("Connection closed by controller");
+		}
+	}
+
+	/**
+	 * Read a versioned block and apply it to locator
+	 * 
+	 * @return false if connection is closed
+	 */
+	private boolean readBlock(BufferedReader br) throws IOException {
+		String line = br.readLine();
+		if (line == null) {
+			return false;
+		}
+		if (!line.startsWith(VERSION)) {
+			throw new IOException("Invalid controller response:" + line);
+		}
+		int space = line.indexOf(' ', VERSION.length());
+		long version = Long.parseLong(line.substring(VERSION.length(), space < 0 ? line.length() : space));
+		boolean full = space > 0 && line.startsWith(FULL, space + 1);
+		Map<String, List<String>> changed = new HashMap<String, List<String>>();
+		List<String> removed = new ArrayList<String>();
+		while ((line = br.readLine()) != null) {
+			if (line.length() == 0) {
+				break;
+			}
+			int tab = line.indexOf('\t');
+			if (tab < 0) {
+				throw new IOException("Invalid controller response:" + line);
+			}
+			String key = line.substring(0, tab).trim();
+			List<String> hosts = parseHosts(line, tab + 1);
+			if (hosts.isEmpty()) {
+				removed.add(key);
+			} else {
+				changed.put(key, hosts);
+			}
+		}
+		if (line == null) {
+			return false;
+		}
+		locator.updateRoutingTable(version, full, changed, removed);
+		this.saveRoutingTable();
+		return true;
+	}
+
+	/**
+	 * Parse "ip:port,ip:port" from offset to host ip list
+	 */
+	static List<String> parseHosts(String line, int offset) {
+		List<String> hosts = new ArrayList<String>(3);
+		int length = line.length();
+		while (offset < length) {
+			int comma = line.indexOf(',', offset);
+			if (comma < 0) {
+				comma = length;
+			}
+			int colon = line.indexOf(':', offset);
+			int end = colon >= 0 && colon < comma ? colon : comma;
+			String host = line.substring(offset, end).trim();
+			if (host.length() > 0) {
+				hosts.add(host);
+			}
+			offset = comma + 1;
+		}
+		return hosts;
+	}
+
+	private void write(DataOutputStream dos, String request) throws IOException {
+		byte[] bytes = request.getBytes();
+		synchronized (this.writeLock) {
+			dos.write(bytes);
+			dos.flush();
+		}
+	}
+
+	/**
+	 * Set sampler whose hot keys are reported,reporter thread is started at
+	 * the first time
+	 */
+	synchronized void setHotKeySampler(HotKeySampler hotKeySampler) {
+		this.hotKeySampler = hotKeySampler;
+		if (hotKeySampler != null && this.reporter == null && !this.stop) {
+			this.reporter = new Thread("xmemcached-hotkey-reporter") {
+				@Override
+				public void run() {
+					MapFetchThread.this.reportHotKeys();
+				}
+			};
+			this.reporter.setDaemon(true);
+			this.reporter.start();
+		}
+	}
+
+	private void reportHotKeys() {
+		while (!this.stop) {
+			HotKeySampler sampler = this.hotKeySampler;
+			try {
+				Thread.sleep(sampler == null ? this.interval * 1000L
+						: sampler.getWindowSeconds() * 1000L);
+			} catch (InterruptedException e) {
+				break;
+			}
+			sampler = this.hotKeySampler;
+			DataOutputStream dos = this.out;
+			if (sampler == null || dos == null) {
+				continue;
+			}
+			Map<String, Long> hotKeys = sampler.getHotKeys();
+			if (hotKeys.isEmpty()) {
+				continue;
+			}
+			StringBuilder report = new StringBuilder();
+			report.append("5:").append(hotKeys.size()).append("\r\n");
+			for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+				report.append(entry.getKey()).append('\t').append(
+						entry.getValue()).append("\r\n");
+			}
+			report.append("\r\n");
+			try {
+				this.write(dos, report.toString());
+			} catch (IOException e) {
+				// fetcher reconnects
+			}
+		}
+	}
+
+	private void closeSocket() {
+		Socket s = this.socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
 	}
 	
+	/**
+	 * Save routing table of locator at most once per interval,the latest
+	 * changes are saved when locator is stopped
+	 */
+	private void saveRoutingTable() {
+		long now = System.currentTimeMillis();
+		if (now - this.lastSaved >= this.interval * 1000L) {
+			this.lastSaved = now;
+			locator.saveRoutingTable();
+		}
+	}
+
 	/**
 	 * Stop thread
 	 */
 	public void halt() {
 		stop = true;
+		this.closeSocket();
+		this.interrupt();
+		synchronized (this) {
+			if (this.reporter != null) {
+				this.reporter.interrupt();
+			}
+		}
 	}
 }
@@ -0,0 +1,139 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rubyeye.xmemcached.command.Command;
+
+import com.google.code.yanf4j.buffer.IoBuffer;
+import com.google.code.yanf4j.core.WriteMessage;
+
+/**
+ * Session write queue which counts queued messages and bytes,so that the
+ * {@link WriteQueueController} could apply limits in O(1).The size of the
+ * underlying LinkedTransferQueue is O(n),never use it here.
+ * 
+ * @author dennis
+ * 
+ */
+public final class BoundedWriteQueue extends AbstractQueue<WriteMessage> {
+
+	private final Queue<WriteMessage> queue;
+	private final WriteQueueController controller;
+	private final AtomicInteger count = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public BoundedWriteQueue(Queue<WriteMessage> queue,
+			WriteQueueController controller) {
+		super();
+		this.queue = queue;
+		this.controller = controller;
+	}
+
+	public boolean offer(WriteMessage message) {
+		final long size = sizeOf(message);
+		if (message instanceof Command) {
+			// remember it,the buffer may be freed before the command leaves
+			// queue
+			((Command) message).setQueuedBytes((int) size);
+		}
+		if (this.queue.offer(message)) {
+			this.count.incrementAndGet();
+			this.bytes.addAndGet(size);
+			this.controller.acquired(size);
+			return true;
+		}
+		return false;
+	}
+
+	public WriteMessage poll() {
+		final WriteMessage message = this.queue.poll();
+		if (message != null) {
+			this.released(message);
+		}
+		return message;
+	}
+
+	public WriteMessage peek() {
+		return this.queue.peek();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (this.queue.remove(o)) {
+			this.released((WriteMessage) o);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.queue.isEmpty();
+	}
+
+	@Override
+	public int size() {
+		final int result = this.count.get();
+		return result < 0 ? 0 : result;
+	}
+
+	/**
+	 * Returns bytes of messages waiting in queue
+	 * 
+	 * @return
+	 */
+	public long getQueuedBytes() {
+		final long result = this.bytes.get();
+		return result < 0 ? 0 : result;
+	}
+
+	/**
+	 * Returns a read-only iterator
+	 */
+	@Override
+	public Iterator<WriteMessage> iterator() {
+		final Iterator<WriteMessage> it = this.queue.iterator();
+		return new Iterator<WriteMessage>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public WriteMessage next() {
+				return it.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private void released(WriteMessage message) {
+		final long size = message instanceof Command ? ((Command) message)
+				.getQueuedBytes() : sizeOf(message);
+		this.count.decrementAndGet();
+		this.bytes.addAndGet(-size);
+		this.controller.released(size);
+	}
+
+	static long sizeOf(WriteMessage message) {
+		final IoBuffer buffer = message.getWriteBuffer();
+		return buffer == null ? 0 : buffer.remaining();
+	}
+
+}
@@ -0,0 +1,213 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Immutable consistent hash ring.Entries are virtual nodes sorted by
+ * hash,hashes[i] is the i-th distinct hash,and it's sessions are
+ * entrySessions[bounds[i]] to entrySessions[bounds[i+1]-1],there are more
+ * than one session only if hashes collide.A changed ring is a new copy,so
+ * readers never lock.
+ *
+ * @author dennis
+ *
+ */
+final class ConsistentHashRing {
+	static final ConsistentHashRing EMPTY = new ConsistentHashRing(
+			new long[0], new Session[0], 0);
+
+	private final long[] entryHashes;
+	private final Session[] entrySessions;
+	private final long[] hashes;
+	private final int[] bounds;
+	private final int sessionCount;
+
+	private ConsistentHashRing(long[] entryHashes, Session[] entrySessions,
+			int sessionCount) {
+		this.entryHashes = entryHashes;
+		this.entrySessions = entrySessions;
+		this.sessionCount = sessionCount;
+		int count = entryHashes.length;
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || entryHashes[i] != entryHashes[i - 1]) {
+				distinct++;
+			}
+		}
+		this.hashes = new long[distinct];
+		this.bounds = new int[distinct + 1];
+		int n = -1;
+		for (int i = 0; i < count; i++) {
+			if (n < 0 || entryHashes[i] != this.hashes[n]) {
+				this.hashes[++n] = entryHashes[i];
+				this.bounds[n] = i;
+			}
+		}
+		this.bounds[distinct] = count;
+	}
+
+	/**
+	 * Returns number of distinct hashes on ring
+	 */
+	int size() {
+		return this.hashes.length;
+	}
+
+	/**
+	 * Returns number of sessions on ring
+	 */
+	int getSessionCount() {
+		return this.sessionCount;
+	}
+
+	/**
+	 * Returns distinct sessions on ring
+	 */
+	Set<Session> getSessions() {
+		return new HashSet<Session>(Arrays.asList(this.entrySessions));
+	}
+
+	/**
+	 * Returns the session of first point whose hash is greater than or equal
+	 * to the hash,a random one is chosen if hashes collide.
+	 */
+	Session getSession(long hash, Random random) {
+		int size = this.hashes.length;
+		if (size == 0) {
+			return null;
+		}
+		int index = this.ceilingIndex(hash);
+		if (index == size) {
+			index = 0;
+		}
+		int from = this.bounds[index];
+		int count = this.bounds[index + 1] - from;
+		if (count == 1) {
+			return this.entrySessions[from];
+		}
+		return SessionSelector.select(this.entrySessions, from, count, random);
+	}
+
+	private int ceilingIndex(long hash) {
+		long[] a = this.hashes;
+		int low = 0;
+		int high = a.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midVal = a[mid];
+			if (midVal < hash) {
+				low = mid + 1;
+			} else if (midVal > hash) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns a new ring without removed sessions and with added
+	 * sessions.Existing entries are merged with new entries,no hash is
+	 * computed again.
+	 *
+	 * @param added
+	 *            sessions to add
+	 * @param addedPoints
+	 *            point hashes of added sessions
+	 * @param removed
+	 *            sessions to remove
+	 * @return
+	 */
+	ConsistentHashRing update(List<Session> added, List<long[]> addedPoints,
+			Set<Session> removed) {
+		// keep entries of other sessions
+		long[] keptHashes = this.entryHashes;
+		Session[] keptSessions = this.entrySessions;
+		int sessionCount = this.sessionCount;
+		if (removed != null && !removed.isEmpty()) {
+			Set<Session> found = new HashSet<Session>();
+			int removedEntries = 0;
+			for (Session session : this.entrySessions) {
+				if (removed.contains(session)) {
+					found.add(session);
+					removedEntries++;
+				}
+			}
+			keptHashes = new long[this.entryHashes.length - removedEntries];
+			keptSessions = new Session[keptHashes.length];
+			int n = 0;
+			for (int i = 0; i < this.entryHashes.length; i++) {
+				Session session = this.entrySessions[i];
+				if (!removed.contains(session)) {
+					keptHashes[n] = this.entryHashes[i];
+					keptSessions[n++] = session;
+				}
+			}
+			sessionCount -= found.size();
+		}
+		// sort new entries by hash,the sort is stable,so new entries with the
+		// same hash keep sessions order.Hashes may be negative,so they are
+		// not packed with session index into one long.
+		int total = 0;
+		for (long[] points : addedPoints) {
+			total += points.length;
+		}
+		final long[] addedHashes = new long[total];
+		int[] addedIndexes = new int[total];
+		Integer[] order = new Integer[total];
+		int n = 0;
+		for (int index = 0; index < addedPoints.size(); index++) {
+			for (long hash : addedPoints.get(index)) {
+				addedHashes[n] = hash;
+				addedIndexes[n] = index;
+				order[n] = n;
+				n++;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				long h1 = addedHashes[o1];
+				long h2 = addedHashes[o2];
+				return h1 < h2 ? -1 : h1 == h2 ? 0 : 1;
+			}
+		});
+		sessionCount += added.size();
+
+		// merge,existing entries go first if hashes are equal
+		int count = keptHashes.length + total;
+		long[] entryHashes = new long[count];
+		Session[] entrySessions = new Session[count];
+		int i = 0, j = 0, k = 0;
+		while (i < keptHashes.length || j < total) {
+			if (j == total
+					|| (i < keptHashes.length && keptHashes[i] <= addedHashes[order[j]])) {
+				entryHashes[k] = keptHashes[i];
+				entrySessions[k++] = keptSessions[i++];
+			} else {
+				int e = order[j++];
+				entryHashes[k] = addedHashes[e];
+				entrySessions[k++] = added.get(addedIndexes[e]);
+			}
+		}
+		return new ConsistentHashRing(entryHashes, entrySessions, sessionCount);
+	}
+}
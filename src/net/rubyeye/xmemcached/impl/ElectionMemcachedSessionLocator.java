@@ -22,9 +22,7 @@
  */
 package net.rubyeye.xmemcached.impl;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
 import net.rubyeye.xmemcached.HashAlgorithm;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
@@ -32,7 +30,18 @@ import net.rubyeye.xmemcached.networking.MemcachedSession;
 import com.google.code.yanf4j.core.Session;
 
 /**
- * Election hash strategy
+ * Election hash strategy,also known as rendezvous hashing.Every session gets
+ * a score for a key,and the session with the highest score wins.
+ * 
+ * <p>
+ * Scores are computed by mixing precomputed seeds of sessions with hash of
+ * key,so a lookup allocates nothing.Scoring.WEIGHTED_RENDEZVOUS scales scores
+ * by weight as weighted rendezvous hashing does.They locate keys differently
+ * from old versions,so they must be chosen by
+ * {@link #ElectionMemcachedSessionLocator(HashAlgorithm, Scoring)}.The other
+ * constructors use Scoring.LEGACY,the string based scores of old
+ * versions,so keys are located as before after upgrading.
+ * </p>
  * 
  * @author dennis
  * 
@@ -40,68 +49,224 @@ import com.google.code.yanf4j.core.Session;
 public class ElectionMemcachedSessionLocator extends
 		AbstractMemcachedSessionLocator {
 
-	private transient volatile List<Session> sessions;
+	public enum Scoring {
+		/**
+		 * Hash of address,replica number and key,compatible with old versions
+		 */
+		LEGACY,
+		/**
+		 * Mix of key hash with one seed per weight unit of a session
+		 */
+		SEEDED,
+		/**
+		 * Weighted rendezvous hashing,score is -weight/ln(mix of key hash and
+		 * session seed)
+		 */
+		WEIGHTED_RENDEZVOUS
+	}
+
+	private transient volatile Candidates candidates = new Candidates(
+			new Session[0], new long[0], new int[0]);
 
 	private final HashAlgorithm hashAlgorithm;
 
+	private final Scoring scoring;
+
 	public ElectionMemcachedSessionLocator() {
-		this.hashAlgorithm = HashAlgorithm.ELECTION_HASH;
+		this(HashAlgorithm.ELECTION_HASH, Scoring.LEGACY);
 	}
 
 	public ElectionMemcachedSessionLocator(HashAlgorithm hashAlgorithm) {
+		this(hashAlgorithm, Scoring.LEGACY);
+	}
+
+	public ElectionMemcachedSessionLocator(HashAlgorithm hashAlgorithm,
+			Scoring scoring) {
 		super();
+		if (hashAlgorithm == null || scoring == null) {
+			throw new IllegalArgumentException(
+					"Null hash algorithm or scoring");
+		}
 		this.hashAlgorithm = hashAlgorithm;
+		this.scoring = scoring;
 	}
 
+	public final Scoring getScoring() {
+		return this.scoring;
+	}
+
+	/**
+	 * Returns the session with highest score,closed sessions are skipped if
+	 * client is not in failure mode.
+	 */
 	public Session getSessionByKey(String key, boolean isSet) {
-		// copy on write
-		List<Session> copySessionList = new ArrayList<Session>(this.sessions);
-		Session result = this.getSessionByElection(key, copySessionList);
-		while (!this.failureMode && (result == null || result.isClosed())
-				&& copySessionList.size() > 0) {
-			copySessionList.remove(result);
-			result = this.getSessionByElection(key, copySessionList);
+		Candidates candidates = this.candidates;
+		switch (this.scoring) {
+		case LEGACY:
+			return this.getSessionByLegacyElection(key, candidates.sessions);
+		case WEIGHTED_RENDEZVOUS:
+			return this.getSessionByWeightedElection(this.hashAlgorithm
+					.hash(key), candidates);
+		default:
+			return this.getSessionBySeededElection(this.hashAlgorithm
+					.hash(key), candidates);
 		}
-		return result;
 	}
 
 	public int findSessionNumByKey(final String key) {
 		return 0;
 	}
-	
-	private Session getSessionByElection(String key,
-			List<Session> copySessionList) {
+
+	private Session getSessionBySeededElection(long keyHash,
+			Candidates candidates) {
+		long[] seeds = candidates.seeds;
+		int[] owners = candidates.owners;
 		Session result = null;
-		long highScore = 0;
-		for (Session session : copySessionList) {
-			long hash = 0;
-			if (session instanceof MemcachedTCPSession) {
-				MemcachedSession tcpSession = (MemcachedSession) session;
-				for (int i = 0; i < tcpSession.getWeight(); i++) {
-					hash = this.hashAlgorithm.hash(session
-							.getRemoteSocketAddress().toString()
-							+ "-" + i + key);
-					if (hash > highScore) {
-						highScore = hash;
-						result = session;
-					}
+		long highScore = -1;
+		Session openResult = null;
+		long openHighScore = -1;
+		for (int i = 0; i < seeds.length; i++) {
+			long score = mix(seeds[i] ^ keyHash) >>> 1;
+			if (score > highScore) {
+				highScore = score;
+				result = candidates.sessions[owners[i]];
+			}
+			if (score > openHighScore) {
+				Session session = candidates.sessions[owners[i]];
+				if (!session.isClosed()) {
+					openHighScore = score;
+					openResult = session;
 				}
-			} else {
-				hash = this.hashAlgorithm.hash(session.getRemoteSocketAddress()
-						.toString()
-						+ key);
+			}
+		}
+		return this.failureMode ? result : openResult;
+	}
 
+	private Session getSessionByWeightedElection(long keyHash,
+			Candidates candidates) {
+		long[] seeds = candidates.seeds;
+		Session result = null;
+		double highScore = Double.NEGATIVE_INFINITY;
+		Session openResult = null;
+		double openHighScore = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < seeds.length; i++) {
+			Session session = candidates.sessions[i];
+			int weight = getWeight(session);
+			if (weight <= 0) {
+				continue;
+			}
+			// uniform in (0,1)
+			double u = ((mix(seeds[i] ^ keyHash) >>> 11) + 0.5)
+					/ (double) (1L << 53);
+			double score = -weight / Math.log(u);
+			if (score > highScore) {
+				highScore = score;
+				result = session;
 			}
-			if (hash > highScore) {
-				highScore = hash;
+			if (score > openHighScore && !session.isClosed()) {
+				openHighScore = score;
+				openResult = session;
+			}
+		}
+		return this.failureMode ? result : openResult;
+	}
+
+	private Session getSessionByLegacyElection(String key, Session[] sessions) {
+		Session result = null;
+		long highScore = 0;
+		Session openResult = null;
+		long openHighScore = 0;
+		for (Session session : sessions) {
+			long score = this.getLegacyScore(key, session);
+			if (score > highScore) {
+				highScore = score;
 				result = session;
 			}
+			if (score > openHighScore && !session.isClosed()) {
+				openHighScore = score;
+				openResult = session;
+			}
+		}
+		return this.failureMode ? result : openResult;
+	}
+
+	private long getLegacyScore(String key, Session session) {
+		long highScore = 0;
+		long hash = 0;
+		if (session instanceof MemcachedTCPSession) {
+			MemcachedSession tcpSession = (MemcachedSession) session;
+			for (int i = 0; i < tcpSession.getWeight(); i++) {
+				hash = this.hashAlgorithm.hash(session.getRemoteSocketAddress()
+						.toString()
+						+ "-" + i + key);
+				if (hash > highScore) {
+					highScore = hash;
+				}
+			}
+		} else {
+			hash = this.hashAlgorithm.hash(session.getRemoteSocketAddress()
+					.toString()
+					+ key);
 		}
-		return result;
+		if (hash > highScore) {
+			highScore = hash;
+		}
+		return highScore;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static int getWeight(Session session) {
+		if (session instanceof MemcachedTCPSession) {
+			return ((MemcachedSession) session).getWeight();
+		}
+		return 1;
+	}
+
+	/**
+	 * Murmur3 finalizer
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static long seed(String str) {
+		byte[] digest = HashAlgorithm.computeMd5(str);
+		long rv = 0;
+		for (int i = 0; i < 8; i++) {
+			rv = rv << 8 | digest[i] & 0xFF;
+		}
+		return rv;
 	}
 
 	public void updateSessions(Collection<Session> list) {
-		this.sessions = new ArrayList<Session>(list);
+		Session[] sessions = list.toArray(new Session[list.size()]);
+		int count = 0;
+		for (Session session : sessions) {
+			count += this.scoring == Scoring.SEEDED ? Math.max(
+					getWeight(session), 0) : 1;
+		}
+		long[] seeds = new long[count];
+		int[] owners = new int[count];
+		int n = 0;
+		for (int i = 0; i < sessions.length; i++) {
+			String address = String.valueOf(sessions[i]
+					.getRemoteSocketAddress());
+			if (this.scoring == Scoring.SEEDED) {
+				for (int w = 0; w < getWeight(sessions[i]); w++) {
+					seeds[n] = seed(address + "-" + w);
+					owners[n++] = i;
+				}
+			} else {
+				seeds[n] = seed(address);
+				owners[n++] = i;
+			}
+		}
+		this.candidates = new Candidates(sessions, seeds, owners);
 	}
 
 	@Override
@@ -116,4 +281,19 @@ public class ElectionMemcachedSessionLocator extends
 		return 0;
 	}
 
+	/**
+	 * Sessions and their seeds,seeds[i] belongs to sessions[owners[i]]
+	 */
+	static final class Candidates {
+		final Session[] sessions;
+		final long[] seeds;
+		final int[] owners;
+
+		Candidates(Session[] sessions, long[] seeds, int[] owners) {
+			this.sessions = sessions;
+			this.seeds = seeds;
+			this.owners = owners;
+		}
+	}
+
 }
@@ -0,0 +1,90 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Jump consistent hash locator,see "A Fast, Minimal Memory, Consistent Hash
+ * Algorithm" by John Lamping and Eric Veach.
+ *
+ * <p>
+ * It needs no memory but a bucket array,and keys are spread almost evenly.A
+ * server of weight N has N buckets.Keys only move to a new bucket when buckets
+ * are appended,so it fits best for clusters which add servers to the end of
+ * server list.A disconnected server keeps it's buckets and it's keys are
+ * hashed again to other servers,but removing a server in the middle by
+ * removeServer moves keys of the servers after it.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public class JumpHashMemcachedSessionLocator extends
+		AbstractServerHashSessionLocator {
+
+	private volatile ServerNode[] buckets = new ServerNode[0];
+
+	public JumpHashMemcachedSessionLocator() {
+		this(HashAlgorithm.KETAMA_HASH);
+	}
+
+	public JumpHashMemcachedSessionLocator(HashAlgorithm hashAlg) {
+		super(hashAlg);
+	}
+
+	@Override
+	protected void buildNodes(ServerNode[] nodes) {
+		int count = 0;
+		for (ServerNode node : nodes) {
+			count += Math.max(node.weight, 0);
+		}
+		ServerNode[] buckets = new ServerNode[count];
+		int i = 0;
+		for (ServerNode node : nodes) {
+			for (int w = 0; w < node.weight; w++) {
+				buckets[i++] = node;
+			}
+		}
+		this.buckets = buckets;
+	}
+
+	@Override
+	public final Session getSessionByHash(final long hash) {
+		ServerNode[] buckets = this.buckets;
+		if (buckets.length == 0) {
+			return null;
+		}
+		return this.selectSession(buckets[jumpConsistentHash(hash,
+				buckets.length)]);
+	}
+
+	/**
+	 * Returns bucket of key in [0,buckets)
+	 *
+	 * @param key
+	 * @param buckets
+	 * @return
+	 */
+	public static final int jumpConsistentHash(long key, int buckets) {
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+}
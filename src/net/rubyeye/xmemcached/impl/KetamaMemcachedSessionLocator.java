@@ -11,12 +11,7 @@
  */
 package net.rubyeye.xmemcached.impl;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.Random;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import net.rubyeye.xmemcached.HashAlgorithm;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
@@ -39,20 +34,16 @@ import com.google.code.yanf4j.core.Session;
  * </p>
  */
 /**
- * Consistent Hash Algorithm implementation,based on TreeMap.tailMap(hash)
- * method.
+ * Consistent Hash Algorithm implementation,compatible with ketama.
  * 
  * @author dennis
  * 
  */
 public class KetamaMemcachedSessionLocator extends
-		AbstractMemcachedSessionLocator {
+		AbstractConsistentHashSessionLocator {
 
 	static final int NUM_REPS = 160;
-	private transient volatile TreeMap<Long, List<Session>> ketamaSessions = new TreeMap<Long, List<Session>>();
 	private final HashAlgorithm hashAlg;
-	private volatile int maxTries;
-	private final Random random = new Random();
 
 	/**
 	 * compatible with nginx-upstream-consistent,patched by wolfg1969
@@ -84,121 +75,70 @@ public class KetamaMemcachedSessionLocator extends
 		super();
 		this.hashAlg = alg;
 		this.cwNginxUpstreamConsistent = false;
-		this.buildMap(list, alg);
+		this.updateSessions(list);
 	}
 
-	private final void buildMap(Collection<Session> list, HashAlgorithm alg) {
-		TreeMap<Long, List<Session>> sessionMap = new TreeMap<Long, List<Session>>();
-
-		String sockStr;
-		for (Session session : list) {
-			if (this.cwNginxUpstreamConsistent) {
-				sockStr = String.format("%s:%d",
-						session.getRemoteSocketAddress().getAddress()
-								.getHostAddress(), session
-								.getRemoteSocketAddress().getPort());
-			} else {
-				sockStr = String.valueOf(session.getRemoteSocketAddress());
-			}
-			/**
-			 * Duplicate 160 X weight references
-			 */
-			int numReps = NUM_REPS;
-			if (session instanceof MemcachedTCPSession) {
-				numReps *= ((MemcachedSession) session).getWeight();
-			}
-			if (alg == HashAlgorithm.KETAMA_HASH) {
-				for (int i = 0; i < numReps / 4; i++) {
-					byte[] digest = HashAlgorithm.computeMd5(sockStr + "-" + i);
-					for (int h = 0; h < 4; h++) {
-						long k = (long) (digest[3 + h * 4] & 0xFF) << 24
-								| (long) (digest[2 + h * 4] & 0xFF) << 16
-								| (long) (digest[1 + h * 4] & 0xFF) << 8
-								| digest[h * 4] & 0xFF;
-						this.getSessionList(sessionMap, k).add(session);
-					}
-
-				}
-			} else {
-				for (int i = 0; i < numReps; i++) {
-					long key = alg.hash(sockStr + "-" + i);
-					this.getSessionList(sessionMap, key).add(session);
-				}
-			}
-		}
-		this.ketamaSessions = sessionMap;
-		this.maxTries = list.size();
+	@Override
+	protected HashAlgorithm getHashAlgorithm() {
+		return this.hashAlg;
 	}
 
-	private List<Session> getSessionList(
-			TreeMap<Long, List<Session>> sessionMap, long k) {
-		List<Session> sessionList = sessionMap.get(k);
-		if (sessionList == null) {
-			sessionList = new ArrayList<Session>();
-			sessionMap.put(k, sessionList);
-		}
-		return sessionList;
+	@Override
+	protected String getPointsKey(Session session) {
+		return this.getSockStr(session) + "*" + this.getNumReps(session);
 	}
 
-	public int findSessionNumByKey(final String key) {
-		return 0;
-	}
-	
-	public final Session getSessionByKey(final String key, boolean isSet) {
-		if (this.ketamaSessions == null || this.ketamaSessions.size() == 0) {
-			return null;
-		}
-		long hash = this.hashAlg.hash(key);
-		Session rv = this.getSessionByHash(hash);
-		int tries = 0;
-		while (!this.failureMode && (rv == null || rv.isClosed())
-				&& tries++ < this.maxTries) {
-			hash = this.nextHash(hash, key, tries);
-			rv = this.getSessionByHash(hash);
-		}
-		return rv;
-	}
+	@Override
+	protected long[] computePoints(Session session) {
+		String sockStr = this.getSockStr(session);
+		/**
+		 * Duplicate 160 X weight references
+		 */
+		int numReps = this.getNumReps(session);
+		if (this.hashAlg == HashAlgorithm.KETAMA_HASH) {
+			long[] points = new long[numReps / 4 * 4];
+			int count = 0;
+			for (int i = 0; i < numReps / 4; i++) {
+				byte[] digest = HashAlgorithm.computeMd5(sockStr + "-" + i);
+				for (int h = 0; h < 4; h++) {
+					long k = (long) (digest[3 + h * 4] & 0xFF) << 24
+							| (long) (digest[2 + h * 4] & 0xFF) << 16
+							| (long) (digest[1 + h * 4] & 0xFF) << 8
+							| digest[h * 4] & 0xFF;
+					points[count++] = k;
+				}
 
-	public final Session getSessionByHash(final long hash) {
-		TreeMap<Long, List<Session>> sessionMap = this.ketamaSessions;
-		if (sessionMap.size() == 0) {
-			return null;
-		}
-		Long resultHash = hash;
-		if (!sessionMap.containsKey(hash)) {
-			// Java 1.6 adds a ceilingKey method, but xmemcached is compatible
-			// with jdk5,So use tailMap method to do this.
-			SortedMap<Long, List<Session>> tailMap = sessionMap.tailMap(hash);
-			if (tailMap.isEmpty()) {
-				resultHash = sessionMap.firstKey();
-			} else {
-				resultHash = tailMap.firstKey();
 			}
+			return points;
+		} else {
+			long[] points = new long[numReps];
+			for (int i = 0; i < numReps; i++) {
+				points[i] = this.hashAlg.hash(sockStr + "-" + i);
+			}
+			return points;
 		}
-		//
-		// if (!sessionMap.containsKey(resultHash)) {
-		// resultHash = sessionMap.ceilingKey(resultHash);
-		// if (resultHash == null && sessionMap.size() > 0) {
-		// resultHash = sessionMap.firstKey();
-		// }
-		// }
-		List<Session> sessionList = sessionMap.get(resultHash);
-		if (sessionList == null || sessionList.size() == 0) {
-			return null;
+	}
+
+	private String getSockStr(Session session) {
+		if (this.cwNginxUpstreamConsistent) {
+			return String.format("%s:%d", session.getRemoteSocketAddress()
+					.getAddress().getHostAddress(), session
+					.getRemoteSocketAddress().getPort());
+		} else {
+			return String.valueOf(session.getRemoteSocketAddress());
 		}
-		int size = sessionList.size();
-		return sessionList.get(this.random.nextInt(size));
 	}
 
-	public final long nextHash(long hashVal, String key, int tries) {
-		long tmpKey = this.hashAlg.hash(tries + key);
-		hashVal += (int) (tmpKey ^ tmpKey >>> 32);
-		hashVal &= 0xffffffffL; /* truncate to 32-bits */
-		return hashVal;
+	private int getNumReps(Session session) {
+		int numReps = NUM_REPS;
+		if (session instanceof MemcachedTCPSession) {
+			numReps *= ((MemcachedSession) session).getWeight();
+		}
+		return numReps;
 	}
 
-	public final void updateSessions(final Collection<Session> list) {
-		this.buildMap(list, this.hashAlg);
+	public int findSessionNumByKey(final String key) {
+		return 0;
 	}
 
 	@Override
@@ -212,4 +152,4 @@ public class KetamaMemcachedSessionLocator extends
 		// TODO Auto-generated method stub
 		return 0;
 	}
-}
+}
\ No newline at end of file
@@ -11,15 +11,7 @@
  */
 package net.rubyeye.xmemcached.impl;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Random;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
 import net.rubyeye.xmemcached.HashAlgorithm;
-import net.rubyeye.xmemcached.impl.AbstractMemcachedSessionLocator;
 
 import com.google.code.yanf4j.core.Session;
 
@@ -31,13 +23,10 @@ import com.google.code.yanf4j.core.Session;
  * 
  */
 public class LibmemcachedMemcachedSessionLocator extends
-		AbstractMemcachedSessionLocator {
+		AbstractConsistentHashSessionLocator {
 
 	static final int DEFAULT_NUM_REPS = 100;
-	private transient volatile TreeMap<Long, List<Session>> ketamaSessions = new TreeMap<Long, List<Session>>();
-	private volatile int maxTries;
 	private int numReps = DEFAULT_NUM_REPS;
-	private final Random random = new Random();
 	private HashAlgorithm hashAlgorithm = HashAlgorithm.ONE_AT_A_TIME;
 
 	public LibmemcachedMemcachedSessionLocator() {
@@ -50,95 +39,37 @@ public class LibmemcachedMemcachedSessionLocator extends
 		this.hashAlgorithm = hashAlgorithm;
 	}
 
-	private final void buildMap(Collection<Session> list, HashAlgorithm alg) {
-		TreeMap<Long, List<Session>> sessionMap = new TreeMap<Long, List<Session>>();
-
-		for (Session session : list) {
-			String sockStr = null;
-			if (session.getRemoteSocketAddress().getPort() != 11211) {
-				sockStr = session.getRemoteSocketAddress().getHostName() + ":"
-						+ session.getRemoteSocketAddress().getPort();
-			} else {
-				sockStr = session.getRemoteSocketAddress().getHostName();
-			}
-			for (int i = 0; i < this.numReps; i++) {
-				long key = hashAlgorithm.hash(sockStr + "-" + i);
-				this.getSessionList(sessionMap, key).add(session);
-			}
-		}
-		this.ketamaSessions = sessionMap;
-		this.maxTries = list.size();
+	@Override
+	protected HashAlgorithm getHashAlgorithm() {
+		return this.hashAlgorithm;
 	}
 
-	public int findSessionNumByKey(final String key) {
-		return 0;
-	}
-	
-	private List<Session> getSessionList(
-			TreeMap<Long, List<Session>> sessionMap, long k) {
-		List<Session> sessionList = sessionMap.get(k);
-		if (sessionList == null) {
-			sessionList = new ArrayList<Session>();
-			sessionMap.put(k, sessionList);
-		}
-		return sessionList;
+	@Override
+	protected String getPointsKey(Session session) {
+		return this.getSockStr(session);
 	}
 
-	public final Session getSessionByKey(final String key, boolean isSet) {
-		if (this.ketamaSessions == null || this.ketamaSessions.size() == 0) {
-			return null;
-		}
-		long hash = hashAlgorithm.hash(key);
-		Session rv = this.getSessionByHash(hash);
-		int tries = 0;
-		while (!this.failureMode && (rv == null || rv.isClosed())
-				&& tries++ < this.maxTries) {
-			hash = this.nextHash(hash, key, tries);
-			rv = this.getSessionByHash(hash);
+	@Override
+	protected long[] computePoints(Session session) {
+		String sockStr = this.getSockStr(session);
+		long[] points = new long[this.numReps];
+		for (int i = 0; i < this.numReps; i++) {
+			points[i] = this.hashAlgorithm.hash(sockStr + "-" + i);
 		}
-		return rv;
+		return points;
 	}
 
-	public final Session getSessionByHash(final long hash) {
-		TreeMap<Long, List<Session>> sessionMap = this.ketamaSessions;
-		if (sessionMap.size() == 0) {
-			return null;
-		}
-		Long resultHash = hash;
-		if (!sessionMap.containsKey(hash)) {
-			// Java 1.6 adds a ceilingKey method, but xmemcached is compatible
-			// with jdk5,So use tailMap method to do this.
-			SortedMap<Long, List<Session>> tailMap = sessionMap.tailMap(hash);
-			if (tailMap.isEmpty()) {
-				resultHash = sessionMap.firstKey();
-			} else {
-				resultHash = tailMap.firstKey();
-			}
-		}
-		//		
-		// if (!sessionMap.containsKey(resultHash)) {
-		// resultHash = sessionMap.ceilingKey(resultHash);
-		// if (resultHash == null && sessionMap.size() > 0) {
-		// resultHash = sessionMap.firstKey();
-		// }
-		// }
-		List<Session> sessionList = sessionMap.get(resultHash);
-		if (sessionList == null || sessionList.size() == 0) {
-			return null;
+	private String getSockStr(Session session) {
+		if (session.getRemoteSocketAddress().getPort() != 11211) {
+			return session.getRemoteSocketAddress().getHostName() + ":"
+					+ session.getRemoteSocketAddress().getPort();
+		} else {
+			return session.getRemoteSocketAddress().getHostName();
 		}
-		int size = sessionList.size();
-		return sessionList.get(this.random.nextInt(size));
 	}
 
-	public final long nextHash(long hashVal, String key, int tries) {
-		long tmpKey = hashAlgorithm.hash(tries + key);
-		hashVal += (int) (tmpKey ^ tmpKey >>> 32);
-		hashVal &= 0xffffffffL; /* truncate to 32-bits */
-		return hashVal;
-	}
-
-	public final void updateSessions(final Collection<Session> list) {
-		this.buildMap(list, null);
+	public int findSessionNumByKey(final String key) {
+		return 0;
 	}
 
 	@Override
@@ -0,0 +1,136 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.math.BigInteger;
+
+import net.rubyeye.xmemcached.HashAlgorithm;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Maglev hashing locator,see "Maglev: A Fast and Reliable Software Network
+ * Load Balancer".
+ *
+ * <p>
+ * Every server fills slots of a lookup table by it's own permutation of
+ * slots,so a key is located by one table access,and only a few keys of other
+ * servers are moved when a server is added or removed.A server of weight N
+ * takes N slots in every round.Table size must be a prime much larger than
+ * number of servers,65537 by default.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public class MaglevMemcachedSessionLocator extends
+		AbstractServerHashSessionLocator {
+
+	public static final int DEFAULT_TABLE_SIZE = 65537;
+
+	private final int tableSize;
+	private volatile MaglevTable table = new MaglevTable(new ServerNode[0],
+			null);
+
+	public MaglevMemcachedSessionLocator() {
+		this(HashAlgorithm.KETAMA_HASH, DEFAULT_TABLE_SIZE);
+	}
+
+	public MaglevMemcachedSessionLocator(HashAlgorithm hashAlg) {
+		this(hashAlg, DEFAULT_TABLE_SIZE);
+	}
+
+	public MaglevMemcachedSessionLocator(HashAlgorithm hashAlg, int tableSize) {
+		super(hashAlg);
+		if (tableSize < 2 || !BigInteger.valueOf(tableSize).isProbablePrime(32)) {
+			throw new IllegalArgumentException(
+					"Table size must be a prime,but was " + tableSize);
+		}
+		this.tableSize = tableSize;
+	}
+
+	public final int getTableSize() {
+		return this.tableSize;
+	}
+
+	@Override
+	protected void buildNodes(ServerNode[] nodes) {
+		int size = this.tableSize;
+		long totalWeight = 0;
+		for (ServerNode node : nodes) {
+			totalWeight += Math.max(node.weight, 0);
+		}
+		if (totalWeight == 0) {
+			this.table = new MaglevTable(new ServerNode[0], null);
+			return;
+		}
+		int n = nodes.length;
+		long[] offsets = new long[n];
+		long[] skips = new long[n];
+		for (int i = 0; i < n; i++) {
+			byte[] digest = HashAlgorithm.computeMd5(nodes[i].name);
+			offsets[i] = (toLong(digest, 0) & Long.MAX_VALUE) % size;
+			skips[i] = (toLong(digest, 8) & Long.MAX_VALUE) % (size - 1) + 1;
+		}
+		int[] entries = new int[size];
+		for (int i = 0; i < size; i++) {
+			entries[i] = -1;
+		}
+		long[] next = new long[n];
+		int filled = 0;
+		while (true) {
+			for (int i = 0; i < n; i++) {
+				for (int w = 0; w < nodes[i].weight; w++) {
+					int slot = (int) ((offsets[i] + next[i] * skips[i]) % size);
+					while (entries[slot] >= 0) {
+						next[i]++;
+						slot = (int) ((offsets[i] + next[i] * skips[i]) % size);
+					}
+					entries[slot] = i;
+					next[i]++;
+					if (++filled == size) {
+						this.table = new MaglevTable(nodes, entries);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long rv = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			rv = rv << 8 | bytes[i] & 0xFF;
+		}
+		return rv;
+	}
+
+	@Override
+	public final Session getSessionByHash(final long hash) {
+		MaglevTable table = this.table;
+		if (table.entries == null) {
+			return null;
+		}
+		int slot = (int) ((hash & Long.MAX_VALUE) % table.entries.length);
+		return this.selectSession(table.nodes[table.entries[slot]]);
+	}
+
+	static final class MaglevTable {
+		final ServerNode[] nodes;
+		final int[] entries;
+
+		MaglevTable(ServerNode[] nodes, int[] entries) {
+			this.nodes = nodes;
+			this.entries = entries;
+		}
+	}
+}
@@ -19,9 +19,11 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
@@ -35,10 +37,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import net.rubyeye.xmemcached.CommandFactory;
+import net.rubyeye.xmemcached.IncrementalMemcachedSessionLocator;
 import net.rubyeye.xmemcached.MemcachedClient;
 import net.rubyeye.xmemcached.MemcachedOptimizer;
 import net.rubyeye.xmemcached.MemcachedSessionLocator;
+import net.rubyeye.xmemcached.ReplicaMemcachedSessionLocator;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.networking.Connector;
@@ -72,6 +77,7 @@ public class MemcachedConnector extends SocketChannelController implements Conne
     private final Set<InetSocketAddress> removedAddrSet = new ConcurrentHashSet<InetSocketAddress>();
 
     private final MemcachedOptimizer optimiezer;
+    private final WriteQueueController writeQueueController = new WriteQueueController();
     private volatile long healSessionInterval = 2000L;
     private int connectionPoolSize; // session pool size
     protected Protocol protocol;
@@ -212,6 +218,10 @@ public class MemcachedConnector extends SocketChannelController implements Conne
 
     protected MemcachedSessionLocator sessionLocator;
 
+    private volatile boolean gatheringWrite;
+
+    private volatile ValueBufferPool valueBufferPool;
+
     protected final ConcurrentHashMap<InetSocketAddress, Queue<Session>> sessionMap =
             new ConcurrentHashMap<InetSocketAddress, Queue<Session>>();
 
@@ -312,7 +322,15 @@ public class MemcachedConnector extends SocketChannelController implements Conne
     private static final MemcachedSessionComparator sessionComparator = new MemcachedSessionComparator();
 
 
-    public final void updateSessions() {
+    /**
+     * Sessions and their weights which were passed to locator last time
+     */
+    private final Map<Session, Integer> locatedSessions = new HashMap<Session, Integer>();
+
+    private MemcachedSessionLocator lastLocator;
+
+
+    public final synchronized void updateSessions() {
         Collection<Queue<Session>> sessionCollection = this.sessionMap.values();
         List<Session> sessionList = new ArrayList<Session>(20); 
         for (Queue<Session> sessions : sessionCollection) {
@@ -320,7 +338,39 @@ public class MemcachedConnector extends SocketChannelController implements Conne
         }
         // sort the sessions to keep order
         Collections.sort(sessionList, sessionComparator);
-        this.sessionLocator.updateSessions(sessionList);
+        MemcachedSessionLocator locator = this.sessionLocator;
+        if (locator instanceof IncrementalMemcachedSessionLocator && locator == this.lastLocator) {
+            // Only pass changed sessions,a session whose weight was changed
+            // is removed and added again.
+            List<Session> added = new ArrayList<Session>();
+            Set<Session> removed = new HashSet<Session>(this.locatedSessions.keySet());
+            for (Session session : sessionList) {
+                Integer weight = this.locatedSessions.get(session);
+                if (weight == null || weight.intValue() != this.getWeight(session)) {
+                    added.add(session);
+                }
+                else {
+                    removed.remove(session);
+                }
+            }
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                ((IncrementalMemcachedSessionLocator) locator).updateSessions(added, removed);
+            }
+        }
+        else {
+            locator.updateSessions(sessionList);
+        }
+        this.lastLocator = locator;
+        this.locatedSessions.clear();
+        for (Session session : sessionList) {
+            this.locatedSessions.put(session, this.getWeight(session));
+        }
+    }
+
+
+    @SuppressWarnings("deprecation")
+    private int getWeight(Session session) {
+        return session instanceof MemcachedSession ? ((MemcachedSession) session).getWeight() : 1;
     }
 
 
@@ -469,7 +519,12 @@ public class MemcachedConnector extends SocketChannelController implements Conne
 
 
     public void send(final Command msg, boolean isSet) throws MemcachedException {
-        MemcachedSession session = (MemcachedSession) this.findSessionByKey(msg.getKey(), isSet);
+        this.send(msg, this.findSessionByKey(msg.getKey(), isSet));
+    }
+
+
+    public void send(final Command msg, Session target) throws MemcachedException {
+        MemcachedSession session = (MemcachedSession) target;
         if (session == null) {
             throw new MemcachedException("There is no available connection at this moment");
         }
@@ -484,6 +539,13 @@ public class MemcachedConnector extends SocketChannelController implements Conne
         if (session.isAuthFailed()) {
             throw new MemcachedException("Auth failed to connection " + session.getRemoteSocketAddress());
         }
+        msg.setBufferAllocator(this.bufferAllocator);
+        if (this.writeQueueController.isLimited() && session instanceof MemcachedTCPSession) {
+            if (msg.getIoBuffer() == null) {
+                msg.encode();
+            }
+            this.writeQueueController.acquire((MemcachedTCPSession) session, msg);
+        }
         session.write(msg);
     }
 
@@ -551,6 +613,32 @@ public class MemcachedConnector extends SocketChannelController implements Conne
     }
 
 
+    public final List<Session> findReplicaSessionsByKey(String key, boolean isSet) {
+        MemcachedSessionLocator locator = this.sessionLocator;
+        if (locator instanceof ReplicaMemcachedSessionLocator) {
+            return ((ReplicaMemcachedSessionLocator) locator).getReplicaSessions(key, isSet);
+        }
+        Session session = locator.getSessionByKey(key, isSet);
+        if (session == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(session);
+    }
+
+
+    public final Session findAlternateSessionByKey(String key, Session excluded) {
+        Session result = null;
+        for (Session session : this.findReplicaSessionsByKey(key, false)) {
+            if (session.isClosed()
+                    || excluded != null && session.getRemoteSocketAddress().equals(excluded.getRemoteSocketAddress())) {
+                continue;
+            }
+            result = SessionSelector.better(result, session);
+        }
+        return result;
+    }
+
+
     /**
      * Get session by InetSocketAddress
      * 
@@ -591,18 +679,51 @@ public class MemcachedConnector extends SocketChannelController implements Conne
     }
 
 
+    public void setGatheringWrite(boolean gatheringWrite) {
+        this.gatheringWrite = gatheringWrite;
+        for (Session session : this.getSessionSet()) {
+            ((MemcachedTCPSession) session).setGatheringWrite(gatheringWrite);
+        }
+    }
+
+
+    public boolean isGatheringWrite() {
+        return this.gatheringWrite;
+    }
+
+
+    public void setValueBufferPool(ValueBufferPool valueBufferPool) {
+        this.valueBufferPool = valueBufferPool;
+        for (Session session : this.getSessionSet()) {
+            ((MemcachedTCPSession) session).setValueBufferPool(valueBufferPool);
+        }
+    }
+
+
+    public ValueBufferPool getValueBufferPool() {
+        return this.valueBufferPool;
+    }
+
+
     @Override
     protected NioSession buildSession(SocketChannel sc) {
-        Queue<WriteMessage> queue = this.buildQueue();
+        Queue<WriteMessage> queue = new BoundedWriteQueue(this.buildQueue(), this.writeQueueController);
         final NioSessionConfig sessionCofig = this.buildSessionConfig(sc, queue);
         MemcachedTCPSession session =
                 new MemcachedTCPSession(sessionCofig, this.configuration.getSessionReadBufferSize(), this.optimiezer,
                     this.getReadThreadCount(), this.commandFactory);
         session.setBufferAllocator(this.bufferAllocator);
+        session.setGatheringWrite(this.gatheringWrite);
+        session.setValueBufferPool(this.valueBufferPool);
         return session;
     }
 
 
+    public WriteQueueController getWriteQueueController() {
+        return this.writeQueueController;
+    }
+
+
     public BufferAllocator getBufferAllocator() {
         return this.bufferAllocator;
     }
@@ -11,6 +11,7 @@
  */
 package net.rubyeye.xmemcached.impl;
 
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -22,6 +23,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import net.rubyeye.xmemcached.MemcachedClient;
 import net.rubyeye.xmemcached.MemcachedClientStateListener;
 import net.rubyeye.xmemcached.auth.AuthMemcachedConnectListener;
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
+import net.rubyeye.xmemcached.command.AssocCommandAware;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.command.CommandType;
 import net.rubyeye.xmemcached.command.MapReturnValueAware;
@@ -30,6 +33,7 @@ import net.rubyeye.xmemcached.command.binary.BinaryGetCommand;
 import net.rubyeye.xmemcached.command.binary.BinaryVersionCommand;
 import net.rubyeye.xmemcached.command.text.TextGetOneCommand;
 import net.rubyeye.xmemcached.command.text.TextVersionCommand;
+import net.rubyeye.xmemcached.monitor.HotKeyCache;
 import net.rubyeye.xmemcached.monitor.StatisticsHandler;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
 import net.rubyeye.xmemcached.networking.MemcachedSessionConnectListener;
@@ -87,6 +91,38 @@ public class MemcachedHandler extends HandlerAdapter {
 				this.statisticsHandler.statistics(command.getCommandType());
 			}
 		}
+		final HotKeyCache hotKeyCache = this.client.getHotKeyCache();
+		if (hotKeyCache != null) {
+			this.recordHotKeys(hotKeyCache, command);
+		}
+	}
+
+	/**
+	 * Count keys responded by a get command,gets merged into it by the
+	 * optimizer are counted as well
+	 */
+	private void recordHotKeys(HotKeyCache hotKeyCache, Command command) {
+		CommandType type = command.getCommandType();
+		if (type != CommandType.GET_ONE && type != CommandType.GET_MANY) {
+			return;
+		}
+		int count = 1;
+		if (command instanceof AssocCommandAware) {
+			List<Command> assocCommands = ((AssocCommandAware) command)
+					.getAssocCommands();
+			if (assocCommands != null) {
+				count += assocCommands.size();
+			}
+		}
+		if (command instanceof MapReturnValueAware) {
+			for (String key : ((MapReturnValueAware) command)
+					.getReturnValues().keySet()) {
+				hotKeyCache.record(key, count);
+			}
+		} else if (command instanceof BinaryGetCommand
+				&& command.getResult() != null) {
+			hotKeyCache.record(command.getKey(), count);
+		}
 	}
 
 	private volatile boolean enableHeartBeat = true;
@@ -102,8 +138,16 @@ public class MemcachedHandler extends HandlerAdapter {
 	public final void onMessageSent(Session session, Object msg) {
 		Command command = (Command) msg;
 		command.setStatus(OperationStatus.SENT);
+		if (command.getIoBuffer() != null) {
+			PooledBufferAllocator.writeComplete(command.getIoBuffer());
+			if (command.isNoreply()) {
+				// nobody waits for a noreply command to free it's buffer
+				command.getIoBuffer().free();
+			}
+		}
 		if (!command.isNoreply()
 				|| this.client.getProtocol() == Protocol.Binary) {
+			command.setSentTime(System.nanoTime());
 			((MemcachedTCPSession) session).addCommand(command);
 		}
 	}
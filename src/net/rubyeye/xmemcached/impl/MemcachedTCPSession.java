@@ -15,19 +15,24 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.rubyeye.xmemcached.CommandFactory;
 import net.rubyeye.xmemcached.MemcachedOptimizer;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.command.OperationStatus;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
 import net.rubyeye.xmemcached.utils.InetSocketAddressWrapper;
 
+import com.google.code.yanf4j.buffer.IoBuffer;
 import com.google.code.yanf4j.core.WriteMessage;
 import com.google.code.yanf4j.core.impl.FutureImpl;
 import com.google.code.yanf4j.nio.NioSessionConfig;
@@ -50,6 +55,17 @@ public class MemcachedTCPSession extends NioTCPSession implements
 
 	private final AtomicReference<Command> currentCommand = new AtomicReference<Command>();
 
+	/**
+	 * Commands sent but not responded
+	 */
+	private final AtomicInteger outstandingCommands = new AtomicInteger();
+
+	/**
+	 * Exponentially weighted moving average of response latency in
+	 * nanoseconds,weight of a new sample is 1/8
+	 */
+	private volatile long latencyEwma;
+
 	private SocketAddress remoteSocketAddress; // prevent channel is closed
 	private int sendBufferSize;
 	private final MemcachedOptimizer optimiezer;
@@ -109,18 +125,50 @@ public class MemcachedTCPSession extends NioTCPSession implements
 		if (command != null) {
 			command.setException(new MemcachedException(
 					"Session has been closed"));
-			command.getLatch().countDown();
+			command.countDownLatch();
 		}
 		while ((command = this.commandAlreadySent.poll()) != null) {
 			command.setException(new MemcachedException(
 					"Session has been closed"));
-			if (command.getLatch() != null) {
-				command.getLatch().countDown();
-			}
+			command.countDownLatch();
+		}
+		// Commands polled by gathering write but not written completely
+		for (WriteMessage message : this.drainGatheringMessages()) {
+			command = (Command) message;
+			releaseUnsent(command);
+			command.setException(new MemcachedException(
+					"Session has been closed"));
+			command.countDownLatch();
+		}
+		// Commands never sent,release write queue capacity too
+		WriteMessage message;
+		while ((message = this.writeQueue.poll()) != null) {
+			command = (Command) message;
+			releaseUnsent(command);
+			command.setException(new MemcachedException(
+					"Session has been closed"));
+			command.countDownLatch();
 		}
 
 	}
 
+	/**
+	 * Commands discarded before written never reach onMessageSent,so their
+	 * pooled buffers must be released here
+	 * 
+	 * @param command
+	 */
+	private static void releaseUnsent(Command command) {
+		IoBuffer buffer = command.getIoBuffer();
+		if (buffer != null) {
+			PooledBufferAllocator.writeComplete(buffer);
+			if (command.isNoreply()) {
+				// nobody waits for a noreply command to free it's buffer
+				buffer.free();
+			}
+		}
+	}
+
 	@Override
 	public InetSocketAddress getRemoteSocketAddress() {
 		InetSocketAddress result = super.getRemoteSocketAddress();
@@ -141,9 +189,17 @@ public class MemcachedTCPSession extends NioTCPSession implements
 			/**
 			 * optimieze commands
 			 */
-			currentCommand = this.optimiezer.optimize(currentCommand,
-					this.writeQueue, this.commandAlreadySent,
-					this.sendBufferSize);
+			if (this.isGatheringWrite() && this.optimiezer instanceof Optimizer) {
+				// gathering write sends buffers as they are,so only merge get
+				// commands and never copy buffers
+				currentCommand = ((Optimizer) this.optimiezer).optimiezeGet(
+						this.writeQueue, this.commandAlreadySent,
+						currentCommand);
+			} else {
+				currentCommand = this.optimiezer.optimize(currentCommand,
+						this.writeQueue, this.commandAlreadySent,
+						this.sendBufferSize);
+			}
 		}
 		currentCommand.setStatus(OperationStatus.WRITING);
 		return currentCommand;
@@ -167,10 +223,29 @@ public class MemcachedTCPSession extends NioTCPSession implements
 		this.bufferAllocator = bufferAllocator;
 	}
 
+	private volatile ValueBufferPool valueBufferPool;
+
+	/**
+	 * Returns pool for values read from this session,null if values are read
+	 * into byte arrays.
+	 * 
+	 * @return
+	 */
+	public final ValueBufferPool getValueBufferPool() {
+		return this.valueBufferPool;
+	}
+
+	public final void setValueBufferPool(ValueBufferPool valueBufferPool) {
+		this.valueBufferPool = valueBufferPool;
+	}
+
 	@Override
 	protected final WriteMessage wrapMessage(Object msg,
 			Future<Boolean> writeFuture) {
-		((Command) msg).encode();
+		// It may be encoded already for write queue limits
+		if (((Command) msg).getIoBuffer() == null) {
+			((Command) msg).encode();
+		}
 		((Command) msg).setWriteFuture((FutureImpl<Boolean>) writeFuture);
 		if (log.isDebugEnabled()) {
 			log.debug("After encoding" + ((Command) msg).toString());
@@ -206,9 +281,60 @@ public class MemcachedTCPSession extends NioTCPSession implements
 	}
 
 	public void addCommand(Command command) {
+		this.outstandingCommands.incrementAndGet();
 		this.commandAlreadySent.add(command);
 	}
 
+	/**
+	 * Called by decoder when response of a command is decoded
+	 * 
+	 * @param command
+	 */
+	public final void commandCompleted(Command command) {
+		this.outstandingCommands.decrementAndGet();
+		long sentTime = command.getSentTime();
+		if (sentTime != 0) {
+			long latency = System.nanoTime() - sentTime;
+			long ewma = this.latencyEwma;
+			this.latencyEwma = ewma == 0 ? latency : ewma
+					+ (latency - ewma >> 3);
+		}
+	}
+
+	/**
+	 * Returns number of commands sent but not responded
+	 * 
+	 * @return
+	 */
+	public final int getOutstandingCommands() {
+		return this.outstandingCommands.get();
+	}
+
+	/**
+	 * Returns moving average of response latency in nanoseconds,0 if no
+	 * response is received
+	 * 
+	 * @return
+	 */
+	public final long getLatencyEwma() {
+		return this.latencyEwma;
+	}
+
+	/**
+	 * Returns load of session,which is expected latency of a new command:the
+	 * average latency multiplied by number of commands in write queue and
+	 * sent but not responded,plus one.Less is better.
+	 * 
+	 * @return
+	 */
+	public final long getLoad() {
+		long pending = this.outstandingCommands.get() + 1;
+		if (this.writeQueue instanceof BoundedWriteQueue) {
+			pending += this.writeQueue.size();
+		}
+		return pending * (this.latencyEwma + 1);
+	}
+
 	public void setCurrentCommand(Command cmd) {
 		this.currentCommand.set(cmd);
 	}
@@ -221,6 +347,50 @@ public class MemcachedTCPSession extends NioTCPSession implements
 		this.setCurrentCommand(this.takeExecutingCommand());
 	}
 
+	/**
+	 * Returns the counting write queue,null if the session is not built by
+	 * MemcachedConnector
+	 * 
+	 * @return
+	 */
+	public final BoundedWriteQueue getBoundedWriteQueue() {
+		if (this.writeQueue instanceof BoundedWriteQueue) {
+			return (BoundedWriteQueue) this.writeQueue;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the oldest noreply command which is not being written from write
+	 * queue
+	 * 
+	 * @return true if a command was dropped
+	 */
+	final boolean dropOldestNoreplyCommand() {
+		this.writeLock.lock();
+		try {
+			Iterator<WriteMessage> it = this.writeQueue.iterator();
+			// Skip the head,reactor may have peeked it before locking
+			if (!it.hasNext()) {
+				return false;
+			}
+			it.next();
+			while (it.hasNext()) {
+				Command command = (Command) it.next();
+				if (command.isNoreply()
+						&& command.getStatus() == OperationStatus.SENDING
+						&& this.writeQueue.remove(command)) {
+					command.cancel();
+					releaseUnsent(command);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
 	public void quit() {
 		this.write(this.commandFactory.createQuitCommand());
 	}
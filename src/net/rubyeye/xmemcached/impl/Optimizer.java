@@ -29,10 +29,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.CountDownLatch;
 
 import net.rubyeye.xmemcached.MemcachedOptimizer;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.PooledBufferAllocator;
 import net.rubyeye.xmemcached.command.AssocCommandAware;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.command.CommandType;
@@ -192,6 +192,10 @@ public class Optimizer implements OptimizerMBean, MemcachedOptimizer {
 			}
 			if (nextCmd.isCancel()) {
 				writeQueue.remove();
+				// never written,cancel() has freed it already
+				PooledBufferAllocator.writeComplete(nextCmd.getIoBuffer());
+				// it's buffer may be recycled,never touch it again
+				nextCmd = lastCommand;
 				continue;
 			}
 			nextCmd.setStatus(OperationStatus.WRITING);
@@ -221,9 +225,16 @@ public class Optimizer implements OptimizerMBean, MemcachedOptimizer {
 			byte[] buf = new byte[totalBytes];
 			int offset = 0;
 			for (Command command : commands) {
-				byte[] ba = command.getIoBuffer().array();
-				System.arraycopy(ba, 0, buf, offset, ba.length);
-				offset += ba.length;
+				IoBuffer buffer = command.getIoBuffer();
+				int length = buffer.remaining();
+				buffer.buf().duplicate().get(buf, offset, length);
+				offset += length;
+				// buffer may be pooled,it is never written after copying
+				PooledBufferAllocator.writeComplete(buffer);
+				if (command == lastCommand) {
+					// replaced by merged buffer,nobody else would free it
+					buffer.free();
+				}
 				if (command != lastCommand
 						&& (!command.isNoreply() || command instanceof BaseBinaryCommand)) {
 					executingCmds.add(command);
@@ -321,7 +332,7 @@ public class Optimizer implements OptimizerMBean, MemcachedOptimizer {
 				offset += ba.length;
 			}
 			BinaryGetMultiCommand resultCommand = new BinaryGetMultiCommand(
-					null, CommandType.GET_MANY, new CountDownLatch(1));
+					null, CommandType.GET_MANY, null);
 			resultCommand.setIoBuffer(IoBuffer.wrap(buf));
 			return resultCommand;
 		}
@@ -345,7 +356,7 @@ public class Optimizer implements OptimizerMBean, MemcachedOptimizer {
 			// getq commands send response back
 			Command lastGetKCommand = new BinaryGetCommand(
 					prevCommand.getKey(), prevCommand.getKeyBytes(),
-					CommandType.GET_ONE, new CountDownLatch(1), OpCode.GET_KEY,
+					CommandType.GET_ONE, null, OpCode.GET_KEY,
 					false);
 			lastGetKCommand.encode();
 			bufferList.add(lastGetKCommand.getIoBuffer());
@@ -371,6 +382,8 @@ public class Optimizer implements OptimizerMBean, MemcachedOptimizer {
 			}
 			if (nextCmd.isCancel()) {
 				writeQueue.remove();
+				// never written,cancel() has freed it already
+				PooledBufferAllocator.writeComplete(nextCmd.getIoBuffer());
 				continue;
 			}
 			if (nextCmd.getCommandType() == expectedCommandType) {
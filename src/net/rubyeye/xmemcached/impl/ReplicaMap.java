@@ -0,0 +1,678 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compact map from key to replica ids.Keys are stored as 64-bit hash in an
+ * open addressing table with linear probing,and replica ids are packed into
+ * a long,so there is no object per key:16 bytes per slot,or 20 bytes(24
+ * bytes if direct) with key verification,which stores String.hashCode() of
+ * key to tell keys of the same 64-bit hash apart.Slots could be on heap or in
+ * a direct buffer.
+ *
+ * <p>
+ * Replica sets are packed as a list of up to three ids less than
+ * 2097151,or as a bitmask of ids less than 63,which keeps neither order nor
+ * duplicates.If neither fits,only the first three replicas less than 2097151
+ * are kept,see {@link #fits(int[])}.
+ * </p>
+ *
+ * <p>
+ * Writers are synchronized.Readers never lock,they retry if a writer changed
+ * the table meanwhile.
+ * </p>
+ *
+ * <p>
+ * A map could be written to a file in layout of direct slots and mapped back
+ * copy-on-write,so loading it does not parse or copy slots and changes are
+ * never written through to the file.A file which could not be opened for
+ * writing is read into heap instead.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public final class ReplicaMap {
+
+	/**
+	 * Packed value of no replica
+	 */
+	public static final long NONE = 0;
+
+	static final int LIST_BITS = 21;
+	static final int MAX_LIST_SIZE = 3;
+	static final long LIST_MASK = (1L << LIST_BITS) - 1;
+	static final int MAX_LIST_ID = (int) LIST_MASK - 1;
+	static final long BITMASK = Long.MIN_VALUE;
+	static final int MAX_BITMASK_ID = 62;
+
+	static final float LOAD_FACTOR = 0.75f;
+
+	private final boolean direct;
+	private final boolean verify;
+	private volatile Slots slots;
+	/**
+	 * Odd while a writer is changing the table
+	 */
+	private volatile int sequence;
+	private int size;
+
+	public ReplicaMap() {
+		this(16, false, false);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            expected number of keys
+	 * @param direct
+	 *            whether slots are stored in a direct buffer
+	 * @param verify
+	 *            whether to verify key by a second hash
+	 */
+	public ReplicaMap(int expectedSize, boolean direct, boolean verify) {
+		this.direct = direct;
+		this.verify = verify;
+		this.slots = this.newSlots(capacityFor(expectedSize));
+	}
+
+	private ReplicaMap(Slots slots, int size, boolean direct, boolean verify) {
+		this.direct = direct;
+		this.verify = verify;
+		this.slots = slots;
+		this.size = size;
+	}
+
+	static int capacityFor(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private Slots newSlots(int capacity) {
+		return this.direct ? new DirectSlots(capacity, this.verify)
+				: new HeapSlots(capacity, this.verify);
+	}
+
+	public boolean isDirect() {
+		return this.direct;
+	}
+
+	public boolean isVerify() {
+		return this.verify;
+	}
+
+	/**
+	 * Returns number of keys
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns number of slots
+	 */
+	public int capacity() {
+		return this.slots.capacity;
+	}
+
+	/**
+	 * Returns bytes used by slots
+	 */
+	public long memoryUsage() {
+		return (long) this.slots.capacity * this.slots.slotSize;
+	}
+
+	/**
+	 * Returns 64-bit hash of key,never 0
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Returns packed replicas of key,NONE if key is absent
+	 *
+	 * @param key
+	 * @return
+	 */
+	public long get(String key) {
+		return this.get(hash(key), key.hashCode());
+	}
+
+	/**
+	 * Returns packed replicas of key by it's hash
+	 *
+	 * @param hash
+	 *            hash(key)
+	 * @param check
+	 *            key.hashCode()
+	 * @return
+	 */
+	public long get(long hash, int check) {
+		while (true) {
+			int sequence = this.sequence;
+			if ((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			Slots slots = this.slots;
+			long result = NONE;
+			int i = slots.indexOf(hash);
+			for (int probes = 0; probes < slots.capacity; probes++) {
+				long k = slots.key(i);
+				if (k == 0) {
+					break;
+				}
+				if (k == hash && (!this.verify || slots.check(i) == check)) {
+					result = slots.value(i);
+					break;
+				}
+				i = (i + 1) & slots.mask;
+			}
+			if (sequence == this.sequence) {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Set replicas of key,empty replicas remove the key
+	 *
+	 * @param key
+	 * @param replicas
+	 *            replica ids
+	 */
+	public void put(String key, int[] replicas) {
+		this.put(key, pack(replicas));
+	}
+
+	/**
+	 * Set packed replicas of key,NONE removes the key
+	 *
+	 * @param key
+	 * @param replicas
+	 */
+	public synchronized void put(String key, long replicas) {
+		if (replicas == NONE) {
+			this.remove(key);
+			return;
+		}
+		long hash = hash(key);
+		int check = this.verify ? key.hashCode() : 0;
+		this.sequence++;
+		try {
+			Slots slots = this.slots;
+			int i = this.find(slots, hash, check);
+			if (slots.key(i) == hash) {
+				slots.set(i, hash, replicas, check);
+				return;
+			}
+			if (this.size + 1 > slots.capacity * LOAD_FACTOR) {
+				slots = this.resize(slots.capacity << 1);
+				i = this.find(slots, hash, check);
+			}
+			slots.set(i, hash, replicas, check);
+			this.size++;
+		} finally {
+			this.sequence++;
+		}
+	}
+
+	/**
+	 * Remove key
+	 *
+	 * @param key
+	 * @return true if key was present
+	 */
+	public synchronized boolean remove(String key) {
+		long hash = hash(key);
+		int check = this.verify ? key.hashCode() : 0;
+		Slots slots = this.slots;
+		int i = this.find(slots, hash, check);
+		if (slots.key(i) != hash) {
+			return false;
+		}
+		this.sequence++;
+		try {
+			// backward shift deletion,no tombstone is needed
+			int j = i;
+			while (true) {
+				j = (j + 1) & slots.mask;
+				long k = slots.key(j);
+				if (k == 0) {
+					break;
+				}
+				int ideal = slots.indexOf(k);
+				boolean between = i <= j ? i < ideal && ideal <= j
+						: i < ideal || ideal <= j;
+				if (!between) {
+					slots.set(i, k, slots.value(j), slots.check(j));
+					i = j;
+				}
+			}
+			slots.clear(i);
+			this.size--;
+			return true;
+		} finally {
+			this.sequence++;
+		}
+	}
+
+	/**
+	 * Remove all keys
+	 */
+	public synchronized void clear() {
+		this.sequence++;
+		try {
+			this.slots = this.newSlots(16);
+			this.size = 0;
+		} finally {
+			this.sequence++;
+		}
+	}
+
+	/**
+	 * Returns slot of key,or the empty slot to insert it
+	 */
+	private int find(Slots slots, long hash, int check) {
+		int i = slots.indexOf(hash);
+		while (true) {
+			long k = slots.key(i);
+			if (k == 0 || k == hash && (!this.verify || slots.check(i) == check)) {
+				return i;
+			}
+			i = (i + 1) & slots.mask;
+		}
+	}
+
+	private Slots resize(int capacity) {
+		Slots old = this.slots;
+		Slots slots = this.newSlots(capacity);
+		for (int i = 0; i < old.capacity; i++) {
+			long k = old.key(i);
+			if (k != 0) {
+				int j = slots.indexOf(k);
+				while (slots.key(j) != 0) {
+					j = (j + 1) & slots.mask;
+				}
+				slots.set(j, k, old.value(i), old.check(i));
+			}
+		}
+		this.slots = slots;
+		return slots;
+	}
+
+	/**
+	 * Write capacity,size,verify flag and then slots in layout of direct
+	 * slots to out,see {@link #map(FileChannel, long, boolean)}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	synchronized void writeTo(DataOutput out) throws IOException {
+		Slots slots = this.slots;
+		out.writeInt(slots.capacity);
+		out.writeInt(this.size);
+		out.writeBoolean(this.verify);
+		for (int i = 0; i < slots.capacity; i++) {
+			out.writeLong(slots.key(i));
+			out.writeLong(slots.value(i));
+			if (this.verify) {
+				out.writeInt(slots.check(i));
+				out.writeInt(0);
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy on heap,it is not changed by writers of this map
+	 *
+	 * @return
+	 */
+	synchronized ReplicaMap copy() {
+		Slots old = this.slots;
+		Slots slots = new HeapSlots(old.capacity, this.verify);
+		for (int i = 0; i < old.capacity; i++) {
+			long k = old.key(i);
+			if (k != 0) {
+				slots.set(i, k, old.value(i), old.check(i));
+			}
+		}
+		return new ReplicaMap(slots, this.size, false, this.verify);
+	}
+
+	/**
+	 * Map a map written by {@link #writeTo(DataOutput)} at position of
+	 * channel.Slots are mapped privately if mapped is true,so channel must be
+	 * opened for reading and writing,but the file is never changed.Else slots
+	 * are read into heap,and channel could be read only.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param direct
+	 *            whether slots are stored in a direct buffer once the map
+	 *            is resized
+	 * @param mapped
+	 *            whether slots are mapped or read
+	 * @return
+	 * @throws IOException
+	 *             if the map is truncated or corrupt
+	 */
+	static ReplicaMap map(FileChannel channel, long position, boolean direct,
+			boolean mapped) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(9);
+		while (header.hasRemaining()) {
+			if (channel.read(header, position + header.position()) < 0) {
+				throw new IOException("Truncated replica map");
+			}
+		}
+		header.flip();
+		int capacity = header.getInt();
+		int size = header.getInt();
+		boolean verify = header.get() != 0;
+		int slotSize = verify ? 24 : 16;
+		if (capacity < 16 || (capacity & capacity - 1) != 0
+				|| (long) capacity * slotSize > Integer.MAX_VALUE || size < 0
+				|| size > capacity * LOAD_FACTOR) {
+			throw new IOException("Corrupt replica map,capacity=" + capacity
+					+ ",size=" + size);
+		}
+		long length = (long) capacity * slotSize;
+		if (position + 9 + length > channel.size()) {
+			throw new IOException("Truncated replica map");
+		}
+		ByteBuffer buffer;
+		if (mapped) {
+			buffer = channel.map(FileChannel.MapMode.PRIVATE, position + 9,
+					length);
+		} else {
+			buffer = ByteBuffer.allocate((int) length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + 9 + buffer.position()) < 0) {
+					throw new IOException("Truncated replica map");
+				}
+			}
+		}
+		return new ReplicaMap(new DirectSlots(buffer, capacity, verify), size,
+				direct, verify);
+	}
+
+	/**
+	 * Pack replica ids to a long
+	 *
+	 * @param replicas
+	 * @return
+	 */
+	public static long pack(int[] replicas) {
+		boolean list = replicas.length <= MAX_LIST_SIZE;
+		boolean bitmask = true;
+		for (int replica : replicas) {
+			if (replica < 0) {
+				throw new IllegalArgumentException("Invalid replica id:"
+						+ replica);
+			}
+			list &= replica <= MAX_LIST_ID;
+			bitmask &= replica <= MAX_BITMASK_ID;
+		}
+		if (!list && bitmask) {
+			long value = BITMASK;
+			for (int replica : replicas) {
+				value |= 1L << replica;
+			}
+			return value;
+		}
+		long value = 0;
+		int n = 0;
+		for (int i = 0; i < replicas.length && n < MAX_LIST_SIZE; i++) {
+			if (replicas[i] <= MAX_LIST_ID) {
+				value |= (replicas[i] + 1L) << (n++ * LIST_BITS);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns whether {@link #pack(int[])} keeps all of replica ids,as a list
+	 * or a bitmask
+	 *
+	 * @param replicas
+	 * @return
+	 */
+	public static boolean fits(int[] replicas) {
+		boolean list = replicas.length <= MAX_LIST_SIZE;
+		boolean bitmask = true;
+		for (int replica : replicas) {
+			list &= replica <= MAX_LIST_ID;
+			bitmask &= replica <= MAX_BITMASK_ID;
+		}
+		return list || bitmask;
+	}
+
+	/**
+	 * Returns number of replicas in packed value
+	 *
+	 * @param replicas
+	 * @return
+	 */
+	public static int count(long replicas) {
+		if ((replicas & BITMASK) != 0) {
+			return Long.bitCount(replicas & ~BITMASK);
+		}
+		int n = 0;
+		while (n < MAX_LIST_SIZE
+				&& (replicas >>> (n * LIST_BITS) & LIST_MASK) != 0) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns replica id at index of packed value
+	 *
+	 * @param replicas
+	 * @param index
+	 * @return
+	 */
+	public static int replica(long replicas, int index) {
+		if ((replicas & BITMASK) != 0) {
+			long bits = replicas & ~BITMASK;
+			for (int i = 0; i < index; i++) {
+				bits &= bits - 1;
+			}
+			return Long.numberOfTrailingZeros(bits);
+		}
+		return (int) (replicas >>> (index * LIST_BITS) & LIST_MASK) - 1;
+	}
+
+	/**
+	 * Returns whether packed value contains the replica id
+	 *
+	 * @param replicas
+	 * @param replica
+	 * @return
+	 */
+	public static boolean contains(long replicas, int replica) {
+		int count = count(replicas);
+		for (int i = 0; i < count; i++) {
+			if (replica(replicas, i) == replica) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns replica ids of packed value
+	 *
+	 * @param replicas
+	 * @return
+	 */
+	public static int[] unpack(long replicas) {
+		int[] result = new int[count(replicas)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = replica(replicas, i);
+		}
+		return result;
+	}
+
+	/**
+	 * Slots of table,capacity is power of two
+	 *
+	 * @author dennis
+	 *
+	 */
+	static abstract class Slots {
+		final int capacity;
+		final int mask;
+		final int slotSize;
+
+		Slots(int capacity, int slotSize) {
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.slotSize = slotSize;
+		}
+
+		final int indexOf(long hash) {
+			return (int) (hash ^ hash >>> 32) & this.mask;
+		}
+
+		abstract long key(int i);
+
+		abstract long value(int i);
+
+		abstract int check(int i);
+
+		abstract void set(int i, long key, long value, int check);
+
+		abstract void clear(int i);
+	}
+
+	static final class HeapSlots extends Slots {
+		/**
+		 * key and value of a slot are adjacent
+		 */
+		private final AtomicLongArray entries;
+		private final AtomicIntegerArray checks;
+
+		HeapSlots(int capacity, boolean verify) {
+			super(capacity, verify ? 20 : 16);
+			this.entries = new AtomicLongArray(capacity * 2);
+			this.checks = verify ? new AtomicIntegerArray(capacity) : null;
+		}
+
+		@Override
+		long key(int i) {
+			return this.entries.get(i << 1);
+		}
+
+		@Override
+		long value(int i) {
+			return this.entries.get((i << 1) + 1);
+		}
+
+		@Override
+		int check(int i) {
+			return this.checks == null ? 0 : this.checks.get(i);
+		}
+
+		@Override
+		void set(int i, long key, long value, int check) {
+			if (this.checks != null) {
+				this.checks.set(i, check);
+			}
+			this.entries.set((i << 1) + 1, value);
+			this.entries.set(i << 1, key);
+		}
+
+		@Override
+		void clear(int i) {
+			this.entries.set(i << 1, 0);
+			this.entries.set((i << 1) + 1, 0);
+		}
+	}
+
+	static final class DirectSlots extends Slots {
+		private final ByteBuffer buffer;
+		private final boolean verify;
+
+		DirectSlots(int capacity, boolean verify) {
+			super(capacity, verify ? 24 : 16);
+			if ((long) capacity * this.slotSize > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException(
+						"Too many keys for a direct replica map");
+			}
+			this.verify = verify;
+			this.buffer = ByteBuffer.allocateDirect(capacity * this.slotSize);
+		}
+
+		DirectSlots(ByteBuffer buffer, int capacity, boolean verify) {
+			super(capacity, verify ? 24 : 16);
+			this.verify = verify;
+			this.buffer = buffer;
+		}
+
+		@Override
+		long key(int i) {
+			return this.buffer.getLong(i * this.slotSize);
+		}
+
+		@Override
+		long value(int i) {
+			return this.buffer.getLong(i * this.slotSize + 8);
+		}
+
+		@Override
+		int check(int i) {
+			return this.verify ? this.buffer.getInt(i * this.slotSize + 16)
+					: 0;
+		}
+
+		@Override
+		void set(int i, long key, long value, int check) {
+			int offset = i * this.slotSize;
+			if (this.verify) {
+				this.buffer.putInt(offset + 16, check);
+			}
+			this.buffer.putLong(offset + 8, value);
+			this.buffer.putLong(offset, key);
+		}
+
+		@Override
+		void clear(int i) {
+			int offset = i * this.slotSize;
+			this.buffer.putLong(offset, 0);
+			this.buffer.putLong(offset + 8, 0);
+		}
+	}
+}
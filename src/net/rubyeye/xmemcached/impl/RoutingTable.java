@@ -0,0 +1,452 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Key to replicas mapping fetched from controller.Hosts are interned to
+ * replica ids and keys are stored in a compact ReplicaMap.A new version of
+ * table shares the key map of the old one and changes it in place,unless
+ * the whole mapping is replaced,so only hosts and version are snapshots.
+ * 
+ * <p>
+ * Key map is stored in a direct buffer if system property
+ * "xmemcached.routing_table.direct" is true,and keys are verified by a
+ * second hash if "xmemcached.routing_table.verify_keys" is true.
+ * </p>
+ *
+ * <p>
+ * A table could be saved to a snapshot file and loaded at startup before
+ * controller is reachable.Key map is memory mapped from the file,or read
+ * into heap if the file is read only,see {@link ReplicaMap}.
+ * </p>
+ *
+ * @author dennis
+ *
+ */
+public final class RoutingTable {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoutingTable.class);
+
+	public static final RoutingTable EMPTY = new RoutingTable(0,
+			new String[0], null, null);
+
+	static final boolean DIRECT = Boolean.parseBoolean(System.getProperty(
+			"xmemcached.routing_table.direct", "false"));
+	static final boolean VERIFY_KEYS = Boolean.parseBoolean(System
+			.getProperty("xmemcached.routing_table.verify_keys", "false"));
+
+	/**
+	 * Number of round robin cursors,keys share cursors by hash
+	 */
+	static final int CURSORS = 8192;
+
+	/**
+	 * "XMRT" and format version of snapshot file
+	 */
+	static final int SNAPSHOT_MAGIC = 0x584d5254;
+	static final int SNAPSHOT_FORMAT = 1;
+
+	private final long version;
+	private final String[] hosts;
+	private final ReplicaMap keys;
+	private final AtomicIntegerArray cursors;
+
+	private RoutingTable(long version, String[] hosts, ReplicaMap keys,
+			AtomicIntegerArray cursors) {
+		this.version = version;
+		this.hosts = hosts;
+		this.keys = keys;
+		this.cursors = cursors;
+	}
+
+	/**
+	 * Returns version of table,it is increased by every change
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Returns number of keys
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.keys == null ? 0 : this.keys.size();
+	}
+
+	/**
+	 * Returns number of hosts
+	 *
+	 * @return
+	 */
+	public int getHostCount() {
+		return this.hosts.length;
+	}
+
+	/**
+	 * Returns host of a replica id
+	 *
+	 * @param replica
+	 * @return
+	 */
+	public String getHost(int replica) {
+		return this.hosts[replica];
+	}
+
+	/**
+	 * Returns bytes used by key map
+	 *
+	 * @return
+	 */
+	public long memoryUsage() {
+		return this.keys == null ? 0 : this.keys.memoryUsage();
+	}
+
+	/**
+	 * Returns a replica id of key,-1 if key is not in table
+	 *
+	 * @param key
+	 * @param roundRobin
+	 *            round robin if true,else random
+	 * @param random
+	 * @return
+	 */
+	public int selectReplica(String key, boolean roundRobin, Random random) {
+		if (this.keys == null) {
+			return -1;
+		}
+		long hash = ReplicaMap.hash(key);
+		long replicas = this.keys.get(hash, key.hashCode());
+		int count = ReplicaMap.count(replicas);
+		if (count == 0) {
+			return -1;
+		}
+		int index;
+		if (count == 1) {
+			index = 0;
+		} else if (roundRobin) {
+			index = (this.cursors.getAndIncrement((int) hash & (CURSORS - 1)) & Integer.MAX_VALUE)
+					% count;
+		} else {
+			index = random.nextInt(count);
+		}
+		int replica = ReplicaMap.replica(replicas, index);
+		return replica < this.hosts.length ? replica : -1;
+	}
+
+	/**
+	 * Returns packed replica ids of key,see {@link ReplicaMap},ReplicaMap.NONE
+	 * if key is not in table.Ids may be out of hosts if table is changed
+	 * concurrently.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public long lookup(String key) {
+		return this.keys == null ? ReplicaMap.NONE : this.keys.get(key);
+	}
+
+	/**
+	 * Returns replica ids of key,null if key is not in table
+	 *
+	 * @param key
+	 * @return
+	 */
+	public int[] getReplicas(String key) {
+		if (this.keys == null) {
+			return null;
+		}
+		long replicas = this.keys.get(key);
+		if (replicas == ReplicaMap.NONE) {
+			return null;
+		}
+		int[] result = ReplicaMap.unpack(replicas);
+		int n = 0;
+		for (int replica : result) {
+			if (replica < this.hosts.length) {
+				result[n++] = replica;
+			}
+		}
+		if (n < result.length) {
+			int[] valid = new int[n];
+			System.arraycopy(result, 0, valid, 0, n);
+			result = valid;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns hosts of key,null if key is not in table
+	 *
+	 * @param key
+	 * @return
+	 */
+	public List<String> getHosts(String key) {
+		if (this.keys == null) {
+			return null;
+		}
+		long replicas = this.keys.get(key);
+		if (replicas == ReplicaMap.NONE) {
+			return null;
+		}
+		int count = ReplicaMap.count(replicas);
+		List<String> result = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			int replica = ReplicaMap.replica(replicas, i);
+			if (replica < this.hosts.length) {
+				result.add(this.hosts[replica]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new table with mapping of this table and the given
+	 * mapping,which overrides replicas of existing keys.If nothing is
+	 * changed,this table is returned and version is not increased.
+	 *
+	 * @param mapping
+	 *            key to hosts mapping
+	 * @return
+	 */
+	public RoutingTable merge(Map<String, List<String>> mapping) {
+		if (!this.isChanged(mapping, null)) {
+			return this;
+		}
+		return this.apply(this.version + 1, false, mapping, null);
+	}
+
+	/**
+	 * Returns a new table of the given version.If full is true,the table only
+	 * contains keys in changed and has a new key map,else changed and removed
+	 * keys are applied to the key map of this table.If nothing is
+	 * changed,key map of this table is shared as it is.
+	 *
+	 * @param version
+	 *            version of new table
+	 * @param full
+	 *            whether changed is the whole mapping
+	 * @param changed
+	 *            key to hosts mapping
+	 * @param removed
+	 *            removed keys,could be null
+	 * @return
+	 */
+	public RoutingTable apply(long version, boolean full,
+			Map<String, List<String>> changed, Collection<String> removed) {
+		if (!full && !this.isChanged(changed, removed)) {
+			return version == this.version ? this : new RoutingTable(version,
+					this.hosts, this.keys, this.cursors);
+		}
+		List<String> hostList = new ArrayList<String>(this.hosts.length);
+		Map<String, Integer> hostIds = new HashMap<String, Integer>();
+		for (String host : this.hosts) {
+			hostIds.put(host, hostList.size());
+			hostList.add(host);
+		}
+		ReplicaMap keys = this.keys;
+		AtomicIntegerArray cursors = this.cursors;
+		if (full || keys == null) {
+			keys = new ReplicaMap(changed.size(), DIRECT, VERIFY_KEYS);
+		}
+		if (cursors == null) {
+			cursors = new AtomicIntegerArray(CURSORS);
+		}
+		if (!full && removed != null) {
+			for (String key : removed) {
+				keys.remove(key);
+			}
+		}
+		for (Map.Entry<String, List<String>> entry : changed.entrySet()) {
+			List<String> hosts = entry.getValue();
+			int[] replicas = new int[hosts.size()];
+			for (int i = 0; i < replicas.length; i++) {
+				String host = hosts.get(i);
+				Integer id = hostIds.get(host);
+				if (id == null) {
+					id = hostList.size();
+					hostIds.put(host, id);
+					hostList.add(host);
+				}
+				replicas[i] = id;
+			}
+			if (!ReplicaMap.fits(replicas)) {
+				log.warn("Too many replicas of key " + entry.getKey()
+						+ ",only the first " + ReplicaMap.MAX_LIST_SIZE
+						+ " are kept:" + hosts);
+			}
+			keys.put(entry.getKey(), replicas);
+		}
+		return new RoutingTable(version, hostList
+				.toArray(new String[hostList.size()]), keys, cursors);
+	}
+
+	/**
+	 * Returns a copy of this table whose key map is not changed by later
+	 * versions,so it could be saved without blocking them
+	 *
+	 * @return
+	 */
+	public RoutingTable copy() {
+		return new RoutingTable(this.version, this.hosts,
+				this.keys == null ? null : this.keys.copy(), null);
+	}
+
+	/**
+	 * Save table to file.It is written to a temporary file in the same
+	 * directory first and then renamed,so a reader never sees a partial file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_FORMAT);
+			out.writeLong(this.version);
+			out.writeInt(this.hosts.length);
+			for (String host : this.hosts) {
+				out.writeUTF(host);
+			}
+			out.writeBoolean(this.keys != null);
+			if (this.keys != null) {
+				this.keys.writeTo(out);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// rename does not replace an existing file on some platforms
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to "
+						+ file);
+			}
+		}
+	}
+
+	/**
+	 * Load a table saved by {@link #save(File)}
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if file is not a valid snapshot
+	 */
+	public static RoutingTable load(File file) throws IOException {
+		RandomAccessFile raf;
+		boolean mapped = true;
+		try {
+			// private mapping requires a writable channel
+			raf = new RandomAccessFile(file, "rw");
+		} catch (FileNotFoundException e) {
+			raf = new RandomAccessFile(file, "r");
+			mapped = false;
+		}
+		try {
+			if (raf.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a routing table snapshot:" + file);
+			}
+			int format = raf.readInt();
+			if (format != SNAPSHOT_FORMAT) {
+				throw new IOException("Unknown snapshot format " + format
+						+ ":" + file);
+			}
+			long version = raf.readLong();
+			int hostCount = raf.readInt();
+			if (hostCount < 0 || hostCount > raf.length()) {
+				throw new IOException("Corrupt routing table snapshot:" + file);
+			}
+			String[] hosts = new String[hostCount];
+			for (int i = 0; i < hostCount; i++) {
+				hosts[i] = raf.readUTF();
+			}
+			if (!raf.readBoolean()) {
+				return new RoutingTable(version, hosts, null, null);
+			}
+			// the mapping stays valid after the file is closed
+			ReplicaMap keys = ReplicaMap.map(raf.getChannel(), raf
+					.getFilePointer(), DIRECT, mapped);
+			return new RoutingTable(version, hosts, keys,
+					new AtomicIntegerArray(CURSORS));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private boolean isChanged(Map<String, List<String>> changed,
+			Collection<String> removed) {
+		if (this.keys == null) {
+			return !changed.isEmpty();
+		}
+		if (removed != null) {
+			for (String key : removed) {
+				if (this.keys.get(key) != ReplicaMap.NONE) {
+					return true;
+				}
+			}
+		}
+		// compare packed values,so bitmask replicas are compared as a set and
+		// truncated ones as they were stored
+		Map<String, Integer> hostIds = null;
+		for (Map.Entry<String, List<String>> entry : changed.entrySet()) {
+			List<String> hosts = entry.getValue();
+			if (hostIds == null && !hosts.isEmpty()) {
+				hostIds = new HashMap<String, Integer>();
+				for (int i = 0; i < this.hosts.length; i++) {
+					hostIds.put(this.hosts[i], i);
+				}
+			}
+			int[] replicas = new int[hosts.size()];
+			for (int i = 0; i < replicas.length; i++) {
+				Integer id = hostIds.get(hosts.get(i));
+				if (id == null) {
+					return true;
+				}
+				replicas[i] = id;
+			}
+			if (ReplicaMap.pack(replicas) != this.keys.get(entry.getKey())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Selects sessions by load instead of uniformly at random.Two random
+ * candidates are compared and the less loaded one wins(power of two
+ * choices),if there are no more than three candidates all of them are
+ * compared,starting from a random one so that ties are broken
+ * randomly.Load of a session is given by
+ * {@link MemcachedTCPSession#getLoad()},a closed session is never preferred
+ * to an open one.
+ *
+ * @author dennis
+ *
+ */
+final class SessionSelector {
+
+	private SessionSelector() {
+	}
+
+	/**
+	 * Returns load of session,Long.MAX_VALUE if it is closed
+	 *
+	 * @param session
+	 * @return
+	 */
+	static long load(Session session) {
+		if (session.isClosed()) {
+			return Long.MAX_VALUE;
+		}
+		if (session instanceof MemcachedTCPSession) {
+			return ((MemcachedTCPSession) session).getLoad();
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the less loaded session,the first one if they are equal,null
+	 * sessions are ignored
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	static Session better(Session first, Session second) {
+		if (first == null) {
+			return second;
+		}
+		if (second == null) {
+			return first;
+		}
+		return load(second) < load(first) ? second : first;
+	}
+
+	/**
+	 * Select a session of list,null if it is null or empty
+	 *
+	 * @param sessions
+	 * @param random
+	 * @return
+	 */
+	static Session select(List<Session> sessions, Random random) {
+		if (sessions == null) {
+			return null;
+		}
+		int size = sessions.size();
+		switch (size) {
+		case 0:
+			return null;
+		case 1:
+			return sessions.get(0);
+		case 2:
+			int start = random.nextInt(2);
+			return better(sessions.get(start), sessions.get(1 - start));
+		case 3:
+			start = random.nextInt(3);
+			return better(better(sessions.get(start), sessions
+					.get((start + 1) % 3)), sessions.get((start + 2) % 3));
+		default:
+			int first = random.nextInt(size);
+			int second = random.nextInt(size - 1);
+			if (second >= first) {
+				second++;
+			}
+			return better(sessions.get(first), sessions.get(second));
+		}
+	}
+
+	/**
+	 * Select a session of sessions[from,from+count),count must be greater
+	 * than 0
+	 *
+	 * @param sessions
+	 * @param from
+	 * @param count
+	 * @param random
+	 * @return
+	 */
+	static Session select(Session[] sessions, int from, int count,
+			Random random) {
+		switch (count) {
+		case 1:
+			return sessions[from];
+		case 2:
+			int start = random.nextInt(2);
+			return better(sessions[from + start], sessions[from + 1 - start]);
+		case 3:
+			start = random.nextInt(3);
+			return better(better(sessions[from + start], sessions[from
+					+ (start + 1) % 3]), sessions[from + (start + 2) % 3]);
+		default:
+			int first = random.nextInt(count);
+			int second = random.nextInt(count - 1);
+			if (second >= first) {
+				second++;
+			}
+			return better(sessions[from + first], sessions[from + second]);
+		}
+	}
+}
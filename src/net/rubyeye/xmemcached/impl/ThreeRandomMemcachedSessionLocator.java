@@ -5,28 +5,69 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.ReplicaMemcachedSessionLocator;
 import net.rubyeye.xmemcached.networking.MemcachedSession;
 
 import com.google.code.yanf4j.core.Session;
 
-public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSessionLocator {
-	
+/**
+ * Session locator which stores copyNum copies of a key on different hosts.
+ *
+ * <p>
+ * In RENDEZVOUS placement(the default),replicas of a key are the copyNum hosts
+ * of highest rendezvous score,so every client agrees on them and nothing is
+ * stored per key.Sets go to the replicas in turn and gets go to a random
+ * replica.In RANDOM placement,every set of a key adds a random host until
+ * copyNum hosts are recorded for it,and gets go to one of recorded hosts.
+ * </p>
+ */
+public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSessionLocator implements
+		ReplicaMemcachedSessionLocator {
+
+	/**
+	 * How replica hosts of a key are chosen
+	 */
+	public enum Placement {
+		/**
+		 * Hosts of highest rendezvous score of the key,no state per key
+		 */
+		RENDEZVOUS,
+		/**
+		 * Random hosts recorded per key by this JVM
+		 */
+		RANDOM
+	}
+
+	/**
+	 * Number of cursors to turn sets to replicas,keys share cursors by hash
+	 */
+	static final int CURSORS = 1024;
+
 	private HashAlgorithm hashAlgorighm;
 	private transient volatile List<List<Session>> sessions;
-	
+
+	/**
+	 * Store key to multiple server mapping of RANDOM placement,servers are
+	 * host ids
+	 */
+	private static final ReplicaMap keyHostMap = new ReplicaMap(16,
+			RoutingTable.DIRECT, RoutingTable.VERIFY_KEYS);
+
+	/**
+	 * Host to host id,ids are never reused
+	 */
+	private static final Map<String, Integer> hostIds = new HashMap<String, Integer>();
+
 	/**
-	 * Store key to multiple server mapping
+	 * Hosts which have sessions
 	 */
-	private static volatile ConcurrentHashMap<String, Vector<String>> keyHostMap = new ConcurrentHashMap<String, Vector<String>>();;
+	private transient volatile Hosts hosts = new Hosts(new int[0], new long[0], newSessionsArray(0));
 
-	private HashMap<String, List<Session>> hostSessionMap;
-	private Vector<String> hosts;
-	
 	/**
 	 * Last session accessed. aka. Last server accessed!
 	 */
@@ -36,25 +77,36 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 	 * Number of copies to replicate
 	 */
 	private int copyNum;
-	
+
+	private final Placement placement;
+
+	private final AtomicIntegerArray cursors = new AtomicIntegerArray(CURSORS);
+
 	public ThreeRandomMemcachedSessionLocator(int copyNum) {
-		this.hashAlgorighm = HashAlgorithm.NATIVE_HASH;
-		this.copyNum = copyNum;
-		hostSessionMap = new HashMap<String, List<Session>>();
-		hosts = new Vector<String>();
+		this(HashAlgorithm.NATIVE_HASH, copyNum);
 	}
 
 	public ThreeRandomMemcachedSessionLocator(HashAlgorithm hashAlgorighm, int copyNum) {
+		this(hashAlgorighm, copyNum, Placement.RENDEZVOUS);
+	}
+
+	public ThreeRandomMemcachedSessionLocator(HashAlgorithm hashAlgorighm, int copyNum, Placement placement) {
+		if (placement == null) {
+			throw new IllegalArgumentException("Null placement");
+		}
 		this.hashAlgorighm = hashAlgorighm;
 		this.copyNum = copyNum;
-		hostSessionMap = new HashMap<String, List<Session>>();
-		hosts = new Vector<String>();
+		this.placement = placement;
 	}
-	
+
 	public final void setHashAlgorighm(HashAlgorithm hashAlgorighm) {
 		this.hashAlgorighm = hashAlgorighm;
 	}
 
+	public final Placement getPlacement() {
+		return this.placement;
+	}
+
 	public final long getHash(int size, String key) {
 		long hash = this.hashAlgorighm.hash(key);
 		return hash % size;
@@ -68,81 +120,276 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 	 * Else pick session by hashing
 	 */
 	public final Session getSessionByKey(final String key, boolean isSet) {
-		if (this.sessions == null || this.sessions.size() == 0) {
-			return null;
-		}
 		// Copy on read
 		List<List<Session>> sessionList = this.sessions;
-		int size = sessionList.size();
-		if (size == 0) {
+		if (sessionList == null || sessionList.size() == 0) {
 			return null;
 		}
-		
+
+		if (this.placement == Placement.RENDEZVOUS) {
+			Session session = this.getReplicaSession(key, isSet);
+			return session != null ? session : this.getSessionByHash(sessionList, key);
+		}
+
 		/**
 		 * Get a key, find random session from key session list
 		 */
 		if (isSet == false) {
-			Vector<String> hostVector = keyHostMap.get(key);
-			List<Session> sessions = hostSessionMap.get(hostVector.get(rand.nextInt(hostVector.size())));
-			return sessions.get(rand.nextInt(sessions.size()));
+			Session session = this.getRecordedSession(keyHostMap.get(key));
+			/**
+			 * Not recorded,it is where the first set of the key goes
+			 */
+			return session != null ? session : this.getSessionByHash(sessionList, key);
 		} else {
 			/**
 			 * Set a key, find a new session if copyNum is not reached.
 			 */
-			Vector<String> hostVector = keyHostMap.get(key);
+			long replicas = keyHostMap.get(key);
+			int count = ReplicaMap.count(replicas);
+			Hosts hosts = this.hosts;
 			/**
 			 * Not stored in any session, find a random session
 			 */
-			if (hostVector == null) {
-				long start = this.getHash(size, key);
-				List<Session> sessions = sessionList.get((int)start);
-				Session session = getRandomSession(sessions);
-				
-				// If it is not failure mode,get next available session
-				if (!this.failureMode && (session == null || session.isClosed())) {
-					long next = this.getNext(size, start);
-					while ((session == null || session.isClosed()) && next != start) {
-						sessions = sessionList.get((int) next);
-						next = this.getNext(size, next);
-						session = getRandomSession(sessions);
-					}
+			if (count == 0) {
+				Session session = this.getSessionByHash(sessionList, key);
+				if (session != null) {
+					keyHostMap.put(key, new int[] { hostId(session.getRemoteSocketAddress().getAddress().getHostAddress()) });
 				}
-				
-				
-				hostVector = new Vector<String>();
-				hostVector.add(session.getRemoteSocketAddress().getAddress().getHostAddress());
-				keyHostMap.put(key, hostVector);
-				
 				return session;
-			} else if (hostVector.size() < copyNum && copyNum <= sessionList.size()) {
-				String hostname = hosts.get(rand.nextInt(hosts.size()));
-				
-				while (hostVector.contains(hostname) == true) {
-					hostname = hosts.get(rand.nextInt(hosts.size()));
+			} else if (count < copyNum && copyNum <= sessionList.size() && count < hosts.ids.length) {
+				int host = hosts.ids[rand.nextInt(hosts.ids.length)];
+
+				while (ReplicaMap.contains(replicas, host) == true) {
+					host = hosts.ids[rand.nextInt(hosts.ids.length)];
 				}
-				
-				hostVector.add(hostname);
-				List<Session> sessions = hostSessionMap.get(hostname);
-				return sessions.get(rand.nextInt(sessions.size()));
+
+				int[] newReplicas = new int[count + 1];
+				for (int i = 0; i < count; i++) {
+					newReplicas[i] = ReplicaMap.replica(replicas, i);
+				}
+				newReplicas[count] = host;
+				keyHostMap.put(key, newReplicas);
+				return getRandomSession(hosts.getSessions(host));
 			} else {
-				String hostname = hostVector.get(rand.nextInt(hostVector.size()));
-				List<Session> sessions = hostSessionMap.get(hostname);
-				return sessions.get(rand.nextInt(sessions.size()));
+				Session session = this.getRecordedSession(replicas);
+				return session != null ? session : this.getSessionByHash(sessionList, key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the less loaded of two available sessions of recorded hosts
+	 * starting from a random one,null if there is none
+	 */
+	private Session getRecordedSession(long replicas) {
+		int count = ReplicaMap.count(replicas);
+		if (count == 0) {
+			return null;
+		}
+		Hosts hosts = this.hosts;
+		int start = rand.nextInt(count);
+		Session result = null;
+		for (int i = 0, candidates = 0; i < count && candidates < 2; i++) {
+			Session session = getRandomSession(hosts.getSessions(ReplicaMap.replica(replicas, (start + i) % count)));
+			if (session != null && (this.failureMode || !session.isClosed())) {
+				result = SessionSelector.better(result, session);
+				candidates++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a session of the copyNum hosts of highest rendezvous score,sets
+	 * go to the replicas in turn,gets go to the less loaded of two replicas
+	 * starting from a random one.If no replica is available,returns null.
+	 */
+	private Session getReplicaSession(String key, boolean isSet) {
+		Hosts hosts = this.hosts;
+		int n = Math.min(this.copyNum, hosts.ids.length);
+		if (n <= 0) {
+			return null;
+		}
+		long keyHash = this.hashAlgorighm.hash(key);
+		int[] top = topHosts(hosts, keyHash, n);
+		int start;
+		int candidates;
+		if (isSet) {
+			start = (this.cursors.getAndIncrement((int) keyHash & (CURSORS - 1)) & Integer.MAX_VALUE) % n;
+			candidates = 1;
+		} else {
+			start = rand.nextInt(n);
+			candidates = 2;
+		}
+		Session result = null;
+		for (int i = 0; i < n && candidates > 0; i++) {
+			Session session = getRandomSession(hosts.getSessions(hosts.ids[top[(start + i) % n]]));
+			if (session != null && (this.failureMode || !session.isClosed())) {
+				result = SessionSelector.better(result, session);
+				candidates--;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns indexes of n hosts of highest rendezvous score,in score order
+	 */
+	private static int[] topHosts(Hosts hosts, long keyHash, int n) {
+		long[] seeds = hosts.seeds;
+		int[] top = new int[n];
+		long[] topScores = new long[n];
+		int found = 0;
+		for (int i = 0; i < seeds.length; i++) {
+			long score = ElectionMemcachedSessionLocator.mix(seeds[i] ^ keyHash) >>> 1;
+			if (found == n && score <= topScores[n - 1]) {
+				continue;
+			}
+			int j = found < n ? found++ : n - 1;
+			while (j > 0 && topScores[j - 1] < score) {
+				topScores[j] = topScores[j - 1];
+				top[j] = top[j - 1];
+				j--;
+			}
+			topScores[j] = score;
+			top[j] = i;
+		}
+		return top;
+	}
+
+	/**
+	 * Returns one session of every replica host of the key.In RANDOM
+	 * placement,new random hosts are recorded for sets until copyNum hosts
+	 * are recorded,the first one is where the first set goes,and only
+	 * recorded hosts are returned for gets.
+	 */
+	public final List<Session> getReplicaSessions(final String key, boolean isSet) {
+		List<List<Session>> sessionList = this.sessions;
+		if (sessionList == null || sessionList.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Hosts hosts = this.hosts;
+		int n = Math.min(this.copyNum, hosts.ids.length);
+		List<Session> result = new ArrayList<Session>(Math.max(n, 1));
+		if (this.placement == Placement.RENDEZVOUS) {
+			if (n > 0) {
+				for (int index : topHosts(hosts, this.hashAlgorighm.hash(key), n)) {
+					addSession(result, hosts.getSessions(hosts.ids[index]));
+				}
+			}
+		} else {
+			long replicas = keyHostMap.get(key);
+			int count = ReplicaMap.count(replicas);
+			int[] recorded = new int[Math.max(count, n)];
+			for (int i = 0; i < count; i++) {
+				recorded[i] = ReplicaMap.replica(replicas, i);
+			}
+			if (count == 0 && n > 0) {
+				Session session = this.getSessionByHash(sessionList, key);
+				if (session != null) {
+					recorded[count++] = hostId(session.getRemoteSocketAddress().getAddress().getHostAddress());
+				}
+			}
+			int recordedCount = count;
+			while (isSet && count < n) {
+				int host = hosts.ids[rand.nextInt(hosts.ids.length)];
+				boolean duplicated = false;
+				for (int i = 0; i < count; i++) {
+					duplicated |= recorded[i] == host;
+				}
+				if (!duplicated) {
+					recorded[count++] = host;
+				}
+			}
+			if (isSet && (count != recordedCount || ReplicaMap.count(replicas) == 0)) {
+				int[] newReplicas = new int[count];
+				System.arraycopy(recorded, 0, newReplicas, 0, count);
+				keyHostMap.put(key, newReplicas);
+			}
+			for (int i = 0; i < count; i++) {
+				addSession(result, hosts.getSessions(recorded[i]));
 			}
 		}
+		if (result.isEmpty()) {
+			Session session = this.getSessionByHash(sessionList, key);
+			if (session != null) {
+				result.add(session);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add a random open session of the host,or a closed one if all are closed
+	 */
+	private void addSession(List<Session> result, List<Session> sessions) {
+		Session session = getRandomSession(sessions);
+		if (session == null) {
+			return;
+		}
+		if (session.isClosed()) {
+			for (Session candidate : sessions) {
+				if (!candidate.isClosed()) {
+					session = candidate;
+					break;
+				}
+			}
+		}
+		result.add(session);
+	}
+
+	/**
+	 * Pick session by hash,or the next available one if it is not in failure
+	 * mode
+	 */
+	private Session getSessionByHash(List<List<Session>> sessionList, String key) {
+		int size = sessionList.size();
+		long start = this.getHash(size, key);
+		List<Session> sessions = sessionList.get((int)start);
+		Session session = getRandomSession(sessions);
+
+		// If it is not failure mode,get next available session
+		if (!this.failureMode && (session == null || session.isClosed())) {
+			long next = this.getNext(size, start);
+			while ((session == null || session.isClosed()) && next != start) {
+				sessions = sessionList.get((int) next);
+				next = this.getNext(size, next);
+				session = getRandomSession(sessions);
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Returns id of host,a new id is assigned to an unknown host
+	 */
+	static int hostId(String host) {
+		synchronized (hostIds) {
+			Integer id = hostIds.get(host);
+			if (id == null) {
+				id = hostIds.size();
+				hostIds.put(host, id);
+			}
+			return id;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Session>[] newSessionsArray(int size) {
+		return (List<Session>[]) new List<?>[size];
 	}
 
-	
 	public int findSessionNumByKey(final String key) {
 		List<List<Session>> sessionList = this.sessions;
 		int size = sessionList.size();
 		return (int)(this.getHash(size, key));
 	}
-	
+
+	/**
+	 * Returns a session of the host by load
+	 */
 	private Session getRandomSession(List<Session> sessions) {
-		if (sessions == null || sessions.isEmpty())
-			return null;
-		return sessions.get(rand.nextInt(sessions.size()));
+		return SessionSelector.select(sessions, rand);
 	}
 
 	public final long getNext(int size, long start) {
@@ -155,6 +402,7 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 
 	public final void updateSessions(final Collection<Session> list) {
 		if (list == null || list.isEmpty()) {
+			this.hosts = new Hosts(new int[0], new long[0], newSessionsArray(0));
 			this.sessions = Collections.emptyList();
 			return;
 		}
@@ -171,7 +419,7 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 				if (session.getRemoteSocketAddress().equals(
 						target.getRemoteSocketAddress())) {
 					subList.add(session);
-				} else {					
+				} else {
 					tmpList.add(subList);
 					target = session;
 					subList = new ArrayList<Session>();
@@ -187,15 +435,28 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 
 		List<List<Session>> newSessions = new ArrayList<List<Session>>(
 				tmpList.size() * 2);
-		
-		
+
+		List<Session>[] newHostSessions = newSessionsArray(0);
+		List<Integer> newHosts = new ArrayList<Integer>();
+		List<String> newHostNames = new ArrayList<String>();
+
 		for (List<Session> sessions : tmpList) {
 			if (sessions != null && !sessions.isEmpty()) {
 				Session session = sessions.get(0);
-				
-				hostSessionMap.put(session.getRemoteSocketAddress().getAddress().getHostAddress(), sessions);
-				hosts.add(session.getRemoteSocketAddress().getAddress().getHostAddress());
-				
+
+				String hostName = session.getRemoteSocketAddress().getAddress().getHostAddress();
+				int host = hostId(hostName);
+				if (host >= newHostSessions.length) {
+					List<Session>[] expanded = newSessionsArray(host + 1);
+					System.arraycopy(newHostSessions, 0, expanded, 0, newHostSessions.length);
+					newHostSessions = expanded;
+				}
+				if (newHostSessions[host] == null) {
+					newHosts.add(host);
+					newHostNames.add(hostName);
+				}
+				newHostSessions[host] = sessions;
+
 				if (session instanceof MemcachedTCPSession) {
 					int weight = ((MemcachedSession) session).getWeight();
 					for (int i = 0; i < weight; i++) {
@@ -207,6 +468,13 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 			}
 
 		}
+		int[] hostArray = new int[newHosts.size()];
+		long[] seeds = new long[hostArray.length];
+		for (int i = 0; i < hostArray.length; i++) {
+			hostArray[i] = newHosts.get(i);
+			seeds[i] = ElectionMemcachedSessionLocator.seed(newHostNames.get(i));
+		}
+		this.hosts = new Hosts(hostArray, seeds, newHostSessions);
 		this.sessions = newSessions;
 	}
 
@@ -219,7 +487,29 @@ public class ThreeRandomMemcachedSessionLocator extends AbstractMemcachedSession
 
 	@Override
 	public void stop() {
-		
+
+	}
+
+	/**
+	 * Hosts which have sessions,with their rendezvous seeds
+	 */
+	static final class Hosts {
+		final int[] ids;
+		final long[] seeds;
+		/**
+		 * Sessions of host id,null if the host has no session
+		 */
+		final List<Session>[] sessions;
+
+		Hosts(int[] ids, long[] seeds, List<Session>[] sessions) {
+			this.ids = ids;
+			this.seeds = seeds;
+			this.sessions = sessions;
+		}
+
+		List<Session> getSessions(int host) {
+			return host < this.sessions.length ? this.sessions[host] : null;
+		}
 	}
 
 }
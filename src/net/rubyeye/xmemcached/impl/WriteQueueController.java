@@ -0,0 +1,251 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.WriteQueueOverflowPolicy;
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import com.google.code.yanf4j.nio.impl.Reactor;
+
+/**
+ * Back pressure for session write queues.It limits queued commands and bytes
+ * of every session,and the bytes queued by all sessions of a client.The
+ * limits are soft,concurrent writers may exceed them by a few commands.
+ * 
+ * @author dennis
+ * 
+ */
+public class WriteQueueController {
+
+	private volatile int maxQueuedCommands;
+	private volatile long maxQueuedBytes;
+	private volatile long maxInFlightBytes;
+	private volatile WriteQueueOverflowPolicy policy = WriteQueueOverflowPolicy.BLOCK;
+	private volatile long blockTimeout = MemcachedClient.DEFAULT_OP_TIMEOUT;
+
+	private final AtomicLong inFlightBytes = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = this.lock.newCondition();
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	/**
+	 * Returns true if any limit is configured
+	 * 
+	 * @return
+	 */
+	public final boolean isLimited() {
+		return this.maxQueuedCommands > 0 || this.maxQueuedBytes > 0
+				|| this.maxInFlightBytes > 0;
+	}
+
+	/**
+	 * Make sure there is room for the encoded command in session's write
+	 * queue,apply overflow policy if not.
+	 * 
+	 * @param session
+	 * @param command
+	 * @throws MemcachedException
+	 *             if the command is rejected
+	 */
+	public void acquire(MemcachedTCPSession session, Command command)
+			throws MemcachedException {
+		final BoundedWriteQueue queue = session.getBoundedWriteQueue();
+		if (queue == null || command.getIoBuffer() == null) {
+			return;
+		}
+		final long size = command.getIoBuffer().remaining();
+		if (!this.isFull(queue, size)) {
+			return;
+		}
+		switch (this.policy) {
+		case DROP_OLDEST_NOREPLY:
+			while (this.isFull(queue, size)) {
+				if (!session.dropOldestNoreplyCommand()) {
+					this.reject(session, "is full");
+				}
+				this.droppedCount.incrementAndGet();
+			}
+			break;
+		case BLOCK:
+			if (Thread.currentThread() instanceof Reactor) {
+				// never block reactor
+				this.reject(session, "is full");
+			}
+			this.await(session, queue, size);
+			break;
+		default:
+			this.reject(session, "is full");
+		}
+	}
+
+	private void await(MemcachedTCPSession session, BoundedWriteQueue queue,
+			long size) throws MemcachedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(this.blockTimeout);
+		this.waiters.incrementAndGet();
+		this.lock.lock();
+		try {
+			while (this.isFull(queue, size)) {
+				if (nanos <= 0 || session.isClosed()) {
+					this.reject(session, "is still full after waiting "
+							+ this.blockTimeout + " ms");
+				}
+				nanos = this.notFull.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MemcachedException(
+					"Interrupted while waiting for write queue", e);
+		} finally {
+			this.lock.unlock();
+			this.waiters.decrementAndGet();
+		}
+	}
+
+	private void reject(MemcachedTCPSession session, String reason)
+			throws MemcachedException {
+		this.rejectedCount.incrementAndGet();
+		throw new MemcachedException("Write queue of session(" + session
+				+ ") " + reason + ",queued commands="
+				+ session.getBoundedWriteQueue().size() + ",queued bytes="
+				+ session.getBoundedWriteQueue().getQueuedBytes()
+				+ ",client in-flight bytes=" + this.inFlightBytes.get());
+	}
+
+	private boolean isFull(BoundedWriteQueue queue, long size) {
+		final int maxCommands = this.maxQueuedCommands;
+		if (maxCommands > 0 && queue.size() >= maxCommands) {
+			return true;
+		}
+		// a command larger than the limit is allowed when queue is empty
+		final long maxBytes = this.maxQueuedBytes;
+		if (maxBytes > 0) {
+			final long queued = queue.getQueuedBytes();
+			if (queued > 0 && queued + size > maxBytes) {
+				return true;
+			}
+		}
+		final long maxInFlight = this.maxInFlightBytes;
+		if (maxInFlight > 0) {
+			final long inFlight = this.inFlightBytes.get();
+			if (inFlight > 0 && inFlight + size > maxInFlight) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	final void acquired(long size) {
+		this.inFlightBytes.addAndGet(size);
+	}
+
+	final void released(long size) {
+		this.inFlightBytes.addAndGet(-size);
+		if (this.waiters.get() > 0) {
+			this.lock.lock();
+			try {
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	public final int getMaxQueuedCommands() {
+		return this.maxQueuedCommands;
+	}
+
+	/**
+	 * Max commands waiting in a session's write queue,zero or negative means
+	 * no limit.
+	 * 
+	 * @param maxQueuedCommands
+	 */
+	public final void setMaxQueuedCommands(int maxQueuedCommands) {
+		this.maxQueuedCommands = maxQueuedCommands;
+	}
+
+	public final long getMaxQueuedBytes() {
+		return this.maxQueuedBytes;
+	}
+
+	/**
+	 * Max bytes waiting in a session's write queue,zero or negative means no
+	 * limit.
+	 * 
+	 * @param maxQueuedBytes
+	 */
+	public final void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public final long getMaxInFlightBytes() {
+		return this.maxInFlightBytes;
+	}
+
+	/**
+	 * Max bytes waiting in all write queues of the client,zero or negative
+	 * means no limit.
+	 * 
+	 * @param maxInFlightBytes
+	 */
+	public final void setMaxInFlightBytes(long maxInFlightBytes) {
+		this.maxInFlightBytes = maxInFlightBytes;
+	}
+
+	public final WriteQueueOverflowPolicy getPolicy() {
+		return this.policy;
+	}
+
+	public final void setPolicy(WriteQueueOverflowPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Null overflow policy");
+		}
+		this.policy = policy;
+	}
+
+	public final long getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	/**
+	 * Max time in milliseconds to wait for room when policy is BLOCK
+	 * 
+	 * @param blockTimeout
+	 */
+	public final void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	public final long getInFlightBytes() {
+		return this.inFlightBytes.get();
+	}
+
+	public final long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	public final long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+}
@@ -0,0 +1,410 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copies of hot keys.Gets responded by servers are counted in
+ * MemcachedHandler by a sliding window count-min sketch,a key whose estimated
+ * QPS reaches the threshold is promoted,and it's value is kept for a
+ * sub-second ttl,so gets of it are served locally.It is demoted when it's
+ * QPS falls under half of the threshold.Gets served locally are counted
+ * too,so a key stays promoted while it is hot.
+ * 
+ * <p>
+ * Window is split into buckets which are cleared in turn,so QPS is estimated
+ * over the last window at the granularity of a bucket,and demotion is
+ * checked whenever a bucket is cleared.At most maxKeys keys are
+ * promoted.Writes of this client drop local copies of their keys,and a get
+ * which was sent before a write or a promotion does not fill the copy,see
+ * {@link #stamp()}.
+ * </p>
+ * 
+ * @author dennis
+ * 
+ */
+public class HotKeyCache implements HotKeyCacheMBean {
+	private static final Logger log = LoggerFactory
+			.getLogger(HotKeyCache.class);
+
+	public static final int DEFAULT_THRESHOLD = 1000;
+	public static final int DEFAULT_MAX_KEYS = 64;
+	public static final long DEFAULT_TTL = 200;
+	public static final long DEFAULT_WINDOW = 1000;
+
+	/**
+	 * Stamp which is never taken,put with it is always ignored
+	 */
+	public static final long NO_STAMP = -1;
+
+	static final int BUCKETS = 4;
+	static final int DEPTH = 2;
+	static final int WIDTH = 4096;
+
+	private final int maxKeys;
+	private final long ttl;
+	private final long window;
+	private final long bucketMillis;
+	private volatile int threshold;
+	private final Bucket[] buckets = new Bucket[BUCKETS];
+	private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<String, HotKey>();
+	private final AtomicLong promotions = new AtomicLong();
+	private final AtomicLong demotions = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * Increased by every invalidation of a promoted key and every promotion
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public HotKeyCache() {
+		this(DEFAULT_THRESHOLD, DEFAULT_MAX_KEYS, DEFAULT_TTL, DEFAULT_WINDOW,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 
+	 * @param threshold
+	 *            QPS which a key is promoted at
+	 * @param maxKeys
+	 *            max number of promoted keys
+	 * @param ttl
+	 *            time to live of a local copy,it should be sub-second
+	 * @param window
+	 *            window which QPS is estimated in
+	 * @param unit
+	 *            unit of ttl and window
+	 */
+	public HotKeyCache(int threshold, int maxKeys, long ttl, long window,
+			TimeUnit unit) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException(
+					"threshold must be greater than 0");
+		}
+		if (maxKeys <= 0) {
+			throw new IllegalArgumentException("maxKeys must be greater than 0");
+		}
+		if (ttl <= 0 || unit.toMillis(window) < BUCKETS) {
+			throw new IllegalArgumentException("Invalid ttl or window");
+		}
+		this.threshold = threshold;
+		this.maxKeys = maxKeys;
+		this.ttl = unit.toMillis(ttl);
+		this.window = unit.toMillis(window);
+		this.bucketMillis = this.window / BUCKETS;
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Record a get of key
+	 * 
+	 * @param key
+	 */
+	public final void record(String key) {
+		this.record(key, 1);
+	}
+
+	/**
+	 * Record gets of key,promote it if it's QPS reaches the threshold
+	 * 
+	 * @param key
+	 * @param count
+	 *            number of gets
+	 */
+	public final void record(String key, int count) {
+		long tick = System.currentTimeMillis() / this.bucketMillis;
+		Bucket bucket = this.buckets[(int) (tick % BUCKETS)];
+		if (bucket.tick != tick) {
+			this.rotate(bucket, tick);
+		}
+		int hash = HotKeySampler.mix(key.hashCode());
+		int step = HotKeySampler.mix(hash) | 1;
+		bucket.add(hash, step, count);
+		if (!this.hotKeys.containsKey(key)
+				&& this.estimate(hash, step, tick) * 1000 >= (long) this.threshold
+						* this.window) {
+			this.promote(key, hash, step);
+		}
+	}
+
+	/**
+	 * Whether key is promoted
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public final boolean isHot(String key) {
+		return this.hotKeys.containsKey(key);
+	}
+
+	/**
+	 * Returns local copy of a promoted key,null if key is not promoted or it's
+	 * copy is expired.A hit is recorded as a get of key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public final CachedData get(String key) {
+		HotKey hotKey = this.hotKeys.get(key);
+		if (hotKey == null) {
+			return null;
+		}
+		Value value = hotKey.value;
+		if (value == null || System.currentTimeMillis() >= value.expiresAt) {
+			return null;
+		}
+		this.hits.incrementAndGet();
+		this.record(key);
+		return new CachedData(value.flag, value.data);
+	}
+
+	/**
+	 * Returns invalidation stamp,which must be taken before a get is sent and
+	 * passed to {@link #put(String, CachedData, long)} with it's result.
+	 * 
+	 * @return
+	 */
+	public final long stamp() {
+		return this.invalidations.get();
+	}
+
+	/**
+	 * Keep a local copy of data if key is promoted.It is ignored if any
+	 * promoted key is invalidated or a key is promoted since stamp was
+	 * taken,because the data may be older than a write of this client.
+	 * 
+	 * @param key
+	 * @param data
+	 * @param stamp
+	 *            stamp taken before get is sent
+	 */
+	public final void put(String key, CachedData data, long stamp) {
+		HotKey hotKey = this.hotKeys.get(key);
+		if (hotKey == null || this.invalidations.get() != stamp) {
+			return;
+		}
+		byte[] bytes = data.getData();
+		if (bytes == null) {
+			return;
+		}
+		if (bytes.length != data.getSize()) {
+			byte[] copy = new byte[data.getSize()];
+			System.arraycopy(bytes, 0, copy, 0, copy.length);
+			bytes = copy;
+		}
+		Value value = new Value(data.getFlag(), bytes, System
+				.currentTimeMillis()
+				+ this.ttl);
+		synchronized (hotKey) {
+			// invalidations drop copy after increasing stamp
+			if (this.invalidations.get() == stamp) {
+				hotKey.value = value;
+			}
+		}
+	}
+
+	/**
+	 * Drop local copy of key,it stays promoted
+	 * 
+	 * @param key
+	 */
+	public final void invalidate(String key) {
+		HotKey hotKey = this.hotKeys.get(key);
+		if (hotKey != null) {
+			this.invalidations.incrementAndGet();
+			synchronized (hotKey) {
+				hotKey.value = null;
+			}
+		}
+	}
+
+	/**
+	 * Drop all local copies
+	 */
+	public final void clear() {
+		this.invalidations.incrementAndGet();
+		for (HotKey hotKey : this.hotKeys.values()) {
+			synchronized (hotKey) {
+				hotKey.value = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns promoted keys
+	 * 
+	 * @return
+	 */
+	public final List<String> getHotKeys() {
+		return new ArrayList<String>(this.hotKeys.keySet());
+	}
+
+	public String[] getHotKeyStats() {
+		long tick = System.currentTimeMillis() / this.bucketMillis;
+		List<String> result = new ArrayList<String>();
+		for (HotKey hotKey : this.hotKeys.values()) {
+			result.add(hotKey.key + "="
+					+ this.estimate(hotKey.hash, hotKey.step, tick) * 1000
+					/ this.window);
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public final long getPromotionCount() {
+		return this.promotions.get();
+	}
+
+	public final long getDemotionCount() {
+		return this.demotions.get();
+	}
+
+	public final long getHitCount() {
+		return this.hits.get();
+	}
+
+	public final int getThreshold() {
+		return this.threshold;
+	}
+
+	public final void setThreshold(int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException(
+					"threshold must be greater than 0");
+		}
+		this.threshold = threshold;
+	}
+
+	public final int getMaxKeys() {
+		return this.maxKeys;
+	}
+
+	public final long getTtl() {
+		return this.ttl;
+	}
+
+	public final long getWindow() {
+		return this.window;
+	}
+
+	private void promote(String key, int hash, int step) {
+		if (this.hotKeys.size() >= this.maxKeys) {
+			return;
+		}
+		// a get sent before promotion may miss invalidation of the key
+		this.invalidations.incrementAndGet();
+		if (this.hotKeys.putIfAbsent(key, new HotKey(key, hash, step)) == null) {
+			this.promotions.incrementAndGet();
+			log.info("Promote hot key " + key);
+		}
+	}
+
+	/**
+	 * Clear a bucket for a new tick,the thread which clears it checks
+	 * demotion
+	 */
+	private void rotate(Bucket bucket, long tick) {
+		synchronized (bucket) {
+			if (bucket.tick >= tick) {
+				return;
+			}
+			for (int i = 0; i < bucket.counters.length(); i++) {
+				bucket.counters.set(i, 0);
+			}
+			bucket.tick = tick;
+		}
+		for (Map.Entry<String, HotKey> entry : this.hotKeys.entrySet()) {
+			HotKey hotKey = entry.getValue();
+			if (this.estimate(hotKey.hash, hotKey.step, tick) * 2000 < (long) this.threshold
+					* this.window
+					&& this.hotKeys.remove(entry.getKey(), hotKey)) {
+				this.demotions.incrementAndGet();
+				log.info("Demote hot key " + hotKey.key);
+			}
+		}
+	}
+
+	/**
+	 * Returns estimated gets of the last window
+	 */
+	private long estimate(int hash, int step, long tick) {
+		long sum = 0;
+		for (Bucket bucket : this.buckets) {
+			if (tick - bucket.tick < BUCKETS) {
+				sum += bucket.get(hash, step);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Count-min sketch of a bucket of window
+	 */
+	static final class Bucket {
+		final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH
+				* WIDTH);
+		volatile long tick = -1;
+
+		void add(int hash, int step, int count) {
+			for (int i = 0; i < DEPTH; i++) {
+				this.counters.addAndGet(i * WIDTH
+						+ ((hash + i * step) & (WIDTH - 1)), count);
+			}
+		}
+
+		int get(int hash, int step) {
+			int count = Integer.MAX_VALUE;
+			for (int i = 0; i < DEPTH; i++) {
+				count = Math.min(count, this.counters.get(i * WIDTH
+						+ ((hash + i * step) & (WIDTH - 1))));
+			}
+			return count;
+		}
+	}
+
+	static final class HotKey {
+		final String key;
+		final int hash;
+		final int step;
+		volatile Value value;
+
+		HotKey(String key, int hash, int step) {
+			this.key = key;
+			this.hash = hash;
+			this.step = step;
+		}
+	}
+
+	static final class Value {
+		final int flag;
+		final byte[] data;
+		final long expiresAt;
+
+		Value(int flag, byte[] data, long expiresAt) {
+			this.flag = flag;
+			this.data = data;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.monitor;
+
+/**
+ * Hot key cache MBean for jmx
+ * 
+ * @author dennis
+ * 
+ */
+public interface HotKeyCacheMBean {
+	/**
+	 * Returns promoted keys with their estimated QPS,as "key=qps"
+	 * 
+	 * @return
+	 */
+	public String[] getHotKeyStats();
+
+	public long getPromotionCount();
+
+	public long getDemotionCount();
+
+	/**
+	 * Returns number of gets served locally
+	 * 
+	 * @return
+	 */
+	public long getHitCount();
+
+	/**
+	 * Returns QPS which a key is promoted at
+	 * 
+	 * @return
+	 */
+	public int getThreshold();
+
+	public void setThreshold(int threshold);
+
+	public int getMaxKeys();
+
+	/**
+	 * Returns ttl of local copies in milliseconds
+	 * 
+	 * @return
+	 */
+	public long getTtl();
+
+	/**
+	 * Returns window of QPS estimation in milliseconds
+	 * 
+	 * @return
+	 */
+	public long getWindow();
+}
@@ -0,0 +1,288 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sampler of hot keys in get path.One of sampleRate accesses is counted by a
+ * count-min sketch,and keys of the highest estimated counts are kept in a
+ * small table,both are updated by CAS only,so the sampler never locks.Every
+ * window the table is turned into the top K keys with their estimated
+ * QPS,which are reported to controller by ArrayMemcachedSessionLocator and
+ * exposed by JMX.
+ * 
+ * @author dennis
+ * 
+ */
+public class HotKeySampler implements HotKeySamplerMBean {
+	public static final int DEFAULT_TOP_K = 32;
+	public static final int DEFAULT_SAMPLE_RATE = 8;
+	public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+	/**
+	 * Rows and columns of count-min sketch
+	 */
+	static final int DEPTH = 4;
+	static final int WIDTH = 4096;
+
+	private static final ThreadLocal<int[]> SEEDS = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int seed = (int) System.nanoTime()
+					^ System.identityHashCode(Thread.currentThread());
+			return new int[] { seed == 0 ? 1 : seed };
+		}
+	};
+
+	private final int topK;
+	private final int sampleRate;
+	private final int sampleMask;
+	private final int windowSeconds;
+	private final long windowNanos;
+	private final AtomicReference<Window> window;
+	private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+	public HotKeySampler() {
+		this(DEFAULT_TOP_K, DEFAULT_SAMPLE_RATE, DEFAULT_WINDOW_SECONDS);
+	}
+
+	/**
+	 * 
+	 * @param topK
+	 *            number of hot keys
+	 * @param sampleRate
+	 *            one of sampleRate accesses is counted,must be a power of 2
+	 * @param windowSeconds
+	 *            length of window which QPS is estimated in
+	 */
+	public HotKeySampler(int topK, int sampleRate, int windowSeconds) {
+		if (topK <= 0) {
+			throw new IllegalArgumentException("topK must be greater than 0");
+		}
+		if (sampleRate <= 0 || (sampleRate & (sampleRate - 1)) != 0) {
+			throw new IllegalArgumentException(
+					"sampleRate must be a power of 2,but was " + sampleRate);
+		}
+		if (windowSeconds <= 0) {
+			throw new IllegalArgumentException(
+					"windowSeconds must be greater than 0");
+		}
+		this.topK = topK;
+		this.sampleRate = sampleRate;
+		this.sampleMask = sampleRate - 1;
+		this.windowSeconds = windowSeconds;
+		this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+		this.window = new AtomicReference<Window>(new Window(System
+				.nanoTime(), topK * 2));
+	}
+
+	/**
+	 * Record an access of key
+	 * 
+	 * @param key
+	 */
+	public final void sample(String key) {
+		if (this.sampleMask != 0 && (nextRandom() & this.sampleMask) != 0) {
+			return;
+		}
+		Window w = this.window.get();
+		long now = System.nanoTime();
+		if (now - w.start >= this.windowNanos) {
+			w = this.rotate(w, now);
+		}
+		w.add(key);
+	}
+
+	/**
+	 * Returns hot keys of last window to their estimated QPS,in descending
+	 * order of QPS
+	 * 
+	 * @return
+	 */
+	public final Map<String, Long> getHotKeys() {
+		Window w = this.window.get();
+		long now = System.nanoTime();
+		if (now - w.start >= this.windowNanos) {
+			this.rotate(w, now);
+		}
+		return this.hotKeys;
+	}
+
+	public String[] getHotKeyStats() {
+		Map<String, Long> keys = this.getHotKeys();
+		String[] result = new String[keys.size()];
+		int i = 0;
+		for (Map.Entry<String, Long> entry : keys.entrySet()) {
+			result[i++] = entry.getKey() + "=" + entry.getValue();
+		}
+		return result;
+	}
+
+	public final int getTopK() {
+		return this.topK;
+	}
+
+	public final int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	public final int getWindowSeconds() {
+		return this.windowSeconds;
+	}
+
+	/**
+	 * Start a new window,and compute hot keys of the old one.Only the thread
+	 * which replaces the window computes them.
+	 */
+	private Window rotate(Window old, long now) {
+		Window next = new Window(now, this.topK * 2);
+		if (!this.window.compareAndSet(old, next)) {
+			return this.window.get();
+		}
+		// duplicated slots of a key are possible when it is inserted
+		// concurrently,keep the max one
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < old.slots.length(); i++) {
+			HotKey hotKey = old.slots.get(i);
+			if (hotKey != null) {
+				Integer count = counts.get(hotKey.key);
+				if (count == null || count < hotKey.count) {
+					counts.put(hotKey.key, hotKey.count);
+				}
+			}
+		}
+		List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(
+				counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> o1,
+					Map.Entry<String, Integer> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		double seconds = (double) (now - old.start) / TimeUnit.SECONDS.toNanos(1);
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Integer> entry : entries) {
+			if (result.size() >= this.topK) {
+				break;
+			}
+			result.put(entry.getKey(), Math.round(entry.getValue()
+					* (double) this.sampleRate / seconds));
+		}
+		this.hotKeys = Collections.unmodifiableMap(result);
+		return next;
+	}
+
+	private static int nextRandom() {
+		int[] seed = SEEDS.get();
+		int x = seed[0];
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		seed[0] = x;
+		return x;
+	}
+
+	/**
+	 * Murmur3 finalizer
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	static final class HotKey {
+		final String key;
+		final int hash;
+		final int count;
+
+		HotKey(String key, int hash, int count) {
+			this.key = key;
+			this.hash = hash;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Sketch and candidate hot keys of a window
+	 */
+	static final class Window {
+		final long start;
+		final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH
+				* WIDTH);
+		final AtomicReferenceArray<HotKey> slots;
+
+		Window(long start, int capacity) {
+			this.start = start;
+			this.slots = new AtomicReferenceArray<HotKey>(capacity);
+		}
+
+		void add(String key) {
+			int hash = mix(key.hashCode());
+			// double hashing,rows use hash + i * step
+			int step = mix(hash) | 1;
+			int count = Integer.MAX_VALUE;
+			for (int i = 0; i < DEPTH; i++) {
+				int index = i * WIDTH + ((hash + i * step) & (WIDTH - 1));
+				count = Math.min(count, this.counters.incrementAndGet(index));
+			}
+			this.offer(key, hash, count);
+		}
+
+		/**
+		 * Put key into slots if it is there already or it's count is greater
+		 * than the min count of slots,a CAS lost to another thread is simply
+		 * dropped,next sample of the key tries again.
+		 */
+		private void offer(String key, int hash, int count) {
+			int minIndex = -1;
+			HotKey min = null;
+			for (int i = 0; i < this.slots.length(); i++) {
+				HotKey hotKey = this.slots.get(i);
+				if (hotKey == null) {
+					this.slots.compareAndSet(i, null, new HotKey(key, hash,
+							count));
+					return;
+				}
+				if (hotKey.hash == hash && hotKey.key.equals(key)) {
+					if (hotKey.count < count) {
+						this.slots.compareAndSet(i, hotKey, new HotKey(key,
+								hash, count));
+					}
+					return;
+				}
+				if (min == null || hotKey.count < min.count) {
+					min = hotKey;
+					minIndex = i;
+				}
+			}
+			if (min != null && min.count < count) {
+				this.slots.compareAndSet(minIndex, min, new HotKey(key, hash,
+						count));
+			}
+		}
+	}
+}
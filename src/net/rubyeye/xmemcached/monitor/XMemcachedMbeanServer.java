@@ -194,4 +194,17 @@ public final class XMemcachedMbeanServer {
 			}
 		}
 	}
+
+	public void unregisterMBean(String name) {
+		if (mbserver != null) {
+			try {
+				ObjectName objectName = new ObjectName(name);
+				if (mbserver.isRegistered(objectName)) {
+					mbserver.unregisterMBean(objectName);
+				}
+			} catch (Exception e) {
+				log.error("Unregister MBean " + name + " error", e);
+			}
+		}
+	}
 }
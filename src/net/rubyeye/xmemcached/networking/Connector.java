@@ -32,6 +32,7 @@ import java.util.concurrent.Future;
 
 import net.rubyeye.xmemcached.MemcachedSessionLocator;
 import net.rubyeye.xmemcached.buffer.BufferAllocator;
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 import net.rubyeye.xmemcached.command.Command;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.impl.ReconnectRequest;
@@ -52,6 +53,12 @@ public interface Connector extends Controller {
 
 	public void setMergeFactor(int factor);
 
+	public void setGatheringWrite(boolean gatheringWrite);
+
+	public void setValueBufferPool(ValueBufferPool valueBufferPool);
+
+	public ValueBufferPool getValueBufferPool();
+
 	public void setOptimizeGet(boolean optimizeGet);
 
 	public void removeSession(Session session);
@@ -68,10 +75,29 @@ public interface Connector extends Controller {
 
 	public void send(Command packet, boolean isSet) throws MemcachedException;
 
+	/**
+	 * Send command to the session,or it's standby session if it is closed
+	 */
+	public void send(Command packet, Session session) throws MemcachedException;
+
+	/**
+	 * Returns a session of every replica of the key
+	 */
+	public List<Session> findReplicaSessionsByKey(String key, boolean isSet);
+
+	/**
+	 * Returns a session of another replica of the key,whose address is not
+	 * the address of excluded session,null if there is none
+	 */
+	public Session findAlternateSessionByKey(String key, Session excluded);
+
 	public void setConnectionPoolSize(int connectionPoolSize);
 
 	public void setBufferAllocator(BufferAllocator bufferAllocator);
 
+	@SuppressWarnings("deprecation")
+	public BufferAllocator getBufferAllocator();
+
 	public void removeReconnectRequest(InetSocketAddress address);
 
 	public void addToWatingQueue(ReconnectRequest request);
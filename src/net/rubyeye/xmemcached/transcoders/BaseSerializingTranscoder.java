@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -91,21 +92,46 @@ public abstract class BaseSerializingTranscoder {
 	 * Get the object represented by the given serialized bytes.
 	 */
 	protected Object deserialize(byte[] in) {
+		if (in == null) {
+			return null;
+		}
+		return deserialize(in, 0, in.length);
+	}
+
+	/**
+	 * Deserialize object from the buffer's remaining bytes without copying
+	 * them if the buffer has an accessible array.
+	 * 
+	 * @param in
+	 * @return
+	 */
+	protected Object deserialize(ByteBuffer in) {
+		if (in == null) {
+			return null;
+		}
+		if (in.hasArray()) {
+			return deserialize(in.array(), in.arrayOffset() + in.position(),
+					in.remaining());
+		}
+		return deserialize(toByteArray(in));
+	}
+
+	protected Object deserialize(byte[] in, int offset, int length) {
 		Object rv = null;
 		ByteArrayInputStream bis = null;
 		ObjectInputStream is = null;
 		try {
 			if (in != null) {
-				bis = new ByteArrayInputStream(in);
+				bis = new ByteArrayInputStream(in, offset, length);
 				is = new ObjectInputStream(bis);
 				rv = is.readObject();
 
 			}
 		} catch (IOException e) {
-			log.error("Caught IOException decoding " + in.length
+			log.error("Caught IOException decoding " + length
 					+ " bytes of data", e);
 		} catch (ClassNotFoundException e) {
-			log.error("Caught CNFE decoding " + in.length + " bytes of data", e);
+			log.error("Caught CNFE decoding " + length + " bytes of data", e);
 		} finally {
 			if (is != null) {
 				try {
@@ -203,19 +229,45 @@ public abstract class BaseSerializingTranscoder {
 	 * @return null if the bytes cannot be decompressed
 	 */
 	protected byte[] decompress(byte[] in) {
+		if (in == null) {
+			return null;
+		}
+		return decompress(in, 0, in.length);
+	}
+
+	/**
+	 * Decompress the buffer's remaining bytes without copying them if the
+	 * buffer has an accessible array.
+	 * 
+	 * @param in
+	 * @return
+	 */
+	protected byte[] decompress(ByteBuffer in) {
+		if (in == null) {
+			return null;
+		}
+		if (in.hasArray()) {
+			return decompress(in.array(), in.arrayOffset() + in.position(),
+					in.remaining());
+		}
+		return decompress(toByteArray(in));
+	}
+
+	protected byte[] decompress(byte[] in, int offset, int length) {
 		switch (this.compressMode) {
 		case GZIP:
-			return gzipDecompress(in);
+			return gzipDecompress(in, offset, length);
 		case ZIP:
-			return zipDecompress(in);
+			return zipDecompress(in, offset, length);
 		default:
-			return gzipDecompress(in);
+			return gzipDecompress(in, offset, length);
 		}
 	}
 
-	private byte[] zipDecompress(byte[] in) {
-		int size = in.length * COMPRESS_RATIO;
-		ByteArrayInputStream bais = new ByteArrayInputStream(in);
+	private byte[] zipDecompress(byte[] in, int offset, int length) {
+		int size = length * COMPRESS_RATIO;
+		ByteArrayInputStream bais = new ByteArrayInputStream(in, offset,
+				length);
 		InflaterInputStream is = new InflaterInputStream(bais);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
 		try {
@@ -253,10 +305,11 @@ public abstract class BaseSerializingTranscoder {
 		return baos == null ? null : baos.toByteArray();
 	}
 
-	private byte[] gzipDecompress(byte[] in) {
+	private byte[] gzipDecompress(byte[] in, int offset, int length) {
 		ByteArrayOutputStream bos = null;
 		if (in != null) {
-			ByteArrayInputStream bis = new ByteArrayInputStream(in);
+			ByteArrayInputStream bis = new ByteArrayInputStream(in, offset,
+					length);
 			bos = new ByteArrayOutputStream();
 			GZIPInputStream gis = null;
 			try {
@@ -305,6 +358,43 @@ public abstract class BaseSerializingTranscoder {
 		return rv;
 	}
 
+	/**
+	 * Decode the string in buffer's remaining bytes with the current
+	 * character set,the buffer's position is not changed.
+	 */
+	protected String decodeString(ByteBuffer data) {
+		String rv = null;
+		try {
+			if (data != null) {
+				if (data.hasArray()) {
+					rv = new String(data.array(), data.arrayOffset()
+							+ data.position(), data.remaining(), this.charset);
+				} else {
+					rv = new String(toByteArray(data), this.charset);
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return rv;
+	}
+
+	/**
+	 * Copy the buffer's remaining bytes to a new byte array,the buffer's
+	 * position is not changed.
+	 * 
+	 * @param data
+	 * @return
+	 */
+	protected static final byte[] toByteArray(ByteBuffer data) {
+		if (data == null) {
+			return null;
+		}
+		byte[] result = new byte[data.remaining()];
+		data.duplicate().get(result);
+		return result;
+	}
+
 	/**
 	 * Encode a string into the current character set.
 	 */
@@ -0,0 +1,39 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.transcoders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transcoder which could decode a value from a ByteBuffer,so values read into
+ * pooled buffers are decoded without copying to a byte array,see
+ * ValueBufferPool.Values of other transcoders are copied to a byte array and
+ * decoded by {@link Transcoder#decode(CachedData)}.
+ * 
+ * @author dennis
+ * 
+ */
+public interface ByteBufferTranscoder<T> extends Transcoder<T> {
+
+	/**
+	 * Decode the data between buffer's position and limit into the object it
+	 * represents.The buffer may be a pooled buffer that is reused after this
+	 * method returns,so the result must not keep any reference to it.
+	 * 
+	 * @param flag
+	 *            the flags stored along with the data
+	 * @param data
+	 *            the data
+	 * @return the return value
+	 */
+	T decode(int flag, ByteBuffer data);
+}
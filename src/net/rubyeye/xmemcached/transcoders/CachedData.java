@@ -4,9 +4,19 @@ package net.rubyeye.xmemcached.transcoders;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import net.rubyeye.xmemcached.buffer.ValueBufferPool;
 
 /**
  * Cached data with its attributes.
+ * 
+ * <p>
+ * Data read from memcached may be stored in a buffer acquired from a
+ * ValueBufferPool instead of a byte array,see {@link #allocate(int,
+ * ValueBufferPool)}.Such data must be released by {@link #release()} after
+ * decoding,every {@link #retain()} requires one more release.
+ * </p>
  */
 public final class CachedData {
 
@@ -22,20 +32,115 @@ public final class CachedData {
 
 	private int size = 0;
 
+	private ByteBuffer buffer;
+	private ValueBufferPool pool;
+	private volatile int refCount = 1;
+
+	private static final AtomicIntegerFieldUpdater<CachedData> REF_COUNT_UPDATER = AtomicIntegerFieldUpdater
+			.newUpdater(CachedData.class, "refCount");
+
 	public final int getSize() {
 		return this.size;
 	}
 
+	/**
+	 * Set capacity and allocate storage for data,use a pooled buffer if pool
+	 * is not null and capacity is pooled.
+	 * 
+	 * @param capacity
+	 * @param pool
+	 */
+	public final void allocate(int capacity, ValueBufferPool pool) {
+		this.capacity = capacity;
+		ByteBuffer pooled = pool != null ? pool.acquire(capacity) : null;
+		if (pooled != null) {
+			this.buffer = pooled;
+			this.pool = pool;
+			this.data = null;
+		} else {
+			setData(new byte[capacity]);
+		}
+	}
+
 	public final void fillData(ByteBuffer buffer, int offset, int length) {
-		buffer.get(this.data, offset, length);
+		if (this.buffer != null) {
+			ByteBuffer dst = this.buffer.duplicate();
+			dst.position(offset);
+			fillBuffer(dst, buffer, length);
+		} else {
+			buffer.get(this.data, offset, length);
+		}
 		this.size += length;
 	}
 
 	public final void fillData(ByteBuffer buffer, int length) {
-		buffer.get(this.data, this.size, length);
+		if (this.buffer != null) {
+			fillBuffer(this.buffer, buffer, length);
+		} else {
+			buffer.get(this.data, this.size, length);
+		}
 		this.size += length;
 	}
 
+	private static void fillBuffer(ByteBuffer dst, ByteBuffer src, int length) {
+		int limit = src.limit();
+		src.limit(src.position() + length);
+		dst.put(src);
+		src.limit(limit);
+	}
+
+	/**
+	 * Returns true if data is stored in a pooled buffer
+	 * 
+	 * @return
+	 */
+	public final boolean isPooled() {
+		return this.buffer != null;
+	}
+
+	/**
+	 * Returns data as a ByteBuffer from position 0 to size.A pooled buffer is
+	 * returned without copy and is only valid until this data is
+	 * released,otherwise the byte array is wrapped.
+	 * 
+	 * @return
+	 */
+	public final ByteBuffer getByteBuffer() {
+		ByteBuffer pooled = this.buffer;
+		if (pooled != null) {
+			ByteBuffer result = pooled.duplicate();
+			result.position(0);
+			result.limit(this.size);
+			return result;
+		}
+		if (this.data == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(this.data, 0, this.size);
+	}
+
+	/**
+	 * Increase reference count,one more release is required.
+	 */
+	public final void retain() {
+		REF_COUNT_UPDATER.incrementAndGet(this);
+	}
+
+	/**
+	 * Decrease reference count,return the pooled buffer to pool when it is
+	 * zero.It is safe to release a data that is not pooled.
+	 */
+	public final void release() {
+		if (REF_COUNT_UPDATER.decrementAndGet(this) == 0) {
+			ByteBuffer pooled = this.buffer;
+			if (pooled != null) {
+				this.buffer = null;
+				this.pool.release(pooled);
+				this.pool = null;
+			}
+		}
+	}
+
 	public final int getCapacity() {
 		return this.capacity;
 	}
@@ -63,6 +168,7 @@ public final class CachedData {
 							+ data.length + " byte object)");
 		}
 		this.data = data;
+		this.buffer = null;
 	}
 
 	public final void setCas(long cas) {
@@ -114,9 +220,18 @@ public final class CachedData {
 	}
 
 	/**
-	 * Get the stored data.
+	 * Get the stored data.A pooled buffer is copied to a new byte array.
 	 */
 	public final byte[] getData() {
+		ByteBuffer pooled = this.buffer;
+		if (this.data == null && pooled != null) {
+			byte[] copy = new byte[this.size];
+			ByteBuffer src = pooled.duplicate();
+			src.position(0);
+			src.limit(this.size);
+			src.get(copy);
+			this.data = copy;
+		}
 		return this.data;
 	}
 
@@ -130,7 +245,7 @@ public final class CachedData {
 	@Override
 	public String toString() {
 		return "{CachedData flags=" + this.flag + " data="
-				+ Arrays.toString(this.data) + "}";
+				+ Arrays.toString(getData()) + "}";
 	}
 
 	public int remainingCapacity() {
@@ -0,0 +1,153 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.transcoders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of transcoders which write an envelope of fixed length before values
+ * of another transcoder and set a bit in flags,flags of the wrapped
+ * transcoder are kept unchanged in the lower 16 bits.Values without the bit
+ * are decoded by the wrapped transcoder as they are.
+ * 
+ * @author dennis
+ * 
+ */
+abstract class EnvelopeTranscoder<T> implements ByteBufferTranscoder<T> {
+
+	private final Transcoder<T> transcoder;
+
+	private final int bit;
+
+	private final int length;
+
+	EnvelopeTranscoder(Transcoder<T> transcoder, int bit, int length) {
+		if (transcoder == null) {
+			throw new IllegalArgumentException("Null transcoder");
+		}
+		this.transcoder = transcoder;
+		this.bit = bit;
+		this.length = length;
+	}
+
+	public final Transcoder<T> getTranscoder() {
+		return this.transcoder;
+	}
+
+	/**
+	 * Returns data positioned at its envelope,null if it has no envelope
+	 * 
+	 * @param data
+	 * @param bit
+	 * @param length
+	 * @return
+	 */
+	static ByteBuffer envelope(CachedData data, int bit, int length) {
+		if ((data.getFlag() & bit) == 0) {
+			return null;
+		}
+		ByteBuffer buffer = data.getByteBuffer();
+		if (buffer == null || buffer.remaining() < length) {
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Encode a value by the wrapped transcoder with an empty envelope before
+	 * it,subclasses write the envelope at the beginning of returned data.
+	 * 
+	 * @param o
+	 * @return
+	 */
+	final CachedData wrap(T o) {
+		CachedData data = this.transcoder.encode(o);
+		byte[] value = data.getData();
+		int valueLength = value == null ? 0 : value.length;
+		byte[] wrapped = new byte[this.length + valueLength];
+		if (valueLength > 0) {
+			System.arraycopy(value, 0, wrapped, this.length, valueLength);
+		}
+		return new CachedData(data.getFlag() | this.bit, wrapped,
+				wrapped.length, -1);
+	}
+
+	public T decode(CachedData d) {
+		int flag = d.getFlag();
+		if ((flag & this.bit) == 0) {
+			return this.transcoder.decode(d);
+		}
+		if (d.isPooled()) {
+			return this.decode(flag, d.getByteBuffer());
+		}
+		byte[] data = d.getData();
+		if (data == null || data.length < this.length) {
+			return null;
+		}
+		byte[] value = new byte[data.length - this.length];
+		System.arraycopy(data, this.length, value, 0, value.length);
+		return this.transcoder.decode(new CachedData(flag & ~this.bit, value,
+				value.length, d.getCas()));
+	}
+
+	public T decode(int flag, ByteBuffer data) {
+		if ((flag & this.bit) == 0) {
+			return this.decodeValue(flag, data);
+		}
+		if (data.remaining() < this.length) {
+			return null;
+		}
+		ByteBuffer value = data.duplicate();
+		value.position(value.position() + this.length);
+		return this.decodeValue(flag & ~this.bit, value);
+	}
+
+	/**
+	 * Decode a value by the wrapped transcoder,it is copied to a byte array if
+	 * the wrapped transcoder could not decode a ByteBuffer.
+	 */
+	@SuppressWarnings("unchecked")
+	private T decodeValue(int flag, ByteBuffer value) {
+		if (this.transcoder instanceof ByteBufferTranscoder) {
+			return ((ByteBufferTranscoder<T>) this.transcoder).decode(flag,
+					value);
+		}
+		byte[] bytes = new byte[value.remaining()];
+		value.duplicate().get(bytes);
+		return this.transcoder.decode(new CachedData(flag, bytes,
+				bytes.length, -1));
+	}
+
+	public void setPrimitiveAsString(boolean primitiveAsString) {
+		this.transcoder.setPrimitiveAsString(primitiveAsString);
+	}
+
+	public void setPackZeros(boolean packZeros) {
+		this.transcoder.setPackZeros(packZeros);
+	}
+
+	public void setCompressionThreshold(int to) {
+		this.transcoder.setCompressionThreshold(to);
+	}
+
+	public boolean isPrimitiveAsString() {
+		return this.transcoder.isPrimitiveAsString();
+	}
+
+	public boolean isPackZeros() {
+		return this.transcoder.isPackZeros();
+	}
+
+	public void setCompressionMode(CompressionMode compressMode) {
+		this.transcoder.setCompressionMode(compressMode);
+	}
+}
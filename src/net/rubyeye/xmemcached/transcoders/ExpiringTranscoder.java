@@ -0,0 +1,154 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.transcoders;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Transcoder which wraps values of another transcoder in an envelope of
+ * their expiry and the time spent to compute them,so read-through gets
+ * could recompute a value before it expires,see
+ * MemcachedClient#get(String,int,long,Transcoder,CacheLoader).The envelope
+ * is written before the value and the EXPIRING bit is set in flags,flags of
+ * the wrapped transcoder are kept unchanged in the lower 16 bits.Values
+ * which are not wrapped are decoded by the wrapped transcoder as they are.
+ * 
+ * <p>
+ * A read-through get recomputes a value early with probability given by
+ * XFetch,if now + delta * beta * -ln(random) reaches the expiry,where delta
+ * is the compute time.So a value is refreshed by a few readers shortly
+ * before it expires instead of being missed by all of them at the same
+ * time,and the more expensive it is the earlier it is refreshed.A larger
+ * beta favors earlier refreshing,default is 1.0.
+ * </p>
+ * 
+ * <p>
+ * Values encoded by {@link #encode(Object)} have no expiry and are never
+ * recomputed early.Servers must store 32 bits flags,and readers of wrapped
+ * values must use this transcoder.
+ * </p>
+ * 
+ * @author dennis
+ * 
+ */
+public class ExpiringTranscoder<T> extends EnvelopeTranscoder<T> {
+
+	public static final int EXPIRING = 1 << 17;
+
+	public static final double DEFAULT_BETA = 1.0;
+
+	/**
+	 * Expiry in milliseconds and compute time in milliseconds
+	 */
+	private static final int ENVELOPE_LENGTH = 12;
+
+	/**
+	 * Expiration greater than it is an absolute unix time,see memcached
+	 * protocol
+	 */
+	private static final int MAX_RELATIVE_EXP = 60 * 60 * 24 * 30;
+
+	private static final Random RANDOM = new Random();
+
+	private final double beta;
+
+	public ExpiringTranscoder(Transcoder<T> transcoder) {
+		this(transcoder, DEFAULT_BETA);
+	}
+
+	public ExpiringTranscoder(Transcoder<T> transcoder, double beta) {
+		super(transcoder, EXPIRING, ENVELOPE_LENGTH);
+		if (beta <= 0) {
+			throw new IllegalArgumentException("beta must be positive");
+		}
+		this.beta = beta;
+	}
+
+	public final double getBeta() {
+		return this.beta;
+	}
+
+	/**
+	 * Returns expiry of a value in milliseconds,0 if it has no expiry or it is
+	 * not wrapped
+	 * 
+	 * @param data
+	 * @return
+	 */
+	public static long getExpiry(CachedData data) {
+		ByteBuffer buffer = envelope(data, EXPIRING, ENVELOPE_LENGTH);
+		return buffer == null ? 0 : buffer.getLong(buffer.position());
+	}
+
+	/**
+	 * Returns milliseconds spent to compute a value,0 if it is not wrapped
+	 * 
+	 * @param data
+	 * @return
+	 */
+	public static int getDelta(CachedData data) {
+		ByteBuffer buffer = envelope(data, EXPIRING, ENVELOPE_LENGTH);
+		return buffer == null ? 0 : buffer.getInt(buffer.position() + 8);
+	}
+
+	/**
+	 * Returns true if a value should be recomputed now,it is random and the
+	 * probability grows as the value approaches its expiry.
+	 * 
+	 * @param data
+	 * @return
+	 */
+	public boolean isExpiringEarly(CachedData data) {
+		long expiry = getExpiry(data);
+		if (expiry <= 0) {
+			return false;
+		}
+		double gap = getDelta(data) * this.beta
+				* -Math.log(1.0 - RANDOM.nextDouble());
+		return System.currentTimeMillis() + gap >= expiry;
+	}
+
+	/**
+	 * Encode a value with its expiration and compute time
+	 * 
+	 * @param o
+	 * @param exp
+	 *            expiration in seconds as memcached protocol,0 means never
+	 *            expire
+	 * @param delta
+	 *            milliseconds spent to compute the value
+	 * @return
+	 */
+	public CachedData encode(T o, int exp, long delta) {
+		long expiry;
+		if (exp <= 0) {
+			expiry = 0;
+		} else if (exp > MAX_RELATIVE_EXP) {
+			expiry = exp * 1000L;
+		} else {
+			expiry = System.currentTimeMillis() + exp * 1000L;
+		}
+		return this.wrap(o, expiry, (int) Math.min(Math.max(delta, 0),
+				Integer.MAX_VALUE));
+	}
+
+	public CachedData encode(T o) {
+		return this.wrap(o, 0, 0);
+	}
+
+	private CachedData wrap(T o, long expiry, int delta) {
+		CachedData data = this.wrap(o);
+		ByteBuffer.wrap(data.getData()).putLong(expiry).putInt(delta);
+		return data;
+	}
+}
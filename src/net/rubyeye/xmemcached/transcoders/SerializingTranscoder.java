@@ -2,13 +2,14 @@
 
 package net.rubyeye.xmemcached.transcoders;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
  * Transcoder that serializes and compresses objects.
  */
 public class SerializingTranscoder extends BaseSerializingTranscoder implements
-		Transcoder<Object> {
+		ByteBufferTranscoder<Object> {
 
 	public void setPackZeros(boolean packZeros) {
 		this.transcoderUtils.setPackZeros(packZeros);
@@ -76,6 +77,9 @@ public class SerializingTranscoder extends BaseSerializingTranscoder implements
 	 * @see net.spy.memcached.Transcoder#decode(net.spy.memcached.CachedData)
 	 */
 	public final Object decode(CachedData d) {
+		if (d.isPooled()) {
+			return decode(d.getFlag(), d.getByteBuffer());
+		}
 		byte[] data = d.getData();
 
 		int flags = d.getFlag();
@@ -86,9 +90,37 @@ public class SerializingTranscoder extends BaseSerializingTranscoder implements
 		return decode0(d,data, flags);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.rubyeye.xmemcached.transcoders.ByteBufferTranscoder#decode(int,
+	 * java.nio.ByteBuffer)
+	 */
+	public final Object decode(int flag, ByteBuffer data) {
+		if (data == null) {
+			return decode0(flag, null, flag & SPECIAL_MASK);
+		}
+		if ((flag & COMPRESSED) != 0) {
+			return decode0(flag, decompress(data), flag & SPECIAL_MASK);
+		}
+		int flags = flag & SPECIAL_MASK;
+		if ((flag & SERIALIZED) != 0) {
+			return deserialize(data);
+		}
+		if (flags == 0) {
+			return decodeString(data);
+		}
+		// primitive types are small,byte array must be copied anyway
+		return decode0(flag, toByteArray(data), flags);
+	}
+
 	protected final Object decode0(CachedData cachedData,byte[] data, int flags) {
+		return decode0(cachedData.getFlag(), data, flags);
+	}
+
+	protected final Object decode0(int flag, byte[] data, int flags) {
 		Object rv = null;
-		if ((cachedData.getFlag() & SERIALIZED) != 0 && data != null) {
+		if ((flag & SERIALIZED) != 0 && data != null) {
 			rv = deserialize(data);
 		} else {
 			if (this.primitiveAsString) {
@@ -1,6 +1,7 @@
 package net.rubyeye.xmemcached.transcoders;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * String Transcoder
@@ -8,7 +9,8 @@ import java.io.UnsupportedEncodingException;
  * @author dennis
  * 
  */
-public class StringTranscoder extends PrimitiveTypeTranscoder<String> {
+public class StringTranscoder extends PrimitiveTypeTranscoder<String>
+		implements ByteBufferTranscoder<String> {
 
 	private String charset = BaseSerializingTranscoder.DEFAULT_CHARSET;
 
@@ -21,6 +23,9 @@ public class StringTranscoder extends PrimitiveTypeTranscoder<String> {
 	}
 
 	public String decode(CachedData d) {
+		if (d.isPooled()) {
+			return decode(d.getFlag(), d.getByteBuffer());
+		}
 		if (d.getFlag() == 0) {
 			String rv = null;
 			try {
@@ -36,6 +41,28 @@ public class StringTranscoder extends PrimitiveTypeTranscoder<String> {
 		}
 	}
 
+	public String decode(int flag, ByteBuffer data) {
+		if (flag == 0) {
+			String rv = null;
+			try {
+				if (data != null) {
+					if (data.hasArray()) {
+						rv = new String(data.array(), data.arrayOffset()
+								+ data.position(), data.remaining(),
+								this.charset);
+					} else {
+						rv = new String(toByteArray(data), this.charset);
+					}
+				}
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			return rv;
+		} else {
+			throw new RuntimeException("Decode String error");
+		}
+	}
+
 	public static final int STRING_FLAG = 0;
 
 	public CachedData encode(String o) {
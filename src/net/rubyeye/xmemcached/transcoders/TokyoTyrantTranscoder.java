@@ -22,6 +22,8 @@
  */
 package net.rubyeye.xmemcached.transcoders;
 
+import java.nio.ByteBuffer;
+
 import net.rubyeye.xmemcached.exception.MemcachedDecodeException;
 
 /**
@@ -30,7 +32,7 @@ import net.rubyeye.xmemcached.exception.MemcachedDecodeException;
  * @author boyan
  * 
  */
-public class TokyoTyrantTranscoder implements Transcoder<Object> {
+public class TokyoTyrantTranscoder implements ByteBufferTranscoder<Object> {
 	private final SerializingTranscoder serializingTranscoder;
 
 	public TokyoTyrantTranscoder(int maxSize) {
@@ -44,6 +46,12 @@ public class TokyoTyrantTranscoder implements Transcoder<Object> {
 	}
 
 	public final Object decode(CachedData d) {
+		if (d.isPooled()) {
+			ByteBuffer data = d.getByteBuffer();
+			Object rv = decode(d.getFlag(), data);
+			d.setFlag(data.getInt(data.position()));
+			return rv;
+		}
 		byte[] compositeData = d.getData();
 		if (compositeData.length <= 4)
 			throw new MemcachedDecodeException(
@@ -62,6 +70,16 @@ public class TokyoTyrantTranscoder implements Transcoder<Object> {
 		flag = flag & SerializingTranscoder.SPECIAL_MASK;
 		return serializingTranscoder.decode0(d, realData, flag);
 	}
+
+	public final Object decode(int flag, ByteBuffer data) {
+		if (data.remaining() <= 4)
+			throw new MemcachedDecodeException(
+					"There are no four bytes before value for TokyoTyrantTranscoder");
+		// the real flag is stored before value
+		ByteBuffer realData = data.slice();
+		int realFlag = realData.getInt();
+		return serializingTranscoder.decode(realFlag, realData.slice());
+	}
 	
 	
 
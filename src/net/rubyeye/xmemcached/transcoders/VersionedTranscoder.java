@@ -0,0 +1,80 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.transcoders;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transcoder which tags values of another transcoder with a version,so
+ * readers of replicated keys could detect and discard stale replicas,see
+ * MemcachedClient#getReplicated.The version is written before the value and
+ * the VERSIONED bit is set in flags,flags of the wrapped transcoder are kept
+ * unchanged in the lower 16 bits.Values which are not tagged are decoded by
+ * the wrapped transcoder as they are,and their version is -1.
+ * 
+ * <p>
+ * Versions are given by a hybrid clock,microseconds of current time which
+ * are strictly increasing in this JVM,so the last writer wins if clocks of
+ * clients are synchronized.Servers must store 32 bits flags.
+ * </p>
+ * 
+ * @author dennis
+ * 
+ */
+public class VersionedTranscoder<T> extends EnvelopeTranscoder<T> {
+
+	public static final int VERSIONED = 1 << 16;
+
+	private static final int VERSION_LENGTH = 8;
+
+	private static final AtomicLong LAST_VERSION = new AtomicLong();
+
+	public VersionedTranscoder(Transcoder<T> transcoder) {
+		super(transcoder, VERSIONED, VERSION_LENGTH);
+	}
+
+	/**
+	 * Returns version of a value,-1 if it is not tagged
+	 * 
+	 * @param data
+	 * @return
+	 */
+	public static long getVersion(CachedData data) {
+		ByteBuffer buffer = envelope(data, VERSIONED, VERSION_LENGTH);
+		return buffer == null ? -1 : buffer.getLong(buffer.position());
+	}
+
+	/**
+	 * Returns version of a new value,subclasses could override it to use
+	 * versions from the source of truth,such as row versions of database.
+	 * 
+	 * @param o
+	 * @return
+	 */
+	protected long newVersion(T o) {
+		long now = System.currentTimeMillis() * 1000;
+		for (;;) {
+			long last = LAST_VERSION.get();
+			long next = now > last ? now : last + 1;
+			if (LAST_VERSION.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+
+	public CachedData encode(T o) {
+		CachedData data = this.wrap(o);
+		ByteBuffer.wrap(data.getData()).putLong(this.newVersion(o));
+		return data;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.buffer;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import junit.framework.TestCase;
+import net.rubyeye.xmemcached.command.Command;
+import net.rubyeye.xmemcached.command.TextCommandFactory;
+import net.rubyeye.xmemcached.impl.Optimizer;
+import net.rubyeye.xmemcached.transcoders.SerializingTranscoder;
+import net.rubyeye.xmemcached.utils.ByteUtils;
+import net.rubyeye.xmemcached.utils.Protocol;
+
+import com.google.code.yanf4j.buffer.IoBuffer;
+
+/**
+ * Checks that pooled command buffers are recycled after both freed and
+ * written,or discarded before written
+ *
+ * @author dennis
+ *
+ */
+public class PooledBufferAllocatorUnitTest extends TestCase {
+
+	private PooledBufferAllocator allocator;
+
+	@Override
+	public void setUp() throws Exception {
+		this.allocator = new PooledBufferAllocator();
+	}
+
+	private Command newSetCommand(String key) {
+		Command command = new TextCommandFactory().createSetCommand(key,
+				ByteUtils.getBytes(key), 0, "value", false,
+				new SerializingTranscoder());
+		command.setBufferAllocator(this.allocator);
+		command.encode();
+		return command;
+	}
+
+	public void testRecycleAfterFreedAndWritten() {
+		IoBuffer buffer = this.allocator.allocateIoBuffer(100);
+		assertEquals(128, this.allocator.getUsedBytes());
+		buffer.free();
+		assertEquals(128, this.allocator.getUsedBytes());
+		PooledBufferAllocator.writeComplete(buffer);
+		assertEquals(0, this.allocator.getUsedBytes());
+		assertEquals(1, this.allocator.getRecycleCount());
+
+		// released twice does nothing
+		buffer.free();
+		PooledBufferAllocator.writeComplete(buffer);
+		assertEquals(1, this.allocator.getRecycleCount());
+
+		this.allocator.allocateIoBuffer(100);
+		assertEquals(1, this.allocator.getThreadCacheHitCount()
+				+ this.allocator.getPoolHitCount());
+		assertEquals(128, this.allocator.getAllocatedBytes());
+	}
+
+	public void testNotRecycledUntilWritten() {
+		IoBuffer buffer = this.allocator.allocateIoBuffer(100);
+		buffer.free();
+		this.allocator.allocateIoBuffer(100);
+		assertEquals(256, this.allocator.getUsedBytes());
+		assertEquals(0, this.allocator.getRecycleCount());
+		PooledBufferAllocator.writeComplete(buffer);
+		assertEquals(128, this.allocator.getUsedBytes());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testCancelledCommandDiscardedByOptimizer() {
+		Command first = newSetCommand("first");
+		Command cancelled = newSetCommand("cancelled");
+		long firstBytes = this.allocator.getUsedBytes() / 2;
+		cancelled.cancel();
+
+		Queue writeQueue = new LinkedList();
+		writeQueue.add(cancelled);
+		Optimizer optimizer = new Optimizer(Protocol.Text);
+		optimizer.setOptimizeMergeBuffer(true);
+		Command merged = optimizer.optimiezeMergeBuffer(first, writeQueue,
+				new LinkedList<Command>(), 16 * 1024);
+		assertSame(first, merged);
+		assertTrue(writeQueue.isEmpty());
+		assertEquals(firstBytes, this.allocator.getUsedBytes());
+		assertEquals(1, this.allocator.getRecycleCount());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testMergeAfterCancelledCommand() {
+		Command first = newSetCommand("first");
+		Command cancelled = newSetCommand("cancelled");
+		Command last = newSetCommand("last");
+		int length = first.getIoBuffer().remaining()
+				+ last.getIoBuffer().remaining();
+		cancelled.cancel();
+
+		Queue writeQueue = new LinkedList();
+		writeQueue.add(cancelled);
+		writeQueue.add(last);
+		Optimizer optimizer = new Optimizer(Protocol.Text);
+		optimizer.setOptimizeMergeBuffer(true);
+		Command merged = optimizer.optimiezeMergeBuffer(first, writeQueue,
+				new LinkedList<Command>(), 16 * 1024);
+		assertTrue(writeQueue.isEmpty());
+		assertEquals(length, merged.getIoBuffer().remaining());
+		// cancelled one and the last one replaced by merged buffer
+		assertEquals(2, this.allocator.getRecycleCount());
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.command;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import net.rubyeye.xmemcached.impl.MemcachedTCPSession;
+
+/**
+ * Checks completion and waiting of commands without a latch
+ *
+ * @author dennis
+ *
+ */
+public class CommandUnitTest extends TestCase {
+
+	static Command newCommand() {
+		return new Command("test", CommandType.GET_ONE, null) {
+			@Override
+			public void encode() {
+			}
+
+			@Override
+			public boolean decode(MemcachedTCPSession session,
+					ByteBuffer buffer) {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Complete command in another thread after delay
+	 */
+	static Thread completeLater(final Command command, final long delay,
+			final Exception exception) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (exception != null) {
+					command.setException(exception);
+				} else {
+					command.setResult(Boolean.TRUE);
+				}
+				command.countDownLatch();
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	public void testAwaitCompleted() throws Exception {
+		Command command = newCommand();
+		assertFalse(command.isDone());
+		command.setResult(Boolean.TRUE);
+		command.countDownLatch();
+		assertTrue(command.isDone());
+		assertEquals(OperationStatus.DONE, command.getStatus());
+		assertTrue(command.await(0, TimeUnit.MILLISECONDS));
+	}
+
+	public void testAwaitSuccess() throws Exception {
+		Command command = newCommand();
+		Thread thread = completeLater(command, 50, null);
+		long start = System.nanoTime();
+		assertTrue(command.await(5000, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+		assertTrue(command.isDone());
+		assertEquals(Boolean.TRUE, command.getResult());
+		thread.join();
+	}
+
+	public void testAwaitTimeout() throws Exception {
+		Command command = newCommand();
+		long start = System.nanoTime();
+		assertFalse(command.await(100, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(100));
+		assertFalse(command.isDone());
+		// a late response still completes it
+		command.countDownLatch();
+		assertTrue(command.await(0, TimeUnit.MILLISECONDS));
+	}
+
+	public void testAwaitCancelledCommand() throws Exception {
+		Command command = newCommand();
+		command.setStatus(OperationStatus.SENDING);
+		command.cancel();
+		assertTrue(command.isCancel());
+		// cancel does not complete the command by itself
+		assertFalse(command.await(50, TimeUnit.MILLISECONDS));
+
+		// a cancelled command is completed when it's session drops it
+		Thread thread = completeLater(command, 50, new MemcachedException(
+				"cancelled"));
+		assertTrue(command.await(5000, TimeUnit.MILLISECONDS));
+		assertTrue(command.getException() instanceof MemcachedException);
+		thread.join();
+	}
+
+	public void testAwaitInterrupted() throws Exception {
+		Command command = newCommand();
+		Thread.currentThread().interrupt();
+		try {
+			command.await(5000, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (InterruptedException e) {
+			assertFalse(Thread.currentThread().isInterrupted());
+		}
+		assertFalse(command.isDone());
+	}
+
+	public void testManyWaiters() throws Exception {
+		final Command command = newCommand();
+		final int n = 4;
+		final CountDownLatch started = new CountDownLatch(n);
+		final AtomicInteger done = new AtomicInteger();
+		Thread[] waiters = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			waiters[i] = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						if (command.await(5000, TimeUnit.MILLISECONDS)) {
+							done.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			waiters[i].start();
+		}
+		started.await();
+		completeLater(command, 50, null).join();
+		for (Thread waiter : waiters) {
+			waiter.join(5000);
+		}
+		assertEquals(n, done.get());
+	}
+
+	public void testCompleteOnce() throws Exception {
+		Command command = newCommand();
+		CountDownLatch latch = new CountDownLatch(2);
+		command.setLatch(latch);
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicReference<Command> completed = new AtomicReference<Command>();
+		command.setListener(new CommandListener() {
+			public void onCommandComplete(Command cmd) {
+				calls.incrementAndGet();
+				completed.set(cmd);
+			}
+		});
+		command.countDownLatch();
+		command.countDownLatch();
+		assertEquals(1, calls.get());
+		assertSame(command, completed.get());
+		// the shared latch is counted down every time
+		assertEquals(0, latch.getCount());
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.rubyeye.xmemcached.HashAlgorithm;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Checks incremental ring updates against a full rebuild and against the
+ * TreeMap ring which consistent hash locators used before.
+ *
+ * @author dennis
+ *
+ */
+public class ConsistentHashRingUnitTest extends TestCase {
+
+	private static final int NUM_POINTS = 100;
+
+	private final Random random = new Random();
+
+	public void testEmptyRing() {
+		assertEquals(0, ConsistentHashRing.EMPTY.size());
+		assertEquals(0, ConsistentHashRing.EMPTY.getSessionCount());
+		assertNull(ConsistentHashRing.EMPTY.getSession(1, this.random));
+	}
+
+	public void testNegativeHashes() {
+		Session s1 = StubSession.create(1, 11211);
+		Session s2 = StubSession.create(2, 11211);
+		ConsistentHashRing ring = ConsistentHashRing.EMPTY.update(Arrays
+				.asList(s1, s2), Arrays.asList(new long[] { -100, 50 },
+				new long[] { -5, Integer.MIN_VALUE }), null);
+		assertEquals(4, ring.size());
+		assertSame(s2, ring.getSession(Long.MIN_VALUE, this.random));
+		assertSame(s2, ring.getSession(Integer.MIN_VALUE, this.random));
+		assertSame(s1, ring.getSession(Integer.MIN_VALUE + 1, this.random));
+		assertSame(s1, ring.getSession(-100, this.random));
+		assertSame(s2, ring.getSession(-99, this.random));
+		assertSame(s1, ring.getSession(0, this.random));
+		assertSame(s2, ring.getSession(51, this.random));
+	}
+
+	public void testCollidingHashes() {
+		Session s1 = StubSession.create(1, 11211);
+		Session s2 = StubSession.create(2, 11211);
+		Session s3 = StubSession.create(3, 11211);
+		ConsistentHashRing ring = ConsistentHashRing.EMPTY.update(Arrays
+				.asList(s1, s2), Arrays.asList(new long[] { 10, 20 },
+				new long[] { 10, 30 }), null);
+		ring = ring.update(Collections.singletonList(s3), Collections
+				.singletonList(new long[] { 20 }), Collections.singleton(s1));
+		assertEquals(3, ring.size());
+		assertEquals(2, ring.getSessionCount());
+		assertSame(s2, ring.getSession(10, this.random));
+		assertSame(s3, ring.getSession(20, this.random));
+		assertSame(s2, ring.getSession(30, this.random));
+		assertSame(s2, ring.getSession(31, this.random));
+	}
+
+	public void testUpdateMatchesFullRebuild() {
+		for (HashAlgorithm alg : HashAlgorithm.values()) {
+			List<Session> all = new ArrayList<Session>();
+			for (int i = 0; i < 10; i++) {
+				all.add(StubSession.create(i, 11211));
+			}
+			List<Session> current = new ArrayList<Session>(all.subList(0, 6));
+			ConsistentHashRing ring = ConsistentHashRing.EMPTY.update(current,
+					points(current, alg), null);
+			this.assertSameRing(alg, current, ring);
+
+			// add and remove at once
+			List<Session> added = all.subList(6, 9);
+			Set<Session> removed = new HashSet<Session>(Arrays.asList(all
+					.get(1), all.get(4)));
+			ring = ring.update(added, points(added, alg), removed);
+			current.removeAll(removed);
+			current.addAll(added);
+			this.assertSameRing(alg, current, ring);
+
+			// put a removed session back
+			added = Collections.singletonList(all.get(1));
+			ring = ring.update(added, points(added, alg), null);
+			current.addAll(added);
+			this.assertSameRing(alg, current, ring);
+
+			// remove only
+			removed = Collections.singleton(all.get(0));
+			ring = ring.update(Collections.<Session> emptyList(), Collections
+					.<long[]> emptyList(), removed);
+			current.removeAll(removed);
+			this.assertSameRing(alg, current, ring);
+		}
+	}
+
+	private void assertSameRing(HashAlgorithm alg, List<Session> sessions,
+			ConsistentHashRing ring) {
+		ConsistentHashRing rebuilt = ConsistentHashRing.EMPTY.update(sessions,
+				points(sessions, alg), null);
+		TreeMap<Long, List<Session>> treeMap = treeMap(sessions, alg);
+		assertEquals(alg.toString(), treeMap.size(), ring.size());
+		assertEquals(alg.toString(), rebuilt.size(), ring.size());
+		assertEquals(alg.toString(), sessions.size(), ring.getSessionCount());
+		assertEquals(alg.toString(), new HashSet<Session>(sessions), ring
+				.getSessions());
+
+		List<Long> probes = new ArrayList<Long>();
+		for (int i = 0; i < 5000; i++) {
+			probes.add(alg.hash("key_" + i));
+		}
+		for (Long hash : treeMap.keySet()) {
+			probes.add(hash);
+			probes.add(hash + 1);
+			probes.add(hash - 1);
+		}
+		probes.add(Long.MIN_VALUE);
+		probes.add(Long.MAX_VALUE);
+		for (long hash : probes) {
+			List<Session> expected = lookup(treeMap, hash);
+			Session actual = ring.getSession(hash, this.random);
+			assertTrue(alg + ",hash=" + hash, expected.contains(actual));
+			assertTrue(alg + ",hash=" + hash, expected.contains(rebuilt
+					.getSession(hash, this.random)));
+			if (expected.size() == 1) {
+				assertSame(rebuilt.getSession(hash, this.random), actual);
+			}
+		}
+	}
+
+	static List<long[]> points(List<Session> sessions, HashAlgorithm alg) {
+		List<long[]> result = new ArrayList<long[]>();
+		for (Session session : sessions) {
+			long[] points = new long[NUM_POINTS];
+			for (int i = 0; i < NUM_POINTS; i++) {
+				points[i] = alg.hash(session.getRemoteSocketAddress() + "-" + i);
+			}
+			result.add(points);
+		}
+		return result;
+	}
+
+	static TreeMap<Long, List<Session>> treeMap(List<Session> sessions,
+			HashAlgorithm alg) {
+		TreeMap<Long, List<Session>> sessionMap = new TreeMap<Long, List<Session>>();
+		List<long[]> points = points(sessions, alg);
+		for (int i = 0; i < sessions.size(); i++) {
+			for (long hash : points.get(i)) {
+				List<Session> sessionList = sessionMap.get(hash);
+				if (sessionList == null) {
+					sessionList = new ArrayList<Session>();
+					sessionMap.put(hash, sessionList);
+				}
+				sessionList.add(sessions.get(i));
+			}
+		}
+		return sessionMap;
+	}
+
+	static List<Session> lookup(TreeMap<Long, List<Session>> sessionMap,
+			long hash) {
+		SortedMap<Long, List<Session>> tailMap = sessionMap.tailMap(hash);
+		if (tailMap.isEmpty()) {
+			return sessionMap.get(sessionMap.firstKey());
+		}
+		return tailMap.get(tailMap.firstKey());
+	}
+}
@@ -0,0 +1,246 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.rubyeye.xmemcached.HashAlgorithm;
+import net.rubyeye.xmemcached.networking.MemcachedSession;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Checks that ketama and libmemcached locators place keys as the TreeMap
+ * rings they used before,for every hash algorithm and after incremental
+ * updates.
+ *
+ * @author dennis
+ *
+ */
+public class ConsistentHashSessionLocatorUnitTest extends TestCase {
+
+	private static final int KEYS = 10000;
+
+	private interface SockStr {
+		String get(Session session);
+	}
+
+	private static final SockStr KETAMA = new SockStr() {
+		public String get(Session session) {
+			return String.valueOf(session.getRemoteSocketAddress());
+		}
+	};
+
+	private static final SockStr NGINX = new SockStr() {
+		public String get(Session session) {
+			return String.format("%s:%d", session.getRemoteSocketAddress()
+					.getAddress().getHostAddress(), session
+					.getRemoteSocketAddress().getPort());
+		}
+	};
+
+	private static final SockStr LIBMEMCACHED = new SockStr() {
+		public String get(Session session) {
+			if (session.getRemoteSocketAddress().getPort() != 11211) {
+				return session.getRemoteSocketAddress().getHostName() + ":"
+						+ session.getRemoteSocketAddress().getPort();
+			} else {
+				return session.getRemoteSocketAddress().getHostName();
+			}
+		}
+	};
+
+	public void testKetama() {
+		for (HashAlgorithm alg : HashAlgorithm.values()) {
+			this.checkLocator(new KetamaMemcachedSessionLocator(alg), alg,
+					KETAMA, KetamaMemcachedSessionLocator.NUM_REPS);
+		}
+	}
+
+	public void testKetamaNginxUpstreamConsistent() {
+		for (HashAlgorithm alg : HashAlgorithm.values()) {
+			this.checkLocator(new KetamaMemcachedSessionLocator(alg, true),
+					alg, NGINX, KetamaMemcachedSessionLocator.NUM_REPS);
+		}
+	}
+
+	public void testLibmemcached() {
+		for (HashAlgorithm alg : HashAlgorithm.values()) {
+			this.checkLocator(new LibmemcachedMemcachedSessionLocator(
+					LibmemcachedMemcachedSessionLocator.DEFAULT_NUM_REPS, alg),
+					alg, LIBMEMCACHED,
+					LibmemcachedMemcachedSessionLocator.DEFAULT_NUM_REPS);
+		}
+		// ONE_AT_A_TIME by default
+		this.checkLocator(new LibmemcachedMemcachedSessionLocator(),
+				HashAlgorithm.ONE_AT_A_TIME, LIBMEMCACHED,
+				LibmemcachedMemcachedSessionLocator.DEFAULT_NUM_REPS);
+	}
+
+	/**
+	 * Ketama locator which counts computing of points
+	 */
+	private static final class CountingLocator extends
+			KetamaMemcachedSessionLocator {
+		int computed;
+
+		@Override
+		protected long[] computePoints(Session session) {
+			this.computed++;
+			return super.computePoints(session);
+		}
+	}
+
+	public void testReconnectDoesNotComputePoints() {
+		CountingLocator locator = new CountingLocator();
+		List<Session> current = new ArrayList<Session>();
+		for (int i = 1; i <= 3; i++) {
+			current.add(StubSession.createMemcachedSession(i, 11211));
+		}
+		locator.updateSessions(current);
+		assertEquals(3, locator.computed);
+
+		// server 2 is disconnected and then reconnected
+		Session closed = current.remove(1);
+		locator.updateSessions(Collections.<Session> emptyList(), Collections
+				.singletonList(closed));
+		Session reconnected = StubSession.createMemcachedSession(2, 11211);
+		locator.updateSessions(Collections.singletonList(reconnected),
+				Collections.<Session> emptyList());
+		current.add(reconnected);
+		assertEquals(3, locator.computed);
+		this.assertSamePlacement(locator, HashAlgorithm.KETAMA_HASH, KETAMA,
+				KetamaMemcachedSessionLocator.NUM_REPS, current);
+
+		// a full rebuild reuses points too
+		locator.updateSessions(current);
+		assertEquals(3, locator.computed);
+
+		// a pooled session of server 1 is closed without reconnecting,but
+		// server 1 still has another session
+		MemcachedSession pooled = StubSession.createMemcachedSession(1, 11211);
+		locator.updateSessions(Collections.<Session> singletonList(pooled),
+				Collections.<Session> emptyList());
+		pooled.setAllowReconnect(false);
+		locator.updateSessions(Collections.<Session> emptyList(), Collections
+				.<Session> singletonList(pooled));
+		locator.updateSessions(Collections.singletonList(StubSession
+				.createMemcachedSession(1, 11211)), Collections
+				.<Session> emptyList());
+		assertEquals(3, locator.computed);
+	}
+
+	public void testRemovedServerEvictsPoints() {
+		CountingLocator locator = new CountingLocator();
+		MemcachedSession session = StubSession.createMemcachedSession(1, 11211);
+		locator.updateSessions(Collections.<Session> singletonList(session));
+		assertEquals(1, locator.computed);
+		// MemcachedClient#removeServer
+		session.setAllowReconnect(false);
+		locator.updateSessions(Collections.<Session> emptyList(), Collections
+				.<Session> singletonList(session));
+		locator.updateSessions(Collections.singletonList(StubSession
+				.createMemcachedSession(1, 11211)), Collections
+				.<Session> emptyList());
+		assertEquals(2, locator.computed);
+	}
+
+	private void checkLocator(AbstractConsistentHashSessionLocator locator,
+			HashAlgorithm alg, SockStr sockStr, int numReps) {
+		List<Session> all = new ArrayList<Session>();
+		for (int i = 0; i < 10; i++) {
+			all.add(StubSession.create(i + 1, i % 2 == 0 ? 11211 : 12000));
+		}
+		List<Session> current = new ArrayList<Session>(all.subList(0, 8));
+		locator.updateSessions(current);
+		this.assertSamePlacement(locator, alg, sockStr, numReps, current);
+
+		List<Session> added = all.subList(8, 10);
+		List<Session> removed = Arrays.asList(all.get(2), all.get(5));
+		locator.updateSessions(added, removed);
+		current.removeAll(removed);
+		current.addAll(added);
+		this.assertSamePlacement(locator, alg, sockStr, numReps, current);
+
+		added = Collections.singletonList(all.get(2));
+		locator.updateSessions(added, Collections.<Session> emptyList());
+		current.addAll(added);
+		this.assertSamePlacement(locator, alg, sockStr, numReps, current);
+	}
+
+	private void assertSamePlacement(
+			AbstractConsistentHashSessionLocator locator, HashAlgorithm alg,
+			SockStr sockStr, int numReps, List<Session> sessions) {
+		TreeMap<Long, List<Session>> sessionMap = treeMap(sessions, alg,
+				sockStr, numReps);
+		for (int i = 0; i < KEYS; i++) {
+			String key = "key_" + i;
+			List<Session> expected = lookup(sessionMap, alg.hash(key));
+			assertTrue(alg + "," + key, expected.contains(locator
+					.getSessionByKey(key, false)));
+		}
+	}
+
+	/**
+	 * The ring before,copied from the TreeMap based locators
+	 */
+	static TreeMap<Long, List<Session>> treeMap(List<Session> list,
+			HashAlgorithm alg, SockStr sockStr, int numReps) {
+		TreeMap<Long, List<Session>> sessionMap = new TreeMap<Long, List<Session>>();
+		for (Session session : list) {
+			String str = sockStr.get(session);
+			if (alg == HashAlgorithm.KETAMA_HASH && sockStr != LIBMEMCACHED) {
+				for (int i = 0; i < numReps / 4; i++) {
+					byte[] digest = HashAlgorithm.computeMd5(str + "-" + i);
+					for (int h = 0; h < 4; h++) {
+						long k = (long) (digest[3 + h * 4] & 0xFF) << 24
+								| (long) (digest[2 + h * 4] & 0xFF) << 16
+								| (long) (digest[1 + h * 4] & 0xFF) << 8
+								| digest[h * 4] & 0xFF;
+						getSessionList(sessionMap, k).add(session);
+					}
+				}
+			} else {
+				for (int i = 0; i < numReps; i++) {
+					getSessionList(sessionMap, alg.hash(str + "-" + i)).add(
+							session);
+				}
+			}
+		}
+		return sessionMap;
+	}
+
+	private static List<Session> getSessionList(
+			TreeMap<Long, List<Session>> sessionMap, long k) {
+		List<Session> sessionList = sessionMap.get(k);
+		if (sessionList == null) {
+			sessionList = new ArrayList<Session>();
+			sessionMap.put(k, sessionList);
+		}
+		return sessionList;
+	}
+
+	static List<Session> lookup(TreeMap<Long, List<Session>> sessionMap,
+			long hash) {
+		SortedMap<Long, List<Session>> tailMap = sessionMap.tailMap(hash);
+		if (tailMap.isEmpty()) {
+			return sessionMap.get(sessionMap.firstKey());
+		}
+		return tailMap.get(tailMap.firstKey());
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks ReplicaMap against a HashMap,on heap and direct,with and without key
+ * verification.
+ *
+ * @author dennis
+ *
+ */
+public class ReplicaMapUnitTest extends TestCase {
+
+	public void testPackList() {
+		long packed = ReplicaMap.pack(new int[] { 3, 0, 7 });
+		assertEquals(3, ReplicaMap.count(packed));
+		assertEquals(3, ReplicaMap.replica(packed, 0));
+		assertEquals(0, ReplicaMap.replica(packed, 1));
+		assertEquals(7, ReplicaMap.replica(packed, 2));
+		assertTrue(ReplicaMap.contains(packed, 0));
+		assertFalse(ReplicaMap.contains(packed, 1));
+		assertEquals(ReplicaMap.NONE, ReplicaMap.pack(new int[0]));
+	}
+
+	public void testPackBitmask() {
+		long packed = ReplicaMap.pack(new int[] { 1, 5, 9, 62 });
+		assertEquals(4, ReplicaMap.count(packed));
+		assertEquals(1, ReplicaMap.replica(packed, 0));
+		assertEquals(62, ReplicaMap.replica(packed, 3));
+		assertTrue(ReplicaMap.contains(packed, 9));
+		assertFalse(ReplicaMap.contains(packed, 10));
+		assertTrue(ReplicaMap.fits(new int[] { 1, 5, 9, 62 }));
+		// neither order nor duplicates are kept
+		assertEquals(packed, ReplicaMap.pack(new int[] { 62, 9, 5, 1, 5 }));
+	}
+
+	public void testPackTruncated() {
+		int[] replicas = new int[] { 1, 63, 5, 9, 100 };
+		assertFalse(ReplicaMap.fits(replicas));
+		long packed = ReplicaMap.pack(replicas);
+		assertEquals(3, ReplicaMap.count(packed));
+		assertEquals(1, ReplicaMap.replica(packed, 0));
+		assertEquals(63, ReplicaMap.replica(packed, 1));
+		assertEquals(5, ReplicaMap.replica(packed, 2));
+		assertTrue(ReplicaMap.fits(new int[] { 1, 63, 5 }));
+	}
+
+	public void testPutGetRemove() {
+		for (boolean direct : new boolean[] { false, true }) {
+			for (boolean verify : new boolean[] { false, true }) {
+				this.checkAgainstHashMap(new ReplicaMap(16, direct, verify));
+			}
+		}
+	}
+
+	private void checkAgainstHashMap(ReplicaMap map) {
+		Map<String, Long> expected = new HashMap<String, Long>();
+		Random random = new Random(7);
+		int capacity = map.capacity();
+		int resized = 0;
+		for (int i = 0; i < 20000; i++) {
+			String key = "key_" + random.nextInt(5000);
+			if (random.nextInt(4) == 0) {
+				assertEquals(expected.remove(key) != null, map.remove(key));
+			} else {
+				long value = ReplicaMap.pack(new int[] { random.nextInt(100),
+						random.nextInt(100) });
+				map.put(key, value);
+				expected.put(key, value);
+			}
+			if (map.capacity() != capacity) {
+				capacity = map.capacity();
+				resized++;
+				this.assertSameEntries(expected, map);
+			}
+		}
+		assertTrue(resized > 0);
+		this.assertSameEntries(expected, map);
+
+		// remove all,backward shift deletion must keep probes valid
+		for (String key : expected.keySet().toArray(new String[0])) {
+			assertTrue(map.remove(key));
+			expected.remove(key);
+			assertEquals(ReplicaMap.NONE, map.get(key));
+		}
+		assertEquals(0, map.size());
+		map.put("a", new int[] { 1 });
+		map.clear();
+		assertEquals(0, map.size());
+		assertEquals(ReplicaMap.NONE, map.get("a"));
+	}
+
+	private void assertSameEntries(Map<String, Long> expected, ReplicaMap map) {
+		assertEquals(expected.size(), map.size());
+		for (int i = 0; i < 5000; i++) {
+			String key = "key_" + i;
+			Long value = expected.get(key);
+			assertEquals(key, value == null ? ReplicaMap.NONE : value
+					.longValue(), map.get(key));
+		}
+	}
+
+	public void testWriteAndMap() throws Exception {
+		ReplicaMap map = new ReplicaMap(16, false, true);
+		Map<String, Long> expected = new HashMap<String, Long>();
+		for (int i = 0; i < 1000; i += 3) {
+			long value = ReplicaMap.pack(new int[] { i % 7, i % 11 + 7 });
+			map.put("key_" + i, value);
+			expected.put("key_" + i, value);
+		}
+		File file = File.createTempFile("replica", ".map");
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					file));
+			try {
+				map.writeTo(out);
+			} finally {
+				out.close();
+			}
+			for (boolean mapped : new boolean[] { true, false }) {
+				RandomAccessFile raf = new RandomAccessFile(file,
+						mapped ? "rw" : "r");
+				ReplicaMap loaded;
+				try {
+					loaded = ReplicaMap.map(raf.getChannel(), 0, false, mapped);
+				} finally {
+					raf.close();
+				}
+				this.assertSameEntries(expected, loaded);
+				// changes are never written through to the file
+				loaded.put("key_1", new int[] { 1 });
+				loaded.remove("key_0");
+				assertEquals(expected.size(), loaded.size());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testPutNoneRemoves() {
+		ReplicaMap map = new ReplicaMap();
+		map.put("a", new int[] { 1, 2 });
+		assertEquals(1, map.size());
+		map.put("a", ReplicaMap.NONE);
+		assertEquals(0, map.size());
+		assertEquals(ReplicaMap.NONE, map.get("a"));
+	}
+
+	public void testReadWhileResizing() throws Exception {
+		final ReplicaMap map = new ReplicaMap();
+		final long value = ReplicaMap.pack(new int[] { 1, 2, 3 });
+		map.put("stable", value);
+		final AtomicReference<String> error = new AtomicReference<String>();
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 100000; i++) {
+					map.put("key_" + i, new int[] { i % 64 });
+					if (i % 3 == 0) {
+						map.remove("key_" + (i / 2));
+					}
+				}
+			}
+		};
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (writer.isAlive()) {
+					if (map.get("stable") != value) {
+						error.set("Lost stable key at capacity "
+								+ map.capacity());
+						return;
+					}
+				}
+			}
+		};
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+		assertNull(error.get(), error.get());
+		assertEquals(value, map.get("stable"));
+	}
+}
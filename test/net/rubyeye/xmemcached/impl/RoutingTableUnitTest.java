@@ -0,0 +1,130 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that merging an unchanged mapping keeps the table,whatever replicas
+ * are packed as,and saving and loading of snapshots
+ *
+ * @author dennis
+ *
+ */
+public class RoutingTableUnitTest extends TestCase {
+
+	private static List<String> hosts(int from, int to) {
+		List<String> hosts = new ArrayList<String>();
+		for (int i = from; i < to; i++) {
+			hosts.add("host" + i);
+		}
+		return hosts;
+	}
+
+	public void testMergeUnchanged() {
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		mapping.put("a", hosts(0, 2));
+		mapping.put("b", hosts(1, 3));
+		RoutingTable table = RoutingTable.EMPTY.merge(mapping);
+		assertEquals(1, table.getVersion());
+		assertSame(table, table.merge(mapping));
+
+		mapping.put("b", Arrays.asList("host2", "host1"));
+		RoutingTable changed = table.merge(mapping);
+		assertEquals(2, changed.getVersion());
+	}
+
+	public void testMergeUnchangedBitmask() {
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		mapping.put("a", hosts(0, 5));
+		RoutingTable table = RoutingTable.EMPTY.merge(mapping);
+		assertSame(table, table.merge(mapping));
+
+		// bitmask replicas are a set
+		List<String> reordered = hosts(0, 5);
+		reordered.add(0, reordered.remove(4));
+		mapping.put("a", reordered);
+		assertSame(table, table.merge(mapping));
+
+		mapping.put("a", hosts(1, 6));
+		assertEquals(2, table.merge(mapping).getVersion());
+	}
+
+	public void testMergeUnchangedTruncated() {
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		mapping.put("a", hosts(0, 64));
+		RoutingTable table = RoutingTable.EMPTY.merge(mapping);
+		mapping.put("b", hosts(60, 70));
+		table = table.merge(mapping);
+		assertEquals(2, table.getVersion());
+		assertSame(table, table.merge(mapping));
+	}
+
+	public void testCopyIsNotChangedByLaterVersions() throws Exception {
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		mapping.put("a", hosts(0, 2));
+		RoutingTable table = RoutingTable.EMPTY.merge(mapping);
+		RoutingTable copy = table.copy();
+
+		mapping.put("a", hosts(2, 4));
+		mapping.put("b", hosts(4, 5));
+		RoutingTable changed = table.apply(2, false, mapping, Collections
+				.<String> emptyList());
+		assertEquals(hosts(2, 4), changed.getHosts("a"));
+		assertEquals(hosts(0, 2), copy.getHosts("a"));
+		assertEquals(1, copy.size());
+		assertEquals(2, copy.getHostCount());
+
+		File file = File.createTempFile("routing", ".snapshot");
+		try {
+			copy.save(file);
+			RoutingTable loaded = RoutingTable.load(file);
+			assertEquals(1, loaded.getVersion());
+			assertEquals(hosts(0, 2), loaded.getHosts("a"));
+			assertNull(loaded.getHosts("b"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testLoadReadOnlySnapshot() throws Exception {
+		Map<String, List<String>> mapping = new HashMap<String, List<String>>();
+		mapping.put("a", hosts(0, 2));
+		mapping.put("b", hosts(1, 4));
+		RoutingTable table = RoutingTable.EMPTY.merge(mapping);
+
+		File file = File.createTempFile("routing", ".snapshot");
+		try {
+			table.save(file);
+			assertTrue(file.setReadOnly());
+			RoutingTable loaded = RoutingTable.load(file);
+			assertEquals(2, loaded.size());
+			assertEquals(hosts(1, 4), loaded.getHosts("b"));
+
+			// loaded table could still be changed
+			mapping.put("c", hosts(4, 5));
+			RoutingTable changed = loaded.merge(mapping);
+			assertEquals(hosts(4, 5), changed.getHosts("c"));
+			assertEquals(hosts(0, 2), changed.getHosts("a"));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import net.rubyeye.xmemcached.networking.MemcachedSession;
+
+import com.google.code.yanf4j.core.Session;
+
+/**
+ * Session stub for locator tests,it only has a remote address and is never
+ * closed.Sessions are equal only if they are the same.A memcached session
+ * stub also keeps whether it is allowed to reconnect.
+ *
+ * @author dennis
+ *
+ */
+final class StubSession {
+
+	private StubSession() {
+	}
+
+	/**
+	 * Create a session of 10.0.0.n:port,it's host name is "server-n",so
+	 * no name is resolved.
+	 *
+	 * @param n
+	 * @param port
+	 * @return
+	 */
+	static Session create(int n, int port) {
+		try {
+			InetAddress address = InetAddress.getByAddress("server-" + n,
+					new byte[] { 10, 0, (byte) (n >> 8), (byte) n });
+			return create(new InetSocketAddress(address, port));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	static Session create(final InetSocketAddress address) {
+		return (Session) Proxy.newProxyInstance(Session.class
+				.getClassLoader(), new Class<?>[] { Session.class },
+				new Handler(address));
+	}
+
+	/**
+	 * Create a MemcachedSession of 10.0.0.n:port which is allowed to
+	 * reconnect,see {@link #create(int, int)}
+	 */
+	static MemcachedSession createMemcachedSession(int n, int port) {
+		Session session = create(n, port);
+		return (MemcachedSession) Proxy.newProxyInstance(Session.class
+				.getClassLoader(),
+				new Class<?>[] { MemcachedSession.class }, new Handler(
+						session.getRemoteSocketAddress()));
+	}
+
+	private static final class Handler implements InvocationHandler {
+		private final InetSocketAddress address;
+		private boolean allowReconnect = true;
+
+		Handler(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getRemoteSocketAddress")) {
+				return this.address;
+			} else if (name.equals("isClosed")) {
+				return Boolean.FALSE;
+			} else if (name.equals("isAllowReconnect")) {
+				return this.allowReconnect;
+			} else if (name.equals("setAllowReconnect")) {
+				this.allowReconnect = (Boolean) args[0];
+				return null;
+			} else if (name.equals("getWeight")) {
+				return 1;
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("toString")) {
+				return "Session[" + this.address + "]";
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	}
+}
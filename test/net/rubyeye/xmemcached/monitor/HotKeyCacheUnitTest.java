@@ -0,0 +1,74 @@
+/**
+ *Copyright [2009-2010] [dennis zhuang(killme2008@gmail.com)]
+ *Licensed under the Apache License, Version 2.0 (the "License");
+ *you may not use this file except in compliance with the License.
+ *You may obtain a copy of the License at
+ *             http://www.apache.org/licenses/LICENSE-2.0
+ *Unless required by applicable law or agreed to in writing,
+ *software distributed under the License is distributed on an "AS IS" BASIS,
+ *WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *either express or implied. See the License for the specific language governing permissions and limitations under the License
+ */
+package net.rubyeye.xmemcached.monitor;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.rubyeye.xmemcached.transcoders.CachedData;
+
+/**
+ * Checks that a get sent before an invalidation or a promotion does not fill
+ * local copies
+ *
+ * @author dennis
+ *
+ */
+public class HotKeyCacheUnitTest extends TestCase {
+
+	private HotKeyCache cache;
+
+	@Override
+	public void setUp() throws Exception {
+		this.cache = new HotKeyCache(1, 4, 10, 1, TimeUnit.SECONDS);
+	}
+
+	private static CachedData data(String value) {
+		return new CachedData(0, value.getBytes());
+	}
+
+	public void testPutAfterPromotion() {
+		long stamp = this.cache.stamp();
+		this.cache.record("a", 10);
+		assertTrue(this.cache.isHot("a"));
+		// sent before promotion
+		this.cache.put("a", data("old"), stamp);
+		assertNull(this.cache.get("a"));
+
+		this.cache.put("a", data("new"), this.cache.stamp());
+		assertEquals("new", new String(this.cache.get("a").getData()));
+	}
+
+	public void testStalePutAfterInvalidation() {
+		this.cache.record("a", 10);
+		long stamp = this.cache.stamp();
+		this.cache.invalidate("a");
+		this.cache.put("a", data("old"), stamp);
+		assertNull(this.cache.get("a"));
+
+		stamp = this.cache.stamp();
+		this.cache.clear();
+		this.cache.put("a", data("old"), stamp);
+		assertNull(this.cache.get("a"));
+
+		this.cache.put("a", data("old"), HotKeyCache.NO_STAMP);
+		assertNull(this.cache.get("a"));
+	}
+
+	public void testInvalidateNotHotKeyKeepsStamp() {
+		this.cache.record("a", 10);
+		long stamp = this.cache.stamp();
+		this.cache.invalidate("b");
+		this.cache.put("a", data("value"), stamp);
+		assertEquals("value", new String(this.cache.get("a").getData()));
+	}
+}